@@ -0,0 +1,41 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord.benchmarks;
+
+import com.beust.jcommander.Parameter;
+import net.ubos.proxycord.Engine;
+
+/**
+ * Command-line arguments for the EndToEndBenchmark.
+ */
+public class EndToEndArgs
+{
+    @Parameter( names = { "--clients" }, description = "Number of concurrent keep-alive clients." )
+    int clients = 16;
+
+    @Parameter( names = { "--warmup" }, description = "Seconds to run before measuring, per scenario." )
+    int warmup = 3;
+
+    @Parameter( names = { "--duration" }, description = "Seconds to measure, per scenario." )
+    int duration = 10;
+
+    @Parameter( names = { "--response-size" }, description = "Number of bytes in each response body." )
+    int responseSize = 4096;
+
+    @Parameter( names = { "--chunk-size" }, description = "If greater than 0, the upstream sends response bodies chunked, in chunks of this size." )
+    int chunkSize = 0;
+
+    @Parameter( names = { "--upstream-threads" }, description = "Maximum number of connections the upstream stand-in serves at the same time." )
+    int upstreamThreads = 32;
+
+    @Parameter( names = { "--engine" }, description = "The engine Proxycord uses: THREADS, VIRTUAL or NIO." )
+    Engine engine = Engine.THREADS;
+
+    @Parameter( names = { "--upstream-pool" }, description = "Let Proxycord pool its connections to the upstream." )
+    boolean upstreamPool;
+
+    @Parameter( names = { "-h", "--help" }, description = "Help text", help = true )
+    boolean help;
+}
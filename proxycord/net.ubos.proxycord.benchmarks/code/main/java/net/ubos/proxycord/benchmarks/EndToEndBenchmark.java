@@ -0,0 +1,206 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord.benchmarks;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.ParameterException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import net.ubos.proxycord.LatencyHistogram;
+import net.ubos.proxycord.Proxycord;
+
+/**
+ * Measures what Proxycord costs in front of a web application. Everything
+ * runs on localhost: an UpstreamStandIn plays the web application, and
+ * LoadClients send requests to it, first directly, then through Proxycord
+ * with recording on, then through Proxycord with recording off.
+ */
+public class EndToEndBenchmark
+{
+    /**
+     * Main program.
+     *
+     * @param argv the command-line arguments
+     * @throws Exception something went wrong
+     */
+    public static void main(
+            String [] argv )
+        throws
+            Exception
+    {
+        EndToEndArgs args      = new EndToEndArgs();
+        JCommander   commander = JCommander.newBuilder().addObject( args ).build();
+        try {
+            commander.parse( argv );
+        } catch( ParameterException ex ) {
+            System.err.println( ex.getMessage() );
+            commander.usage();
+            System.exit( 1 );
+        }
+        if( args.help ) {
+            commander.usage();
+            System.exit( 0 );
+        }
+
+        Traffic.quietLogging();
+
+        UpstreamStandIn upstream = UpstreamStandIn.create( args.responseSize, args.chunkSize, args.upstreamThreads );
+        try {
+            System.out.println( String.format(
+                    "%d clients, %d byte responses%s, engine %s%s, %d s per scenario after %d s warmup",
+                    args.clients,
+                    args.responseSize,
+                    args.chunkSize > 0 ? " in " + args.chunkSize + " byte chunks" : "",
+                    args.engine,
+                    args.upstreamPool ? " with upstream pool" : "",
+                    args.duration,
+                    args.warmup ));
+            System.out.println( String.format(
+                    "%-24s %12s %10s %10s %10s %10s %8s %8s",
+                    "scenario", "requests/s", "p50 ms", "p99 ms", "p99.9 ms", "MB/s", "errors", "steps" ));
+
+            report( "direct", measure( args, upstream.getPort() ), -1 );
+            runThroughProxy( args, upstream, true );
+            runThroughProxy( args, upstream, false );
+
+        } finally {
+            upstream.stop();
+        }
+        System.exit( 0 );
+    }
+
+    /**
+     * Run a scenario through Proxycord.
+     *
+     * @param args the command-line arguments
+     * @param upstream the upstream stand-in
+     * @param recording if true, Proxycord records the traffic
+     * @throws Exception something went wrong
+     */
+    protected static void runThroughProxy(
+            EndToEndArgs    args,
+            UpstreamStandIn upstream,
+            boolean         recording )
+        throws
+            Exception
+    {
+        int       port = findFreePort();
+        Proxycord app  = Proxycord.create();
+        app.setEngine( args.engine );
+        app.setRecording( recording );
+        app.setUpstreamPooling( args.upstreamPool, args.clients, TimeUnit.SECONDS.toMillis( 4 ));
+
+        try {
+            app.start( "127.0.0.1", port, "127.0.0.1", upstream.getPort() );
+
+            LoadClient.Result result = measure( args, port );
+
+            app.getCapturePipeline().awaitIdle( TimeUnit.SECONDS.toMillis( 30 ));
+            report( recording ? "proxy, recording" : "proxy, not recording", result, app.getStepSnapshot().size() );
+
+            app.stop();
+
+        } finally {
+            app.end();
+        }
+    }
+
+    /**
+     * Warm up, then measure, sending requests to a port.
+     *
+     * @param args the command-line arguments
+     * @param port the local port to send requests to
+     * @return the measured results
+     * @throws InterruptedException should not happen
+     */
+    protected static LoadClient.Result measure(
+            EndToEndArgs args,
+            int          port )
+        throws
+            InterruptedException
+    {
+        runClients( args.clients, port, args.warmup );
+
+        long              start  = System.nanoTime();
+        LoadClient.Result result = runClients( args.clients, port, args.duration );
+        result.theElapsed = System.nanoTime() - start;
+
+        return result;
+    }
+
+    /**
+     * Run LoadClients for some time.
+     *
+     * @param clients the number of concurrent LoadClients
+     * @param port the local port to send requests to
+     * @param seconds for how long
+     * @return the results
+     * @throws InterruptedException should not happen
+     */
+    protected static LoadClient.Result runClients(
+            int clients,
+            int port,
+            int seconds )
+        throws
+            InterruptedException
+    {
+        byte []           request  = Traffic.getRequest( "/items/4711" );
+        long              deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( seconds );
+        LoadClient.Result ret      = new LoadClient.Result();
+
+        Thread [] threads = new Thread[ clients ];
+        for( int i=0 ; i<clients ; ++i ) {
+            threads[i] = new Thread( new LoadClient( port, request, deadline, ret ), "client-" + i );
+            threads[i].start();
+        }
+        for( Thread t : threads ) {
+            t.join();
+        }
+        return ret;
+    }
+
+    /**
+     * Print one line of results.
+     *
+     * @param scenario name of the scenario
+     * @param result the results
+     * @param steps the number of recorded Steps, or -1 if not applicable
+     */
+    protected static void report(
+            String            scenario,
+            LoadClient.Result result,
+            int               steps )
+    {
+        LatencyHistogram latency = result.theLatency;
+        double           seconds = result.theElapsed / 1e9;
+
+        System.out.println( String.format(
+                "%-24s %12.0f %10.3f %10.3f %10.3f %10.1f %8d %8s",
+                scenario,
+                latency.getCount() / seconds,
+                latency.getPercentile( 0.5 ) / 1e6,
+                latency.getPercentile( 0.99 ) / 1e6,
+                latency.getPercentile( 0.999 ) / 1e6,
+                result.theBytes.sum() / seconds / ( 1024 * 1024 ),
+                result.theErrors.sum(),
+                steps >= 0 ? String.valueOf( steps ) : "-" ));
+    }
+
+    /**
+     * Find a local port that nobody listens on.
+     *
+     * @return the port
+     * @throws IOException no port could be found
+     */
+    protected static int findFreePort()
+        throws
+            IOException
+    {
+        try( ServerSocket s = new ServerSocket( 0 )) {
+            return s.getLocalPort();
+        }
+    }
+}
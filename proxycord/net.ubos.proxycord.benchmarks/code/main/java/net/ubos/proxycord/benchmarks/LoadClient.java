@@ -0,0 +1,164 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+import net.ubos.proxycord.HttpMessage;
+import net.ubos.proxycord.HttpMessageParser;
+import net.ubos.proxycord.HttpResponse;
+import net.ubos.proxycord.LatencyHistogram;
+
+/**
+ * One client that sends the same request over a keep-alive connection,
+ * waits for the complete response, and sends it again, until a deadline.
+ */
+public class LoadClient
+    implements
+        Runnable
+{
+    /**
+     * Constructor.
+     *
+     * @param port the local port to connect to
+     * @param request the request to send
+     * @param deadline when to stop, in System.nanoTime() format
+     * @param result where to collect the results
+     */
+    public LoadClient(
+            int     port,
+            byte [] request,
+            long    deadline,
+            Result  result )
+    {
+        thePort     = port;
+        theRequest  = request;
+        theDeadline = deadline;
+        theResult   = result;
+    }
+
+    @Override
+    public void run()
+    {
+        HttpMessageParser<HttpResponse> parser = HttpMessageParser.createResponseParser( "client" );
+        parser.setRetainContent( false );
+
+        byte [] buf    = new byte[ BUFFER_SIZE ];
+        Socket  socket = null;
+        try {
+            while( System.nanoTime() < theDeadline ) {
+                if( socket == null ) {
+                    socket = new Socket( InetAddress.getLoopbackAddress(), thePort );
+                    socket.setTcpNoDelay( true );
+                }
+                InputStream  in  = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+
+                long start = System.nanoTime();
+                out.write( theRequest );
+                out.flush();
+
+                HttpResponse response = null;
+                long         received = 0;
+                while( response == null ) {
+                    int read = in.read( buf );
+                    if( read <= 0 ) {
+                        break;
+                    }
+                    received += read;
+                    parser.parse( buf, 0, read );
+                    if( parser.hasError() ) {
+                        break;
+                    }
+                    response = parser.takeMessage();
+                }
+
+                if( response == null ) {
+                    theResult.theErrors.increment();
+                    socket.close();
+                    socket = null;
+                    parser = HttpMessageParser.createResponseParser( "client" );
+                    parser.setRetainContent( false );
+                    continue;
+                }
+                theResult.theLatency.record( System.nanoTime() - start );
+                theResult.theBytes.add( received );
+
+                String connection = response.getFirstHeaderValue( HttpMessage.HTTP_CONNECTION_HEADER );
+                if( connection != null && connection.equalsIgnoreCase( "close" )) {
+                    socket.close();
+                    socket = null;
+                }
+            }
+
+        } catch( IOException ex ) {
+            theResult.theErrors.increment();
+
+        } finally {
+            if( socket != null ) {
+                try {
+                    socket.close();
+                } catch( IOException ex ) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * The local port to connect to.
+     */
+    protected int thePort;
+
+    /**
+     * The request to send.
+     */
+    protected byte [] theRequest;
+
+    /**
+     * When to stop, in System.nanoTime() format.
+     */
+    protected long theDeadline;
+
+    /**
+     * Where to collect the results.
+     */
+    protected Result theResult;
+
+    /**
+     * Size of the receive buffer.
+     */
+    protected static final int BUFFER_SIZE = 16384;
+
+    /**
+     * Collects the results of all LoadClients in a run.
+     */
+    public static class Result
+    {
+        /**
+         * Time from sending a request until its response has been received completely.
+         */
+        public final LatencyHistogram theLatency = new LatencyHistogram();
+
+        /**
+         * Number of response bytes received.
+         */
+        public final LongAdder theBytes = new LongAdder();
+
+        /**
+         * Number of requests that did not receive a complete response.
+         */
+        public final LongAdder theErrors = new LongAdder();
+
+        /**
+         * How long the run took, in nanoseconds.
+         */
+        public long theElapsed;
+    }
+}
@@ -0,0 +1,170 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import net.ubos.proxycord.HttpMessage;
+import net.ubos.proxycord.HttpMessageParser;
+import net.ubos.proxycord.HttpRequest;
+import net.ubos.proxycord.HttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing HTTP messages, both all at once, and incrementally in the
+ * 4 KB pieces in which the engines read them from the network.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ParseBenchmark
+{
+    /**
+     * Size of the bodies.
+     */
+    @Param( { "0", "16384", "1048576" } )
+    public int bodyLength;
+
+    /**
+     * Generate the traffic.
+     */
+    @Setup
+    public void setup()
+    {
+        Traffic.quietLogging();
+
+        theGetRequest      = Traffic.getRequest( "/items/4711?sort=name&page=3" );
+        thePostRequest     = Traffic.postRequest( "/items/4711/edit", bodyLength );
+        theResponse        = Traffic.response( Traffic.HTML_CONTENT_TYPE, Traffic.textBody( bodyLength ));
+        theChunkedResponse = Traffic.chunkedResponse( Traffic.HTML_CONTENT_TYPE, Traffic.textBody( bodyLength ), CHUNK_SIZE );
+    }
+
+    /**
+     * Parse a GET request all at once.
+     *
+     * @return the parsed request
+     */
+    @Benchmark
+    public HttpRequest findGetRequest()
+    {
+        return HttpRequest.findHttpRequest( theGetRequest, "benchmark" );
+    }
+
+    /**
+     * Parse a POST request with a body all at once.
+     *
+     * @return the parsed request
+     */
+    @Benchmark
+    public HttpRequest findPostRequest()
+    {
+        return HttpRequest.findHttpRequest( thePostRequest, "benchmark" );
+    }
+
+    /**
+     * Parse a response with Content-Length all at once.
+     *
+     * @return the parsed response
+     */
+    @Benchmark
+    public HttpResponse findResponse()
+    {
+        return HttpResponse.findHttpResponse( theResponse, "benchmark" );
+    }
+
+    /**
+     * Parse a response with Content-Length, in 4 KB pieces.
+     *
+     * @return the parsed response
+     */
+    @Benchmark
+    public HttpResponse parseResponseIncrementally()
+    {
+        return parseIncrementally( HttpMessageParser.createResponseParser( "benchmark" ), theResponse );
+    }
+
+    /**
+     * Parse a chunked response, in 4 KB pieces.
+     *
+     * @return the parsed response
+     */
+    @Benchmark
+    public HttpResponse parseChunkedResponseIncrementally()
+    {
+        return parseIncrementally( HttpMessageParser.createResponseParser( "benchmark" ), theChunkedResponse );
+    }
+
+    /**
+     * Parse a POST request, in 4 KB pieces.
+     *
+     * @return the parsed request
+     */
+    @Benchmark
+    public HttpRequest parsePostRequestIncrementally()
+    {
+        return parseIncrementally( HttpMessageParser.createRequestParser( "benchmark" ), thePostRequest );
+    }
+
+    /**
+     * Feed data to a parser in the pieces in which it would be read from the network.
+     *
+     * @param <T> the type of HttpMessage
+     * @param parser the parser
+     * @param data the data
+     * @return the parsed HttpMessage
+     */
+    protected static <T extends HttpMessage> T parseIncrementally(
+            HttpMessageParser<T> parser,
+            byte []              data )
+    {
+        for( int pos = 0 ; pos < data.length ; pos += READ_SIZE ) {
+            parser.parse( data, pos, Math.min( READ_SIZE, data.length - pos ));
+        }
+        return parser.takeMessage();
+    }
+
+    /**
+     * A GET request.
+     */
+    protected byte [] theGetRequest;
+
+    /**
+     * A POST request with a body.
+     */
+    protected byte [] thePostRequest;
+
+    /**
+     * A response with Content-Length.
+     */
+    protected byte [] theResponse;
+
+    /**
+     * A chunked response.
+     */
+    protected byte [] theChunkedResponse;
+
+    /**
+     * The size of the pieces in which the engines read from the network.
+     */
+    protected static final int READ_SIZE = 4096;
+
+    /**
+     * The size of the chunks in the chunked response. Deliberately not a
+     * divisor of READ_SIZE, so chunk boundaries fall anywhere in a read.
+     */
+    protected static final int CHUNK_SIZE = 8000;
+}
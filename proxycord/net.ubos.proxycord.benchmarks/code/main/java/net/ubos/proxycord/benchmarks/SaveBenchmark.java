@@ -0,0 +1,138 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.ubos.proxycord.MarkStep;
+import net.ubos.proxycord.Proxycord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures saving an entire recorded session, as the "save" command and
+ * --out do.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+@Fork( value = 1, jvmArgs = { "-Xmx4g" } )
+public class SaveBenchmark
+{
+    /**
+     * Number of Steps in the session.
+     */
+    @Param( { "10000" } )
+    public int stepCount;
+
+    /**
+     * Record a session that looks like somebody using a web application:
+     * mostly pages, some images, some form submissions, and a mark every
+     * now and then.
+     *
+     * @throws IOException the output file could not be created
+     */
+    @Setup( Level.Trial )
+    public void setup()
+        throws
+            IOException
+    {
+        Traffic.quietLogging();
+
+        theApp = Proxycord.create();
+
+        Random random = new Random( 42 );
+        for( int i=0 ; i<stepCount ; ++i ) {
+            if( i % MARK_EVERY == 0 ) {
+                theApp.logStep( MarkStep.create( "mark-" + i ));
+                continue;
+            }
+            int kind = random.nextInt( 10 );
+            if( kind < 6 ) {
+                theApp.logStep( Traffic.step(
+                        Traffic.getRequest( "/items/" + i ),
+                        Traffic.response( Traffic.HTML_CONTENT_TYPE, Traffic.textBody( 1024 + random.nextInt( 32768 )))));
+
+            } else if( kind < 9 ) {
+                theApp.logStep( Traffic.step(
+                        Traffic.getRequest( "/static/img/" + i + ".png" ),
+                        Traffic.response( Traffic.BINARY_CONTENT_TYPE, Traffic.binaryBody( 512 + random.nextInt( 16384 )))));
+
+            } else {
+                theApp.logStep( Traffic.step(
+                        Traffic.postRequest( "/items/" + i + "/edit", 256 + random.nextInt( 2048 )),
+                        Traffic.response( Traffic.HTML_CONTENT_TYPE, Traffic.textBody( 512 ))));
+            }
+        }
+
+        theOutFile = File.createTempFile( "proxycord-benchmark-", ".json" );
+    }
+
+    /**
+     * Save the session.
+     *
+     * @throws IOException an I/O problem occurred
+     */
+    @Benchmark
+    public void writeJsonOutput()
+        throws
+            IOException
+    {
+        theApp.writeJsonOutput( theOutFile.getPath() );
+    }
+
+    /**
+     * Save the session as a binary recording.
+     *
+     * @throws IOException an I/O problem occurred
+     */
+    @Benchmark
+    public void writeBinaryOutput()
+        throws
+            IOException
+    {
+        theApp.writeBinaryOutput( theOutFile.getPath() );
+    }
+
+    /**
+     * Clean up.
+     */
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        theOutFile.delete();
+        theApp.end();
+    }
+
+    /**
+     * The application holding the recorded session.
+     */
+    protected Proxycord theApp;
+
+    /**
+     * The file to save to.
+     */
+    protected File theOutFile;
+
+    /**
+     * Insert a MarkStep every this many Steps.
+     */
+    protected static final int MARK_EVERY = 100;
+}
@@ -0,0 +1,196 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord.benchmarks;
+
+import com.google.gson.JsonElement;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import net.ubos.proxycord.HttpRequestResponseStep;
+import net.ubos.proxycord.RecordingJsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures converting a recorded Step to JSON, with a body that is inlined
+ * as text and with one that is only base64-encoded.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class StepJsonBenchmark
+{
+    /**
+     * Size of the response bodies.
+     */
+    @Param( { "1024", "65536", "1048576" } )
+    public int bodyLength;
+
+    /**
+     * Generate the Steps.
+     */
+    @Setup
+    public void setup()
+    {
+        Traffic.quietLogging();
+
+        byte [] request = Traffic.getRequest( "/items/4711" );
+
+        theTextStep = Traffic.step(
+                request,
+                Traffic.response( Traffic.HTML_CONTENT_TYPE, Traffic.textBody( bodyLength )));
+        theBinaryStep = Traffic.step(
+                request,
+                Traffic.response( Traffic.BINARY_CONTENT_TYPE, Traffic.binaryBody( bodyLength )));
+    }
+
+    /**
+     * Convert a Step with a text body into a JSON tree.
+     *
+     * @return the JSON
+     */
+    @Benchmark
+    public JsonElement textAsJson()
+    {
+        return theTextStep.asJson();
+    }
+
+    /**
+     * Convert a Step with a binary body into a JSON tree.
+     *
+     * @return the JSON
+     */
+    @Benchmark
+    public JsonElement binaryAsJson()
+    {
+        return theBinaryStep.asJson();
+    }
+
+    /**
+     * Stream a Step with a text body as JSON.
+     *
+     * @param bh consumes the output
+     * @throws IOException cannot happen
+     */
+    @Benchmark
+    public void textWriteJson(
+            Blackhole bh )
+        throws
+            IOException
+    {
+        writeJson( theTextStep, bh );
+    }
+
+    /**
+     * Stream a Step with a binary body as JSON.
+     *
+     * @param bh consumes the output
+     * @throws IOException cannot happen
+     */
+    @Benchmark
+    public void binaryWriteJson(
+            Blackhole bh )
+        throws
+            IOException
+    {
+        writeJson( theBinaryStep, bh );
+    }
+
+    /**
+     * Stream a Step as JSON into a Blackhole, so only the serialization
+     * is being measured.
+     *
+     * @param step the Step
+     * @param bh consumes the output
+     * @throws IOException cannot happen
+     */
+    protected static void writeJson(
+            HttpRequestResponseStep step,
+            Blackhole               bh )
+        throws
+            IOException
+    {
+        try( RecordingJsonWriter w = new RecordingJsonWriter( new BlackholeWriter( bh ))) {
+            w.setIndent( "  " );
+            w.setHtmlSafe( false );
+            step.writeJson( w );
+        }
+    }
+
+    /**
+     * A Step whose response has a text body.
+     */
+    protected HttpRequestResponseStep theTextStep;
+
+    /**
+     * A Step whose response has a binary body.
+     */
+    protected HttpRequestResponseStep theBinaryStep;
+
+    /**
+     * A Writer that passes everything into a Blackhole.
+     */
+    protected static class BlackholeWriter
+        extends
+            Writer
+    {
+        /**
+         * Constructor.
+         *
+         * @param bh the Blackhole
+         */
+        public BlackholeWriter(
+                Blackhole bh )
+        {
+            theBlackhole = bh;
+        }
+
+        @Override
+        public void write(
+                char [] buf,
+                int     off,
+                int     len )
+        {
+            theBlackhole.consume( buf );
+            theBlackhole.consume( len );
+        }
+
+        @Override
+        public void write(
+                String s,
+                int    off,
+                int    len )
+        {
+            theBlackhole.consume( s );
+            theBlackhole.consume( len );
+        }
+
+        @Override
+        public void flush()
+        {}
+
+        @Override
+        public void close()
+        {}
+
+        /**
+         * The Blackhole.
+         */
+        protected final Blackhole theBlackhole;
+    }
+}
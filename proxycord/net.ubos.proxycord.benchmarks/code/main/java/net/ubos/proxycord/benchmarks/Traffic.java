@@ -0,0 +1,260 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.ubos.proxycord.HttpMessageParser;
+import net.ubos.proxycord.HttpRequest;
+import net.ubos.proxycord.HttpRequestResponseStep;
+import net.ubos.proxycord.HttpResponse;
+
+/**
+ * Generates realistic HTTP traffic for the benchmarks: the header sets are
+ * what current browsers and web applications send.
+ */
+public abstract class Traffic
+{
+    /**
+     * Keep this abstract.
+     */
+    private Traffic() {}
+
+    /**
+     * Only log warnings, so the benchmarks measure parsing rather than
+     * writing log messages to the console.
+     */
+    public static void quietLogging()
+    {
+        PROXYCORD_LOGGER.setLevel( Level.WARNING );
+    }
+
+    /**
+     * Generate a GET request as a browser would send it.
+     *
+     * @param path the path of the request
+     * @return the bytes on the wire
+     */
+    public static byte [] getRequest(
+            String path )
+    {
+        return ascii(
+                "GET " + path + " HTTP/1.1\r\n"
+                + "Host: app.example.com\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+                + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+                + "Accept-Language: en-US,en;q=0.5\r\n"
+                + "Accept-Encoding: gzip, deflate, br\r\n"
+                + "Referer: https://app.example.com/dashboard\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Cookie: sessionid=3b1f0c2a9d8e4f5b6a7c8d9e0f1a2b3c; csrftoken=Qm9vcmluZ1Rva2VuVmFsdWVGb3JCZW5jaG1hcmtz\r\n"
+                + "Upgrade-Insecure-Requests: 1\r\n"
+                + "Sec-Fetch-Dest: document\r\n"
+                + "Sec-Fetch-Mode: navigate\r\n"
+                + "Sec-Fetch-Site: same-origin\r\n"
+                + "Priority: u=0, i\r\n"
+                + "\r\n" );
+    }
+
+    /**
+     * Generate a POST request with a form-encoded body.
+     *
+     * @param path the path of the request
+     * @param bodyLength the number of bytes in the body
+     * @return the bytes on the wire
+     */
+    public static byte [] postRequest(
+            String path,
+            int    bodyLength )
+    {
+        byte [] body = textBody( bodyLength );
+
+        return concat(
+                ascii(
+                        "POST " + path + " HTTP/1.1\r\n"
+                        + "Host: app.example.com\r\n"
+                        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+                        + "Accept: */*\r\n"
+                        + "Accept-Encoding: gzip, deflate, br\r\n"
+                        + "Content-Type: application/x-www-form-urlencoded; charset=UTF-8\r\n"
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "Origin: https://app.example.com\r\n"
+                        + "Connection: keep-alive\r\n"
+                        + "Cookie: sessionid=3b1f0c2a9d8e4f5b6a7c8d9e0f1a2b3c; csrftoken=Qm9vcmluZ1Rva2VuVmFsdWVGb3JCZW5jaG1hcmtz\r\n"
+                        + "\r\n" ),
+                body );
+    }
+
+    /**
+     * Generate a response whose body is delimited by Content-Length.
+     *
+     * @param contentType the content type of the body
+     * @param body the body
+     * @return the bytes on the wire
+     */
+    public static byte [] response(
+            String  contentType,
+            byte [] body )
+    {
+        return concat(
+                ascii(
+                        "HTTP/1.1 200 OK\r\n"
+                        + responseHeaders( contentType )
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "\r\n" ),
+                body );
+    }
+
+    /**
+     * Generate a response with a chunked body.
+     *
+     * @param contentType the content type of the body
+     * @param body the body
+     * @param chunkSize the size of each chunk
+     * @return the bytes on the wire
+     */
+    public static byte [] chunkedResponse(
+            String  contentType,
+            byte [] body,
+            int     chunkSize )
+    {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream( body.length + body.length / chunkSize * 8 + 1024 );
+        ret.writeBytes( ascii(
+                "HTTP/1.1 200 OK\r\n"
+                + responseHeaders( contentType )
+                + "Transfer-Encoding: chunked\r\n"
+                + "\r\n" ));
+
+        for( int pos = 0 ; pos < body.length ; pos += chunkSize ) {
+            int n = Math.min( chunkSize, body.length - pos );
+            ret.writeBytes( ascii( Integer.toHexString( n ) + "\r\n" ));
+            ret.write( body, pos, n );
+            ret.writeBytes( ascii( "\r\n" ));
+        }
+        ret.writeBytes( ascii( "0\r\n\r\n" ));
+        return ret.toByteArray();
+    }
+
+    /**
+     * Generate a text body that looks like HTML.
+     *
+     * @param length the number of bytes
+     * @return the body
+     */
+    public static byte [] textBody(
+            int length )
+    {
+        byte [] line = ascii( "<li class=\"item\"><a href=\"/items/4711\">Item number 4711 &amp; friends</a></li>\n" );
+        byte [] ret  = new byte[ length ];
+        for( int i=0 ; i<length ; ++i ) {
+            ret[i] = line[ i % line.length ];
+        }
+        return ret;
+    }
+
+    /**
+     * Generate a binary body that does not compress, like an image.
+     *
+     * @param length the number of bytes
+     * @return the body
+     */
+    public static byte [] binaryBody(
+            int length )
+    {
+        byte [] ret = new byte[ length ];
+        new Random( 42 ).nextBytes( ret );
+        return ret;
+    }
+
+    /**
+     * Parse a request and a response into a Step, as the recorder would.
+     *
+     * @param request the request bytes on the wire
+     * @param response the response bytes on the wire
+     * @return the Step
+     */
+    public static HttpRequestResponseStep step(
+            byte [] request,
+            byte [] response )
+    {
+        HttpMessageParser<HttpRequest>  requestParser  = HttpMessageParser.createRequestParser( "benchmark" );
+        HttpMessageParser<HttpResponse> responseParser = HttpMessageParser.createResponseParser( "benchmark" );
+
+        requestParser.parse( request, 0, request.length );
+        responseParser.parse( response, 0, response.length );
+
+        return new HttpRequestResponseStep( requestParser.takeMessage(), responseParser.takeMessage() );
+    }
+
+    /**
+     * Headers common to all responses.
+     *
+     * @param contentType the content type of the body
+     * @return the headers, each terminated by CRLF
+     */
+    protected static String responseHeaders(
+            String contentType )
+    {
+        return "Date: Sat, 17 Oct 2026 06:00:00 GMT\r\n"
+                + "Server: Apache/2.4.62 (Unix)\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Cache-Control: private, max-age=0, must-revalidate\r\n"
+                + "Vary: Accept-Encoding, Cookie\r\n"
+                + "X-Frame-Options: SAMEORIGIN\r\n"
+                + "X-Content-Type-Options: nosniff\r\n"
+                + "Referrer-Policy: same-origin\r\n"
+                + "Set-Cookie: csrftoken=Qm9vcmluZ1Rva2VuVmFsdWVGb3JCZW5jaG1hcmtz; Path=/; SameSite=Lax\r\n"
+                + "Keep-Alive: timeout=5, max=100\r\n"
+                + "Connection: Keep-Alive\r\n";
+    }
+
+    /**
+     * Helper to encode a String as US-ASCII.
+     *
+     * @param s the String
+     * @return the bytes
+     */
+    protected static byte [] ascii(
+            String s )
+    {
+        return s.getBytes( StandardCharsets.US_ASCII );
+    }
+
+    /**
+     * Helper to concatenate two byte arrays.
+     *
+     * @param a the first byte array
+     * @param b the second byte array
+     * @return the concatenation
+     */
+    protected static byte [] concat(
+            byte [] a,
+            byte [] b )
+    {
+        byte [] ret = new byte[ a.length + b.length ];
+        System.arraycopy( a, 0, ret, 0,        a.length );
+        System.arraycopy( b, 0, ret, a.length, b.length );
+        return ret;
+    }
+
+    /**
+     * Parent of all loggers in Proxycord. Kept here so its level is not lost
+     * when the Logger is garbage-collected.
+     */
+    protected static final Logger PROXYCORD_LOGGER = Logger.getLogger( "net.ubos.proxycord" );
+
+    /**
+     * Content type of text bodies.
+     */
+    public static final String HTML_CONTENT_TYPE = "text/html; charset=UTF-8";
+
+    /**
+     * Content type of binary bodies.
+     */
+    public static final String BINARY_CONTENT_TYPE = "image/png";
+}
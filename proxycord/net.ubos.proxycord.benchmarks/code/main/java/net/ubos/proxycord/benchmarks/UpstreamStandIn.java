@@ -0,0 +1,174 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.ubos.proxycord.HttpMessageParser;
+import net.ubos.proxycord.HttpRequest;
+
+/**
+ * Stands in for the web application behind Proxycord: a minimal keep-alive
+ * HTTP server on the loopback interface that answers every request with the
+ * same, pre-generated response, either with a Content-Length or chunked.
+ * It does as little work as possible per request, so what is measured is
+ * Proxycord, not the stand-in.
+ */
+public class UpstreamStandIn
+{
+    /**
+     * Factory method.
+     *
+     * @param responseSize the number of bytes in each response body
+     * @param chunkSize if greater than 0, send the body chunked, in chunks of this size
+     * @param threads the maximum number of connections served at the same time
+     * @return the created instance
+     * @throws IOException the server could not be started
+     */
+    public static UpstreamStandIn create(
+            int responseSize,
+            int chunkSize,
+            int threads )
+        throws
+            IOException
+    {
+        byte [] body     = Traffic.textBody( responseSize );
+        byte [] response = chunkSize > 0
+                ? Traffic.chunkedResponse( Traffic.HTML_CONTENT_TYPE, body, chunkSize )
+                : Traffic.response( Traffic.HTML_CONTENT_TYPE, body );
+
+        ServerSocket server = new ServerSocket( 0, 1024, InetAddress.getLoopbackAddress() );
+
+        return new UpstreamStandIn( server, response, threads );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param server the ServerSocket to accept connections on
+     * @param response the bytes to send in response to each request
+     * @param threads the maximum number of connections served at the same time
+     */
+    protected UpstreamStandIn(
+            ServerSocket server,
+            byte []      response,
+            int          threads )
+    {
+        theServer   = server;
+        theResponse = response;
+        theExecutor = Executors.newFixedThreadPool( threads );
+
+        theAcceptThread = new Thread( this::acceptLoop, "upstream-stand-in" );
+        theAcceptThread.setDaemon( true );
+        theAcceptThread.start();
+    }
+
+    /**
+     * Obtain the port the server listens on.
+     *
+     * @return the port
+     */
+    public int getPort()
+    {
+        return theServer.getLocalPort();
+    }
+
+    /**
+     * Accept connections until the ServerSocket is closed.
+     */
+    protected void acceptLoop()
+    {
+        try {
+            while( true ) {
+                Socket socket = theServer.accept();
+                theExecutor.submit( () -> serve( socket ));
+            }
+        } catch( IOException ex ) {
+            // closed, we are done
+        }
+    }
+
+    /**
+     * Serve one connection: answer each request as soon as it is complete,
+     * until the client closes the connection.
+     *
+     * @param socket the connection
+     */
+    protected void serve(
+            Socket socket )
+    {
+        HttpMessageParser<HttpRequest> parser = HttpMessageParser.createRequestParser( "stand-in" );
+        parser.setRetainContent( false );
+
+        byte [] buf = new byte[ BUFFER_SIZE ];
+        try( socket ) {
+            socket.setTcpNoDelay( true );
+
+            InputStream  in  = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+
+            int read;
+            while( ( read = in.read( buf )) > 0 ) {
+                int pos = 0;
+                while( pos < read ) {
+                    pos += parser.parse( buf, pos, read - pos );
+                    if( parser.hasError() ) {
+                        return;
+                    }
+                    if( parser.takeMessage() != null ) {
+                        out.write( theResponse );
+                    }
+                }
+                out.flush();
+            }
+        } catch( IOException ex ) {
+            // client went away
+        }
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void stop()
+    {
+        try {
+            theServer.close();
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+        }
+        theExecutor.shutdownNow();
+    }
+
+    /**
+     * The ServerSocket to accept connections on.
+     */
+    protected ServerSocket theServer;
+
+    /**
+     * The Thread accepting connections.
+     */
+    protected Thread theAcceptThread;
+
+    /**
+     * Serves the connections.
+     */
+    protected ExecutorService theExecutor;
+
+    /**
+     * The bytes to send in response to each request.
+     */
+    protected byte [] theResponse;
+
+    /**
+     * Size of the receive buffer.
+     */
+    protected static final int BUFFER_SIZE = 16384;
+}
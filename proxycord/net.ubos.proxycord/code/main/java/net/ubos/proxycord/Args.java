@@ -28,9 +28,105 @@ public class Args
     @Parameter( names = { "-rp", "--remote-port" }, description = "Remote port to bind to." )
     int remotePort = 80;
     
-    @Parameter( names = { "-o", "--out" }, description = "JSON file to write with the recording" )
+    @Parameter( names = { "--engine" }, description = "How to move the bytes: THREADS (blocking, two threads per connection), VIRTUAL (same, on virtual threads) or NIO (event loops)." )
+    Engine engine = Engine.THREADS;
+
+    @Parameter( names = { "--nio-threads" }, description = "Number of event loop threads used by the NIO engine." )
+    int nioThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter( names = { "--capture-overflow" }, description = "When traffic arrives faster than it can be recorded: DROP (stop recording the connection, the default) or BLOCK (slow down the connection)." )
+    CaptureOverflowPolicy captureOverflow = CaptureOverflowPolicy.DROP;
+
+    @Parameter( names = { "--capture-queue" }, description = "Number of bytes per connection and direction that may wait to be recorded." )
+    long captureQueue = Proxycord.DEFAULT_CAPTURE_QUEUE_CAPACITY;
+
+    @Parameter( names = { "--max-recorded-body" }, description = "Maximum number of bytes of each request or response body to record; longer bodies are forwarded completely, but recorded only up to this length." )
+    int maxRecordedBody = HttpMessageParser.DEFAULT_MAX_CONTENT;
+
+    @Parameter( names = { "--keep-duplicate-bodies" }, description = "Save each recorded body in full, instead of saving a body that occurs more than once only the first time and referring to it by its hash afterwards." )
+    boolean keepDuplicateBodies;
+
+    @Parameter( names = { "--recorded-body-codec" }, description = "How to compress recorded bodies in memory, in the background: NONE, DEFLATE or GZIP. They are decompressed when needed." )
+    BodyCodec recordedBodyCodec = BodyCodec.NONE;
+
+    @Parameter( names = { "--body-codec-level" }, description = "Compression level for --recorded-body-codec and --saved-body-codec, from 0 (no compression at all) to 9 (smallest)." )
+    int bodyCodecLevel = BodyCodec.DEFAULT_LEVEL;
+
+    @Parameter( names = { "--body-spill-threshold" }, description = "Record request and response bodies larger than this many bytes in temporary files instead of on the heap (default: never)." )
+    int bodySpillThreshold;
+
+    @Parameter( names = { "--max-spilled-body" }, description = "Maximum number of bytes of each body recorded in a temporary file; --max-recorded-body does not apply to those (default: no limit)." )
+    long maxSpilledBody;
+
+    @Parameter( names = { "--body-spill-directory" }, description = "Directory for the temporary files with large bodies (default: the system's temporary directory)." )
+    String bodySpillDirectory;
+
+    @Parameter( names = { "--upstream-pool" }, description = "Reuse keep-alive connections to the remote host instead of opening one per client connection. Not supported by the NIO engine." )
+    boolean upstreamPool;
+
+    @Parameter( names = { "--upstream-max-idle" }, description = "Maximum number of idle connections to the remote host to keep." )
+    int upstreamMaxIdle = UpstreamConnectionPool.DEFAULT_MAX_IDLE;
+
+    @Parameter( names = { "--upstream-idle-timeout" }, description = "Milliseconds after which an idle connection to the remote host is not reused any more." )
+    long upstreamIdleTimeout = UpstreamConnectionPool.DEFAULT_IDLE_TIMEOUT;
+
+    @Parameter( names = { "--metrics-port" }, description = "Local port on which to serve metrics in the Prometheus text format at /metrics (loopback only; default: do not serve)." )
+    int metricsPort;
+
+    @Parameter( names = { "-o", "--out" }, description = "File to write with the recording" )
     String out;
 
+    @Parameter( names = { "--out-format" }, description = "Format of the file written with --out or the save command: JSON or BINARY (compact, with a table of contents for direct access to each step)." )
+    RecordingFormat outFormat = RecordingFormat.JSON;
+
+    @Parameter( names = { "--saved-body-codec" }, description = "How to compress bodies in saved BINARY recordings: NONE, DEFLATE or GZIP." )
+    BodyCodec savedBodyCodec = BodyCodec.NONE;
+
+    @Parameter( names = { "--convert" }, description = "Instead of proxying, convert this recording (JSON or BINARY) into the file given with --out, in the --out-format" )
+    String convert;
+
+    @Parameter( names = { "--journal" }, description = "File to append each recorded step to as soon as it has been recorded" )
+    String journal;
+
+    @Parameter( names = { "--recover" }, description = "Instead of proxying, convert this journal file into the JSON file given with --out" )
+    String recover;
+
+    @Parameter( names = { "--replay" }, description = "Instead of proxying, replay the requests in this recording against the remote host, and report throughput and latency per path" )
+    String replay;
+
+    @Parameter( names = { "--replay-users" }, description = "Number of virtual users that each replay the entire recording, with their own cookies and CSRF tokens." )
+    int replayUsers = 1;
+
+    @Parameter( names = { "--replay-concurrency" }, description = "Maximum number of virtual users active at the same time." )
+    int replayConcurrency = 1;
+
+    @Parameter( names = { "--replay-pacing" }, description = "How virtual users space out their requests: NONE (back to back), RECORDED (as during the recording) or FIXED (--replay-think-time after each response)." )
+    ReplayPacing replayPacing = ReplayPacing.NONE;
+
+    @Parameter( names = { "--replay-think-time" }, description = "Milliseconds to wait after each response if --replay-pacing is FIXED." )
+    long replayThinkTime = 1000;
+
+    @Parameter( names = { "--playback" }, description = "Instead of forwarding requests to the remote host, answer them with the responses in this recording" )
+    String playback;
+
+    @Parameter( names = { "--playback-policy" }, description = "Which response to serve if the same request was recorded more than once: SEQUENTIAL (in the sequence recorded, then the last one) or LAST_WINS." )
+    PlaybackPolicy playbackPolicy = PlaybackPolicy.SEQUENTIAL;
+
+    @Parameter( names = { "--playback-match-header" }, description = "Name of a request header whose value must match the recorded one. May be given more than once." )
+    List<String> playbackMatchHeaders = new ArrayList<>();
+
+    @Parameter( names = { "--playback-ignore-body" }, description = "Match requests regardless of their bodies." )
+    boolean playbackIgnoreBody;
+
+    @Parameter( names = { "--max-steps-in-memory" }, description = "Maximum number of recorded steps to keep in memory; older ones are moved to the spill file" )
+    int maxStepsInMemory = Integer.MAX_VALUE;
+
+    @Parameter( names = { "--max-bytes-in-memory" }, description = "Maximum number of bytes of recorded steps to keep in memory; older ones are moved to the spill file" )
+    long maxBytesInMemory = Long.MAX_VALUE;
+
+    @Parameter( names = { "--spill-file" }, description = "File to move recorded steps to that exceed the memory limits (default: a temporary file)" )
+    String spillFile;
+
     @Parameter( names = { "--logConfig" }, description = "Java logging configuration file" )
     String logConfig = "/etc/proxycord/logging.properties"; 
 
@@ -0,0 +1,434 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A recording in the binary format written by BinaryRecordingWriter, read
+ * through a memory mapping of the file. Any Step can be read directly,
+ * without reading the Steps before it.
+ *
+ * The file consists of:
+ * <ul>
+ *  <li>a header: MAGIC, VERSION, the number of Steps, and the position
+ *      of the table of contents;</li>
+ *  <li>the bodies and the records of the Steps, each body right before
+ *      the record of the first Step that refers to it. A body is the id
+ *      of its BodyCodec as a byte, its length and the length stored, both
+ *      as longs, and the stored bytes. A record holds everything else about a Step;
+ *      requests and responses refer to their bodies by position;</li>
+ *  <li>the table of contents: for each Step, the position and length of
+ *      its record, and its type.</li>
+ * </ul>
+ * All numbers are big-endian.
+ */
+public class BinaryRecording
+    implements
+        Closeable
+{
+    /**
+     * Determine whether a file is a binary recording, as opposed to JSON.
+     *
+     * @param file the file
+     * @return true if it starts like a binary recording
+     * @throws IOException the file could not be read
+     */
+    public static boolean isBinaryRecording(
+            File file )
+        throws
+            IOException
+    {
+        try( InputStream in = new FileInputStream( file )) {
+            return Arrays.equals( in.readNBytes( MAGIC.length ), MAGIC );
+        }
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param file the file
+     * @return the created instance
+     * @throws IOException the file could not be read, or is not a complete binary recording
+     */
+    public static BinaryRecording open(
+            File file )
+        throws
+            IOException
+    {
+        FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+        try {
+            long size = channel.size();
+            if( size < HEADER_SIZE ) {
+                throw new IOException( "Not a binary recording: " + file.getPath() );
+            }
+            // usually, the entire file can be mapped at once
+            MappedByteBuffer whole = size <= Integer.MAX_VALUE ? channel.map( FileChannel.MapMode.READ_ONLY, 0, size ) : null;
+
+            ByteBuffer header = whole != null ? whole.slice( 0, HEADER_SIZE ) : channel.map( FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE );
+            byte []    magic  = new byte[ MAGIC.length ];
+            header.get( magic );
+            if( !Arrays.equals( magic, MAGIC )) {
+                throw new IOException( "Not a binary recording: " + file.getPath() );
+            }
+            int version = header.getInt();
+            if( version != VERSION ) {
+                throw new IOException( "Unsupported binary recording version " + version + ": " + file.getPath() );
+            }
+            int  stepCount = header.getInt();
+            long tocOffset = header.getLong();
+            if( tocOffset < HEADER_SIZE || stepCount < 0 || tocOffset + (long) stepCount * TOC_ENTRY_SIZE != size ) {
+                throw new IOException( "Binary recording was not completely written: " + file.getPath() );
+            }
+
+            BinaryRecording ret = new BinaryRecording( channel, whole, stepCount );
+            ret.theToc = ret.region( tocOffset, stepCount * TOC_ENTRY_SIZE );
+            return ret;
+
+        } catch( IOException | RuntimeException ex ) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param channel the opened file
+     * @param whole the mapping of the entire file, or null if it is too large to map at once
+     * @param stepCount the number of Steps in the recording
+     */
+    protected BinaryRecording(
+            FileChannel      channel,
+            MappedByteBuffer whole,
+            int              stepCount )
+    {
+        theChannel   = channel;
+        theWhole     = whole;
+        theStepCount = stepCount;
+    }
+
+    /**
+     * Obtain the number of Steps in the recording.
+     *
+     * @return the number of Steps
+     */
+    public int size()
+    {
+        return theStepCount;
+    }
+
+    /**
+     * Obtain the type of a Step, without reading it.
+     *
+     * @param index the index of the Step
+     * @return the type, such as TYPE_HTTP_REQUEST_RESPONSE
+     */
+    public int getType(
+            int index )
+    {
+        return theToc.getInt( index * TOC_ENTRY_SIZE + 12 );
+    }
+
+    /**
+     * Read a Step. May be invoked from any Thread.
+     *
+     * @param index the index of the Step
+     * @return the Step, or null if it is of a type not known to this version
+     * @throws IOException an I/O problem occurred, or the recording is corrupted
+     */
+    public Step getStep(
+            int index )
+        throws
+            IOException
+    {
+        if( index < 0 || index >= theStepCount ) {
+            throw new IndexOutOfBoundsException( "No Step " + index + ", recording has " + theStepCount );
+        }
+        long offset = theToc.getLong( index * TOC_ENTRY_SIZE );
+        int  length = theToc.getInt(  index * TOC_ENTRY_SIZE + 8 );
+        int  type   = theToc.getInt(  index * TOC_ENTRY_SIZE + 12 );
+
+        try {
+            ByteBuffer in = region( offset, length );
+            switch( type ) {
+                case TYPE_HTTP_REQUEST_RESPONSE:
+                    return HttpRequestResponseStep.fromBinary( this, in );
+
+                case TYPE_HTTP_INCOMPLETE_EXCHANGE:
+                    return HttpIncompleteExchangeStep.fromBinary( this, in );
+
+                case TYPE_MARK:
+                    return MarkStep.fromBinary( this, in );
+
+                default:
+                    return null;
+            }
+
+        } catch( RuntimeException ex ) {
+            throw new IOException( "Corrupted recording at Step " + index, ex );
+        }
+    }
+
+    /**
+     * Read a String from the record of a Step.
+     *
+     * @param in the record, positioned at the String
+     * @return the String, may be null
+     */
+    public String readString(
+            ByteBuffer in )
+    {
+        int length = in.getInt();
+        if( length < 0 ) {
+            return null;
+        }
+        byte [] bytes = new byte[ length ];
+        in.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Read a request from the record of a Step.
+     *
+     * @param in the record, positioned at the request
+     * @return the request
+     * @throws IOException an I/O problem occurred, or its body is corrupted
+     */
+    public HttpRequest readRequest(
+            ByteBuffer in )
+        throws
+            IOException
+    {
+        HttpRequest ret = new HttpRequest();
+        ret.theVerb = readString( in );
+        ret.thePath = readString( in );
+        readMessage( ret, in );
+        return ret;
+    }
+
+    /**
+     * Read a response from the record of a Step.
+     *
+     * @param in the record, positioned at the response
+     * @return the response
+     * @throws IOException an I/O problem occurred, or its body is corrupted
+     */
+    public HttpResponse readResponse(
+            ByteBuffer in )
+        throws
+            IOException
+    {
+        HttpResponse ret = new HttpResponse();
+        ret.theStatus = in.getInt();
+        readMessage( ret, in );
+        return ret;
+    }
+
+    /**
+     * Factored out helper to read what HttpRequest and HttpResponse have
+     * in common.
+     *
+     * @param message the HttpMessage to restore
+     * @param in the record, positioned at the version
+     * @throws IOException an I/O problem occurred, or the body is corrupted
+     */
+    protected void readMessage(
+            HttpMessage message,
+            ByteBuffer  in )
+        throws
+            IOException
+    {
+        message.theVersion = readString( in );
+        message.theHeaders = HttpHeaders.readFrom( in );
+
+        long bodyOffset = in.getLong();
+        if( bodyOffset >= 0 ) {
+            message.theContent = readBody( bodyOffset );
+        }
+    }
+
+    /**
+     * Read a body. Each body is only read once; Steps that refer to the same
+     * body share it. Large bodies that are stored as they are remain in the
+     * mapping of the file, instead of being copied onto the heap; compressed
+     * bodies are only decompressed when their content is needed.
+     *
+     * @param offset the position of the body in the file
+     * @return the body
+     * @throws IOException an I/O problem occurred, or the body is corrupted
+     */
+    protected HttpBody readBody(
+            long offset )
+        throws
+            IOException
+    {
+        HttpBody ret = theBodies.get( offset );
+        if( ret != null ) {
+            return ret;
+        }
+
+        ByteBuffer header       = region( offset, BODY_HEADER_SIZE );
+        int        codecId      = header.get();
+        long       length       = header.getLong();
+        long       storedLength = header.getLong();
+        BodyCodec  codec        = BodyCodec.findById( codecId );
+
+        if( codec == null ) {
+            throw new IOException( "Unknown body codec " + codecId + " at " + offset );
+
+        } else if( codec == BodyCodec.NONE && storedLength >= MAP_BODY_THRESHOLD ) {
+            ret = HttpBody.createMapped( regions( offset + BODY_HEADER_SIZE, storedLength ));
+
+        } else if( length > Integer.MAX_VALUE || storedLength > length ) {
+            // only bodies that were held on the heap are compressed, and only if that made them smaller
+            throw new IOException( "Invalid body length at " + offset );
+
+        } else {
+            byte [] data = new byte[ (int) storedLength ];
+            region( offset + BODY_HEADER_SIZE, (int) storedLength ).get( data );
+            ret = codec == BodyCodec.NONE ? HttpBody.create( data ) : HttpBody.createCompressed( codec, data, (int) length );
+        }
+
+        HttpBody existing = theBodies.putIfAbsent( offset, ret );
+        return existing != null ? existing : ret;
+    }
+
+    /**
+     * Factored out helper to obtain a part of the file.
+     *
+     * @param offset the position of the part in the file
+     * @param length the length of the part
+     * @return the mapped part, positioned at its start
+     * @throws IOException the part could not be mapped
+     */
+    protected MappedByteBuffer region(
+            long offset,
+            int  length )
+        throws
+            IOException
+    {
+        if( theWhole != null ) {
+            return theWhole.slice( Math.toIntExact( offset ), length );
+        }
+        return theChannel.map( FileChannel.MapMode.READ_ONLY, offset, length );
+    }
+
+    /**
+     * Factored out helper to obtain a part of the file that may be too large
+     * for a single MappedByteBuffer.
+     *
+     * @param offset the position of the part in the file
+     * @param length the length of the part
+     * @return the mapped part, in chunks as created by HttpBody.map()
+     * @throws IOException the part could not be mapped
+     */
+    protected MappedByteBuffer [] regions(
+            long offset,
+            long length )
+        throws
+            IOException
+    {
+        if( theWhole == null ) {
+            return HttpBody.map( theChannel, offset, length );
+        }
+        MappedByteBuffer [] ret = new MappedByteBuffer[ (int) Math.max( 1L, ( length + HttpBody.MAP_CHUNK_SIZE - 1 ) / HttpBody.MAP_CHUNK_SIZE ) ];
+        for( int i=0 ; i<ret.length ; ++i ) {
+            long start = i * HttpBody.MAP_CHUNK_SIZE;
+            ret[i] = region( offset + start, (int) Math.min( HttpBody.MAP_CHUNK_SIZE, length - start ));
+        }
+        return ret;
+    }
+
+    @Override
+    public void close()
+        throws
+            IOException
+    {
+        theChannel.close(); // mappings remain valid, so Steps read earlier can still be used
+    }
+
+    /**
+     * The opened file.
+     */
+    protected final FileChannel theChannel;
+
+    /**
+     * The mapping of the entire file, or null if it is too large to map at once.
+     */
+    protected final MappedByteBuffer theWhole;
+
+    /**
+     * The number of Steps in the recording.
+     */
+    protected final int theStepCount;
+
+    /**
+     * The mapped table of contents.
+     */
+    protected MappedByteBuffer theToc;
+
+    /**
+     * The bodies read so far, by position in the file.
+     */
+    protected final ConcurrentHashMap<Long,HttpBody> theBodies = new ConcurrentHashMap<>();
+
+    /**
+     * The bytes a binary recording starts with.
+     */
+    public static final byte [] MAGIC = { 'P', 'R', 'X', 'Y', 'C', 'R', 'D', 0 };
+
+    /**
+     * The version of the format written by this version of Proxycord.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Size of the header at the start of the file.
+     */
+    public static final int HEADER_SIZE = 24;
+
+    /**
+     * Size of an entry in the table of contents.
+     */
+    public static final int TOC_ENTRY_SIZE = 16;
+
+    /**
+     * Size of the header of a body.
+     */
+    public static final int BODY_HEADER_SIZE = 17;
+
+    /**
+     * Type of an HttpRequestResponseStep.
+     */
+    public static final int TYPE_HTTP_REQUEST_RESPONSE = 1;
+
+    /**
+     * Type of an HttpIncompleteExchangeStep.
+     */
+    public static final int TYPE_HTTP_INCOMPLETE_EXCHANGE = 2;
+
+    /**
+     * Type of a MarkStep.
+     */
+    public static final int TYPE_MARK = 3;
+
+    /**
+     * Bodies stored as they are that are at least this long are not copied
+     * onto the heap, but read from the mapping of the file.
+     */
+    protected static final int MAP_BODY_THRESHOLD = 1024 * 1024;
+}
@@ -0,0 +1,498 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a recording in the binary format read by BinaryRecording. Steps are
+ * appended one at a time; each body is written right before the first Step
+ * that refers to it, and the table of contents is written when the writer
+ * is closed. A file that has not been closed properly cannot be read.
+ */
+public class BinaryRecordingWriter
+    implements
+        Closeable
+{
+    /**
+     * Factory method.
+     *
+     * @param file the file to write
+     * @return the created instance
+     * @throws IOException the file could not be created
+     */
+    public static BinaryRecordingWriter create(
+            File file )
+        throws
+            IOException
+    {
+        FileOutputStream out = new FileOutputStream( file );
+        try {
+            BinaryRecordingWriter ret = new BinaryRecordingWriter( out );
+            ret.theOut.write( new byte[ BinaryRecording.HEADER_SIZE ] ); // filled in by close()
+            return ret;
+
+        } catch( IOException ex ) {
+            out.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param out the file to write
+     */
+    protected BinaryRecordingWriter(
+            FileOutputStream out )
+    {
+        theFile    = out;
+        theCounter = new CountingOutputStream( new BufferedOutputStream( out, BUFFER_SIZE ));
+        theOut     = new DataOutputStream( theCounter );
+    }
+
+    /**
+     * Determine whether bodies are to be written only once. If so, later
+     * occurrences of a body with the same content refer to the first one.
+     *
+     * @param deduplicate if true, write each body only once
+     */
+    public void setDeduplicateBodies(
+            boolean deduplicate )
+    {
+        theWrittenBodies = deduplicate ? new HashMap<>() : null;
+    }
+
+    /**
+     * Determine how bodies are to be compressed. A body is only stored
+     * compressed if that makes it smaller. Bodies that have been spilled to
+     * files are always stored as they are.
+     *
+     * @param codec the codec, NONE to not compress
+     * @param level the compression level, from BodyCodec.MIN_LEVEL (none) to BodyCodec.MAX_LEVEL (smallest)
+     */
+    public void setBodyCompression(
+            BodyCodec codec,
+            int       level )
+    {
+        theCodec      = codec;
+        theCodecLevel = level;
+    }
+
+    /**
+     * Append a Step.
+     *
+     * @param step the Step
+     * @throws IOException an I/O problem occurred
+     */
+    public void write(
+            Step step )
+        throws
+            IOException
+    {
+        theRecord.reset();
+        theRecordType = -1;
+
+        step.writeBinary( this ); // writes bodies to theOut, and everything else to theRecord
+
+        if( theRecordType < 0 ) {
+            throw new IllegalStateException( "Step did not begin its record: " + step.getClass().getName() );
+        }
+        if( theStepCount == theTocOffsets.length ) {
+            theTocOffsets = Arrays.copyOf( theTocOffsets, theTocOffsets.length * 2 );
+            theTocLengths = Arrays.copyOf( theTocLengths, theTocLengths.length * 2 );
+            theTocTypes   = Arrays.copyOf( theTocTypes,   theTocTypes.length * 2 );
+        }
+        theTocOffsets[ theStepCount ] = theCounter.getCount();
+        theTocLengths[ theStepCount ] = theRecord.size();
+        theTocTypes[   theStepCount ] = theRecordType;
+        ++theStepCount;
+
+        theRecord.writeTo( theOut );
+    }
+
+    /**
+     * Invoked by a Step's writeBinary() first, to declare what type of
+     * Step it is.
+     *
+     * @param type the type, as defined in BinaryRecording
+     */
+    public void beginStep(
+            int type )
+    {
+        theRecordType = type;
+    }
+
+    /**
+     * Write a boolean into the record of the current Step.
+     *
+     * @param value the value
+     * @throws IOException an I/O problem occurred
+     */
+    public void writeBoolean(
+            boolean value )
+        throws
+            IOException
+    {
+        theRecordOut.writeBoolean( value );
+    }
+
+    /**
+     * Write a long into the record of the current Step.
+     *
+     * @param value the value
+     * @throws IOException an I/O problem occurred
+     */
+    public void writeLong(
+            long value )
+        throws
+            IOException
+    {
+        theRecordOut.writeLong( value );
+    }
+
+    /**
+     * Write a String into the record of the current Step, as its length
+     * followed by its UTF-8 bytes.
+     *
+     * @param value the value, may be null
+     * @throws IOException an I/O problem occurred
+     */
+    public void writeString(
+            String value )
+        throws
+            IOException
+    {
+        if( value == null ) {
+            theRecordOut.writeInt( -1 );
+        } else {
+            byte [] bytes = value.getBytes( StandardCharsets.UTF_8 );
+            theRecordOut.writeInt( bytes.length );
+            theRecordOut.write( bytes );
+        }
+    }
+
+    /**
+     * Write a request into the record of the current Step. Its body, if any,
+     * is written to the file right away, and the record only refers to it.
+     *
+     * @param request the request
+     * @throws IOException an I/O problem occurred
+     */
+    public void writeRequest(
+            HttpRequest request )
+        throws
+            IOException
+    {
+        writeString( request.getVerb() );
+        writeString( request.getPath() );
+        writeMessage( request );
+    }
+
+    /**
+     * Write a response into the record of the current Step. Its body, if
+     * any, is written to the file right away, and the record only refers to it.
+     *
+     * @param response the response
+     * @throws IOException an I/O problem occurred
+     */
+    public void writeResponse(
+            HttpResponse response )
+        throws
+            IOException
+    {
+        theRecordOut.writeInt( response.getStatus() );
+        writeMessage( response );
+    }
+
+    /**
+     * Factored out helper to write what HttpRequest and HttpResponse have
+     * in common.
+     *
+     * @param message the HttpMessage
+     * @throws IOException an I/O problem occurred
+     */
+    protected void writeMessage(
+            HttpMessage message )
+        throws
+            IOException
+    {
+        writeString( message.getVersion() );
+        message.theHeaders.writeTo( theRecordOut );
+
+        HttpBody body = message.getBody();
+        theRecordOut.writeLong( body != null ? writeBody( body ) : -1L );
+    }
+
+    /**
+     * Factored out helper to write a body to the file, unless the same
+     * content has been written before.
+     *
+     * @param body the body
+     * @return the position of the body in the file
+     * @throws IOException an I/O problem occurred
+     */
+    protected long writeBody(
+            HttpBody body )
+        throws
+            IOException
+    {
+        if( theWrittenBodies != null ) {
+            WrittenBody written = theWrittenBodies.get( body.getHash() );
+            if( written != null && written.theBody.contentEquals( body )) {
+                return written.theOffset;
+            }
+        }
+
+        long    ret        = theCounter.getCount();
+        byte [] compressed = compress( body );
+        if( compressed != null ) {
+            theOut.writeByte( theCodec.getId() );
+            theOut.writeLong( body.length() );
+            theOut.writeLong( compressed.length );
+            theOut.write( compressed );
+
+        } else {
+            theOut.writeByte( BodyCodec.NONE.getId() );
+            theOut.writeLong( body.length() );
+            theOut.writeLong( body.length() );
+            body.writeTo( theOut );
+        }
+
+        if( theWrittenBodies != null ) {
+            theWrittenBodies.putIfAbsent( body.getHash(), new WrittenBody( body, ret ));
+        }
+        return ret;
+    }
+
+    /**
+     * Factored out helper to compress a body, if so configured and if it
+     * is worth it. A body that has been compressed in memory with the same
+     * codec already is not compressed again.
+     *
+     * @param body the body
+     * @return the compressed body, or null if it is to be stored as it is
+     */
+    protected byte [] compress(
+            HttpBody body )
+    {
+        if( theCodec == BodyCodec.NONE || body.isSpilled() ) {
+            return null;
+        }
+        if( body.getCodec() == theCodec ) {
+            return body.getCompressed();
+        }
+        return theCodec.compress( body.getBytes(), theCodecLevel );
+    }
+
+    /**
+     * Write the table of contents, fill in the header, and close the file.
+     *
+     * @throws IOException an I/O problem occurred
+     */
+    @Override
+    public void close()
+        throws
+            IOException
+    {
+        try {
+            long tocOffset = theCounter.getCount();
+            for( int i=0 ; i<theStepCount ; ++i ) {
+                theOut.writeLong( theTocOffsets[i] );
+                theOut.writeInt( theTocLengths[i] );
+                theOut.writeInt( theTocTypes[i] );
+            }
+            theOut.flush();
+
+            ByteBuffer header = ByteBuffer.allocate( BinaryRecording.HEADER_SIZE );
+            header.put( BinaryRecording.MAGIC );
+            header.putInt( BinaryRecording.VERSION );
+            header.putInt( theStepCount );
+            header.putLong( tocOffset );
+            header.flip();
+            while( header.hasRemaining() ) {
+                theFile.getChannel().write( header, header.position() );
+            }
+
+        } finally {
+            theOut.close();
+        }
+    }
+
+    /**
+     * A body that has been written, and where.
+     */
+    protected static class WrittenBody
+    {
+        /**
+         * Constructor.
+         *
+         * @param body the body
+         * @param offset the position of the body in the file
+         */
+        protected WrittenBody(
+                HttpBody body,
+                long     offset )
+        {
+            theBody   = body;
+            theOffset = offset;
+        }
+
+        /**
+         * The body.
+         */
+        protected final HttpBody theBody;
+
+        /**
+         * The position of the body in the file.
+         */
+        protected final long theOffset;
+    }
+
+    /**
+     * Counts the bytes written, so we know the position in the file.
+     */
+    protected static class CountingOutputStream
+        extends
+            FilterOutputStream
+    {
+        /**
+         * Constructor.
+         *
+         * @param out the stream to write to
+         */
+        protected CountingOutputStream(
+                OutputStream out )
+        {
+            super( out );
+        }
+
+        @Override
+        public void write(
+                int b )
+            throws
+                IOException
+        {
+            out.write( b );
+            ++theCount;
+        }
+
+        @Override
+        public void write(
+                byte [] data,
+                int     offset,
+                int     count )
+            throws
+                IOException
+        {
+            out.write( data, offset, count );
+            theCount += count;
+        }
+
+        /**
+         * Obtain the number of bytes written so far.
+         *
+         * @return the number of bytes
+         */
+        public long getCount()
+        {
+            return theCount;
+        }
+
+        /**
+         * The number of bytes written so far.
+         */
+        protected long theCount;
+    }
+
+    /**
+     * The file being written.
+     */
+    protected final FileOutputStream theFile;
+
+    /**
+     * Counts the bytes written to the file.
+     */
+    protected final CountingOutputStream theCounter;
+
+    /**
+     * Writes to the file.
+     */
+    protected final DataOutputStream theOut;
+
+    /**
+     * Collects the record of the current Step, which is written to the file
+     * after its bodies.
+     */
+    protected final ByteArrayOutputStream theRecord = new ByteArrayOutputStream();
+
+    /**
+     * Writes to theRecord.
+     */
+    protected final DataOutputStream theRecordOut = new DataOutputStream( theRecord );
+
+    /**
+     * The type of the current Step, or -1 if it has not been declared yet.
+     */
+    protected int theRecordType;
+
+    /**
+     * The number of Steps written so far.
+     */
+    protected int theStepCount;
+
+    /**
+     * For each Step written, the position of its record in the file.
+     */
+    protected long [] theTocOffsets = new long[ INITIAL_TOC_CAPACITY ];
+
+    /**
+     * For each Step written, the length of its record.
+     */
+    protected int [] theTocLengths = new int[ INITIAL_TOC_CAPACITY ];
+
+    /**
+     * For each Step written, its type.
+     */
+    protected int [] theTocTypes = new int[ INITIAL_TOC_CAPACITY ];
+
+    /**
+     * The bodies written so far, by hash, if bodies are written only once.
+     */
+    protected Map<Long,WrittenBody> theWrittenBodies;
+
+    /**
+     * The codec for bodies.
+     */
+    protected BodyCodec theCodec = BodyCodec.NONE;
+
+    /**
+     * The compression level for bodies.
+     */
+    protected int theCodecLevel = BodyCodec.DEFAULT_LEVEL;
+
+    /**
+     * Size of the output buffer.
+     */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Initial number of Steps the table of contents can hold.
+     */
+    protected static final int INITIAL_TOC_CAPACITY = 1024;
+}
@@ -0,0 +1,228 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The available ways of compressing recorded bodies.
+ */
+public enum BodyCodec
+{
+    /**
+     * Not compressed.
+     */
+    NONE( 0 ),
+
+    /**
+     * Compressed in the zlib format.
+     */
+    DEFLATE( 1 ),
+
+    /**
+     * Compressed in the gzip format, which some tools can read more easily.
+     */
+    GZIP( 2 );
+
+    /**
+     * Constructor.
+     *
+     * @param id identifies the codec in binary recordings
+     */
+    BodyCodec(
+            int id )
+    {
+        theId = id;
+    }
+
+    /**
+     * Obtain the identifier of the codec in binary recordings.
+     *
+     * @return the identifier
+     */
+    public int getId()
+    {
+        return theId;
+    }
+
+    /**
+     * Find the codec with an identifier used in binary recordings.
+     *
+     * @param id the identifier
+     * @return the codec, or null if unknown
+     */
+    public static BodyCodec findById(
+            int id )
+    {
+        for( BodyCodec candidate : values() ) {
+            if( candidate.theId == id ) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compress data, if it is worth it.
+     *
+     * @param data the data
+     * @param level the compression level, from MIN_LEVEL (none) to MAX_LEVEL (smallest)
+     * @return the compressed data, or null if compressed it would not be smaller
+     */
+    public byte [] compress(
+            byte [] data,
+            int     level )
+    {
+        if( this == NONE || data.length < MIN_COMPRESS_SIZE ) {
+            return null;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream( data.length / 2 );
+        if( this == GZIP ) {
+            try( GZIPOutputStream out = new LevelGZIPOutputStream( buf, level )) {
+                out.write( data );
+
+            } catch( IOException ex ) {
+                throw new IllegalStateException( ex ); // cannot happen writing to memory
+            }
+
+        } else {
+            Deflater deflater = new Deflater( level );
+            try {
+                deflater.setInput( data );
+                deflater.finish();
+
+                byte [] chunk = new byte[ Math.min( data.length, CHUNK_SIZE ) ];
+                while( !deflater.finished() ) {
+                    buf.write( chunk, 0, deflater.deflate( chunk ));
+                    if( buf.size() >= data.length ) {
+                        return null;
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return buf.size() < data.length ? buf.toByteArray() : null;
+    }
+
+    /**
+     * Decompress data compressed with this codec.
+     *
+     * @param compressed the compressed data
+     * @param length the length of the decompressed data
+     * @return the decompressed data
+     * @throws IOException the compressed data is corrupted
+     */
+    public byte [] decompress(
+            byte [] compressed,
+            int     length )
+        throws
+            IOException
+    {
+        switch( this ) {
+            case NONE:
+                return compressed;
+
+            case GZIP:
+                try( InputStream in = new GZIPInputStream( new ByteArrayInputStream( compressed ))) {
+                    byte [] ret = in.readNBytes( length );
+                    if( ret.length != length || in.read() >= 0 ) {
+                        throw new IOException( "Compressed body has the wrong length" );
+                    }
+                    return ret;
+                }
+
+            default:
+                byte []  ret      = new byte[ length ];
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput( compressed );
+                    int done = 0;
+                    while( done < length && !inflater.finished() ) {
+                        int n = inflater.inflate( ret, done, length - done );
+                        if( n == 0 && ( inflater.needsInput() || inflater.needsDictionary() )) {
+                            break;
+                        }
+                        done += n;
+                    }
+                    if( done != length || !inflater.finished() ) {
+                        throw new IOException( "Compressed body has the wrong length" );
+                    }
+                    return ret;
+
+                } catch( DataFormatException ex ) {
+                    throw new IOException( "Compressed body is corrupted", ex );
+
+                } finally {
+                    inflater.end();
+                }
+        }
+    }
+
+    /**
+     * Identifies the codec in binary recordings.
+     */
+    protected final int theId;
+
+    /**
+     * Data shorter than this is never compressed.
+     */
+    public static final int MIN_COMPRESS_SIZE = 256;
+
+    /**
+     * Lowest compression level. Nothing gets smaller with it, so compress()
+     * always declines, and a codec used with it has no effect.
+     */
+    public static final int MIN_LEVEL = Deflater.NO_COMPRESSION;
+
+    /**
+     * Highest compression level.
+     */
+    public static final int MAX_LEVEL = Deflater.BEST_COMPRESSION;
+
+    /**
+     * Default compression level.
+     */
+    public static final int DEFAULT_LEVEL = 6;
+
+    /**
+     * Size of the pieces in which compressed data is collected.
+     */
+    protected static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * A GZIPOutputStream with a compression level other than the default.
+     */
+    protected static class LevelGZIPOutputStream
+        extends
+            GZIPOutputStream
+    {
+        /**
+         * Constructor.
+         *
+         * @param out the stream to write to
+         * @param level the compression level
+         * @throws IOException an I/O problem occurred
+         */
+        protected LevelGZIPOutputStream(
+                ByteArrayOutputStream out,
+                int                   level )
+            throws
+                IOException
+        {
+            super( out );
+
+            def.setLevel( level );
+        }
+    }
+}
@@ -0,0 +1,111 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Compresses recorded bodies on a Thread of its own, so neither the
+ * forwarding Threads nor the capture Thread ever wait for it. A body is
+ * usable while it waits to be compressed; it simply takes up more memory
+ * until then.
+ */
+public class BodyCompressor
+{
+    /**
+     * Factory method.
+     *
+     * @param codec the codec to use
+     * @param level the compression level, from BodyCodec.MIN_LEVEL (none) to BodyCodec.MAX_LEVEL (smallest)
+     * @param metrics counts the bytes saved
+     * @return the created instance
+     */
+    public static BodyCompressor create(
+            BodyCodec codec,
+            int       level,
+            Metrics   metrics )
+    {
+        return new BodyCompressor( codec, level, metrics );
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param codec the codec to use
+     * @param level the compression level, from BodyCodec.MIN_LEVEL (none) to BodyCodec.MAX_LEVEL (smallest)
+     * @param metrics counts the bytes saved
+     */
+    protected BodyCompressor(
+            BodyCodec codec,
+            int       level,
+            Metrics   metrics )
+    {
+        theCodec    = codec;
+        theLevel    = level;
+        theMetrics  = metrics;
+        theExecutor = Executors.newSingleThreadExecutor( ( Runnable r ) -> {
+            Thread ret = new Thread( r, "compress" );
+            ret.setDaemon( true );
+            ret.setPriority( Thread.MIN_PRIORITY );
+            return ret;
+        } );
+    }
+
+    /**
+     * A body is complete. Compress it eventually, if it is worth it.
+     *
+     * @param body the body
+     */
+    public void submit(
+            HttpBody body )
+    {
+        if( body.isSpilled() || body.getCodec() != BodyCodec.NONE || body.length() < BodyCodec.MIN_COMPRESS_SIZE ) {
+            return;
+        }
+        try {
+            theExecutor.execute( () -> {
+                // a body shared by several Steps may have been submitted more than once,
+                // but this is the only Thread compressing, so it is compressed only once
+                int saved = body.compress( theCodec, theLevel );
+                if( saved > 0 ) {
+                    theMetrics.add( Metrics.Counter.COMPRESSION_SAVINGS, saved );
+                }
+            } );
+
+        } catch( RejectedExecutionException ex ) {
+            // shutting down; stays uncompressed
+        }
+    }
+
+    /**
+     * Finish and clean up.
+     */
+    public void end()
+    {
+        theExecutor.shutdownNow();
+    }
+
+    /**
+     * The codec to use.
+     */
+    protected final BodyCodec theCodec;
+
+    /**
+     * The compression level.
+     */
+    protected final int theLevel;
+
+    /**
+     * Counts the bytes saved.
+     */
+    protected final Metrics theMetrics;
+
+    /**
+     * Runs the compression.
+     */
+    protected final ExecutorService theExecutor;
+}
@@ -0,0 +1,183 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A temporary file that a large body is written to while it is being
+ * recorded, instead of collecting it on the heap. Once the body is
+ * complete, the file is mapped into memory and deleted; the mapping
+ * remains valid, and the disk space is reclaimed once the mapping
+ * has been garbage-collected.
+ */
+public class BodySpillFile
+{
+    private final static Logger LOG = Logger.getLogger( BodySpillFile.class.getName() );
+
+    /**
+     * Factory method.
+     *
+     * @param directory the directory in which to create the file, or null for the default temporary directory
+     * @return the created instance
+     * @throws IOException the file could not be created
+     */
+    public static BodySpillFile create(
+            File directory )
+        throws
+            IOException
+    {
+        Path path = directory != null
+                ? Files.createTempFile( directory.toPath(), FILE_PREFIX, FILE_SUFFIX )
+                : Files.createTempFile( FILE_PREFIX, FILE_SUFFIX );
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open( path, StandardOpenOption.READ, StandardOpenOption.WRITE );
+        } catch( IOException ex ) {
+            Files.deleteIfExists( path );
+            throw ex;
+        }
+        BodySpillFile ret = new BodySpillFile( path, channel );
+        theOpenFiles.add( ret );
+        return ret;
+    }
+
+    /**
+     * Discard all spill files that have not been finished yet, e.g.
+     * because their connections are still open when we shut down.
+     */
+    public static void discardAll()
+    {
+        for( BodySpillFile file : theOpenFiles ) {
+            file.discard();
+        }
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param path the path of the file
+     * @param channel the opened file
+     */
+    protected BodySpillFile(
+            Path        path,
+            FileChannel channel )
+    {
+        thePath    = path;
+        theChannel = channel;
+    }
+
+    /**
+     * Append data to the file.
+     *
+     * @param data the data buffer
+     * @param offset the offset of the first byte to append
+     * @param count the number of bytes to append
+     * @throws IOException an I/O problem occurred
+     */
+    public void append(
+            byte [] data,
+            int     offset,
+            int     count )
+        throws
+            IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap( data, offset, count );
+        while( buf.hasRemaining() ) {
+            theChannel.write( buf );
+        }
+        theLength += count;
+    }
+
+    /**
+     * Obtain the number of bytes appended so far.
+     *
+     * @return the number of bytes
+     */
+    public long getLength()
+    {
+        return theLength;
+    }
+
+    /**
+     * All data has been appended. Map the file into memory, and delete it.
+     *
+     * @return the body, read from the mapping
+     * @throws IOException an I/O problem occurred
+     */
+    public HttpBody finish()
+        throws
+            IOException
+    {
+        try {
+            return HttpBody.createMapped( HttpBody.map( theChannel, 0, theLength ));
+
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Close and delete the file. On platforms where a mapped file cannot be
+     * deleted, it is deleted when the JVM exits instead.
+     */
+    public void discard()
+    {
+        if( !theOpenFiles.remove( this )) {
+            return; // done already
+        }
+        try {
+            theChannel.close();
+        } catch( IOException ex ) {
+            LOG.log( Level.WARNING, "Cannot close " + thePath, ex );
+        }
+        try {
+            Files.deleteIfExists( thePath );
+        } catch( IOException ex ) {
+            thePath.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * The path of the file.
+     */
+    protected final Path thePath;
+
+    /**
+     * The opened file.
+     */
+    protected final FileChannel theChannel;
+
+    /**
+     * The number of bytes appended so far.
+     */
+    protected long theLength;
+
+    /**
+     * The spill files that have been created, but not finished or discarded yet.
+     */
+    protected static final Set<BodySpillFile> theOpenFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Prefix of the names of spill files.
+     */
+    public static final String FILE_PREFIX = "proxycord-body-";
+
+    /**
+     * Suffix of the names of spill files.
+     */
+    public static final String FILE_SUFFIX = ".spill";
+}
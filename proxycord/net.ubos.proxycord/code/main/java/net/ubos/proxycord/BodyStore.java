@@ -0,0 +1,150 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps recorded bodies by the hash of their content, so that the same
+ * body recorded many times, such as a stylesheet fetched on every page,
+ * is held in memory only once. Bodies are only held weakly: once no
+ * recorded Step refers to a body any more, it is forgotten here, too.
+ */
+public class BodyStore
+{
+    /**
+     * Factory method.
+     *
+     * @param metrics counts the bytes not kept because they were duplicates
+     * @return the created instance
+     */
+    public static BodyStore create(
+            Metrics metrics )
+    {
+        return new BodyStore( metrics );
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param metrics counts the bytes not kept because they were duplicates
+     */
+    protected BodyStore(
+            Metrics metrics )
+    {
+        theMetrics = metrics;
+    }
+
+    /**
+     * Obtain the body with the same content as this one that is already
+     * in the store, or add this one if there is none. Bodies spilled to
+     * files are not added: they are not on the heap anyway, and hashing
+     * them would mean reading them back.
+     *
+     * @param body the body
+     * @return the body to keep instead, which may be the same
+     */
+    public HttpBody intern(
+            HttpBody body )
+    {
+        if( body.isSpilled() ) {
+            return body;
+        }
+        expungeStale();
+
+        Long key = body.getHash();
+        while( true ) {
+            Entry existing = theBodies.get( key );
+            if( existing != null ) {
+                HttpBody existingBody = existing.get();
+                if( existingBody != null ) {
+                    if( existingBody.contentEquals( body )) {
+                        theMetrics.add( Metrics.Counter.DEDUPLICATED_BYTES, body.length() );
+                        return existingBody;
+                    }
+                    return body; // a hash collision; rare enough to simply not share
+                }
+                // collected; replace below, unless somebody else got there first
+                if( theBodies.replace( key, existing, new Entry( key, body, theQueue ))) {
+                    return body;
+                }
+
+            } else if( theBodies.putIfAbsent( key, new Entry( key, body, theQueue )) == null ) {
+                return body;
+            }
+        }
+    }
+
+    /**
+     * Obtain the number of bodies currently in the store.
+     *
+     * @return the number of bodies
+     */
+    public int size()
+    {
+        expungeStale();
+        return theBodies.size();
+    }
+
+    /**
+     * Remove the entries whose bodies have been garbage-collected.
+     */
+    protected void expungeStale()
+    {
+        Object ref;
+        while( ( ref = theQueue.poll()) != null ) {
+            Entry entry = (Entry) ref;
+            theBodies.remove( entry.theKey, entry );
+        }
+    }
+
+    /**
+     * Weakly refers to a body in the store, and remembers its key, so the
+     * entry can be removed once the body has been garbage-collected.
+     */
+    protected static class Entry
+        extends
+            WeakReference<HttpBody>
+    {
+        /**
+         * Constructor.
+         *
+         * @param key the key
+         * @param body the body
+         * @param queue where to enqueue this once the body has been collected
+         */
+        protected Entry(
+                Long                     key,
+                HttpBody                 body,
+                ReferenceQueue<HttpBody> queue )
+        {
+            super( body, queue );
+
+            theKey = key;
+        }
+
+        /**
+         * The key.
+         */
+        protected final Long theKey;
+    }
+
+    /**
+     * The bodies, by hash.
+     */
+    protected final ConcurrentHashMap<Long,Entry> theBodies = new ConcurrentHashMap<>();
+
+    /**
+     * Receives the entries whose bodies have been garbage-collected.
+     */
+    protected final ReferenceQueue<HttpBody> theQueue = new ReferenceQueue<>();
+
+    /**
+     * Counts the bytes not kept because they were duplicates.
+     */
+    protected final Metrics theMetrics;
+}
@@ -0,0 +1,270 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of direct ByteBuffers for moving bytes between channels, so the
+ * kernel can read into and write from them without an intermediate copy,
+ * and so a busy proxy does not allocate and collect a buffer per read.
+ *
+ * Buffers come in a few size classes. They are cut from larger slabs of
+ * direct memory, as allocating and freeing direct memory is expensive.
+ * Which size class to hand out is decided from the sizes of the transfers
+ * observed recently: a connection moving large files gets large buffers,
+ * one moving small API calls small ones.
+ */
+public class BufferPool
+{
+    private final static Logger LOG = Logger.getLogger( BufferPool.class.getName() );
+
+    /**
+     * Factory method.
+     *
+     * @param maxPooled the maximum number of bytes to keep in unused buffers
+     * @return the created instance
+     */
+    public static BufferPool create(
+            long maxPooled )
+    {
+        return new BufferPool( maxPooled );
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param maxPooled the maximum number of bytes to keep in unused buffers
+     */
+    protected BufferPool(
+            long maxPooled )
+    {
+        theMaxPooled = maxPooled;
+
+        theFreeBuffers = new SizeClass[ SIZES.length ];
+        for( int i=0 ; i<SIZES.length ; ++i ) {
+            theFreeBuffers[i] = new SizeClass( SIZES[i] );
+        }
+    }
+
+    /**
+     * Obtain a buffer of the size that suits the recently observed transfers.
+     * The buffer is cleared, i.e. ready to be read into.
+     *
+     * @return the buffer
+     */
+    public ByteBuffer acquire()
+    {
+        return acquire( sizeClassFor( theTypicalTransfer ));
+    }
+
+    /**
+     * Obtain the buffer to use for the next read on a connection, given the
+     * buffer used for the previous read. If the previous read filled the
+     * buffer, the connection is likely moving a lot of data, and a buffer of
+     * the next-larger size is returned; if it used only a small part of the
+     * buffer, one of the next-smaller size is returned. In either case, the
+     * old buffer is released. The returned buffer is cleared.
+     *
+     * @param buffer the buffer used for the previous read
+     * @param previousRead the number of bytes read by the previous read, or -1 if none
+     * @return the buffer to use
+     */
+    public ByteBuffer next(
+            ByteBuffer buffer,
+            int        previousRead )
+    {
+        if( previousRead > 0 ) {
+            recordTransfer( previousRead );
+
+            int sizeClass = sizeClassFor( buffer.capacity() );
+            if( previousRead >= buffer.capacity() && sizeClass < SIZES.length-1 ) {
+                release( buffer );
+                return acquire( sizeClass+1 );
+
+            } else if( previousRead < buffer.capacity() / 8 && sizeClass > 0 ) {
+                release( buffer );
+                return acquire( sizeClass-1 );
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. The caller must not use it any more.
+     *
+     * @param buffer the buffer
+     */
+    public void release(
+            ByteBuffer buffer )
+    {
+        if( !buffer.isDirect() ) {
+            // fallback allocation when we ran out of direct memory, let the GC have it
+            return;
+        }
+        int capacity = buffer.capacity();
+        if( thePooledBytes.addAndGet( capacity ) > theMaxPooled ) {
+            // too many unused buffers already, this one is freed together with its slab
+            thePooledBytes.addAndGet( -capacity );
+            return;
+        }
+        theFreeBuffers[ sizeClassFor( capacity ) ].theBuffers.offer( buffer );
+    }
+
+    /**
+     * Obtain the number of bytes of direct memory allocated by this pool
+     * so far.
+     *
+     * @return the number of bytes
+     */
+    public long getAllocatedBytes()
+    {
+        return theAllocatedBytes.get();
+    }
+
+    /**
+     * Obtain a buffer of a given size class, from the free list if possible,
+     * otherwise from a newly allocated slab.
+     *
+     * @param sizeClass index into SIZES
+     * @return the buffer, cleared
+     */
+    protected ByteBuffer acquire(
+            int sizeClass )
+    {
+        SizeClass  free = theFreeBuffers[ sizeClass ];
+        ByteBuffer ret  = free.theBuffers.poll();
+
+        if( ret != null ) {
+            thePooledBytes.addAndGet( -ret.capacity() );
+            ret.clear();
+            return ret;
+        }
+
+        int size = free.theSize;
+        ByteBuffer slab;
+        try {
+            slab = ByteBuffer.allocateDirect( SLAB_SIZE );
+        } catch( OutOfMemoryError ex ) {
+            LOG.log( Level.WARNING, "Out of direct memory, using heap buffer of {0} bytes", size );
+            return ByteBuffer.allocate( size );
+        }
+        theAllocatedBytes.addAndGet( SLAB_SIZE );
+
+        // keep the first slice, and make the others available
+        ret = slab.slice( 0, size );
+        for( int offset = size ; offset < SLAB_SIZE ; offset += size ) {
+            ByteBuffer slice = slab.slice( offset, size );
+            thePooledBytes.addAndGet( size );
+            free.theBuffers.offer( slice );
+        }
+        return ret;
+    }
+
+    /**
+     * Remember the size of a transfer, so the size of subsequently acquired
+     * buffers can follow the traffic. This is an exponentially weighted
+     * moving average; concurrent updates may get lost, which is fine for
+     * what it is used for.
+     *
+     * @param read the number of bytes transferred
+     */
+    protected void recordTransfer(
+            int read )
+    {
+        int typical = theTypicalTransfer;
+        theTypicalTransfer = typical + ( read - typical ) / 16;
+    }
+
+    /**
+     * Determine the smallest size class whose buffers can hold the given
+     * number of bytes.
+     *
+     * @param size the number of bytes
+     * @return index into SIZES
+     */
+    protected static int sizeClassFor(
+            int size )
+    {
+        for( int i=0 ; i<SIZES.length-1 ; ++i ) {
+            if( size <= SIZES[i] ) {
+                return i;
+            }
+        }
+        return SIZES.length-1;
+    }
+
+    /**
+     * The unused buffers of one size.
+     */
+    protected static class SizeClass
+    {
+        /**
+         * Constructor.
+         *
+         * @param size the size of the buffers
+         */
+        protected SizeClass(
+                int size )
+        {
+            theSize = size;
+        }
+
+        /**
+         * The size of the buffers.
+         */
+        protected final int theSize;
+
+        /**
+         * The unused buffers.
+         */
+        protected final ConcurrentLinkedQueue<ByteBuffer> theBuffers = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * The unused buffers, by size class.
+     */
+    protected final SizeClass [] theFreeBuffers;
+
+    /**
+     * The maximum number of bytes to keep in unused buffers.
+     */
+    protected final long theMaxPooled;
+
+    /**
+     * The number of bytes currently in unused buffers.
+     */
+    protected final AtomicLong thePooledBytes = new AtomicLong();
+
+    /**
+     * The number of bytes of direct memory allocated so far.
+     */
+    protected final AtomicLong theAllocatedBytes = new AtomicLong();
+
+    /**
+     * Moving average of the observed transfer sizes.
+     */
+    protected volatile int theTypicalTransfer = SIZES[0];
+
+    /**
+     * The sizes of the buffers handed out, smallest first.
+     */
+    public static final int [] SIZES = { 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024 };
+
+    /**
+     * The size of the slabs of direct memory the buffers are cut from.
+     */
+    public static final int SLAB_SIZE = 1024 * 1024;
+
+    /**
+     * By default, keep up to this many bytes in unused buffers.
+     */
+    public static final long DEFAULT_MAX_POOLED = 64L * 1024 * 1024;
+}
@@ -0,0 +1,23 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+/**
+ * What to do when proxied traffic arrives faster than it can be recorded.
+ */
+public enum CaptureOverflowPolicy
+{
+    /**
+     * Keep forwarding, and stop recording the connection whose queue overflowed.
+     */
+    DROP,
+
+    /**
+     * Slow down forwarding on the connection until the recorder has caught up.
+     * The NIO engine stops reading from the connection in the meantime; the
+     * other engines wait on the Thread that forwards it.
+     */
+    BLOCK;
+}
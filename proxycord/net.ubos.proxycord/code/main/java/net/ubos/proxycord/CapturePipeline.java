@@ -0,0 +1,122 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The Thread on which captured traffic is parsed and turned into Steps, so
+ * that the forwarding Threads never have to wait for it. HttpExchangeRecorders
+ * queue up their data and ask the pipeline to drain them.
+ */
+public class CapturePipeline
+{
+    /**
+     * Factory method.
+     *
+     * @param policy what to do when a connection's queue overflows
+     * @param maxQueuedBytes the number of bytes that may be queued per connection and direction
+     * @return the created instance
+     */
+    public static CapturePipeline create(
+            CaptureOverflowPolicy policy,
+            long                  maxQueuedBytes )
+    {
+        return new CapturePipeline( policy, maxQueuedBytes );
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param policy what to do when a connection's queue overflows
+     * @param maxQueuedBytes the number of bytes that may be queued per connection and direction
+     */
+    protected CapturePipeline(
+            CaptureOverflowPolicy policy,
+            long                  maxQueuedBytes )
+    {
+        thePolicy         = policy;
+        theMaxQueuedBytes = maxQueuedBytes;
+        theExecutor       = Executors.newSingleThreadExecutor( ( Runnable r ) -> {
+            Thread ret = new Thread( r, "capture" );
+            ret.setDaemon( true );
+            return ret;
+        } );
+    }
+
+    /**
+     * Obtain the overflow policy.
+     *
+     * @return the policy
+     */
+    public CaptureOverflowPolicy getPolicy()
+    {
+        return thePolicy;
+    }
+
+    /**
+     * Obtain the number of bytes that may be queued per connection and direction.
+     *
+     * @return the number of bytes
+     */
+    public long getMaxQueuedBytes()
+    {
+        return theMaxQueuedBytes;
+    }
+
+    /**
+     * Schedule a recorder to be drained on the capture Thread.
+     *
+     * @param drainer the Runnable that drains the recorder
+     */
+    public void schedule(
+            Runnable drainer )
+    {
+        theExecutor.execute( drainer );
+    }
+
+    /**
+     * Wait until everything queued so far has been processed.
+     *
+     * @param timeout maximum time to wait, in milliseconds
+     */
+    public void awaitIdle(
+            long timeout )
+    {
+        try {
+            theExecutor.submit( () -> {} ).get( timeout, TimeUnit.MILLISECONDS );
+
+        } catch( InterruptedException | ExecutionException | TimeoutException ex ) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Finish and clean up.
+     */
+    public void end()
+    {
+        theExecutor.shutdownNow();
+    }
+
+    /**
+     * What to do when a connection's queue overflows.
+     */
+    protected CaptureOverflowPolicy thePolicy;
+
+    /**
+     * The number of bytes that may be queued per connection and direction.
+     */
+    protected long theMaxQueuedBytes;
+
+    /**
+     * Runs the drainers.
+     */
+    protected ExecutorService theExecutor;
+}
@@ -8,6 +8,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -71,24 +72,62 @@ public class CommandInterpreter
     }
     
     /**
-     * Print steps.
+     * Print the most recent steps.
      * 
-     * @param steps the steps to print
+     * @param n maximum number of steps to print
      */
     protected void printSteps(
-            Step [] steps )
+            int n )
     {
-        PrintStream o = System.out;
+        StepLog.Snapshot steps = theApp.getStepSnapshot();
+
+        int count = Math.min( Math.max( n, 0 ), steps.size() );
+        for( int i=steps.size()-count ; i<steps.size() ; ++i ) {
+            printStep( i - steps.size(), steps.get( i ));
+        }
+    }
 
-        for( int i=0 ; i<steps.length ; ++i ) {
-            o.println( String.format(
-                    "%3d (%s): %s",
-                    i-steps.length,
-                    DATE_FORMAT.format( new Date( steps[i].getTimeCreated() )),
-                    steps[i].toString() ));
+    /**
+     * Print the next page of steps found by the most recent find command.
+     */
+    protected void printFound()
+    {
+        StepLog.Snapshot steps     = theApp.getStepSnapshot();
+        int []           positions = theApp.findSteps( theQuery, theQueryNext, FIND_PAGE_SIZE );
+
+        for( int position : positions ) {
+            if( position < steps.size() ) { // may just have been dropped
+                printStep( position - steps.size(), steps.get( position ));
+            }
+        }
+        if( positions.length == FIND_PAGE_SIZE ) {
+            theQueryNext = positions[ positions.length-1 ] + 1;
+            System.out.println( "(more: enter next)" );
+        } else {
+            theQuery = null;
+            if( positions.length == 0 ) {
+                System.out.println( "(none found)" );
+            }
         }
     }
 
+    /**
+     * Print a step.
+     * 
+     * @param index the index to show, with -1 being the most recent step
+     * @param step the step
+     */
+    protected void printStep(
+            int  index,
+            Step step )
+    {
+        System.out.println( String.format(
+                "%3d (%s): %s",
+                index,
+                DATE_FORMAT.format( new Date( step.getTimeCreated() )),
+                step.toString() ));
+    }
+
     /**
      * Emit an error message.
      * 
@@ -107,6 +146,16 @@ public class CommandInterpreter
      */
     protected Proxycord theApp;
 
+    /**
+     * The most recent find query, while it has more results.
+     */
+    protected StepQuery theQuery;
+
+    /**
+     * The position in the StepLog from which the next page of results of theQuery starts.
+     */
+    protected int theQueryNext;
+
     /**
      * Flag that indicates whether the main console loop should continue to run.
      */
@@ -144,13 +193,45 @@ public class CommandInterpreter
         theConsoleCommands.put(
                 "list",
                 ( CommandInterpreter interpreter, String ... args ) -> {
-                    Step [] steps;
                     if( args.length == 2 ) {
-                        steps = interpreter.theApp.getSteps( Integer.parseInt( args[1] ));
+                        interpreter.printSteps( Integer.parseInt( args[1] ));
                     } else {
-                        steps = interpreter.theApp.getSteps();
+                        interpreter.printSteps( Integer.MAX_VALUE );
+                    }
+                    return true;
+                } );
+
+        theConsoleCommands.put(
+                "find",
+                ( CommandInterpreter interpreter, String ... args ) -> {
+                    try {
+                        interpreter.theQuery     = StepQuery.parse( args, 1 );
+                        interpreter.theQueryNext = 0;
+
+                    } catch( IllegalArgumentException ex ) {
+                        interpreter.printError( ex.getMessage() + "\n"
+                                + "Usage: find [path=<prefix>] [status=<code>|<n>xx] [type=<content type>] [from=<time>] [to=<time>]" );
+                        return false;
+                    }
+                    interpreter.printFound();
+                    return true;
+                } );
+
+        theConsoleCommands.put(
+                "next",
+                ( CommandInterpreter interpreter, String ... args ) -> {
+                    if( interpreter.theQuery == null ) {
+                        interpreter.printError( "Nothing more found" );
+                        return false;
                     }
-                    interpreter.printSteps( steps );
+                    interpreter.printFound();
+                    return true;
+                } );
+
+        theConsoleCommands.put(
+                "stats",
+                ( CommandInterpreter interpreter, String ... args ) -> {
+                    interpreter.theApp.getMetrics().writeText( new PrintWriter( System.out ));
                     return true;
                 } );
 
@@ -161,7 +242,7 @@ public class CommandInterpreter
                         interpreter.printError( "No file name given" );
                     } else {
                         try {
-                            interpreter.theApp.writeJsonOutput( args[1] );
+                            interpreter.theApp.writeOutput( args[1] );
                         } catch( IOException ex ) {
                             interpreter.printError( ex.getMessage() );
                         }
@@ -184,6 +265,11 @@ public class CommandInterpreter
                 });
     }
 
+    /**
+     * Number of steps printed by find and next at a time.
+     */
+    protected static final int FIND_PAGE_SIZE = 20;
+
     /**
      * Format for printing time stamps.
      */
@@ -0,0 +1,19 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+/**
+ * Accepts incoming connections and proxies them to the remote host. Run
+ * on its own Thread until setInactive() is called.
+ */
+public interface ConnectionHandler
+    extends
+        Runnable
+{
+    /**
+     * Finish processing.
+     */
+    public void setInactive();
+}
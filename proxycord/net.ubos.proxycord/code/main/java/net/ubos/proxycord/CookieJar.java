@@ -0,0 +1,173 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The cookies of one virtual user during a replay. There is only one
+ * remote host, so cookies are not scoped by domain or path.
+ */
+public class CookieJar
+{
+    /**
+     * Constructor.
+     *
+     * @param serverCookieNames names of the cookies the remote host set
+     *        during the recording
+     */
+    public CookieJar(
+            Set<String> serverCookieNames )
+    {
+        theServerCookieNames = serverCookieNames;
+    }
+
+    /**
+     * Remember the cookies set by a response.
+     *
+     * @param response the response
+     */
+    public void update(
+            HttpResponse response )
+    {
+        for( Map.Entry<String,String[]> entry : response.getHeaders().entrySet() ) {
+            if( !HttpMessage.HTTP_SET_COOKIE_HEADER.equalsIgnoreCase( entry.getKey() )) {
+                continue;
+            }
+            for( String setCookie : entry.getValue() ) {
+                String [] nameValue = parseSetCookie( setCookie );
+                if( nameValue == null ) {
+                    continue;
+                }
+                if( isExpired( setCookie )) {
+                    theCookies.remove( nameValue[0] );
+                } else {
+                    theCookies.put( nameValue[0], nameValue[1] );
+                }
+            }
+        }
+    }
+
+    /**
+     * Determine the value of the Cookie header to send instead of the
+     * recorded one. Cookies that the remote host set during the recording
+     * are replaced by those it set for this virtual user; cookies it did not
+     * set, such as those set by JavaScript in the browser, are sent as
+     * recorded.
+     *
+     * @param recorded the recorded value of the Cookie header, or null
+     * @return the value to send, or null if no Cookie header should be sent
+     */
+    public String cookieHeader(
+            String recorded )
+    {
+        StringBuilder ret = new StringBuilder();
+
+        if( recorded != null ) {
+            for( String pair : recorded.split( ";" )) {
+                String trimmed = pair.trim();
+                int    equals  = trimmed.indexOf( '=' );
+                if( equals <= 0 ) {
+                    continue;
+                }
+                String name = trimmed.substring( 0, equals );
+                if( theServerCookieNames.contains( name ) || theCookies.containsKey( name )) {
+                    continue;
+                }
+                appendCookie( ret, trimmed );
+            }
+        }
+        for( Map.Entry<String,String> entry : theCookies.entrySet() ) {
+            appendCookie( ret, entry.getKey() + "=" + entry.getValue() );
+        }
+        return ret.length() > 0 ? ret.toString() : null;
+    }
+
+    /**
+     * Obtain the current value of a cookie.
+     *
+     * @param name name of the cookie
+     * @return the value, or null
+     */
+    public String get(
+            String name )
+    {
+        return theCookies.get( name );
+    }
+
+    /**
+     * Factored out helper to split the name and value off a Set-Cookie header value.
+     *
+     * @param setCookie the value of the Set-Cookie header
+     * @return name and value, or null if it cannot be parsed
+     */
+    public static String [] parseSetCookie(
+            String setCookie )
+    {
+        int semicolon = setCookie.indexOf( ';' );
+        String pair   = ( semicolon >= 0 ? setCookie.substring( 0, semicolon ) : setCookie ).trim();
+        int    equals = pair.indexOf( '=' );
+        if( equals <= 0 ) {
+            return null;
+        }
+        return new String[] { pair.substring( 0, equals ).trim(), pair.substring( equals+1 ).trim() };
+    }
+
+    /**
+     * Determine whether a Set-Cookie header value deletes the cookie. Servers
+     * delete cookies with Max-Age=0, or with an Expires date in the past;
+     * the latter is almost always the epoch, which is all we check for.
+     *
+     * @param setCookie the value of the Set-Cookie header
+     * @return true if the cookie is deleted
+     */
+    protected static boolean isExpired(
+            String setCookie )
+    {
+        String [] attributes = setCookie.split( ";" );
+        for( int i=1 ; i<attributes.length ; ++i ) {
+            String attribute = attributes[i].trim().toLowerCase();
+            if( attribute.startsWith( "max-age=" )) {
+                try {
+                    return Long.parseLong( attribute.substring( "max-age=".length() ).trim() ) <= 0;
+                } catch( NumberFormatException ex ) {
+                    return false;
+                }
+            }
+            if( attribute.startsWith( "expires=" ) && attribute.contains( "1970" )) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Factored out helper to append a cookie to the value of a Cookie header.
+     *
+     * @param buf the value so far
+     * @param pair name=value of the cookie
+     */
+    protected static void appendCookie(
+            StringBuilder buf,
+            String        pair )
+    {
+        if( buf.length() > 0 ) {
+            buf.append( "; " );
+        }
+        buf.append( pair );
+    }
+
+    /**
+     * Names of the cookies the remote host set during the recording.
+     */
+    protected final Set<String> theServerCookieNames;
+
+    /**
+     * The current cookies, by name, in the sequence they were first set.
+     */
+    protected final Map<String,String> theCookies = new LinkedHashMap<>();
+}
@@ -0,0 +1,28 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+/**
+ * The available ways of moving bytes between the client and the remote host.
+ */
+public enum Engine
+{
+    /**
+     * Blocking I/O, with two worker Threads per connection.
+     */
+    THREADS,
+
+    /**
+     * Blocking I/O, like THREADS, but on virtual Threads, so the number of
+     * concurrent connections is not limited by the size of a Thread pool.
+     */
+    VIRTUAL,
+
+    /**
+     * Non-blocking I/O, with a small number of Selector-based event loops
+     * shared by all connections.
+     */
+    NIO;
+}
@@ -0,0 +1,558 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.lang.ref.SoftReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Base64;
+
+/**
+ * The recorded body of an HttpMessage. Usually, it is held on the heap;
+ * large bodies may instead have been spilled to a file while they were
+ * being recorded, and are then read through memory-mapped views of it,
+ * so they do not take up heap.
+ *
+ * A body held on the heap may also be compressed, once it is complete, by
+ * a BodyCompressor in the background. It is then only decompressed when
+ * its content is needed, and the decompressed content is kept as long as
+ * memory permits.
+ *
+ * The Base64 encoding and the decoded text of a body held on the heap are
+ * also kept as long as memory permits, so saving the same recording
+ * repeatedly, or Steps that share a body, only encode it once.
+ */
+public class HttpBody
+{
+    /**
+     * Factory method for a body held on the heap.
+     *
+     * @param data the data, which must not be modified afterwards
+     * @return the created instance
+     */
+    public static HttpBody create(
+            byte [] data )
+    {
+        return new HttpBody( null, data, data.length );
+    }
+
+    /**
+     * Factory method for a body held on the heap in compressed form.
+     *
+     * @param codec the codec the body was compressed with
+     * @param compressed the compressed data, which must not be modified afterwards
+     * @param length the length of the decompressed body
+     * @return the created instance
+     */
+    public static HttpBody createCompressed(
+            BodyCodec codec,
+            byte []   compressed,
+            int       length )
+    {
+        HttpBody ret = new HttpBody( null, null, length );
+        ret.theCodec      = codec;
+        ret.theCompressed = compressed;
+        return ret;
+    }
+
+    /**
+     * Factory method for a body that has been spilled to a file.
+     *
+     * @param mapped the memory-mapped views of the file, in sequence, as obtained from map()
+     * @return the created instance
+     */
+    public static HttpBody createMapped(
+            MappedByteBuffer [] mapped )
+    {
+        long length = 0L;
+        for( MappedByteBuffer chunk : mapped ) {
+            length += chunk.limit();
+        }
+        return new HttpBody( mapped, null, length );
+    }
+
+    /**
+     * Map a part of a file into memory. A single MappedByteBuffer cannot
+     * hold more than 2 GiB, so the part is mapped in chunks of
+     * MAP_CHUNK_SIZE bytes; only the last one may be shorter.
+     *
+     * @param channel the file
+     * @param offset the position of the part in the file
+     * @param length the length of the part
+     * @return the mapped chunks, at least one
+     * @throws IOException the file could not be mapped
+     */
+    public static MappedByteBuffer [] map(
+            FileChannel channel,
+            long        offset,
+            long        length )
+        throws
+            IOException
+    {
+        MappedByteBuffer [] ret = new MappedByteBuffer[ (int) Math.max( 1L, ( length + MAP_CHUNK_SIZE - 1 ) / MAP_CHUNK_SIZE ) ];
+        for( int i=0 ; i<ret.length ; ++i ) {
+            long start = (long) i * MAP_CHUNK_SIZE;
+            ret[i] = channel.map( FileChannel.MapMode.READ_ONLY, offset + start, Math.min( MAP_CHUNK_SIZE, length - start ));
+        }
+        return ret;
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param mapped the memory-mapped data, if spilled
+     * @param array the data as an array, if held on the heap uncompressed
+     * @param length the number of bytes in the body
+     */
+    protected HttpBody(
+            MappedByteBuffer [] mapped,
+            byte []             array,
+            long                length )
+    {
+        theMapped = mapped;
+        theArray  = array;
+        theLength = length;
+    }
+
+    /**
+     * Obtain the number of bytes in the body.
+     *
+     * @return the number of bytes
+     */
+    public long length()
+    {
+        return theLength;
+    }
+
+    /**
+     * Determine whether the body has been spilled to a file.
+     *
+     * @return true if spilled
+     */
+    public boolean isSpilled()
+    {
+        return theMapped != null;
+    }
+
+    /**
+     * Obtain the body as a byte array. For a body held on the heap, this is
+     * the array itself; for a spilled body, it is a copy read from the file,
+     * which is as large as the body. A compressed body is decompressed.
+     *
+     * @return the bytes
+     * @throws UncheckedIOException a compressed body could not be decompressed
+     * @throws IllegalStateException a spilled body is too large for an array
+     */
+    public byte [] getBytes()
+    {
+        byte [] ret = theArray;
+        if( ret != null ) {
+            return ret;
+        }
+        if( theMapped != null ) {
+            if( theLength > MAX_ARRAY_LENGTH ) {
+                throw new IllegalStateException( "Body of " + theLength + " bytes is too large for an array" );
+            }
+            ret = new byte[ (int) theLength ];
+            int pos = 0;
+            for( MappedByteBuffer chunk : theMapped ) {
+                chunk.get( 0, ret, pos, chunk.limit() );
+                pos += chunk.limit();
+            }
+            return ret;
+        }
+
+        SoftReference<byte []> cached = theDecompressed;
+        ret = cached != null ? cached.get() : null;
+        if( ret == null ) {
+            try {
+                ret = theCodec.decompress( theCompressed, (int) theLength ); // compressed bodies are held on the heap, so this fits
+            } catch( IOException ex ) {
+                throw new UncheckedIOException( ex );
+            }
+            theDecompressed = new SoftReference<>( ret );
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain read-only views of the body, positioned at their starts. A
+     * spilled body may need more than one; together, in sequence, they hold
+     * the body. All but the last are a multiple of 8 bytes long.
+     *
+     * @return the views
+     */
+    public ByteBuffer [] asByteBuffers()
+    {
+        if( theMapped != null ) {
+            ByteBuffer [] ret = new ByteBuffer[ theMapped.length ];
+            for( int i=0 ; i<ret.length ; ++i ) {
+                ret[i] = theMapped[i].asReadOnlyBuffer();
+            }
+            return ret;
+        }
+        return new ByteBuffer[] { ByteBuffer.wrap( getBytes() ).asReadOnlyBuffer() };
+    }
+
+    /**
+     * Compress the body, if it is held on the heap, has not been compressed
+     * yet, and becomes smaller. Only one Thread may invoke this at a time.
+     *
+     * @param codec the codec to use
+     * @param level the compression level
+     * @return the number of bytes saved
+     */
+    public int compress(
+            BodyCodec codec,
+            int       level )
+    {
+        byte [] raw = theArray;
+        if( raw == null || codec == BodyCodec.NONE ) {
+            return 0;
+        }
+        getHash(); // while we have the raw bytes
+
+        byte [] compressed = codec.compress( raw, level );
+        if( compressed == null ) {
+            return 0;
+        }
+        theCodec        = codec;
+        theCompressed   = compressed;
+        theDecompressed = new SoftReference<>( raw ); // for whoever is using it right now
+        theArray        = null;                       // volatile write publishes the above
+        theBase64       = null;                       // would undo the savings
+        theText         = null;
+
+        return raw.length - compressed.length;
+    }
+
+    /**
+     * Obtain the codec the body is compressed with.
+     *
+     * @return the codec, NONE if not compressed
+     */
+    public BodyCodec getCodec()
+    {
+        return theArray == null && theCompressed != null ? theCodec : BodyCodec.NONE;
+    }
+
+    /**
+     * Obtain the compressed data.
+     *
+     * @return the compressed data, or null if not compressed
+     */
+    public byte [] getCompressed()
+    {
+        return theArray == null ? theCompressed : null;
+    }
+
+    /**
+     * Obtain the content encoded as Base64. This must not be invoked on a
+     * spilled body, which is to be encoded a piece at a time instead. The
+     * result is only kept while the body is held uncompressed.
+     *
+     * @return the encoded content
+     */
+    public String getBase64()
+    {
+        SoftReference<String> cached = theBase64;
+        String                ret    = cached != null ? cached.get() : null;
+        if( ret == null ) {
+            ret = Base64.getEncoder().encodeToString( getBytes() );
+            if( theArray != null ) {
+                theBase64 = new SoftReference<>( ret );
+                if( theArray == null ) { // compressed meanwhile
+                    theBase64 = null;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain the content decoded as text. This must not be invoked on a
+     * spilled body. The result is only kept while the body is held
+     * uncompressed.
+     *
+     * @param charset the Charset to decode with
+     * @return the decoded content
+     */
+    public String getText(
+            Charset charset )
+    {
+        DecodedText cached = theText;
+        String      ret    = cached != null && cached.theCharset.equals( charset ) ? cached.get() : null;
+        if( ret == null ) {
+            ret = new String( getBytes(), charset );
+            if( theArray != null ) {
+                theText = new DecodedText( ret, charset );
+                if( theArray == null ) { // compressed meanwhile
+                    theText = null;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Write the body to a stream. A spilled body is written a piece at a time.
+     *
+     * @param out the stream to write to
+     * @throws IOException an I/O problem occurred
+     */
+    public void writeTo(
+            OutputStream out )
+        throws
+            IOException
+    {
+        if( theMapped == null ) {
+            out.write( getBytes() );
+            return;
+        }
+        byte [] buf = new byte[ (int) Math.min( theLength, COPY_BUFFER_SIZE ) ];
+        for( MappedByteBuffer chunk : theMapped ) {
+            for( int pos = 0 ; pos < chunk.limit() ; pos += buf.length ) {
+                int n = Math.min( buf.length, chunk.limit() - pos );
+                chunk.get( pos, buf, 0, n );
+                out.write( buf, 0, n );
+            }
+        }
+    }
+
+    /**
+     * Obtain a 64-bit hash of the content, by which equal bodies can be
+     * found quickly. It is calculated when first needed, 8 bytes at a time.
+     *
+     * @return the hash
+     */
+    public long getHash()
+    {
+        long ret = theHash;
+        if( ret == 0L ) {
+            ret = hash( asByteBuffers(), theLength );
+            theHash = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain the hash as used to refer to this body in a recording.
+     *
+     * @return the hash, as 16 hexadecimal digits
+     */
+    public String getHashAsString()
+    {
+        return String.format( "%016x", getHash() );
+    }
+
+    /**
+     * Determine whether another body has the same content.
+     *
+     * @param other the other body
+     * @return true if the same
+     */
+    public boolean contentEquals(
+            HttpBody other )
+    {
+        if( other == this ) {
+            return true;
+        }
+        if( other.length() != length() || other.getHash() != getHash() ) {
+            return false;
+        }
+        // the two may be split into views at different places
+        ByteBuffer [] mine   = asByteBuffers();
+        ByteBuffer [] theirs = other.asByteBuffers();
+        int           i      = 0;
+        int           j      = 0;
+        while( i < mine.length && j < theirs.length ) {
+            ByteBuffer a = mine[i];
+            ByteBuffer b = theirs[j];
+            int        n = Math.min( a.remaining(), b.remaining() );
+            if( !a.slice( a.position(), n ).equals( b.slice( b.position(), n ))) {
+                return false;
+            }
+            a.position( a.position() + n );
+            b.position( b.position() + n );
+            if( !a.hasRemaining() ) {
+                ++i;
+            }
+            if( !b.hasRemaining() ) {
+                ++j;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimate how much heap this body occupies.
+     *
+     * @return the number of bytes
+     */
+    public long getHeapSize()
+    {
+        byte [] array = theArray;
+        if( array != null ) {
+            return array.length;
+        }
+        return theCompressed != null ? theCompressed.length : 0L;
+    }
+
+    /**
+     * The memory-mapped data, if spilled, in chunks as created by map().
+     * Only absolute get operations are used on them, so they can be read
+     * from several Threads at the same time.
+     */
+    protected final MappedByteBuffer [] theMapped;
+
+    /**
+     * The data as an array, if held on the heap uncompressed, or null.
+     */
+    protected volatile byte [] theArray;
+
+    /**
+     * The number of bytes in the body.
+     */
+    protected final long theLength;
+
+    /**
+     * The codec the body has been compressed with, if theCompressed is set.
+     */
+    protected BodyCodec theCodec;
+
+    /**
+     * The compressed data, or null. Only used once theArray is null.
+     */
+    protected byte [] theCompressed;
+
+    /**
+     * The decompressed data of a compressed body, while memory permits.
+     */
+    protected volatile SoftReference<byte []> theDecompressed;
+
+    /**
+     * The content encoded as Base64, while memory permits and the body is
+     * held uncompressed. Compressed bodies do not keep it, as it is larger
+     * than the raw content.
+     */
+    protected volatile SoftReference<String> theBase64;
+
+    /**
+     * The content decoded as text, while memory permits and the body is
+     * held uncompressed, like theBase64.
+     */
+    protected volatile DecodedText theText;
+
+    /**
+     * Hash content. This mixes 8 bytes at a time, like the finalizer of
+     * MurmurHash3; it only needs to tell apart the bodies of one recording.
+     *
+     * @param data the content, in sequence; all but the last a multiple of 8 bytes long
+     * @param length the total number of bytes
+     * @return the hash, never 0
+     */
+    protected static long hash(
+            ByteBuffer [] data,
+            long          length )
+    {
+        long ret   = HASH_SEED ^ length;
+        long tail  = 0L;
+        int  shift = 0;
+
+        for( ByteBuffer part : data ) {
+            ByteBuffer le  = part.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+            int        len = le.limit();
+
+            int pos = 0;
+            for( ; pos + 8 <= len ; pos += 8 ) {
+                ret = mix( ret ^ le.getLong( pos ));
+            }
+            for( ; pos < len ; ++pos, shift += 8 ) {
+                tail |= ( le.get( pos ) & 0xffL ) << shift;
+            }
+        }
+        ret = mix( ret ^ tail );
+
+        return ret != 0L ? ret : 1L; // 0 means: not calculated yet
+    }
+
+    /**
+     * Mix the bits of a 64-bit value.
+     *
+     * @param v the value
+     * @return the mixed value
+     */
+    protected static long mix(
+            long v )
+    {
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        v *= 0xc4ceb9fe1a85ec53L;
+        v ^= v >>> 33;
+        return v;
+    }
+
+    /**
+     * The hash of the content, or 0 if not calculated yet. Racing Threads
+     * calculate the same value, so this does not need to be synchronized.
+     */
+    protected long theHash;
+
+    /**
+     * Starting value of the hash.
+     */
+    protected static final long HASH_SEED = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Size of the buffer used to copy a spilled body piece by piece.
+     */
+    protected static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Size of the chunks in which spilled bodies are mapped into memory.
+     * A multiple of 8, so hash() can process them one after the other.
+     */
+    public static final long MAP_CHUNK_SIZE = 1024L * 1024 * 1024;
+
+    /**
+     * Largest body that can be held in an array.
+     */
+    protected static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    /**
+     * The content decoded as text, and with which Charset.
+     */
+    protected static class DecodedText
+        extends
+            SoftReference<String>
+    {
+        /**
+         * Constructor.
+         *
+         * @param text the decoded content
+         * @param charset the Charset it was decoded with
+         */
+        protected DecodedText(
+                String  text,
+                Charset charset )
+        {
+            super( text );
+
+            theCharset = charset;
+        }
+
+        /**
+         * The Charset the content was decoded with.
+         */
+        protected final Charset theCharset;
+    }
+}
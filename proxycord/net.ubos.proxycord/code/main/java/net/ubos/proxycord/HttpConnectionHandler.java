@@ -7,19 +7,21 @@ package net.ubos.proxycord;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Handles incoming HTTP connection requests to the opened ServerSocket and
- * dispatches them to worker Threads.
+ * Handles incoming HTTP connection requests to the opened ServerSocketChannel
+ * and dispatches them to worker Threads, which use blocking I/O.
  */
 public class HttpConnectionHandler
     implements
-        Runnable
+        ConnectionHandler
 {
     private final static Logger LOG = Logger.getLogger( HttpConnectionHandler.class.getName() );
 
@@ -48,13 +50,13 @@ public class HttpConnectionHandler
         theRemoteHost = remoteHost;
         theRemotePort = remotePort;
 
-        theServerSocket = new ServerSocket();
-        theServerSocket.setReuseAddress( true );
+        theServerChannel = ServerSocketChannel.open();
+        theServerChannel.setOption( StandardSocketOptions.SO_REUSEADDR, true );
 
         if( theLocalHost != null ) {
-            theServerSocket.bind( new InetSocketAddress( InetAddress.getByName( theLocalHost ), theLocalPort ));
+            theServerChannel.bind( new InetSocketAddress( InetAddress.getByName( theLocalHost ), theLocalPort ));
         } else {
-            theServerSocket.bind( new InetSocketAddress( theLocalPort ));
+            theServerChannel.bind( new InetSocketAddress( theLocalPort ));
         }
     }
     
@@ -63,23 +65,12 @@ public class HttpConnectionHandler
     {
         int count = 0;
         while( theIsActive ) {
+            SocketChannel serverSideChannel;
             try {
-                Socket serverSideSocket = theServerSocket.accept();
-
-                if( theIsActive ) {
-                    LOG.info( "Accepting incoming connection request" );
-
-                    HttpRequestHandler requestHandler = new HttpRequestHandler(
-                            String.valueOf( count++ ),
-                            theApp,
-                            serverSideSocket,
-                            theRemoteHost,
-                            theRemotePort );
-                    theApp.submitTask( requestHandler );
-                }
-
-            } catch( SocketTimeoutException ex ) {
-                // that's fine, do nothing, go right back
+                serverSideChannel = theServerChannel.accept();
+
+            } catch( AsynchronousCloseException ex ) {
+                // we are shutting down
                 break;
             } catch( SocketException ex ) {
                 // probably too much load, wait a tiny bit
@@ -88,29 +79,67 @@ public class HttpConnectionHandler
                 ex.printStackTrace();
                 break;
             }
-            
+
+            if( !theIsActive ) {
+                UpstreamConnectionPool.closeQuietly( serverSideChannel );
+                break;
+            }
+
+            try {
+                // fails if the client has reset the connection already; that only affects this one
+                serverSideChannel.socket().setTcpNoDelay( true );
+
+            } catch( IOException ex ) {
+                LOG.log( Level.WARNING, "Cannot set up incoming connection", ex );
+                UpstreamConnectionPool.closeQuietly( serverSideChannel );
+                continue;
+            }
+
+            LOG.info( "Accepting incoming connection request" );
+            theApp.getMetrics().increment( Metrics.Counter.ACCEPTED_CONNECTIONS );
+            theApp.getMetrics().increment( Metrics.Counter.ACTIVE_CONNECTIONS );
+
+            PlaybackIndex          playback = theApp.getPlaybackIndex();
+            UpstreamConnectionPool pool     = theApp.getUpstreamPool();
+            Runnable               requestHandler;
+            if( playback != null ) {
+                requestHandler = new PlaybackRequestHandler(
+                        String.valueOf( count++ ),
+                        theApp,
+                        serverSideChannel.socket(),
+                        playback );
+            } else if( pool != null ) {
+                requestHandler = new PooledHttpRequestHandler(
+                        String.valueOf( count++ ),
+                        theApp,
+                        serverSideChannel.socket(),
+                        pool );
+            } else {
+                requestHandler = new HttpRequestHandler(
+                        String.valueOf( count++ ),
+                        theApp,
+                        serverSideChannel,
+                        theRemoteHost,
+                        theRemotePort );
+            }
+            theApp.submitTask( requestHandler );
         }
 
         try {
-            theServerSocket.close();
+            theServerChannel.close();
         } catch( IOException ex ) {
             ex.printStackTrace();
         }
-        theServerSocket = null;
     }
 
-    /**
-     * Finish processing.
-     */
+    @Override
     public void setInactive()
     {
         theIsActive = false;
-        if( theServerSocket != null ) {
-            try {
-                theServerSocket.close();
-            } catch( IOException ex ) {
-                ex.printStackTrace();
-            }
+        try {
+            theServerChannel.close();
+        } catch( IOException ex ) {
+            ex.printStackTrace();
         }
     }
 
@@ -122,12 +151,12 @@ public class HttpConnectionHandler
     /**
      * Continue processing while this flag is true.
      */
-    protected boolean theIsActive = true;
+    protected volatile boolean theIsActive = true;
 
     /**
-     * The locally opened ServerSocket
+     * The locally opened ServerSocketChannel
      */
-    protected ServerSocket theServerSocket;
+    protected ServerSocketChannel theServerChannel;
 
     /**
      * Local IP address to bind to.
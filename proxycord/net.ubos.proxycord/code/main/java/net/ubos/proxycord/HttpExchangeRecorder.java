@@ -0,0 +1,937 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reassembles the bytes flowing through one proxied connection into
+ * HttpRequests and HttpResponses, and logs completed exchanges as Steps.
+ * This is independent of how the bytes are being moved, so it can be
+ * used by all engines.
+ *
+ * The forwarding Threads only copy the data, together with the time it was
+ * received, into a queue per direction; parsing happens later on the Thread
+ * of the CapturePipeline. Requests are paired with responses in sequence,
+ * so any number of pipelined requests may be outstanding. Exchanges that
+ * do not complete, because the connection ends first, are logged as well.
+ */
+public class HttpExchangeRecorder
+{
+    private final static Logger LOG = Logger.getLogger( HttpExchangeRecorder.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param name name of the connection, for logging
+     * @param app the application
+     */
+    public HttpExchangeRecorder(
+            String    name,
+            Proxycord app )
+    {
+        theName      = name;
+        theApp       = app;
+        thePipeline  = app.getCapturePipeline();
+        theMetrics   = app.getMetrics();
+        theIsDropped = !app.isRecording();
+
+        theRequestParser  = HttpMessageParser.createRequestParser( name );
+        theResponseParser = HttpMessageParser.createResponseParser( name );
+        theRequestParser.setMaxContent( app.getMaxRecordedContent() );
+        theResponseParser.setMaxContent( app.getMaxRecordedContent() );
+        theRequestParser.setSpill(  app.getBodySpillThreshold(), app.getMaxSpilledContent(), app.getBodySpillDirectory() );
+        theResponseParser.setSpill( app.getBodySpillThreshold(), app.getMaxSpilledContent(), app.getBodySpillDirectory() );
+        theRequestParser.setBodyStore(  app.getBodyStore() );
+        theResponseParser.setBodyStore( app.getBodyStore() );
+        theRequestParser.setBodyCompressor(  app.getBodyCompressor() );
+        theResponseParser.setBodyCompressor( app.getBodyCompressor() );
+
+        theRequestQueue  = new CaptureQueue( QUEUE_SLOTS );
+        theResponseQueue = new CaptureQueue( QUEUE_SLOTS );
+    }
+
+    /**
+     * Obtain name, for logging.
+     *
+     * @return the name
+     */
+    public String getName()
+    {
+        return theName;
+    }
+
+    /**
+     * Log traffic that was received from the client and is on its way
+     * to the remote host. Only to be invoked by the one Thread that reads
+     * from the client.
+     *
+     * @param data the data buffer
+     * @param count the number of bytes in the data buffer
+     */
+    public void logRequestData(
+            byte [] data,
+            int     count )
+    {
+        theMetrics.add( Metrics.Counter.CLIENT_RECEIVED_BYTES, count );
+        enqueue( theRequestQueue, data, 0, count );
+    }
+
+    /**
+     * Log traffic that was received from the client and is on its way
+     * to the remote host. Only to be invoked by the one Thread that reads
+     * from the client.
+     *
+     * @param data the data buffer
+     * @param offset the offset of the first byte in the data buffer
+     * @param count the number of bytes
+     */
+    public void logRequestData(
+            byte [] data,
+            int     offset,
+            int     count )
+    {
+        theMetrics.add( Metrics.Counter.CLIENT_RECEIVED_BYTES, count );
+        enqueue( theRequestQueue, data, offset, count );
+    }
+
+    /**
+     * Log traffic that was received from the client and is on its way
+     * to the remote host. The bytes between the buffer's position and its
+     * limit are logged; the position is not changed. Only to be invoked by
+     * the one Thread that reads from the client.
+     *
+     * @param data the data buffer
+     */
+    public void logRequestData(
+            ByteBuffer data )
+    {
+        theMetrics.add( Metrics.Counter.CLIENT_RECEIVED_BYTES, data.remaining() );
+        enqueue( theRequestQueue, data );
+    }
+
+    /**
+     * Log that the connection to the remote host, over which the subsequently
+     * logged request data will be forwarded, has been established. Only to be
+     * invoked by the one Thread that reads from the client.
+     */
+    public void logUpstreamConnected()
+    {
+        enqueue( theRequestQueue, new Capture( null, System.nanoTime() ));
+    }
+
+    /**
+     * Log traffic that was received from the remote host and is on its way
+     * back to the client. Only to be invoked by the one Thread that reads
+     * from the remote host.
+     *
+     * @param data the data buffer
+     * @param count the number of bytes in the data buffer
+     */
+    public void logResponseData(
+            byte [] data,
+            int     count )
+    {
+        theMetrics.add( Metrics.Counter.REMOTE_RECEIVED_BYTES, count );
+        enqueue( theResponseQueue, data, 0, count );
+    }
+
+    /**
+     * Log traffic that was received from the remote host and is on its way
+     * back to the client. Only to be invoked by the one Thread that reads
+     * from the remote host.
+     *
+     * @param data the data buffer
+     * @param offset the offset of the first byte in the data buffer
+     * @param count the number of bytes
+     */
+    public void logResponseData(
+            byte [] data,
+            int     offset,
+            int     count )
+    {
+        theMetrics.add( Metrics.Counter.REMOTE_RECEIVED_BYTES, count );
+        enqueue( theResponseQueue, data, offset, count );
+    }
+
+    /**
+     * Log traffic that was received from the remote host and is on its way
+     * back to the client. The bytes between the buffer's position and its
+     * limit are logged; the position is not changed. Only to be invoked by
+     * the one Thread that reads from the remote host.
+     *
+     * @param data the data buffer
+     */
+    public void logResponseData(
+            ByteBuffer data )
+    {
+        theMetrics.add( Metrics.Counter.REMOTE_RECEIVED_BYTES, data.remaining() );
+        enqueue( theResponseQueue, data );
+    }
+
+    /**
+     * Log that the remote host has closed the connection, or that the
+     * connection to it is not used any more. This ends a response whose
+     * body extends until the connection is closed. Only to be invoked by
+     * the one Thread that reads from the remote host.
+     */
+    public void logResponseEnd()
+    {
+        enqueue( theResponseQueue, new Capture( null, System.nanoTime() ));
+    }
+
+    /**
+     * Determine whether request data can be logged right now without waiting
+     * for the recorder, as needed by engines that must never block, such as
+     * the NIO engine. If not, the listener set with setCaptureSpaceListener
+     * will be invoked once the recorder has caught up. Only to be invoked by
+     * the one Thread that reads from the client.
+     *
+     * @return true if request data can be read and logged
+     */
+    public boolean canLogRequestData()
+    {
+        return hasSpace( theRequestQueue );
+    }
+
+    /**
+     * Determine whether response data can be logged right now without waiting
+     * for the recorder, as needed by engines that must never block, such as
+     * the NIO engine. If not, the listener set with setCaptureSpaceListener
+     * will be invoked once the recorder has caught up. Only to be invoked by
+     * the one Thread that reads from the remote host.
+     *
+     * @return true if response data can be read and logged
+     */
+    public boolean canLogResponseData()
+    {
+        return hasSpace( theResponseQueue );
+    }
+
+    /**
+     * Set the listener to be invoked, on the Thread of the CapturePipeline,
+     * after canLogRequestData() or canLogResponseData() returned false and
+     * the recorder has caught up since.
+     *
+     * @param listener the listener
+     */
+    public void setCaptureSpaceListener(
+            Runnable listener )
+    {
+        theCaptureSpaceListener = listener;
+    }
+
+    /**
+     * Factored out helper to determine whether a queue has space for a
+     * read and for the end marker that may follow it.
+     *
+     * @param queue the queue
+     * @return true if it does, or if we do not wait for the recorder anyway
+     */
+    protected boolean hasSpace(
+            CaptureQueue queue )
+    {
+        if( theIsDropped || thePipeline.getPolicy() == CaptureOverflowPolicy.DROP ) {
+            return true;
+        }
+        long maxBytes = thePipeline.getMaxQueuedBytes();
+        if( queue.hasSpace( maxBytes )) {
+            return true;
+        }
+        theIsCaptureSpaceWanted.set( true );
+        scheduleDrain();
+
+        // check again, in case draining finished before it could see the flag
+        return queue.hasSpace( maxBytes );
+    }
+
+    /**
+     * Copy data into a queue, according to the overflow policy, and make
+     * sure the queue will be drained.
+     *
+     * @param queue the queue
+     * @param data the data buffer
+     * @param offset the offset of the first byte in the data buffer
+     * @param count the number of bytes
+     */
+    protected void enqueue(
+            CaptureQueue queue,
+            byte []      data,
+            int          offset,
+            int          count )
+    {
+        if( theIsDropped || count == 0 ) {
+            return;
+        }
+        long time = System.nanoTime(); // before copying, as close to the read as we can get
+
+        enqueue( queue, new Capture( Arrays.copyOfRange( data, offset, offset + count ), time ));
+    }
+
+    /**
+     * Copy the remaining data in a buffer into a queue, according to the
+     * overflow policy, and make sure the queue will be drained. The buffer's
+     * position is not changed.
+     *
+     * @param queue the queue
+     * @param data the data buffer
+     */
+    protected void enqueue(
+            CaptureQueue queue,
+            ByteBuffer   data )
+    {
+        int count = data.remaining();
+        if( theIsDropped || count == 0 ) {
+            return;
+        }
+        long time = System.nanoTime(); // before copying, as close to the read as we can get
+
+        byte [] copy = new byte[ count ];
+        data.get( data.position(), copy );
+        enqueue( queue, new Capture( copy, time ));
+    }
+
+    /**
+     * Put a Capture into a queue, according to the overflow policy, and make
+     * sure the queue will be drained.
+     *
+     * @param queue the queue
+     * @param capture the Capture
+     */
+    protected void enqueue(
+            CaptureQueue queue,
+            Capture      capture )
+    {
+        if( theIsDropped ) {
+            return;
+        }
+        while( !queue.offer( capture, thePipeline.getMaxQueuedBytes() )) {
+            if( thePipeline.getPolicy() == CaptureOverflowPolicy.DROP ) {
+                LOG.log( Level.WARNING, "Capture queue overflow, no longer recording ({0})", theName );
+                theIsDropped = true;
+                break;
+            }
+            scheduleDrain();
+            LockSupport.parkNanos( BACKPRESSURE_WAIT );
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Make sure the queues will be drained, unless that is already scheduled.
+     */
+    protected void scheduleDrain()
+    {
+        if( theDrainScheduled.compareAndSet( false, true )) {
+            thePipeline.schedule( this::drain );
+        }
+    }
+
+    /**
+     * Parse everything in the queues. Invoked on the Thread of the CapturePipeline.
+     */
+    protected void drain()
+    {
+        while( true ) {
+            // A response can only have been received after its request has been
+            // forwarded, so by draining the request queue before every piece of
+            // response data, we always know the request a response belongs to.
+            Capture capture;
+            do {
+                drainRequests();
+                capture = theResponseQueue.poll();
+                if( capture != null ) {
+                    if( capture.theData == null ) {
+                        responseStreamEnded( capture.theTime );
+                    } else {
+                        parseResponseData( capture.theData, capture.theData.length, capture.theTime );
+                    }
+                }
+            } while( capture != null );
+
+            theDrainScheduled.set( false );
+
+            Runnable listener = theCaptureSpaceListener;
+            if( listener != null && theIsCaptureSpaceWanted.getAndSet( false )) {
+                listener.run();
+            }
+
+            if( theRequestQueue.isEmpty() && theResponseQueue.isEmpty() ) {
+                break;
+            }
+            if( !theDrainScheduled.compareAndSet( false, true )) {
+                break; // somebody else has scheduled us again
+            }
+        }
+    }
+
+    /**
+     * Parse everything in the request queue.
+     */
+    protected void drainRequests()
+    {
+        Capture capture;
+        while( ( capture = theRequestQueue.poll()) != null ) {
+            if( theProtocolSwitchRequest != null ) {
+                theHeldRequestCaptures.add( capture );
+            } else {
+                processRequestCapture( capture );
+            }
+        }
+    }
+
+    /**
+     * Process one Capture from the request queue.
+     *
+     * @param capture the Capture
+     */
+    protected void processRequestCapture(
+            Capture capture )
+    {
+        if( capture.theData == null ) {
+            upstreamConnected( capture.theTime );
+        } else {
+            parseRequestData( capture.theData, capture.theData.length, capture.theTime );
+        }
+    }
+
+    /**
+     * The request that may have switched protocols has been answered, or
+     * will not be any more. Process the request data held back meanwhile.
+     */
+    protected void releaseHeldRequests()
+    {
+        theProtocolSwitchRequest = null;
+
+        Capture capture;
+        while( theProtocolSwitchRequest == null && ( capture = theHeldRequestCaptures.poll()) != null ) {
+            processRequestCapture( capture );
+        }
+    }
+
+    /**
+     * The connection to the remote host has been established. Requests
+     * that are still waiting for it, were waiting for this one.
+     *
+     * @param time the time, in System.nanoTime() format
+     */
+    protected void upstreamConnected(
+            long time )
+    {
+        theUpstreamConnectedTime = time;
+        theResponseStreamEnded   = false;
+
+        for( HttpRequest request : theQueuedRequests ) {
+            if( request.theUpstreamConnectedTime == 0 ) {
+                request.theUpstreamConnectedTime = time;
+            }
+        }
+    }
+
+    /**
+     * Parse request data.
+     *
+     * @param data the data buffer
+     * @param count the number of bytes in the data buffer
+     * @param time the time the data was received, in System.nanoTime() format
+     */
+    protected void parseRequestData(
+            byte [] data,
+            int     count,
+            long    time )
+    {
+        long start = System.nanoTime();
+        int  pos   = 0;
+        while( pos < count && !theRequestParser.hasError() ) {
+            pos += theRequestParser.parse( data, pos, count-pos, time );
+
+            HttpRequest request = theRequestParser.takeMessage();
+            if( request == null ) {
+                continue;
+            }
+            if( request == theRequestLoggedEarly ) {
+                theRequestLoggedEarly = null; // already logged
+                continue;
+            }
+            request.theUpstreamConnectedTime = theUpstreamConnectedTime;
+
+            if( theResponseStreamEnded ) {
+                // forwarded after the remote host closed the connection, so there will be no response
+                logIncomplete( request, null, HttpIncompleteExchangeStep.NO_RESPONSE, time );
+                continue;
+            }
+            LOG.log( Level.INFO, String.format( "Queuing request (%s) %s", theName, request.getPath() ));
+
+            theQueuedRequests.add( request );
+
+            if( mayChangeProtocol( request )) {
+                // Until we have seen the response, we cannot tell whether what follows is HTTP.
+                // The forwarding Threads may be far ahead of us, so the data may already be here.
+                theProtocolSwitchRequest = request;
+                if( pos < count ) {
+                    theHeldRequestCaptures.add( new Capture( Arrays.copyOfRange( data, pos, count ), time ));
+                }
+                break;
+            }
+        }
+        if( theRequestParser.hasError() ) {
+            stopRecording( "Cannot parse request stream" );
+        }
+        theMetrics.record( Metrics.Latency.PARSE, System.nanoTime() - start );
+    }
+
+    /**
+     * Parse response data.
+     *
+     * @param data the data buffer
+     * @param count the number of bytes in the data buffer
+     * @param time the time the data was received, in System.nanoTime() format
+     */
+    protected void parseResponseData(
+            byte [] data,
+            int     count,
+            long    time )
+    {
+        long start = System.nanoTime();
+        int  pos   = 0;
+        while( pos < count && !theResponseParser.hasError() ) {
+            if( theResponseParser.isAtMessageStart() ) {
+                // how the response is framed depends on its request
+                HttpRequest inResponseTo = nextUnansweredRequest();
+                if( inResponseTo != null ) {
+                    theResponseParser.setNextMessageInResponseTo( inResponseTo );
+                }
+            }
+            pos += theResponseParser.parse( data, pos, count-pos, time );
+
+            HttpResponse response = theResponseParser.takeMessage();
+            if( response != null ) {
+                responseComplete( response );
+            }
+        }
+        if( theResponseParser.hasError() ) {
+            stopRecording( "Cannot parse response stream" );
+        }
+        theMetrics.record( Metrics.Latency.PARSE, System.nanoTime() - start );
+    }
+
+    /**
+     * The response stream has ended. This completes a response whose body
+     * extends until the connection is closed. Requests that have not been
+     * answered by now never will be, so they are logged as incomplete.
+     *
+     * @param time the time, in System.nanoTime() format
+     */
+    protected void responseStreamEnded(
+            long time )
+    {
+        HttpResponse partial = theResponseParser.isBodyUntilEndOfStream() ? null : theResponseParser.getMessageInProgress();
+
+        theResponseParser.endOfStream( time );
+
+        HttpResponse response = theResponseParser.takeMessage();
+        if( response != null ) {
+            responseComplete( response );
+
+        } else if( partial != null ) {
+            logIncomplete( takeUnansweredRequest(), partial, HttpIncompleteExchangeStep.RESPONSE_INCOMPLETE, time );
+        }
+
+        HttpRequest request;
+        while( ( request = theQueuedRequests.poll()) != null ) {
+            logIncomplete( request, null, HttpIncompleteExchangeStep.NO_RESPONSE, time );
+        }
+        request = theRequestParser.getMessageInProgress();
+        if( request != null && request != theRequestLoggedEarly ) {
+            request.theUpstreamConnectedTime = theUpstreamConnectedTime;
+            theRequestLoggedEarly            = request;
+            logIncomplete( request, null, HttpIncompleteExchangeStep.REQUEST_INCOMPLETE, time );
+        }
+        theResponseStreamEnded = true;
+        theRequestParser.discardContent(); // whatever of the request is still to come, will not be recorded
+
+        if( theProtocolSwitchRequest != null ) {
+            releaseHeldRequests();
+        }
+    }
+
+    /**
+     * A response has been parsed. Pair it with its request, and log both.
+     *
+     * @param response the response
+     */
+    protected void responseComplete(
+            HttpResponse response )
+    {
+        if( response.getStatus() < 200 && response.getStatus() != HttpResponse.HTTP_SWITCHING_PROTOCOLS_STATUS ) {
+            // interim response, e.g. 100 Continue; the final one is still to come
+            LOG.log( Level.FINE, "Skipping interim response ({0}) {1}", new Object[] { theName, response.getStatus() } );
+            return;
+        }
+        LOG.log( Level.INFO, String.format( "Unqueuing request (%s)", theName ));
+
+        HttpRequest inResponseTo = takeUnansweredRequest();
+        if( inResponseTo == null ) {
+            LOG.log( Level.WARNING, "Response without request ({0})", theName );
+            logIncomplete( null, response, HttpIncompleteExchangeStep.NO_REQUEST, response.getCompleteTime() );
+            return;
+        }
+
+        if( theResponseParser.isOpaque() ) {
+            // switched protocols, or established a tunnel: no more HTTP in either direction
+            theRequestParser.switchToOpaque();
+        }
+
+        HttpRequestResponseStep step = new HttpRequestResponseStep( inResponseTo, response );
+
+        theMetrics.record( Metrics.Latency.EXCHANGE, step.getTotalDuration() );
+        theMetrics.record( Metrics.Latency.REMOTE,   step.getRemoteDuration() );
+        theApp.logStep( step );
+
+        if( inResponseTo == theProtocolSwitchRequest ) {
+            releaseHeldRequests();
+        }
+    }
+
+    /**
+     * Determine whether the response to a request may end HTTP on this
+     * connection, with 101 Switching Protocols or by establishing a tunnel.
+     *
+     * @param request the request
+     * @return true if it may
+     */
+    protected static boolean mayChangeProtocol(
+            HttpRequest request )
+    {
+        return HttpRequest.HTTP_CONNECT_VERB.equals( request.getVerb() ) || request.getFirstHeaderValue( "Upgrade" ) != null;
+    }
+
+    /**
+     * Take the request that a response is in response to, in sequence.
+     *
+     * @return the request, or null if there is none
+     */
+    protected HttpRequest takeUnansweredRequest()
+    {
+        HttpRequest ret = theQueuedRequests.poll();
+        if( ret == null ) {
+            // The remote host may respond before the request is complete, e.g.
+            // with a final status instead of 100 Continue after Expect: 100-continue
+            ret = theRequestParser.getMessageInProgress();
+            if( ret != null ) {
+                ret.theUpstreamConnectedTime = theUpstreamConnectedTime;
+                theRequestLoggedEarly        = ret;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Log an exchange that did not complete.
+     *
+     * @param request the request, or null
+     * @param response the response, as far as it was received, or null
+     * @param reason why the exchange did not complete
+     * @param time the time the exchange ended, in System.nanoTime() format
+     */
+    protected void logIncomplete(
+            HttpRequest  request,
+            HttpResponse response,
+            String       reason,
+            long         time )
+    {
+        LOG.log( Level.INFO, "Incomplete exchange ({0}): {1}", new Object[] { theName, reason } );
+
+        theMetrics.increment( Metrics.Counter.INCOMPLETE_EXCHANGES );
+        theApp.logStep( new HttpIncompleteExchangeStep( request, response, reason, time ));
+    }
+
+    /**
+     * Determine the request that the next response will be in response to.
+     *
+     * @return the request, or null if not known
+     */
+    protected HttpRequest nextUnansweredRequest()
+    {
+        HttpRequest ret = theQueuedRequests.peek();
+        if( ret == null ) {
+            ret = theRequestParser.getMessageInProgress();
+        }
+        return ret;
+    }
+
+    /**
+     * Stop recording this connection, because its traffic cannot be
+     * parsed any more. Everything still queued is discarded, so a
+     * connection we cannot record does not take memory or time.
+     *
+     * @param reason the reason, for logging
+     */
+    protected void stopRecording(
+            String reason )
+    {
+        if( !theIsDropped ) {
+            LOG.log( Level.WARNING, "{0}, no longer recording ({1})", new Object[] { reason, theName } );
+            theIsDropped = true;
+        }
+        theQueuedRequests.clear();
+        theHeldRequestCaptures.clear();
+        theRequestParser.discardContent();
+        theResponseParser.discardContent();
+        theRequestLoggedEarly    = null;
+        theProtocolSwitchRequest = null;
+    }
+
+    /**
+     * Name of the connection, for logging.
+     */
+    protected String theName;
+
+    /**
+     * The application
+     */
+    protected Proxycord theApp;
+
+    /**
+     * The pipeline that parses the queued data.
+     */
+    protected CapturePipeline thePipeline;
+
+    /**
+     * Where to count what we are doing.
+     */
+    protected Metrics theMetrics;
+
+    /**
+     * Request data that has been forwarded but not parsed yet.
+     */
+    protected CaptureQueue theRequestQueue;
+
+    /**
+     * Response data that has been forwarded but not parsed yet.
+     */
+    protected CaptureQueue theResponseQueue;
+
+    /**
+     * True if draining the queues has been scheduled on the pipeline.
+     */
+    protected final AtomicBoolean theDrainScheduled = new AtomicBoolean();
+
+    /**
+     * True if canLogRequestData() or canLogResponseData() has returned false
+     * and theCaptureSpaceListener has not been invoked since.
+     */
+    protected final AtomicBoolean theIsCaptureSpaceWanted = new AtomicBoolean();
+
+    /**
+     * Invoked when the recorder has caught up after it was found to be behind.
+     */
+    protected volatile Runnable theCaptureSpaceListener;
+
+    /**
+     * True once a queue has overflowed with policy DROP. We stop recording
+     * this connection then, as we could not parse the remainder of the
+     * stream anyway. Also true from the start if the application does not
+     * record at all.
+     */
+    protected volatile boolean theIsDropped;
+
+    /**
+     * Parses the request stream.
+     */
+    protected HttpMessageParser<HttpRequest> theRequestParser;
+
+    /**
+     * Parses the response stream.
+     */
+    protected HttpMessageParser<HttpResponse> theResponseParser;
+
+    /**
+     * Queue of parsed requests, in sequence. When corresponding Responses
+     * arrive, we pass them on together. Only accessed while draining, which
+     * happens on one Thread at a time, so it does not need to be concurrent.
+     */
+    protected final ArrayDeque<HttpRequest> theQueuedRequests = new ArrayDeque<>();
+
+    /**
+     * The request that has been logged before it was complete, either with
+     * an early response or as incomplete, so it must not be queued once it is.
+     */
+    protected HttpRequest theRequestLoggedEarly;
+
+    /**
+     * The queued request whose response may switch protocols. Until it has
+     * been answered, request data is held back instead of parsed.
+     */
+    protected HttpRequest theProtocolSwitchRequest;
+
+    /**
+     * Request data held back while waiting for the response to
+     * theProtocolSwitchRequest, in sequence.
+     */
+    protected final ArrayDeque<Capture> theHeldRequestCaptures = new ArrayDeque<>();
+
+    /**
+     * True once the response stream has ended. Requests that complete
+     * afterwards will not be answered.
+     */
+    protected boolean theResponseStreamEnded;
+
+    /**
+     * The time the most recent connection to the remote host was established,
+     * in System.nanoTime() format, or 0 if not yet.
+     */
+    protected long theUpstreamConnectedTime;
+
+    /**
+     * How long to wait, in nanoseconds, before trying again to enqueue with policy BLOCK.
+     */
+    protected static final long BACKPRESSURE_WAIT = TimeUnit.MICROSECONDS.toNanos( 50 );
+
+    /**
+     * The number of Captures each queue can hold at most. Usually the limit
+     * on the number of queued bytes is reached first.
+     */
+    protected static final int QUEUE_SLOTS = 1024;
+
+    /**
+     * Free slots a queue needs before a non-blocking engine may read: one
+     * read, and the Capture marking the end of the stream.
+     */
+    protected static final int MIN_READ_SPACE = 2;
+
+    /**
+     * The Captures of one direction that have not been parsed yet, and how
+     * many bytes of data they hold. Reads are only queued while fewer bytes
+     * than the limit are queued, so the queue may exceed the limit by at most
+     * one read, but a read larger than the limit does not wait forever.
+     * Captures without data are only limited by the number of slots.
+     */
+    protected static class CaptureQueue
+    {
+        /**
+         * Constructor.
+         *
+         * @param slots the maximum number of Captures
+         */
+        public CaptureQueue(
+                int slots )
+        {
+            theCaptures = new SpscRingBuffer<>( slots );
+        }
+
+        /**
+         * Add a Capture, if there is space. Only to be invoked by the producer.
+         *
+         * @param capture the Capture
+         * @param maxBytes the maximum number of queued bytes
+         * @return true if the Capture was added
+         */
+        public boolean offer(
+                Capture capture,
+                long    maxBytes )
+        {
+            if( capture.theData == null ) {
+                return theCaptures.offer( capture );
+            }
+            if( theBytes.get() >= maxBytes ) {
+                return false;
+            }
+            // count first, so the consumer never takes off more than has been added
+            theBytes.addAndGet( capture.theData.length );
+            if( theCaptures.offer( capture )) {
+                return true;
+            }
+            theBytes.addAndGet( -capture.theData.length );
+            return false;
+        }
+
+        /**
+         * Remove the oldest Capture, if any. Only to be invoked by the consumer.
+         *
+         * @return the Capture, or null if the queue was empty
+         */
+        public Capture poll()
+        {
+            Capture ret = theCaptures.poll();
+            if( ret != null && ret.theData != null ) {
+                theBytes.addAndGet( -ret.theData.length );
+            }
+            return ret;
+        }
+
+        /**
+         * Determine whether the queue is empty.
+         *
+         * @return true if it is
+         */
+        public boolean isEmpty()
+        {
+            return theCaptures.isEmpty();
+        }
+
+        /**
+         * Determine whether a read, and the Capture marking the end of the
+         * stream after it, would be added right now.
+         *
+         * @param maxBytes the maximum number of queued bytes
+         * @return true if they would
+         */
+        public boolean hasSpace(
+                long maxBytes )
+        {
+            return theCaptures.remainingCapacity() >= MIN_READ_SPACE && theBytes.get() < maxBytes;
+        }
+
+        /**
+         * The queued Captures.
+         */
+        protected final SpscRingBuffer<Capture> theCaptures;
+
+        /**
+         * The number of bytes of data in theCaptures.
+         */
+        protected final AtomicLong theBytes = new AtomicLong();
+    }
+
+    /**
+     * Data captured on a forwarding Thread, and when it was received.
+     */
+    protected static class Capture
+    {
+        /**
+         * Constructor.
+         *
+         * @param data the data, or null if this marks that the connection to the remote host has been established (request queue) or has ended (response queue)
+         * @param time the time, in System.nanoTime() format
+         */
+        public Capture(
+                byte [] data,
+                long    time )
+        {
+            theData = data;
+            theTime = time;
+        }
+
+        /**
+         * The data, or null if this marks that the connection to the remote
+         * host has been established (request queue) or has ended (response queue).
+         */
+        protected final byte [] theData;
+
+        /**
+         * The time, in System.nanoTime() format.
+         */
+        protected final long theTime;
+    }
+}
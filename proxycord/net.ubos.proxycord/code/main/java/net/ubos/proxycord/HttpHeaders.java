@@ -0,0 +1,564 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The HTTP headers of an HttpMessage, in their raw form. Header lines are
+ * copied into a single byte array as they are parsed, and only the offsets
+ * of names and values are kept, together with a small open-addressing hash
+ * table from case-insensitive name to the first field with that name. No
+ * Strings are created until somebody asks for a value, or for all headers
+ * as a Map, e.g. to write them to JSON.
+ *
+ * Bytes are decoded as ISO-8859-1, so any byte the remote host sends can be
+ * represented and written back unchanged.
+ */
+public class HttpHeaders
+{
+    /**
+     * Factory method.
+     *
+     * @return the created instance
+     */
+    public static HttpHeaders create()
+    {
+        return new HttpHeaders();
+    }
+
+    /**
+     * Factory method to re-create headers from the binary form written by
+     * writeTo().
+     *
+     * @param in the buffer to read from, positioned at the headers
+     * @return the created instance
+     * @throws java.nio.BufferUnderflowException the buffer ended before the headers did
+     */
+    public static HttpHeaders readFrom(
+            ByteBuffer in )
+    {
+        byte [] block = new byte[ in.getInt() ];
+        in.get( block );
+
+        ByteBuffer  fields = ByteBuffer.wrap( block );
+        int         count  = fields.getInt();
+        HttpHeaders ret    = new HttpHeaders();
+
+        for( int i=0 ; i<count ; ++i ) {
+            int nameLength  = fields.getInt();
+            int nameOffset  = fields.position();
+            fields.position( nameOffset + nameLength );
+            int valueLength = fields.getInt();
+            int valueOffset = fields.position();
+            fields.position( valueOffset + valueLength );
+
+            ret.add( block, nameOffset, nameLength, valueOffset, valueLength );
+        }
+        return ret;
+    }
+
+    /**
+     * Private constructor, use factory method.
+     */
+    protected HttpHeaders()
+    {}
+
+    /**
+     * Add a header field, as found in a buffer of received data. Name and
+     * value are copied, so the buffer may be reused afterwards.
+     *
+     * @param data the data buffer
+     * @param nameOffset offset of the name in the data buffer
+     * @param nameLength length of the name
+     * @param valueOffset offset of the value in the data buffer
+     * @param valueLength length of the value
+     */
+    public void add(
+            byte [] data,
+            int     nameOffset,
+            int     nameLength,
+            int     valueOffset,
+            int     valueLength )
+    {
+        int nameStart  = append( data, nameOffset,  nameLength );
+        int valueStart = append( data, valueOffset, valueLength );
+
+        addField( nameStart, nameLength, valueStart, valueLength );
+    }
+
+    /**
+     * Add a header field given as Strings, e.g. when reading a recording.
+     *
+     * @param name name of the header
+     * @param value the value
+     */
+    public void add(
+            String name,
+            String value )
+    {
+        byte [] nameBytes  = name.getBytes( StandardCharsets.ISO_8859_1 );
+        byte [] valueBytes = value.getBytes( StandardCharsets.ISO_8859_1 );
+
+        int nameStart  = append( nameBytes,  0, nameBytes.length );
+        int valueStart = append( valueBytes, 0, valueBytes.length );
+
+        addField( nameStart, nameBytes.length, valueStart, valueBytes.length );
+    }
+
+    /**
+     * Continue the value of the most recently added header field, as an
+     * obsolete folded header line does. The continuation is appended after
+     * a single space.
+     *
+     * @param data the data buffer
+     * @param offset offset of the continuation in the data buffer
+     * @param length length of the continuation
+     * @return false if there is no header field to continue
+     */
+    public boolean continueLastValue(
+            byte [] data,
+            int     offset,
+            int     length )
+    {
+        if( theFieldCount == 0 ) {
+            return false;
+        }
+        // the value of the most recent field is always at the end of theData
+        int field = 4 * ( theFieldCount-1 );
+
+        append( SPACE, 0, 1 );
+        append( data, offset, length );
+        theFields[ field+3 ] += 1 + length;
+
+        theMap = null;
+        return true;
+    }
+
+    /**
+     * Obtain the first value of a header.
+     *
+     * @param name name of the header, case-insensitive
+     * @return the value, or null
+     */
+    public String getFirst(
+            String name )
+    {
+        int field = findField( name );
+        if( field < 0 ) {
+            return null;
+        }
+        return decode( theFields[ 4*field+2 ], theFields[ 4*field+3 ] );
+    }
+
+    /**
+     * Obtain all values of a header, in the sequence they were received.
+     *
+     * @param name name of the header, case-insensitive
+     * @return the values, or null if there are none
+     */
+    public String [] get(
+            String name )
+    {
+        int field = findField( name );
+        if( field < 0 ) {
+            return null;
+        }
+        return valuesFrom( field );
+    }
+
+    /**
+     * Obtain the number of header fields, counting repeated names separately.
+     *
+     * @return the number
+     */
+    public int size()
+    {
+        return theFieldCount;
+    }
+
+    /**
+     * Obtain all headers as a Map from case-insensitive name to values.
+     * The Map is created the first time it is needed.
+     *
+     * @return the headers
+     */
+    public Map<String,String[]> asMap()
+    {
+        Map<String,String[]> ret = theMap;
+        if( ret == null ) {
+            TreeMap<String,String[]> map = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+            for( int i=0 ; i<theTable.length ; ++i ) {
+                int field = theTable[i] - 1;
+                if( field >= 0 ) {
+                    map.put( decode( theFields[ 4*field ], theFields[ 4*field+1 ] ), valuesFrom( field ));
+                }
+            }
+            ret    = Collections.unmodifiableMap( map );
+            theMap = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * Write the header fields in binary form, in the sequence they were
+     * received, without decoding them: the length of the whole, the number
+     * of fields, and the length-prefixed bytes of each name and value.
+     *
+     * @param out where to write to
+     * @throws IOException an I/O problem occurred
+     */
+    public void writeTo(
+            DataOutput out )
+        throws
+            IOException
+    {
+        int length = 4;
+        for( int i=0 ; i<theFieldCount ; ++i ) {
+            length += 8 + theFields[ 4*i+1 ] + theFields[ 4*i+3 ];
+        }
+        out.writeInt( length );
+        out.writeInt( theFieldCount );
+        for( int i=0 ; i<theFieldCount ; ++i ) {
+            out.writeInt( theFields[ 4*i+1 ] );
+            out.write( theData, theFields[ 4*i ], theFields[ 4*i+1 ] );
+            out.writeInt( theFields[ 4*i+3 ] );
+            out.write( theData, theFields[ 4*i+2 ], theFields[ 4*i+3 ] );
+        }
+    }
+
+    /**
+     * Estimate the heap memory occupied by these headers.
+     *
+     * @return the number of bytes
+     */
+    public long getMemorySize()
+    {
+        return theData.length + 4L * ( theFields.length + theNextWithName.length + theTable.length );
+    }
+
+    /**
+     * Factored out helper to append bytes to theData.
+     *
+     * @param data the data buffer
+     * @param offset offset of the bytes in the data buffer
+     * @param length number of bytes
+     * @return where in theData the bytes were appended
+     */
+    protected int append(
+            byte [] data,
+            int     offset,
+            int     length )
+    {
+        int ret = theDataLength;
+        if( ret + length > theData.length ) {
+            theData = Arrays.copyOf( theData, Math.max( Math.max( INITIAL_DATA_CAPACITY, theData.length * 2 ), ret + length ));
+        }
+        System.arraycopy( data, offset, theData, ret, length );
+        theDataLength = ret + length;
+        return ret;
+    }
+
+    /**
+     * Factored out helper to add a field whose name and value are in theData already.
+     *
+     * @param nameStart offset of the name in theData
+     * @param nameLength length of the name
+     * @param valueStart offset of the value in theData
+     * @param valueLength length of the value
+     */
+    protected void addField(
+            int nameStart,
+            int nameLength,
+            int valueStart,
+            int valueLength )
+    {
+        int field = theFieldCount;
+        if( 4 * ( field+1 ) > theFields.length ) {
+            int newCount = Math.max( INITIAL_FIELD_CAPACITY, field * 2 );
+            theFields       = Arrays.copyOf( theFields,       4 * newCount );
+            theNextWithName = Arrays.copyOf( theNextWithName, newCount );
+        }
+        theFields[ 4*field   ] = nameStart;
+        theFields[ 4*field+1 ] = nameLength;
+        theFields[ 4*field+2 ] = valueStart;
+        theFields[ 4*field+3 ] = valueLength;
+        theNextWithName[ field ] = -1;
+        theFieldCount = field+1;
+        theMap        = null;
+
+        int mask = theTable.length - 1;
+        int slot = hash( theData, nameStart, nameLength ) & mask;
+        while( theTable[ slot ] != 0 ) {
+            int other = theTable[ slot ] - 1;
+            if( sameName( other, nameStart, nameLength )) {
+                // repeated header: append to the end of the chain of fields with this name
+                while( theNextWithName[ other ] >= 0 ) {
+                    other = theNextWithName[ other ];
+                }
+                theNextWithName[ other ] = field;
+                return;
+            }
+            slot = ( slot+1 ) & mask;
+        }
+        theTable[ slot ] = field+1;
+        if( ++theNameCount * 2 > theTable.length ) {
+            rehash();
+        }
+    }
+
+    /**
+     * Double the size of the hash table.
+     */
+    protected void rehash()
+    {
+        int [] newTable = new int[ theTable.length * 2 ];
+        int    mask     = newTable.length - 1;
+
+        for( int entry : theTable ) {
+            if( entry != 0 ) {
+                int field = entry - 1;
+                int slot  = hash( theData, theFields[ 4*field ], theFields[ 4*field+1 ] ) & mask;
+                while( newTable[ slot ] != 0 ) {
+                    slot = ( slot+1 ) & mask;
+                }
+                newTable[ slot ] = entry;
+            }
+        }
+        theTable = newTable;
+    }
+
+    /**
+     * Find the first field with a name.
+     *
+     * @param name the name, case-insensitive
+     * @return index of the field, or -1 if there is none
+     */
+    protected int findField(
+            String name )
+    {
+        int mask = theTable.length - 1;
+        int slot = hash( name ) & mask;
+        while( theTable[ slot ] != 0 ) {
+            int field = theTable[ slot ] - 1;
+            if( sameName( field, name )) {
+                return field;
+            }
+            slot = ( slot+1 ) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Collect the values of a field and all later fields with the same name.
+     *
+     * @param field index of the first field
+     * @return the values
+     */
+    protected String [] valuesFrom(
+            int field )
+    {
+        int count = 0;
+        for( int current = field ; current >= 0 ; current = theNextWithName[ current ] ) {
+            ++count;
+        }
+        String [] ret = new String[ count ];
+        int       i   = 0;
+        for( int current = field ; current >= 0 ; current = theNextWithName[ current ] ) {
+            ret[ i++ ] = decode( theFields[ 4*current+2 ], theFields[ 4*current+3 ] );
+        }
+        return ret;
+    }
+
+    /**
+     * Determine whether a field has a name, given as bytes in theData.
+     *
+     * @param field index of the field
+     * @param nameStart offset of the name in theData
+     * @param nameLength length of the name
+     * @return true if the names are the same, ignoring case
+     */
+    protected boolean sameName(
+            int field,
+            int nameStart,
+            int nameLength )
+    {
+        int start = theFields[ 4*field ];
+        if( theFields[ 4*field+1 ] != nameLength ) {
+            return false;
+        }
+        for( int i=0 ; i<nameLength ; ++i ) {
+            if( toLower( theData[ start+i ] ) != toLower( theData[ nameStart+i ] )) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determine whether a field has a name, given as String.
+     *
+     * @param field index of the field
+     * @param name the name
+     * @return true if the names are the same, ignoring case
+     */
+    protected boolean sameName(
+            int    field,
+            String name )
+    {
+        int start = theFields[ 4*field ];
+        if( theFields[ 4*field+1 ] != name.length() ) {
+            return false;
+        }
+        for( int i=0 ; i<name.length() ; ++i ) {
+            if( toLower( theData[ start+i ] & 0xff ) != toLower( name.charAt( i ))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Factored out helper to decode bytes in theData.
+     *
+     * @param start offset of the bytes in theData
+     * @param length number of bytes
+     * @return the String
+     */
+    protected String decode(
+            int start,
+            int length )
+    {
+        return new String( theData, start, length, StandardCharsets.ISO_8859_1 );
+    }
+
+    /**
+     * Case-insensitive hash of a name given as bytes.
+     *
+     * @param data the data buffer
+     * @param offset offset of the name in the data buffer
+     * @param length length of the name
+     * @return the hash
+     */
+    protected static int hash(
+            byte [] data,
+            int     offset,
+            int     length )
+    {
+        int ret = 0;
+        for( int i=0 ; i<length ; ++i ) {
+            ret = 31 * ret + toLower( data[ offset+i ] & 0xff );
+        }
+        return ret ^ ( ret >>> 16 );
+    }
+
+    /**
+     * Case-insensitive hash of a name given as String. Same as for bytes.
+     *
+     * @param name the name
+     * @return the hash
+     */
+    protected static int hash(
+            String name )
+    {
+        int ret = 0;
+        for( int i=0 ; i<name.length() ; ++i ) {
+            ret = 31 * ret + toLower( name.charAt( i ));
+        }
+        return ret ^ ( ret >>> 16 );
+    }
+
+    /**
+     * Header names are US-ASCII tokens, so only A-Z need to be lowercased.
+     *
+     * @param c the character
+     * @return the lowercase character
+     */
+    protected static int toLower(
+            int c )
+    {
+        return ( c >= 'A' && c <= 'Z' ) ? c + ( 'a' - 'A' ) : c;
+    }
+
+    /**
+     * The names and values of all fields.
+     */
+    protected byte [] theData = EMPTY_DATA;
+
+    /**
+     * Number of bytes used in theData.
+     */
+    protected int theDataLength;
+
+    /**
+     * For each field, four ints: offset and length of the name, offset and
+     * length of the value, in theData.
+     */
+    protected int [] theFields = EMPTY_INTS;
+
+    /**
+     * For each field, index of the next field with the same name, or -1.
+     */
+    protected int [] theNextWithName = EMPTY_INTS;
+
+    /**
+     * Number of fields.
+     */
+    protected int theFieldCount;
+
+    /**
+     * Open-addressing hash table: for each distinct name, index of the first
+     * field with that name plus one; 0 for an empty slot. The size is a
+     * power of two, and at most half of the slots are used.
+     */
+    protected int [] theTable = new int[ INITIAL_TABLE_CAPACITY ];
+
+    /**
+     * Number of distinct names.
+     */
+    protected int theNameCount;
+
+    /**
+     * The headers as Map, once needed. Reset when a field is added.
+     */
+    protected volatile Map<String,String[]> theMap;
+
+    /**
+     * Separates a folded header value from its continuation.
+     */
+    protected static final byte [] SPACE = { ' ' };
+
+    /**
+     * Shared until the first field is added.
+     */
+    protected static final byte [] EMPTY_DATA = new byte[0];
+
+    /**
+     * Shared until the first field is added.
+     */
+    protected static final int [] EMPTY_INTS = new int[0];
+
+    /**
+     * Initial size of theData once a field is added.
+     */
+    protected static final int INITIAL_DATA_CAPACITY = 512;
+
+    /**
+     * Initial number of fields once a field is added.
+     */
+    protected static final int INITIAL_FIELD_CAPACITY = 16;
+
+    /**
+     * Initial size of the hash table.
+     */
+    protected static final int INITIAL_TABLE_CAPACITY = 16;
+}
@@ -0,0 +1,363 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * A recorded Step that is an HTTP exchange that did not complete: a
+ * request without a response because the connection ended first, a
+ * response cut off in the middle, or a response for which there was no
+ * request. Only what was received is recorded, with its timing, and
+ * when and why the exchange ended.
+ */
+public class HttpIncompleteExchangeStep
+    extends
+        Step
+{
+    /**
+     * Factory method to re-create an HttpIncompleteExchangeStep from the
+     * JSON it was saved as.
+     *
+     * @param json the JSON, as produced by asJson() or writeJson()
+     * @return the created instance
+     */
+    public static HttpIncompleteExchangeStep fromJson(
+            JsonObject json )
+    {
+        return fromJson( json, null );
+    }
+
+    /**
+     * Factory method to re-create an HttpIncompleteExchangeStep from the
+     * JSON it was saved as, in a recording whose bodies may be deduplicated.
+     *
+     * @param json the JSON, as produced by asJson() or writeJson()
+     * @param bodies the bodies read so far from the recording, by hash, or null if not deduplicated
+     * @return the created instance
+     */
+    public static HttpIncompleteExchangeStep fromJson(
+            JsonObject         json,
+            Map<Long,HttpBody> bodies )
+    {
+        JsonObject jsonRequest  = json.getAsJsonObject( "request" );
+        JsonObject jsonResponse = json.getAsJsonObject( "response" );
+
+        HttpRequest  request  = jsonRequest  != null ? HttpRequestResponseStep.requestFromJson(  jsonRequest,  bodies ) : null;
+        HttpResponse response = jsonResponse != null ? HttpRequestResponseStep.responseFromJson( jsonResponse, bodies ) : null;
+        long         endTime  = 0L;
+
+        JsonObject jsonTiming = json.getAsJsonObject( "timing" );
+        if( jsonTiming != null ) {
+            if( request != null ) {
+                request.theFirstByteTime         = HttpRequestResponseStep.timingFromJson( jsonTiming, TIMING_NAMES[0] );
+                request.theCompleteTime          = HttpRequestResponseStep.timingFromJson( jsonTiming, TIMING_NAMES[1] );
+                request.theUpstreamConnectedTime = HttpRequestResponseStep.timingFromJson( jsonTiming, TIMING_NAMES[2] );
+            }
+            if( response != null ) {
+                response.theFirstByteTime = HttpRequestResponseStep.timingFromJson( jsonTiming, TIMING_NAMES[3] );
+                response.theCompleteTime  = HttpRequestResponseStep.timingFromJson( jsonTiming, TIMING_NAMES[4] );
+            }
+            endTime = HttpRequestResponseStep.timingFromJson( jsonTiming, TIMING_NAMES[5] );
+        }
+
+        return new HttpIncompleteExchangeStep( request, response, json.get( "reason" ).getAsString(), endTime );
+    }
+
+    /**
+     * Factory method to re-create an HttpIncompleteExchangeStep from its
+     * record in a binary recording.
+     *
+     * @param recording the binary recording
+     * @param in the record, as written by writeBinary()
+     * @return the created instance
+     * @throws IOException an I/O problem occurred, or a body is corrupted
+     */
+    public static HttpIncompleteExchangeStep fromBinary(
+            BinaryRecording recording,
+            ByteBuffer      in )
+        throws
+            IOException
+    {
+        String       reason   = recording.readString( in );
+        HttpRequest  request  = in.get() != 0 ? recording.readRequest( in )  : null;
+        HttpResponse response = in.get() != 0 ? recording.readResponse( in ) : null;
+
+        long [] timing = new long[ TIMING_NAMES.length ];
+        for( int i=0 ; i<timing.length ; ++i ) {
+            timing[i] = in.getLong();
+        }
+        if( request != null ) {
+            request.theFirstByteTime         = timing[0];
+            request.theCompleteTime          = timing[1];
+            request.theUpstreamConnectedTime = timing[2];
+        }
+        if( response != null ) {
+            response.theFirstByteTime = timing[3];
+            response.theCompleteTime  = timing[4];
+        }
+        return new HttpIncompleteExchangeStep( request, response, reason, timing[5] );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param request the received request, or null
+     * @param response the received response, or null
+     * @param reason why the exchange did not complete
+     * @param endTime the time the exchange ended, in System.nanoTime() format
+     */
+    public HttpIncompleteExchangeStep(
+            HttpRequest  request,
+            HttpResponse response,
+            String       reason,
+            long         endTime )
+    {
+        theRequest  = request;
+        theResponse = response;
+        theReason   = reason;
+        theEndTime  = endTime;
+    }
+
+    /**
+     * Obtain the request.
+     *
+     * @return the request, or null if there was none
+     */
+    public HttpRequest getRequest()
+    {
+        return theRequest;
+    }
+
+    /**
+     * Obtain the response, as far as it was received.
+     *
+     * @return the response, or null if there was none
+     */
+    public HttpResponse getResponse()
+    {
+        return theResponse;
+    }
+
+    /**
+     * Obtain why the exchange did not complete.
+     *
+     * @return the reason
+     */
+    public String getReason()
+    {
+        return theReason;
+    }
+
+    @Override
+    public JsonElement asJson()
+    {
+        JsonObject jsonRet = new JsonObject();
+        jsonRet.add( "type",   new JsonPrimitive( "HttpIncompleteExchange" ));
+        jsonRet.add( "reason", new JsonPrimitive( theReason ));
+        if( theRequest != null ) {
+            jsonRet.add( "request", HttpRequestResponseStep.requestAsJson( theRequest ));
+        }
+        if( theResponse != null ) {
+            jsonRet.add( "response", HttpRequestResponseStep.responseAsJson( theResponse ));
+        }
+
+        JsonObject jsonTiming = new JsonObject();
+        for( int i=0 ; i<TIMING_NAMES.length ; ++i ) {
+            long time = getTiming( i );
+            if( time != 0 ) {
+                jsonTiming.add( TIMING_NAMES[i], new JsonPrimitive( time ));
+            }
+        }
+        jsonRet.add( "timing", jsonTiming );
+        return jsonRet;
+    }
+
+    @Override
+    public void writeJson(
+            RecordingJsonWriter w )
+        throws
+            IOException
+    {
+        w.beginObject();
+        w.name( "type" ).value( "HttpIncompleteExchange" );
+        w.name( "reason" ).value( theReason );
+
+        if( theRequest != null ) {
+            HttpRequestResponseStep.writeRequestJson( w, theRequest );
+        }
+        if( theResponse != null ) {
+            HttpRequestResponseStep.writeResponseJson( w, theResponse );
+        }
+
+        w.name( "timing" ).beginObject();
+        for( int i=0 ; i<TIMING_NAMES.length ; ++i ) {
+            long time = getTiming( i );
+            if( time != 0 ) {
+                w.name( TIMING_NAMES[i] ).value( time );
+            }
+        }
+        w.endObject();
+
+        w.endObject();
+    }
+
+    @Override
+    public void writeBinary(
+            BinaryRecordingWriter w )
+        throws
+            IOException
+    {
+        w.beginStep( BinaryRecording.TYPE_HTTP_INCOMPLETE_EXCHANGE );
+        w.writeString( theReason );
+        w.writeBoolean( theRequest != null );
+        if( theRequest != null ) {
+            w.writeRequest( theRequest );
+        }
+        w.writeBoolean( theResponse != null );
+        if( theResponse != null ) {
+            w.writeResponse( theResponse );
+        }
+        for( int i=0 ; i<TIMING_NAMES.length ; ++i ) {
+            w.writeLong( getTiming( i ));
+        }
+    }
+
+    /**
+     * Obtain one of the points in time recorded for this exchange, in the
+     * sequence of TIMING_NAMES. All are in System.nanoTime() format.
+     *
+     * @param index the index into TIMING_NAMES
+     * @return the time, or 0 if not known
+     */
+    public long getTiming(
+            int index )
+    {
+        switch( index ) {
+            case 0:
+                return theRequest != null ? theRequest.getFirstByteTime() : 0L;
+            case 1:
+                return theRequest != null ? theRequest.getCompleteTime() : 0L;
+            case 2:
+                return theRequest != null ? theRequest.getUpstreamConnectedTime() : 0L;
+            case 3:
+                return theResponse != null ? theResponse.getFirstByteTime() : 0L;
+            case 4:
+                return theResponse != null ? theResponse.getCompleteTime() : 0L;
+            case 5:
+                return theEndTime;
+            default:
+                throw new IllegalArgumentException( "Unknown timing index: " + index );
+        }
+    }
+
+    /**
+     * Obtain the time from the first byte of the exchange until it ended.
+     *
+     * @return the duration, in nanoseconds, or -1 if not known
+     */
+    public long getTotalDuration()
+    {
+        long start = theRequest != null ? theRequest.getFirstByteTime() : theResponse.getFirstByteTime();
+        return HttpRequestResponseStep.duration( start, theEndTime );
+    }
+
+    @Override
+    public long getMemorySize()
+    {
+        long ret = BASE_MEMORY_SIZE;
+        if( theRequest != null ) {
+            ret += HttpRequestResponseStep.estimateMemorySize( theRequest );
+        }
+        if( theResponse != null ) {
+            ret += HttpRequestResponseStep.estimateMemorySize( theResponse );
+        }
+        return ret;
+    }
+
+    /**
+     * Convert to String, for output on the console.
+     *
+     * @return as String
+     */
+    @Override
+    public String toString()
+    {
+        String ret;
+        if( theRequest != null ) {
+            ret = theRequest.getVerb() + " " + theRequest.getPath() + " => ";
+        } else {
+            ret = "(no request) => ";
+        }
+        if( theResponse != null ) {
+            ret += "status " + theResponse.getStatus() + ", ";
+        }
+        ret += theReason;
+
+        long total = getTotalDuration();
+        if( total >= 0 ) {
+            ret += String.format( ", %.3f ms", total / 1e6 );
+        }
+        return ret;
+    }
+
+    /**
+     * The received request, or null.
+     */
+    protected HttpRequest theRequest;
+
+    /**
+     * The received response, as far as it was received, or null.
+     */
+    protected HttpResponse theResponse;
+
+    /**
+     * Why the exchange did not complete.
+     */
+    protected String theReason;
+
+    /**
+     * The time the exchange ended, in System.nanoTime() format.
+     */
+    protected long theEndTime;
+
+    /**
+     * Names of the points in time recorded for an incomplete exchange, as
+     * used in the JSON: those of a complete exchange, and when it ended.
+     */
+    public static final String [] TIMING_NAMES = {
+        HttpRequestResponseStep.TIMING_NAMES[0],
+        HttpRequestResponseStep.TIMING_NAMES[1],
+        HttpRequestResponseStep.TIMING_NAMES[2],
+        HttpRequestResponseStep.TIMING_NAMES[3],
+        HttpRequestResponseStep.TIMING_NAMES[4],
+        "ended"
+    };
+
+    /**
+     * The reason if the connection ended before the response started.
+     */
+    public static final String NO_RESPONSE = "no response";
+
+    /**
+     * The reason if the connection ended in the middle of the response.
+     */
+    public static final String RESPONSE_INCOMPLETE = "response incomplete";
+
+    /**
+     * The reason if the connection ended in the middle of the request.
+     */
+    public static final String REQUEST_INCOMPLETE = "request incomplete";
+
+    /**
+     * The reason if a response arrived for which there was no request.
+     */
+    public static final String NO_REQUEST = "no request";
+}
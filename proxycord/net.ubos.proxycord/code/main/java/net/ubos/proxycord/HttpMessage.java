@@ -4,10 +4,18 @@
 
 package net.ubos.proxycord;
 
-import java.io.ByteArrayOutputStream;
 import java.nio.charset.Charset;
-import java.util.HashMap;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Common superclass for HttpRequest and HttpResponse because parsing either
@@ -20,7 +28,8 @@ public abstract class HttpMessage
      * This returns true if the entire HttpMessage was successfully parsed, and
      * false if not enough data was present to be able to parse the HttpMessage.
      * If successful, property LeftoverData contains data after the end of the
-     * HttpMessage.
+     * HttpMessage. This is a convenience method for data that is available all
+     * at once; streams should be parsed with an HttpMessageParser instead.
      * 
      * @param data the data to parse
      * @return true if successfully parsed
@@ -28,136 +37,119 @@ public abstract class HttpMessage
     protected boolean parse(
             byte [] data )
     {
-        // look for \r\n: ends a line. Empty line ends header
+        HttpMessageParser<HttpMessage> parser = new HttpMessageParser<>( getClass().getSimpleName(), () -> this );
 
-        int pos = 0;
-        
-        // look for first line
-        for( int i=pos ; i < data.length-1; ++i ) {
-            if( data[i] == '\r' && data[i+1] == '\n' ) {
-                String firstLine = new String( data, 0, i, US_ASCII );
-                if( !parseFirstLine( firstLine )) {
-                    return false;
-                }
-
-                pos = i+2;
-                break;
-            }
+        int consumed = parser.parse( data, 0, data.length );
+        if( parser.isBodyUntilEndOfStream() ) {
+            parser.endOfStream(); // all the data there is, is all the body there is
         }
-        
-        // look for header
-        boolean haveFullHeader = false;
-        theHeaders = new HashMap<>();
-        while( pos < data.length-1 ) {
-            if( data[pos] == '\r' && data[pos+1] == '\n' ) {
-                // end of header
-                haveFullHeader = true;
-                pos += 2;
-                break;
-            }
-            for( int i=pos ; i < data.length; ++i ) {
-                if( data[i] == '\r' && data[i+1] == '\n' ) {
-                    // end of line
-                    String    headerLine = new String( data, pos, i-pos, US_ASCII );
-                    String [] pair       = headerLine.split( ":\\s*", 2 );
-                    
-                    String [] already = theHeaders.get( pair[0] );
-                    if( already == null ) {
-                        theHeaders.put( pair[0], new String[] { pair[1] } );
-                    } else {
-                        String [] already2 = new String[ already.length + 1 ];
-                        System.arraycopy( already, 0, already2, 0, already.length );
-                        already2[ already2.length-1 ] = pair[1];
-                        theHeaders.put( pair[0], already2 );
-                    }
-                    pos = i+2;
-                    break;
-                }
-            }
-        }
-        if( !haveFullHeader ) {
+        if( !parser.isComplete() ) {
             return false;
         }
-        
-        // unfortunately there are different transfer encodings, and we need to
-        // handle them separately
-
-        if( theHeaders.containsKey( HTTP_CONTENT_LENGTH_HEADER )) {
-            int contentLength = Integer.valueOf( theHeaders.get( HTTP_CONTENT_LENGTH_HEADER )[0]);
-            if( data.length - pos >= contentLength ) {
-                theContent = new byte[ contentLength ];
-                System.arraycopy( data, pos, theContent, 0, contentLength );
-                
-                pos += contentLength;
-
-                if( pos < data.length ) {
-                    theLeftoverData = new byte[ data.length - pos ];
-                    System.arraycopy( data, pos, theLeftoverData, 0, data.length - pos );
-                } else {
-                    theLeftoverData = null; // let's be explicit
-                }
-
-                return true;
-
-            } else {
-                return false;
-            }
 
-        } else if(    theHeaders.containsKey( HTTP_TRANSFER_ENCODING_HEADER )
-                   && HTTP_TRANSFER_ENCODING_CHUNKED.equals( theHeaders.get( HTTP_TRANSFER_ENCODING_HEADER )[0] ))
-        {
-            // now try to aggregate
-            ByteArrayOutputStream buf = new ByteArrayOutputStream();
-
-            for( int i=pos ; i < data.length-1; /* let's not increment here */ ) {
-                if( data[i] == '\r' && data[i+1] == '\n' ) {
-                    // have chunk length
-                    String chunkLengthString = new String( data, pos, i-pos, US_ASCII );
-                    int    chunkLength       = Integer.parseInt( chunkLengthString, 16 );
-                    
-                    if( chunkLength == 0 ) { // we are done
-                        pos = i+4; // two sets of \r\n
-                        theContent = buf.toByteArray();
-                        if( pos < data.length ) {
-                            theLeftoverData = new byte[ data.length - pos ];
-                            System.arraycopy( data, pos, theLeftoverData, 0, data.length - pos );
-                        } else {
-                            theLeftoverData = null; // let's be explicit
-                        }
-                        break;
-                        
-                    } else if( data.length - i >= chunkLength+2 ) {
-                        pos = i+2;
-                        buf.write( data, pos, chunkLength );
-                        pos += chunkLength + 2; // assuming \r\n follows as they are supposed to
-                        i    = pos;
-
-                    } else { // sorry, not enough
-                        return false;
-                    }
-                } else {
-                    ++i;
-                }
-            }
-            if( theContent != null ) {
-                return true;
-            } else {
-                return false;
-            }
-        } else {       
-            return true;
+        if( consumed < data.length ) {
+            theLeftoverData = Arrays.copyOfRange( data, consumed, data.length );
+        } else {
+            theLeftoverData = null; // let's be explicit
         }
+        return true;
     }
     
     /**
      * The first line is different between HttpRequest and HttpResponse, so how to
      * parse it is defined in subclasses.
      * 
-     * @param firstLine the first line
+     * @param data the data buffer holding the first line
+     * @param offset offset of the first line in the data buffer
+     * @param length length of the first line, without line terminator
      * @return true if successfully parsed
      */
     protected abstract boolean parseFirstLine(
-            String firstLine );
+            byte [] data,
+            int     offset,
+            int     length );
+
+    /**
+     * Factored out helper for subclasses to parse the HTTP version, which
+     * must consist of digits and periods.
+     * 
+     * @param data the data buffer
+     * @param offset offset of the version, after "HTTP/", in the data buffer
+     * @param end position after the version in the data buffer
+     * @return the version, or null if invalid
+     */
+    protected static String parseVersion(
+            byte [] data,
+            int     offset,
+            int     end )
+    {
+        if( offset >= end ) {
+            return null;
+        }
+        for( int i=offset ; i<end ; ++i ) {
+            if( ( data[i] < '0' || data[i] > '9' ) && data[i] != '.' ) {
+                return null;
+            }
+        }
+        return decode( data, offset, end-offset, KNOWN_VERSIONS );
+    }
+
+    /**
+     * Factored out helper for subclasses to determine whether the data at
+     * an offset starts with "HTTP/".
+     * 
+     * @param data the data buffer
+     * @param offset the offset in the data buffer
+     * @param end position after the last byte to look at
+     * @return true if it does
+     */
+    protected static boolean isHttpPrefix(
+            byte [] data,
+            int     offset,
+            int     end )
+    {
+        if( end - offset < HTTP_PREFIX.length ) {
+            return false;
+        }
+        for( int i=0 ; i<HTTP_PREFIX.length ; ++i ) {
+            if( data[ offset+i ] != HTTP_PREFIX[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Factored out helper to decode bytes of the first line. If the bytes
+     * spell one of some well-known values, that String is returned instead
+     * of a new one, so the common verbs and versions are not allocated
+     * again for every HttpMessage.
+     * 
+     * @param data the data buffer
+     * @param offset offset of the bytes in the data buffer
+     * @param length number of bytes
+     * @param known the well-known values
+     * @return the String
+     */
+    protected static String decode(
+            byte []   data,
+            int       offset,
+            int       length,
+            String [] known )
+    {
+        for( String candidate : known ) {
+            if( candidate.length() == length ) {
+                int i = 0;
+                while( i < length && data[ offset+i ] == candidate.charAt( i )) {
+                    ++i;
+                }
+                if( i == length ) {
+                    return candidate;
+                }
+            }
+        }
+        return new String( data, offset, length, StandardCharsets.ISO_8859_1 );
+    }
 
     /**
      * Obtain any leftover data in the passed-in data array that was not used
@@ -181,24 +173,188 @@ public abstract class HttpMessage
     }
     
     /**
-     * Obtain the HTTP headers.
+     * Obtain the HTTP headers. This creates Strings for all of them the first
+     * time it is invoked; to look at individual headers, use
+     * getFirstHeaderValue or getHeaderValues instead.
      * 
-     * @return the headers
+     * @return the headers, by case-insensitive name
      */
     public Map<String,String[]> getHeaders()
     {
-        return theHeaders;
+        return theHeaders.asMap();
+    }
+
+    /**
+     * Obtain the first value of an HTTP header. Header names are
+     * case-insensitive.
+     * 
+     * @param name name of the header
+     * @return the value, or null
+     */
+    public String getFirstHeaderValue(
+            String name )
+    {
+        return theHeaders.getFirst( name );
+    }
+
+    /**
+     * Obtain all values of an HTTP header, in the sequence they were
+     * received. Header names are case-insensitive.
+     * 
+     * @param name name of the header
+     * @return the values, or null
+     */
+    public String [] getHeaderValues(
+            String name )
+    {
+        return theHeaders.get( name );
+    }
+
+    /**
+     * Determine whether the connection is going to be closed after this
+     * HttpMessage, or after the response to it, according to its version
+     * and Connection header.
+     *
+     * @return true if the connection cannot be reused
+     */
+    public boolean isClosing()
+    {
+        String connection = getFirstHeaderValue( HTTP_CONNECTION_HEADER );
+        if( "1.0".equals( getVersion() )) {
+            return connection == null || !connection.toLowerCase().contains( "keep-alive" );
+        } else {
+            return connection != null && connection.toLowerCase().contains( "close" );
+        }
     }
 
     /**
-     * Obtain the message content. May be null.
+     * Determine whether this HttpMessage has no body, regardless of what
+     * its headers say.
+     * 
+     * @return true if it has no body
+     */
+    public boolean isBodiless()
+    {
+        return false;
+    }
+
+    /**
+     * Obtain the message content. May be null. If the content has been
+     * spilled to a file, this reads it into a new array; use getBody()
+     * to avoid that.
      * 
      * @return the content
      */
     public byte [] getContent()
+    {
+        return theContent != null ? theContent.getBytes() : null;
+    }
+
+    /**
+     * Obtain the message content, wherever it is held. May be null.
+     * 
+     * @return the content
+     */
+    public HttpBody getBody()
     {
         return theContent;
     }
+
+    /**
+     * Obtain the number of bytes in the message content.
+     * 
+     * @return the number of bytes, or 0 if there is none
+     */
+    public long getContentLength()
+    {
+        return theContent != null ? theContent.length() : 0;
+    }
+
+    /**
+     * Determine whether the content of this HttpMessage can be inlined into
+     * JSON as text, and if so, with which Charset to decode it. This is
+     * determined from the Content-Type header the first time it is needed,
+     * which for recorded HttpMessages is when they have been parsed.
+     * 
+     * @return the Charset, or null if not text
+     */
+    public Charset getTextCharset()
+    {
+        if( !theIsTextCharsetKnown ) {
+            theTextCharset        = determineTextCharset( getHeaderValues( HTTP_CONTENT_TYPE_HEADER ));
+            theIsTextCharsetKnown = true; // volatile write publishes theTextCharset
+        }
+        return theTextCharset;
+    }
+
+    /**
+     * Determine whether content with this content type can be inlined into
+     * JSON as text, and if so, with which Charset to decode it.
+     * 
+     * @param contentType the value(s) of the HTTP Content-Type header
+     * @return the Charset, or null if not text
+     */
+    protected static Charset determineTextCharset(
+            String [] contentType )
+    {
+        if( contentType != null && contentType.length > 0 ) {
+            String [] split = contentType[0].split( ";", 2 );
+            if( split.length == 2 ) {
+                String mime  = split[0];
+                if( TEXT_MIME_TYPES.contains( mime )) {
+                    Matcher m = CHARSET_PATTERN.matcher( split[1] );
+                    if( m.find() ) {
+                        return findCharset( m.group( 1 ));
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a Charset by name. Charsets once found are remembered, as are
+     * names that are not known, so that is only determined once per name.
+     * 
+     * @param name the name of the Charset
+     * @return the Charset, or null if not known
+     */
+    protected static Charset findCharset(
+            String name )
+    {
+        Optional<Charset> ret = CHARSETS.get( name );
+        if( ret == null ) {
+            try {
+                ret = Optional.of( Charset.forName( name ));
+            } catch( IllegalCharsetNameException | UnsupportedCharsetException ex ) {
+                ret = Optional.empty();
+            }
+            if( CHARSETS.size() < MAX_CHARSET_NAMES ) {
+                CHARSETS.putIfAbsent( name, ret );
+            }
+        }
+        return ret.orElse( null );
+    }
+
+    /**
+     * Obtain the time the first byte of this HttpMessage was received.
+     * 
+     * @return the time, in System.nanoTime() format
+     */
+    public long getFirstByteTime()
+    {
+        return theFirstByteTime;
+    }
+
+    /**
+     * Obtain the time the last byte of this HttpMessage was received.
+     * 
+     * @return the time, in System.nanoTime() format
+     */
+    public long getCompleteTime()
+    {
+        return theCompleteTime;
+    }
     
     /**
      * The HTTP protocol version.
@@ -208,22 +364,84 @@ public abstract class HttpMessage
     /**
      * The HTTP headers.
      */
-    protected Map<String,String[]> theHeaders;
+    protected HttpHeaders theHeaders = HttpHeaders.create();
     
     /**
      * The content of the request.
      */
-    protected byte [] theContent;
+    protected HttpBody theContent;
+
+    /**
+     * The time the first byte of this HttpMessage was received, in System.nanoTime() format.
+     */
+    protected long theFirstByteTime;
+
+    /**
+     * The time the last byte of this HttpMessage was received, in System.nanoTime() format.
+     */
+    protected long theCompleteTime;
 
     /**
      * Data that was not used to parse this request.
      */
     protected byte [] theLeftoverData;
+
+    /**
+     * The Charset to decode the content as text with, or null if not text.
+     * Only valid if theIsTextCharsetKnown.
+     */
+    protected Charset theTextCharset;
+
+    /**
+     * True once theTextCharset has been determined.
+     */
+    protected volatile boolean theIsTextCharsetKnown;
+
+    /**
+     * Set of known text mime types which can be inlined into JSON without
+     * encoding.
+     */
+    protected static final Set<String> TEXT_MIME_TYPES = new HashSet<>();
+    static {
+        TEXT_MIME_TYPES.add( "text/css" );
+        TEXT_MIME_TYPES.add( "text/html" );
+        TEXT_MIME_TYPES.add( "text/csv" );
+        TEXT_MIME_TYPES.add( "text/plain" );
+
+        TEXT_MIME_TYPES.add( "application/javascript" );
+        TEXT_MIME_TYPES.add( "application/json" );
+        TEXT_MIME_TYPES.add( "application/x-www-form-urlencoded" );
+        TEXT_MIME_TYPES.add( "application/xml" );
+        TEXT_MIME_TYPES.add( "application/sql" );
+        TEXT_MIME_TYPES.add( "application/graphql" );
+        TEXT_MIME_TYPES.add( "application/ld+json" );
+    }
+
+    /**
+     * Regex matching the charset parameter to a mime type
+     */
+    protected static final Pattern CHARSET_PATTERN = Pattern.compile( "charset=(\\S+)");
+
+    /**
+     * The Charsets found so far by name, or empty if there is none by that name.
+     */
+    protected static final ConcurrentHashMap<String,Optional<Charset>> CHARSETS = new ConcurrentHashMap<>();
+
+    /**
+     * Stop remembering names of Charsets beyond this many, in case a remote
+     * host makes them up.
+     */
+    protected static final int MAX_CHARSET_NAMES = 256;
     
     /**
-     * Decodes bytes into US-ASCII.
+     * Every first line has the HTTP version after this.
+     */
+    protected static final byte [] HTTP_PREFIX = { 'H', 'T', 'T', 'P', '/' };
+
+    /**
+     * The HTTP versions that occur in practice.
      */
-    protected static final Charset US_ASCII = Charset.forName( "US-ASCII" );
+    protected static final String [] KNOWN_VERSIONS = { "1.1", "1.0" };
 
     /**
      * HTTP content length header
@@ -240,8 +458,33 @@ public abstract class HttpMessage
      */
     public static final String HTTP_TRANSFER_ENCODING_CHUNKED = "chunked";
     
+    /**
+     * HTTP expect header
+     */
+    public static final String HTTP_EXPECT_HEADER = "Expect";
+
+    /**
+     * HTTP expect header value asking for a 100 Continue response
+     */
+    public static final String HTTP_EXPECT_100_CONTINUE = "100-continue";
+
+    /**
+     * HTTP connection header
+     */
+    public static final String HTTP_CONNECTION_HEADER = "Connection";
+
     /**
      * HTTP content type header
      */
     public static final String HTTP_CONTENT_TYPE_HEADER = "Content-Type";
+
+    /**
+     * HTTP cookie header
+     */
+    public static final String HTTP_COOKIE_HEADER = "Cookie";
+
+    /**
+     * HTTP set cookie header
+     */
+    public static final String HTTP_SET_COOKIE_HEADER = "Set-Cookie";
 }
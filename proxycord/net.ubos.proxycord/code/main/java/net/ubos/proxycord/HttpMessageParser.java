@@ -0,0 +1,1180 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parses a stream of HttpMessages incrementally. Data can be passed in
+ * whatever pieces it arrives in; the parser remembers where it is (first
+ * line, headers, body, chunk) and only ever looks at each byte once. This
+ * keeps the cost of recording a message linear in its size.
+ *
+ * Where a message ends is determined as in RFC 7230, section 3.3.3. Lines,
+ * headers and retained content are limited in size, so whatever the other
+ * side sends, a parser never holds more than a bounded amount of memory:
+ * if a message cannot be framed within the limits, the parser gives up.
+ * Bodies above a threshold may be spilled to a file instead of being
+ * collected on the heap.
+ *
+ * @param <T> the type of HttpMessage being parsed
+ */
+public class HttpMessageParser<T extends HttpMessage>
+{
+    private final static Logger LOG = Logger.getLogger( HttpMessageParser.class.getName() );
+
+    /**
+     * Factory method for a parser of HttpRequests.
+     *
+     * @param name name of the connection, for logging
+     * @return the created instance
+     */
+    public static HttpMessageParser<HttpRequest> createRequestParser(
+            String name )
+    {
+        return new HttpMessageParser<>( name, HttpRequest::new );
+    }
+
+    /**
+     * Factory method for a parser of HttpResponses.
+     *
+     * @param name name of the connection, for logging
+     * @return the created instance
+     */
+    public static HttpMessageParser<HttpResponse> createResponseParser(
+            String name )
+    {
+        return new HttpMessageParser<>( name, HttpResponse::new );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param name name of the connection, for logging
+     * @param factory knows how to instantiate the next HttpMessage
+     */
+    protected HttpMessageParser(
+            String      name,
+            Supplier<T> factory )
+    {
+        theName    = name;
+        theFactory = factory;
+    }
+
+    /**
+     * Determine whether the parser should keep the content of the HttpMessages.
+     * If not, the parser only determines where HttpMessages begin and end.
+     *
+     * @param retainContent if true, keep the content
+     */
+    public void setRetainContent(
+            boolean retainContent )
+    {
+        theRetainContent = retainContent;
+    }
+
+    /**
+     * Set the maximum number of bytes of content to keep per HttpMessage.
+     * Content beyond that is parsed, but not kept.
+     *
+     * @param maxContent the maximum number of bytes
+     */
+    public void setMaxContent(
+            int maxContent )
+    {
+        theMaxContent = maxContent;
+    }
+
+    /**
+     * Spill the content of HttpMessages to a file, instead of collecting it
+     * on the heap, once it is larger than a threshold. If the length of the
+     * content is known up front, it is spilled right away. Spilled content
+     * is not limited by the maximum set with setMaxContent(), which only
+     * applies to the heap, but by a limit of its own.
+     *
+     * @param threshold the threshold, in bytes, or 0 to never spill
+     * @param maxSpilled the maximum number of bytes of spilled content to keep per HttpMessage, or 0 for no limit
+     * @param directory the directory for the spill files, or null for the default temporary directory
+     */
+    public void setSpill(
+            int  threshold,
+            long maxSpilled,
+            File directory )
+    {
+        theSpillThreshold    = threshold;
+        theMaxSpilledContent = maxSpilled > 0 ? maxSpilled : Long.MAX_VALUE;
+        theSpillDirectory    = directory;
+    }
+
+    /**
+     * Keep the content of HttpMessages in a BodyStore, so content that has
+     * been parsed before is only held once.
+     *
+     * @param bodyStore the BodyStore, or null
+     */
+    public void setBodyStore(
+            BodyStore bodyStore )
+    {
+        theBodyStore = bodyStore;
+    }
+
+    /**
+     * Hand the content of HttpMessages to a BodyCompressor once complete.
+     *
+     * @param compressor the BodyCompressor, or null
+     */
+    public void setBodyCompressor(
+            BodyCompressor compressor )
+    {
+        theBodyCompressor = compressor;
+    }
+
+    /**
+     * Tell the parser that the next HttpMessage has no body, regardless
+     * of what its headers say. This is the case for responses to HEAD
+     * requests, and for successful responses to CONNECT requests.
+     */
+    public void setNextMessageHasNoBody()
+    {
+        theNextMessageHasNoBody = true;
+    }
+
+    /**
+     * Tell the parser which request the next HttpMessage, a response, is
+     * in response to. Responses to HEAD requests have no body, and a
+     * successful response to a CONNECT request has no body either, but
+     * turns the rest of the stream into a tunnel.
+     *
+     * @param request the request
+     */
+    public void setNextMessageInResponseTo(
+            HttpRequest request )
+    {
+        if( HttpRequest.HTTP_HEAD_VERB.equals( request.getVerb() )) {
+            theNextMessageHasNoBody = true;
+        }
+        theNextMessageAnswersConnect = HttpRequest.HTTP_CONNECT_VERB.equals( request.getVerb() );
+    }
+
+    /**
+     * Tell the parser that the rest of the stream is not HTTP any more,
+     * e.g. because the connection has been switched to another protocol.
+     * From now on, all data is consumed without looking at it.
+     */
+    public void switchToOpaque()
+    {
+        discardBody();
+        theMessage    = null;
+        theLineLength = 0;
+        theState      = State.OPAQUE;
+    }
+
+    /**
+     * The stream has ended. This completes an HttpMessage whose body
+     * extends until the end of the stream. An incomplete HttpMessage
+     * is discarded, so the parser can be used for a new stream.
+     */
+    public void endOfStream()
+    {
+        endOfStream( System.nanoTime() );
+    }
+
+    /**
+     * The stream has ended at a given time. This completes an HttpMessage
+     * whose body extends until the end of the stream. An incomplete
+     * HttpMessage is discarded, so the parser can be used for a new stream.
+     *
+     * @param time the time the stream ended, in System.nanoTime() format
+     */
+    public void endOfStream(
+            long time )
+    {
+        theTime = time;
+
+        switch( theState ) {
+            case UNTIL_CLOSE:
+                complete();
+                break;
+
+            case FIRST_LINE:
+            case HEADERS:
+            case BODY:
+            case CHUNK_SIZE:
+            case CHUNK_DATA:
+            case CHUNK_DATA_END:
+            case TRAILERS:
+                if( theMessage != null ) {
+                    LOG.log( Level.WARNING, "Stream ended in the middle of a message ({0})", theName );
+                }
+                discardBody();
+                theMessage              = null;
+                theLineLength           = 0;
+                theNextMessageHasNoBody = false;
+                theState                = State.FIRST_LINE;
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Parse more data that has just been received. This consumes data up
+     * to the end of the current HttpMessage, but not beyond. If the returned
+     * number of bytes is less than count, the HttpMessage is complete, and
+     * the rest of the data belongs to the next one.
+     *
+     * @param data the data buffer
+     * @param offset the offset of the first byte to parse in the data buffer
+     * @param count the number of bytes to parse
+     * @return the number of bytes consumed
+     */
+    public int parse(
+            byte [] data,
+            int     offset,
+            int     count )
+    {
+        return parse( data, offset, count, System.nanoTime() );
+    }
+
+    /**
+     * Parse more data that was received at a given time. This consumes data
+     * up to the end of the current HttpMessage, but not beyond. If the
+     * returned number of bytes is less than count, the HttpMessage is
+     * complete, and the rest of the data belongs to the next one.
+     *
+     * @param data the data buffer
+     * @param offset the offset of the first byte to parse in the data buffer
+     * @param count the number of bytes to parse
+     * @param time the time the data was received, in System.nanoTime() format
+     * @return the number of bytes consumed
+     */
+    public int parse(
+            byte [] data,
+            int     offset,
+            int     count,
+            long    time )
+    {
+        int pos = offset;
+        int end = offset + count;
+
+        theTime = time;
+
+        while( pos < end && theState != State.COMPLETE ) {
+            if( theMessage == null && theState == State.FIRST_LINE ) {
+                theMessage = theFactory.get();
+                theMessage.theFirstByteTime = time;
+            }
+
+            switch( theState ) {
+                case FIRST_LINE:
+                case HEADERS:
+                case CHUNK_SIZE:
+                case CHUNK_DATA_END:
+                case TRAILERS:
+                    pos = parseLine( data, pos, end );
+                    break;
+
+                case BODY:
+                case CHUNK_DATA:
+                case UNTIL_CLOSE:
+                    pos = parseBody( data, pos, end );
+                    break;
+
+                case OPAQUE:
+                case ERROR:
+                    pos = end; // skip everything
+                    break;
+            }
+        }
+        return pos - offset;
+    }
+
+    /**
+     * Determine whether a complete HttpMessage is available.
+     *
+     * @return true if complete
+     */
+    public boolean isComplete()
+    {
+        return theState == State.COMPLETE;
+    }
+
+    /**
+     * Determine whether the parser has given up, because the data did not
+     * look like HTTP.
+     *
+     * @return true if in error
+     */
+    public boolean hasError()
+    {
+        return theState == State.ERROR;
+    }
+
+    /**
+     * Determine whether the parser is at the beginning of an HttpMessage,
+     * i.e. it has not seen any of its data yet.
+     *
+     * @return true if at the beginning
+     */
+    public boolean isAtMessageStart()
+    {
+        return theMessage == null && theState == State.FIRST_LINE;
+    }
+
+    /**
+     * Determine whether the rest of the stream is not HTTP any more.
+     *
+     * @return true if all data is consumed without looking at it
+     */
+    public boolean isOpaque()
+    {
+        return theState == State.OPAQUE;
+    }
+
+    /**
+     * Determine whether the body of the current HttpMessage extends until
+     * the end of the stream, because its headers do not say where it ends.
+     *
+     * @return true if the body ends with the stream
+     */
+    public boolean isBodyUntilEndOfStream()
+    {
+        return theState == State.UNTIL_CLOSE;
+    }
+
+    /**
+     * Obtain the HttpMessage whose headers have been parsed, but whose
+     * body is not complete yet.
+     *
+     * @return the HttpMessage, or null if there is none
+     */
+    public T getMessageInProgress()
+    {
+        switch( theState ) {
+            case BODY:
+            case CHUNK_SIZE:
+            case CHUNK_DATA:
+            case CHUNK_DATA_END:
+            case TRAILERS:
+            case UNTIL_CLOSE:
+                return theMessage;
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Obtain the completed HttpMessage, and prepare to parse the next one.
+     * After a 101 Switching Protocols response, the rest of the stream
+     * is not HTTP any more.
+     *
+     * @return the HttpMessage, or null if not complete
+     */
+    public T takeMessage()
+    {
+        if( theState != State.COMPLETE ) {
+            return null;
+        }
+        T ret = theMessage;
+
+        theMessage = null;
+        theState   = switchesToOpaque( ret ) ? State.OPAQUE : State.FIRST_LINE;
+        theNextMessageAnswersConnect = false;
+
+        return ret;
+    }
+
+    /**
+     * Consume data up to the end of the current line. Lines that span
+     * more than one piece of data are collected in a buffer; all others
+     * are processed where they are.
+     *
+     * @param data the data buffer
+     * @param pos the position of the first byte to look at
+     * @param end the position after the last byte to look at
+     * @return the position of the first byte not consumed
+     */
+    protected int parseLine(
+            byte [] data,
+            int     pos,
+            int     end )
+    {
+        int eol = pos;
+        while( eol < end && data[eol] != '\n' ) {
+            ++eol;
+        }
+        if( theLineLength + eol - pos > MAX_LINE_LENGTH ) {
+            fail( "Line too long" );
+            return end;
+        }
+        if( eol == end ) {
+            appendToLine( data, pos, end-pos );
+            return end;
+        }
+
+        if( theLineLength == 0 ) {
+            // the common case: the entire line is in this piece of data
+            int lineEnd = ( eol > pos && data[eol-1] == '\r' ) ? eol-1 : eol;
+            processLine( data, pos, lineEnd-pos );
+
+        } else {
+            appendToLine( data, pos, eol-pos );
+            int lineEnd = ( theLine[theLineLength-1] == '\r' ) ? theLineLength-1 : theLineLength;
+            theLineLength = 0;
+            processLine( theLine, 0, lineEnd );
+        }
+
+        return eol+1;
+    }
+
+    /**
+     * A complete line has been found.
+     *
+     * @param line the buffer holding the line
+     * @param offset offset of the line in the buffer
+     * @param length length of the line, without line terminator
+     */
+    protected void processLine(
+            byte [] line,
+            int     offset,
+            int     length )
+    {
+        switch( theState ) {
+            case FIRST_LINE:
+                if( length == 0 ) {
+                    break; // RFC 7230, section 3.5: ignore empty lines before a request
+                }
+                if( theMessage.parseFirstLine( line, offset, length )) {
+                    theHeaderSize = length;
+                    theState      = State.HEADERS;
+                } else {
+                    fail( "Cannot parse first line: " + lineAsString( line, offset, length ));
+                }
+                break;
+
+            case HEADERS:
+                if( length == 0 ) {
+                    endOfHeaders();
+                } else {
+                    parseHeaderLine( line, offset, length );
+                }
+                break;
+
+            case CHUNK_SIZE:
+                theRemaining = parseChunkSize( line, offset, length );
+                if( theRemaining < 0 ) {
+                    fail( "Cannot parse chunk size: " + lineAsString( line, offset, length ));
+                } else if( theRemaining == 0 ) {
+                    theHeaderSize = 0;
+                    theState      = State.TRAILERS;
+                } else {
+                    theState = State.CHUNK_DATA;
+                }
+                break;
+
+            case CHUNK_DATA_END:
+                if( length == 0 ) {
+                    theState = State.CHUNK_SIZE;
+                } else {
+                    fail( "Chunk longer than its size" );
+                }
+                break;
+
+            case TRAILERS:
+                if( length == 0 ) {
+                    complete();
+                } else {
+                    parseHeaderLine( line, offset, length ); // trailer fields are kept with the headers
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Determine whether the rest of the stream after this HttpMessage is not HTTP any more.
+     *
+     * @param message the HttpMessage
+     * @return true if the stream switches to another protocol, or becomes a tunnel
+     */
+    protected boolean switchesToOpaque(
+            HttpMessage message )
+    {
+        if( !( message instanceof HttpResponse )) {
+            return false;
+        }
+        int status = ((HttpResponse) message).getStatus();
+        return status == HttpResponse.HTTP_SWITCHING_PROTOCOLS_STATUS || ( theNextMessageAnswersConnect && status >= 200 && status < 300 );
+    }
+
+    /**
+     * Parse a header or trailer line. Name and value are handed to the
+     * HttpHeaders as bytes; no Strings are created.
+     *
+     * @param line the buffer holding the line
+     * @param offset offset of the line in the buffer
+     * @param length length of the line
+     */
+    protected void parseHeaderLine(
+            byte [] line,
+            int     offset,
+            int     length )
+    {
+        theHeaderSize += length;
+        if( theHeaderSize > MAX_HEADER_SIZE ) {
+            fail( "Headers too long" );
+            return;
+        }
+
+        int end = offset + length;
+        if( isBlank( line[offset] )) {
+            // obsolete line folding: continues the value of the previous header
+            int valueStart = skipBlanks( line, offset, end );
+            int valueEnd   = trimBlanks( line, valueStart, end );
+            if( !theCanContinueHeader || !theMessage.theHeaders.continueLastValue( line, valueStart, valueEnd-valueStart )) {
+                fail( "Cannot parse header line: " + lineAsString( line, offset, length ));
+            }
+            return;
+        }
+
+        int colon = offset;
+        while( colon < end && line[colon] != ':' ) {
+            ++colon;
+        }
+        if( colon == offset || colon == end ) {
+            fail( "Cannot parse header line: " + lineAsString( line, offset, length ));
+            return;
+        }
+        if( isBlank( line[colon-1] )) {
+            // RFC 7230, section 3.2.4: must be rejected, as it has been used for request smuggling
+            fail( "Whitespace before colon in header line: " + lineAsString( line, offset, length ));
+            return;
+        }
+        int valueStart = skipBlanks( line, colon+1, end );
+        int valueEnd   = trimBlanks( line, valueStart, end );
+
+        theMessage.theHeaders.add( line, offset, colon-offset, valueStart, valueEnd-valueStart );
+        theCanContinueHeader = true;
+    }
+
+    /**
+     * The headers have been read. Determine how long the body is, as
+     * RFC 7230, section 3.3.3 prescribes.
+     */
+    protected void endOfHeaders()
+    {
+        theCanContinueHeader = false;
+
+        if( theNextMessageHasNoBody || theMessage.isBodiless() || switchesToOpaque( theMessage )) {
+            complete();
+            return;
+        }
+
+        boolean   isResponse       = theMessage instanceof HttpResponse;
+        String [] transferEncoding = theMessage.getHeaderValues( HttpMessage.HTTP_TRANSFER_ENCODING_HEADER );
+        String [] contentLength    = theMessage.getHeaderValues( HttpMessage.HTTP_CONTENT_LENGTH_HEADER );
+
+        if( transferEncoding != null ) {
+            // overrides any Content-Length
+            if( isChunked( transferEncoding )) {
+                startBody( INITIAL_BODY_CAPACITY );
+                theState = State.CHUNK_SIZE;
+
+            } else if( isResponse ) {
+                startBody( INITIAL_BODY_CAPACITY );
+                theRemaining = Long.MAX_VALUE;
+                theState     = State.UNTIL_CLOSE;
+
+            } else {
+                fail( "Cannot determine length of request body: " + String.join( ", ", transferEncoding ));
+            }
+
+        } else if( contentLength != null ) {
+            theRemaining = parseContentLength( contentLength );
+            if( theRemaining < 0 ) {
+                fail( "Cannot parse content length: " + String.join( ", ", contentLength ));
+                return;
+            }
+            startBody( theRemaining );
+            if( theRemaining > 0 ) {
+                theState = State.BODY;
+            } else {
+                complete();
+            }
+
+        } else if( isResponse ) {
+            // the body extends until the remote host closes the connection
+            startBody( INITIAL_BODY_CAPACITY );
+            theRemaining = Long.MAX_VALUE;
+            theState     = State.UNTIL_CLOSE;
+
+        } else {
+            complete(); // requests without framing have no body
+        }
+    }
+
+    /**
+     * Allocate the buffer for the body, if the content is to be kept. Even if
+     * the length of the body has been announced, we start small, and only
+     * grow the buffer as the data actually arrives.
+     *
+     * @param capacity the announced length of the body, or INITIAL_BODY_CAPACITY if not known
+     */
+    protected void startBody(
+            long capacity )
+    {
+        if( theRetainContent ) {
+            if( theSpillThreshold > 0 && capacity > theSpillThreshold ) {
+                startSpill();
+            }
+            if( theSpill == null ) {
+                theBody = new byte[ (int) Math.min( Math.min( capacity, MAX_INITIAL_BODY_CAPACITY ), theMaxContent ) ];
+            }
+        }
+    }
+
+    /**
+     * Continue collecting the body in a spill file, with what has been
+     * collected on the heap so far. If that is not possible, the body
+     * remains on the heap, and we do not try again.
+     */
+    protected void startSpill()
+    {
+        try {
+            theSpill = BodySpillFile.create( theSpillDirectory );
+            if( theBodyLength > 0 ) {
+                theSpill.append( theBody, 0, theBodyLength );
+            }
+            theBody = null;
+
+        } catch( IOException ex ) {
+            LOG.log( Level.WARNING, "Cannot spill content to a file, keeping it in memory (" + theName + ")", ex );
+            if( theSpill != null ) {
+                theSpill.discard();
+                theSpill = null;
+            }
+            theSpillThreshold = 0;
+        }
+    }
+
+    /**
+     * Stop keeping the content of the HttpMessage currently being parsed,
+     * e.g. because it will not be recorded anyway. Where it ends is still
+     * determined as usual.
+     */
+    public void discardContent()
+    {
+        discardBody();
+    }
+
+    /**
+     * Forget the body collected so far.
+     */
+    protected void discardBody()
+    {
+        if( theSpill != null ) {
+            theSpill.discard();
+            theSpill = null;
+        }
+        theBody       = null;
+        theBodyLength = 0;
+    }
+
+    /**
+     * Determine whether the last transfer coding is chunked. Only then
+     * does the message say where its body ends.
+     *
+     * @param transferEncoding the values of the Transfer-Encoding header
+     * @return true if chunked
+     */
+    protected static boolean isChunked(
+            String [] transferEncoding )
+    {
+        String last  = transferEncoding[ transferEncoding.length-1 ];
+        int    comma = last.lastIndexOf( ',' );
+        if( comma >= 0 ) {
+            last = last.substring( comma+1 );
+        }
+        return HttpMessage.HTTP_TRANSFER_ENCODING_CHUNKED.equalsIgnoreCase( last.trim() );
+    }
+
+    /**
+     * Parse the values of the Content-Length header. Several values are
+     * only acceptable if they are all the same.
+     *
+     * @param contentLength the values of the Content-Length header
+     * @return the length, or -1 if invalid
+     */
+    protected static long parseContentLength(
+            String [] contentLength )
+    {
+        long ret = -1;
+        for( String value : contentLength ) {
+            for( String element : value.split( ",", -1 )) {
+                long current = parseNumber( element.trim(), 10 );
+                if( current < 0 || ( ret >= 0 && current != ret )) {
+                    return -1;
+                }
+                ret = current;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Parse the size of a chunk, ignoring any chunk extensions.
+     *
+     * @param line the buffer holding the chunk size line
+     * @param offset offset of the line in the buffer
+     * @param length length of the line
+     * @return the size, or -1 if invalid
+     */
+    protected static long parseChunkSize(
+            byte [] line,
+            int     offset,
+            int     length )
+    {
+        int end = offset;
+        while( end < offset + length && line[end] != ';' ) {
+            ++end;
+        }
+        int start = skipBlanks( line, offset, end );
+        end       = trimBlanks( line, start, end );
+        if( start == end || end - start > 15 ) {
+            return -1;
+        }
+        long ret = 0;
+        for( int i=start ; i<end ; ++i ) {
+            int digit = Character.digit( line[i], 16 );
+            if( digit < 0 ) {
+                return -1;
+            }
+            ret = ( ret << 4 ) + digit;
+        }
+        return ret;
+    }
+
+    /**
+     * Parse a non-negative number, without sign, that must fit into a long.
+     *
+     * @param s the String to parse
+     * @param radix the radix
+     * @return the number, or -1 if invalid
+     */
+    protected static long parseNumber(
+            String s,
+            int    radix )
+    {
+        if( s.isEmpty() || s.length() > 15 || s.charAt( 0 ) == '+' || s.charAt( 0 ) == '-' ) {
+            return -1;
+        }
+        try {
+            return Long.parseLong( s, radix );
+        } catch( NumberFormatException ex ) {
+            return -1;
+        }
+    }
+
+    /**
+     * Determine whether a byte is a space or horizontal tab.
+     *
+     * @param b the byte
+     * @return true if it is
+     */
+    protected static boolean isBlank(
+            byte b )
+    {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Skip spaces and horizontal tabs.
+     *
+     * @param data the data buffer
+     * @param pos the position of the first byte to look at
+     * @param end the position after the last byte to look at
+     * @return the position of the first other byte, or end
+     */
+    protected static int skipBlanks(
+            byte [] data,
+            int     pos,
+            int     end )
+    {
+        while( pos < end && isBlank( data[pos] )) {
+            ++pos;
+        }
+        return pos;
+    }
+
+    /**
+     * Remove trailing spaces and horizontal tabs.
+     *
+     * @param data the data buffer
+     * @param start the position of the first byte to keep
+     * @param end the position after the last byte to look at
+     * @return the position after the last other byte, or start
+     */
+    protected static int trimBlanks(
+            byte [] data,
+            int     start,
+            int     end )
+    {
+        while( end > start && isBlank( data[end-1] )) {
+            --end;
+        }
+        return end;
+    }
+
+    /**
+     * Convert a line to a String, for error messages.
+     *
+     * @param line the buffer holding the line
+     * @param offset offset of the line in the buffer
+     * @param length length of the line
+     * @return the String
+     */
+    protected static String lineAsString(
+            byte [] line,
+            int     offset,
+            int     length )
+    {
+        return new String( line, offset, length, StandardCharsets.ISO_8859_1 );
+    }
+
+    /**
+     * Consume body data, up to the end of the body or the current chunk.
+     *
+     * @param data the data buffer
+     * @param pos the position of the first byte to look at
+     * @param end the position after the last byte to look at
+     * @return the position of the first byte not consumed
+     */
+    protected int parseBody(
+            byte [] data,
+            int     pos,
+            int     end )
+    {
+        int n = (int) Math.min( theRemaining, end-pos );
+
+        if( theBody != null ) {
+            ensureBodyCapacity( (long) theBodyLength + n );
+        }
+        if( theSpill != null ) {
+            int retained = (int) Math.min( n, theMaxSpilledContent - theSpill.getLength() );
+            noteRetained( retained, n, theMaxSpilledContent );
+            try {
+                theSpill.append( data, pos, retained );
+
+            } catch( IOException ex ) {
+                LOG.log( Level.WARNING, "Cannot write spill file, not keeping the content (" + theName + ")", ex );
+                discardBody();
+            }
+
+        } else if( theBody != null ) {
+            int retained = Math.min( n, theBody.length - theBodyLength );
+            noteRetained( retained, n, theMaxContent );
+            System.arraycopy( data, pos, theBody, theBodyLength, retained );
+            theBodyLength += retained;
+        }
+        if( theState != State.UNTIL_CLOSE ) {
+            theRemaining -= n;
+        }
+
+        if( theRemaining == 0 ) {
+            if( theState == State.BODY ) {
+                complete();
+            } else {
+                theState = State.CHUNK_DATA_END;
+            }
+        }
+        return pos + n;
+    }
+
+    /**
+     * Warn once per HttpMessage if not all of its content is kept.
+     *
+     * @param retained the number of bytes kept
+     * @param n the number of bytes received
+     * @param max the maximum number of bytes that are kept
+     */
+    protected void noteRetained(
+            int  retained,
+            int  n,
+            long max )
+    {
+        if( retained < n && !theContentTruncated ) {
+            LOG.log( Level.WARNING, "Content longer than {0} bytes, not keeping the rest ({1})", new Object[] { max, theName } );
+            theContentTruncated = true;
+        }
+    }
+
+    /**
+     * The current HttpMessage is complete.
+     */
+    protected void complete()
+    {
+        if( theSpill != null ) {
+            try {
+                theMessage.theContent = theSpill.finish();
+            } catch( IOException ex ) {
+                LOG.log( Level.WARNING, "Cannot map spill file, not keeping the content (" + theName + ")", ex );
+            }
+            theSpill = null;
+
+        } else if( theBody != null ) {
+            HttpBody content = HttpBody.create( theBody.length == theBodyLength ? theBody : Arrays.copyOf( theBody, theBodyLength ));
+            theMessage.theContent = theBodyStore != null ? theBodyStore.intern( content ) : content;
+            theMessage.getTextCharset(); // here, rather than each time the content is saved
+            if( theBodyCompressor != null ) {
+                theBodyCompressor.submit( theMessage.theContent );
+            }
+        }
+        theMessage.theCompleteTime = theTime;
+        theBody                 = null;
+        theBodyLength           = 0;
+        theRemaining            = 0;
+        theContentTruncated     = false;
+        theNextMessageHasNoBody = false;
+        theState                = State.COMPLETE;
+    }
+
+    /**
+     * Give up on this stream.
+     *
+     * @param msg the reason
+     */
+    protected void fail(
+            String msg )
+    {
+        LOG.log( Level.WARNING, "Giving up parsing ({0}): {1}", new Object[] { theName, msg } );
+
+        discardBody();
+        theMessage    = null;
+        theLine       = null;
+        theLineLength = 0;
+        theState      = State.ERROR;
+    }
+
+    /**
+     * Append data to the current, incomplete line.
+     *
+     * @param data the data buffer
+     * @param offset the offset of the first byte to append
+     * @param count the number of bytes to append
+     */
+    protected void appendToLine(
+            byte [] data,
+            int     offset,
+            int     count )
+    {
+        if( theLine == null ) {
+            theLine = new byte[ Math.max( 256, count ) ];
+
+        } else if( theLineLength + count > theLine.length ) {
+            theLine = Arrays.copyOf( theLine, Math.max( theLine.length * 2, theLineLength + count ));
+        }
+        System.arraycopy( data, offset, theLine, theLineLength, count );
+        theLineLength += count;
+    }
+
+    /**
+     * Make sure the body buffer can hold at least this many bytes, but
+     * no more than the maximum content that is kept, nor more than the
+     * announced length of the body.
+     *
+     * @param capacity the needed capacity
+     */
+    protected void ensureBodyCapacity(
+            long capacity )
+    {
+        if( theSpillThreshold > 0 && capacity > theSpillThreshold ) {
+            startSpill();
+            if( theSpill != null ) {
+                return;
+            }
+        }
+        if( capacity > theBody.length && theBody.length < theMaxContent ) {
+            long limit = theMaxContent;
+            if( theState == State.BODY ) {
+                limit = Math.min( limit, theBodyLength + theRemaining );
+            }
+            long newCapacity = Math.min( Math.max( theBody.length * 2L, capacity ), limit );
+            theBody = Arrays.copyOf( theBody, (int) newCapacity );
+        }
+    }
+
+    /**
+     * Name of the connection, for logging.
+     */
+    protected String theName;
+
+    /**
+     * Knows how to instantiate the next HttpMessage.
+     */
+    protected Supplier<T> theFactory;
+
+    /**
+     * The HttpMessage currently being parsed.
+     */
+    protected T theMessage;
+
+    /**
+     * If false, only determine where HttpMessages begin and end.
+     */
+    protected boolean theRetainContent = true;
+
+    /**
+     * Maximum number of bytes of content kept per HttpMessage.
+     */
+    protected int theMaxContent = DEFAULT_MAX_CONTENT;
+
+    /**
+     * Content larger than this many bytes is spilled to a file, or 0 if never.
+     */
+    protected int theSpillThreshold;
+
+    /**
+     * Maximum number of bytes of spilled content kept per HttpMessage.
+     */
+    protected long theMaxSpilledContent = Long.MAX_VALUE;
+
+    /**
+     * Directory for spill files, or null for the default temporary directory.
+     */
+    protected File theSpillDirectory;
+
+    /**
+     * Where to keep the content of HttpMessages, or null.
+     */
+    protected BodyStore theBodyStore;
+
+    /**
+     * Compresses the content of HttpMessages, or null.
+     */
+    protected BodyCompressor theBodyCompressor;
+
+    /**
+     * If true, the next HttpMessage has no body, regardless of its headers.
+     */
+    protected boolean theNextMessageHasNoBody;
+
+    /**
+     * If true, the next HttpMessage is the response to a CONNECT request.
+     * takeMessage() clears it after every HttpMessage, including interim
+     * responses, as theNextMessageHasNoBody is cleared when one completes;
+     * callers set both again at the start of each HttpMessage.
+     */
+    protected boolean theNextMessageAnswersConnect;
+
+    /**
+     * The time the data currently being parsed was received, in System.nanoTime() format.
+     */
+    protected long theTime;
+
+    /**
+     * Where we are in the current HttpMessage.
+     */
+    protected State theState = State.FIRST_LINE;
+
+    /**
+     * Collects a line that spans more than one piece of data.
+     */
+    protected byte [] theLine;
+
+    /**
+     * Number of bytes in theLine.
+     */
+    protected int theLineLength;
+
+    /**
+     * Number of bytes in the headers, or trailers, of the current HttpMessage so far.
+     */
+    protected int theHeaderSize;
+
+    /**
+     * True if a header has been parsed that the next line may continue.
+     */
+    protected boolean theCanContinueHeader;
+
+    /**
+     * Collects the body of the current HttpMessage.
+     */
+    protected byte [] theBody;
+
+    /**
+     * Collects the body of the current HttpMessage instead of theBody,
+     * once it has been spilled to a file.
+     */
+    protected BodySpillFile theSpill;
+
+    /**
+     * Number of bytes of the body collected so far in theBody. Once the body
+     * is being spilled, theSpill counts them instead.
+     */
+    protected int theBodyLength;
+
+    /**
+     * Number of bytes still expected in the body or the current chunk.
+     */
+    protected long theRemaining;
+
+    /**
+     * True once content of the current HttpMessage has not been kept because of theMaxContent.
+     */
+    protected boolean theContentTruncated;
+
+    /**
+     * Initial size of the body buffer if the length of the body is not known up front.
+     */
+    protected static final int INITIAL_BODY_CAPACITY = 4096;
+
+    /**
+     * Largest initial size of the body buffer, even if a longer body has been announced.
+     */
+    protected static final int MAX_INITIAL_BODY_CAPACITY = 64 * 1024;
+
+    /**
+     * Default maximum number of bytes of content kept per HttpMessage.
+     */
+    public static final int DEFAULT_MAX_CONTENT = 64 * 1024 * 1024;
+
+    /**
+     * Maximum length of a line in the first line, headers, chunk sizes or trailers.
+     */
+    protected static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /**
+     * Maximum length of all headers, or all trailers, of one HttpMessage together.
+     */
+    protected static final int MAX_HEADER_SIZE = 256 * 1024;
+
+    /**
+     * The states of the parser.
+     */
+    protected static enum State
+    {
+        FIRST_LINE,
+        HEADERS,
+        BODY,
+        UNTIL_CLOSE,
+        CHUNK_SIZE,
+        CHUNK_DATA,
+        CHUNK_DATA_END,
+        TRAILERS,
+        COMPLETE,
+        OPAQUE,
+        ERROR;
+    }
+}
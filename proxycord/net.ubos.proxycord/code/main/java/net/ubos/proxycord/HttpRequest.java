@@ -4,10 +4,9 @@
 
 package net.ubos.proxycord;
 
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * The HTTP request.
@@ -48,19 +47,50 @@ public class HttpRequest
 
     @Override
     protected boolean parseFirstLine(
-            String firstLine )
+            byte [] data,
+            int     offset,
+            int     length )
     {
-        Matcher firstLineMatcher = FIRST_LINE_PATTERN.matcher( firstLine );
-        if( !firstLineMatcher.matches() ) {
+        // VERB SP path SP HTTP/version
+        int end     = offset + length;
+        int verbEnd = offset;
+        while( verbEnd < end && data[verbEnd] >= 'A' && data[verbEnd] <= 'Z' ) {
+            ++verbEnd;
+        }
+        if( verbEnd == offset || verbEnd == end || data[verbEnd] != ' ' ) {
+            return false;
+        }
+        int pathStart = verbEnd + 1;
+        int pathEnd   = pathStart;
+        while( pathEnd < end && !isWhitespace( data[pathEnd] )) {
+            ++pathEnd;
+        }
+        if( pathEnd == pathStart || pathEnd == end || data[pathEnd] != ' ' || !isHttpPrefix( data, pathEnd+1, end )) {
             return false;
         }
-        theVerb    = firstLineMatcher.group( 1 );
-        thePath    = firstLineMatcher.group( 2 );
-        theVersion = firstLineMatcher.group( 3 );
-        
+        String version = parseVersion( data, pathEnd + 1 + HTTP_PREFIX.length, end );
+        if( version == null ) {
+            return false;
+        }
+        theVerb    = decode( data, offset, verbEnd-offset, KNOWN_VERBS );
+        thePath    = new String( data, pathStart, pathEnd-pathStart, StandardCharsets.ISO_8859_1 );
+        theVersion = version;
+
         return true;
     }
 
+    /**
+     * Determine whether a byte is whitespace, which the path must not contain.
+     *
+     * @param b the byte
+     * @return true if whitespace
+     */
+    protected static boolean isWhitespace(
+            byte b )
+    {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0b || b == '\f' || b == '\r';
+    }
+
     /**
      * Obtain the HTTP verb.
      * 
@@ -71,6 +101,23 @@ public class HttpRequest
         return theVerb;
     }
     
+    /**
+     * Determine whether sending this request more than once has the same
+     * effect as sending it once, so it may be sent again if it is not known
+     * whether the remote host has received it.
+     *
+     * @return true if it is idempotent
+     */
+    public boolean isIdempotent()
+    {
+        for( String verb : IDEMPOTENT_VERBS ) {
+            if( verb.equals( theVerb )) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Obtain the HTTP path.
      * 
@@ -81,6 +128,17 @@ public class HttpRequest
         return thePath;
     }
 
+    /**
+     * Obtain the time the connection to the remote host, over which this
+     * HttpRequest was forwarded, had been established.
+     * 
+     * @return the time, in System.nanoTime() format, or 0 if not known
+     */
+    public long getUpstreamConnectedTime()
+    {
+        return theUpstreamConnectedTime;
+    }
+
     /**
      * The HTTP verb of the request.
      */
@@ -92,8 +150,32 @@ public class HttpRequest
     protected String thePath;
 
     /**
-     * Regex for the first line in the HTTP request.
+     * The time the connection to the remote host had been established, in
+     * System.nanoTime() format, or 0 if not known yet.
+     */
+    protected long theUpstreamConnectedTime;
+
+    /**
+     * The HTTP verbs that occur in practice.
+     */
+    protected static final String [] KNOWN_VERBS = {
+        "GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "PATCH", "CONNECT", "TRACE"
+    };
+
+    /**
+     * The HTTP verbs whose requests are idempotent, according to RFC 9110.
+     */
+    protected static final String [] IDEMPOTENT_VERBS = {
+        "GET", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE"
+    };
+
+    /**
+     * The HTTP HEAD verb, whose responses have no body.
+     */
+    public static final String HTTP_HEAD_VERB = "HEAD";
+
+    /**
+     * The HTTP CONNECT verb, whose successful response turns the connection into a tunnel.
      */
-    protected static final Pattern FIRST_LINE_PATTERN = Pattern.compile(
-            "^([A-Z]+) ([^\\s]+) HTTP/([\\d\\.]+)$" );
+    public static final String HTTP_CONNECT_VERB = "CONNECT";
 }
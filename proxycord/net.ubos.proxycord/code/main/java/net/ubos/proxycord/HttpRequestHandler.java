@@ -4,18 +4,16 @@
 
 package net.ubos.proxycord;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Handles the request side of a connection.
+ * Handles the request side of a connection. Bytes are moved with blocking
+ * channel I/O through direct ByteBuffers from the BufferPool.
  */
 public class HttpRequestHandler
     implements
@@ -28,22 +26,23 @@ public class HttpRequestHandler
      * 
      * @param name name of this object, for logging
      * @param app the application
-     * @param serverSideSocket the server-side socket
+     * @param serverSideChannel the server-side channel
      * @param remoteHost host to connect to
      * @param remotePort port to connect to
      */
     public HttpRequestHandler(
-            String    name,
-            Proxycord app,
-            Socket    serverSideSocket,
-            String    remoteHost,
-            int       remotePort )
+            String        name,
+            Proxycord     app,
+            SocketChannel serverSideChannel,
+            String        remoteHost,
+            int           remotePort )
     {
-        theName             = name;
-        theApp              = app;
-        theServerSideSocket = serverSideSocket;
-        theRemoteHost       = remoteHost;
-        theRemotePort       = remotePort;
+        theName              = name;
+        theApp               = app;
+        theServerSideChannel = serverSideChannel;
+        theRemoteHost        = remoteHost;
+        theRemotePort        = remotePort;
+        theRecorder          = new HttpExchangeRecorder( name, app );
 
         LOG.log( Level.INFO, "Created {0} ({1})", new Object [] { this, theName } );
     }
@@ -62,175 +61,150 @@ public class HttpRequestHandler
     public void run()
     {
         try {
-            theClientSideSocket = new Socket( theRemoteHost, theRemotePort );
+            theClientSideChannel = SocketChannel.open( new InetSocketAddress( theRemoteHost, theRemotePort ));
+            theClientSideChannel.socket().setTcpNoDelay( true );
         } catch( Throwable t ) {
             t.printStackTrace();
+            connectionClosed();
             return;
         }
+        theRecorder.logUpstreamConnected();
 
         theApp.submitTask( new HttpResponseHandler( this ));
 
-        BufferedInputStream  serverInStream  = null;
-        BufferedOutputStream clientOutStream = null;
-        
-        byte [] buf = new byte[4096];
+        BufferPool pool = theApp.getBufferPool();
+        ByteBuffer buf  = pool.acquire();
         try {
-            serverInStream  = new BufferedInputStream( theServerSideSocket.getInputStream() );
-            clientOutStream = new BufferedOutputStream( theClientSideSocket.getOutputStream() );
+            int read = -1;
+            while( true ) {
+                buf  = pool.next( buf, read );
+                read = theServerSideChannel.read( buf );
+                if( read <= 0 ) {
+                    break;
+                }
+                buf.flip();
 
-            int read;
-            while( ( read = serverInStream.read( buf )) > 0 ) {
                 if( LOG.isLoggable( Level.INFO )) {
                     LOG.info( String.format( "Received (%s) %d bytes", theName, read ));
                 }
 
-                logRequestData( buf, read );
+                theRecorder.logRequestData( buf );
 
-                clientOutStream.write( buf, 0, read );
-                clientOutStream.flush();
+                writeFully( theClientSideChannel, buf );
+                theApp.getMetrics().add( Metrics.Counter.REMOTE_SENT_BYTES, read );
                 
                 if( LOG.isLoggable( Level.INFO )) {
                     LOG.info( String.format( "Sent (%s) %d bytes", theName, read ));
                 }
             }
             
-            
         } catch( Throwable ex ) {
             ex.printStackTrace();
 
         } finally {
+            pool.release( buf );
 
             try {
-                if( clientOutStream != null ) {
-                    clientOutStream.flush();
+                if( theClientSideChannel != null ) {
+                    theClientSideChannel.close();
                 }
             } catch( Exception ex ) {
                 ex.printStackTrace();
             }
-
             try {
-                if( theClientSideSocket != null && ! theClientSideSocket.isClosed() ) {
-                    theClientSideSocket.close();
-                }
-            } catch( Exception ex ) {
-                ex.printStackTrace();
-            }
-            try {
-                if( theServerSideSocket != null && ! theServerSideSocket.isClosed() ) {
-                    theServerSideSocket.close();
+                if( theServerSideChannel != null ) {
+                    theServerSideChannel.close();
                 }
             } catch( Exception ex ) {
                 ex.printStackTrace();
             }
+            connectionClosed();
         }
     }
 
     /**
-     * Obtain the incoming, server-side socket.
-     * 
-     * @return the Socket
+     * The connection from the client is done.
      */
-    public Socket getServerSideSocket()
+    protected void connectionClosed()
     {
-        return theServerSideSocket;
+        theApp.getMetrics().decrement( Metrics.Counter.ACTIVE_CONNECTIONS );
     }
 
     /**
-     * Obtain the outgoing, client-side socket.
-     * 
-     * @return the Socket
+     * Write all remaining bytes in a buffer to a blocking channel.
+     *
+     * @param channel the channel
+     * @param buf the buffer
+     * @throws IOException an I/O problem occurred
      */
-    public Socket getClientSideSocket()
+    public static void writeFully(
+            SocketChannel channel,
+            ByteBuffer    buf )
+        throws
+            IOException
     {
-        return theClientSideSocket;
+        while( buf.hasRemaining() ) {
+            channel.write( buf );
+        }
     }
 
     /**
-     * Enable ourselves to log traffic we have received.
+     * Obtain the incoming, server-side channel.
      * 
-     * @param data the data buffer
-     * @param count the number of bytes in the data buffer
+     * @return the SocketChannel
      */
-    public void logRequestData(
-            byte [] data,
-            int     count )
+    public SocketChannel getServerSideChannel()
     {
-        if( theRequestStreamBuffer == null ) {
-            theRequestStreamBuffer = new ByteArrayOutputStream();
-        }
-        theRequestStreamBuffer.write( data, 0, count );
-        
-        // try to find a full HTTP request
-        byte [] soFar = theRequestStreamBuffer.toByteArray();
-        HttpRequest request = HttpRequest.findHttpRequest( soFar, theName );
-        if( request != null ) {
-            LOG.log( Level.INFO, String.format( "Queuing request (%s) %s", theName, request.getPath() ));
+        return theServerSideChannel;
+    }
 
-            theQueuedRequests.add( request );
+    /**
+     * Obtain the outgoing, client-side channel.
+     * 
+     * @return the SocketChannel
+     */
+    public SocketChannel getClientSideChannel()
+    {
+        return theClientSideChannel;
+    }
 
-            theRequestStreamBuffer = new ByteArrayOutputStream();
-            byte [] leftover       = request.getLeftoverData();
-            if( leftover != null ) {
-                try {
-                    theRequestStreamBuffer.write( leftover );
+    /**
+     * Obtain the pool of buffers to move bytes with.
+     * 
+     * @return the BufferPool
+     */
+    public BufferPool getBufferPool()
+    {
+        return theApp.getBufferPool();
+    }
 
-                } catch( IOException ex ) {
-                    ex.printStackTrace(); // memory only, not likely to happen
-                }
-            }
-        }
+    /**
+     * Obtain where to count what we are doing.
+     * 
+     * @return the Metrics
+     */
+    public Metrics getMetrics()
+    {
+        return theApp.getMetrics();
     }
 
     /**
      * Enable our HttpResponseHandler to log traffic it has received.
      * 
-     * @param data the data buffer
-     * @param count the number of bytes in the data buffer
+     * @param data the data buffer, whose remaining bytes are logged
      */
     public void logResponseData(
-            byte [] data,
-            int     count )
+            ByteBuffer data )
     {
-        if( theResponseStreamBuffer == null ) {
-            theResponseStreamBuffer = new ByteArrayOutputStream();
-        }
-        theResponseStreamBuffer.write( data, 0, count );
-        
-        // try to find a full HTTP response
-        byte [] soFar = theResponseStreamBuffer.toByteArray();
-
-        HttpResponse response = HttpResponse.findHttpResponse( soFar, theName );
-
-        if( response != null ) {
-            LOG.log( Level.INFO, String.format( "Unqueuing request (%s)", theName ));
-
-            HttpRequest inResponseTo = theQueuedRequests.remove( 0 );
-            theApp.logStep( new HttpRequestResponseStep( inResponseTo, response ));
-
-            theResponseStreamBuffer = new ByteArrayOutputStream();
-            byte [] leftover        = response.getLeftoverData();
-            if( leftover != null ) {
-                try {
-                    theResponseStreamBuffer.write( leftover );
-
-                } catch( IOException ex ) {
-                    ex.printStackTrace(); // memory only, not likely to happen
-                }
-            }
-        }
+        theRecorder.logResponseData( data );
     }
-    
+
     /**
-     * {@inheritDoc}
+     * Enable our HttpResponseHandler to log that the remote host has closed the connection.
      */
-    @Override
-    public void finalize()
-        throws
-            Throwable
+    public void logResponseEnd()
     {
-        LOG.log( Level.INFO, "Finalizing {0} ({1})", new Object [] { this, theName } );
-
-        super.finalize();
+        theRecorder.logResponseEnd();
     }
 
     /**
@@ -244,14 +218,14 @@ public class HttpRequestHandler
     protected Proxycord theApp;
 
     /**
-     * The server-side socket that was spawned due to an incoming request.
+     * The server-side channel that was spawned due to an incoming request.
      */
-    protected Socket theServerSideSocket;
+    protected SocketChannel theServerSideChannel;
     
     /**
-     * The client-side socket that connects to the remote website we are proxying
+     * The client-side channel that connects to the remote website we are proxying
      */
-    protected Socket theClientSideSocket;
+    protected SocketChannel theClientSideChannel;
 
     /**
      * The remote host to connect to
@@ -264,18 +238,7 @@ public class HttpRequestHandler
     protected int theRemotePort;
     
     /**
-     * Buffers the request stream.
-     */
-    protected ByteArrayOutputStream theRequestStreamBuffer;
-    
-    /**
-     * Buffers the response stream.
-     */
-    protected ByteArrayOutputStream theResponseStreamBuffer;
-    
-    /**
-     * Queue of parsed requests. When corresponding Responses arrive,
-     * we pass them on together.
+     * Reassembles and records the traffic on this connection.
      */
-    protected List<HttpRequest> theQueuedRequests = new ArrayList<>();
+    protected HttpExchangeRecorder theRecorder;
 }
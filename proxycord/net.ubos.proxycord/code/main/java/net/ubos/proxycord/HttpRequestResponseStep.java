@@ -7,14 +7,13 @@ package net.ubos.proxycord;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Base64;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A recorded Step that is a completed HTTP exchange.
@@ -23,6 +22,73 @@ public class HttpRequestResponseStep
     extends
         Step
 {
+    /**
+     * Factory method to re-create an HttpRequestResponseStep from the JSON
+     * it was saved as.
+     *
+     * @param json the JSON, as produced by asJson() or writeJson()
+     * @return the created instance
+     */
+    public static HttpRequestResponseStep fromJson(
+            JsonObject json )
+    {
+        return fromJson( json, null );
+    }
+
+    /**
+     * Factory method to re-create an HttpRequestResponseStep from the JSON
+     * it was saved as, in a recording whose bodies may be deduplicated.
+     *
+     * @param json the JSON, as produced by asJson() or writeJson()
+     * @param bodies the bodies read so far from the recording, by hash, or null if not deduplicated
+     * @return the created instance
+     */
+    public static HttpRequestResponseStep fromJson(
+            JsonObject         json,
+            Map<Long,HttpBody> bodies )
+    {
+        HttpRequest  request  = requestFromJson(  json.getAsJsonObject( "request" ),  bodies );
+        HttpResponse response = responseFromJson( json.getAsJsonObject( "response" ), bodies );
+
+        JsonObject jsonTiming = json.getAsJsonObject( "timing" );
+        if( jsonTiming != null ) {
+            request.theFirstByteTime         = timingFromJson( jsonTiming, TIMING_NAMES[0] );
+            request.theCompleteTime          = timingFromJson( jsonTiming, TIMING_NAMES[1] );
+            request.theUpstreamConnectedTime = timingFromJson( jsonTiming, TIMING_NAMES[2] );
+            response.theFirstByteTime        = timingFromJson( jsonTiming, TIMING_NAMES[3] );
+            response.theCompleteTime         = timingFromJson( jsonTiming, TIMING_NAMES[4] );
+        }
+
+        return new HttpRequestResponseStep( request, response );
+    }
+
+    /**
+     * Factory method to re-create an HttpRequestResponseStep from its record
+     * in a binary recording.
+     *
+     * @param recording the binary recording
+     * @param in the record, as written by writeBinary()
+     * @return the created instance
+     * @throws IOException an I/O problem occurred, or a body is corrupted
+     */
+    public static HttpRequestResponseStep fromBinary(
+            BinaryRecording recording,
+            ByteBuffer      in )
+        throws
+            IOException
+    {
+        HttpRequest  request  = recording.readRequest( in );
+        HttpResponse response = recording.readResponse( in );
+
+        request.theFirstByteTime         = in.getLong();
+        request.theCompleteTime          = in.getLong();
+        request.theUpstreamConnectedTime = in.getLong();
+        response.theFirstByteTime        = in.getLong();
+        response.theCompleteTime         = in.getLong();
+
+        return new HttpRequestResponseStep( request, response );
+    }
+
     /**
      * Constructor.
      * 
@@ -37,90 +103,473 @@ public class HttpRequestResponseStep
         theResponse = response;
     }
 
+    /**
+     * Obtain the request.
+     *
+     * @return the request
+     */
+    public HttpRequest getRequest()
+    {
+        return theRequest;
+    }
+
+    /**
+     * Obtain the response.
+     *
+     * @return the response
+     */
+    public HttpResponse getResponse()
+    {
+        return theResponse;
+    }
+
     @Override
     public JsonElement asJson()
     {
-        JsonObject jsonRequest  = new JsonObject();
-        jsonRequest.add( "verb",    new JsonPrimitive( theRequest.getVerb() ));
-        jsonRequest.add( "path",    new JsonPrimitive( theRequest.getPath() ));
-        jsonRequest.add( "version", new JsonPrimitive( theRequest.getVersion() ));
-        
-        JsonObject jsonRequestHeaders = new JsonObject();
-        Map<String,String[]> requestHeaders = theRequest.getHeaders();
-        for( Map.Entry<String,String[]> entry : requestHeaders.entrySet() ) {
-            JsonArray jsonValues = new JsonArray();
-            for( String value : entry.getValue() ) {
-                jsonValues.add( value );
+        JsonObject jsonRet = new JsonObject();
+        jsonRet.add( "type",     new JsonPrimitive( "HttpRequestResponse" ));
+        jsonRet.add( "request",  requestAsJson( theRequest ));
+        jsonRet.add( "response", responseAsJson( theResponse ));
+
+        JsonObject jsonTiming = new JsonObject();
+        for( int i=0 ; i<TIMING_NAMES.length ; ++i ) {
+            long time = getTiming( i );
+            if( time != 0 ) {
+                jsonTiming.add( TIMING_NAMES[i], new JsonPrimitive( time ));
             }
-            jsonRequestHeaders.add( entry.getKey(), jsonValues );
-        }
-        jsonRequest.add( "headers", jsonRequestHeaders );
-
-        byte [] requestContent = theRequest.getContent();
-        if( requestContent != null ) {
-            addContentToJson( jsonRequest, requestContent, requestHeaders.get( HttpMessage.HTTP_CONTENT_TYPE_HEADER ) );
-        }
-        
-        JsonObject jsonResponse = new JsonObject();
-        jsonResponse.add( "status",  new JsonPrimitive( theResponse.getStatus() ));
-        jsonResponse.add( "version", new JsonPrimitive( theResponse.getVersion() ));
-        
-        JsonObject jsonResponseHeaders = new JsonObject();
-        Map<String,String[]> responseHeaders = theResponse.getHeaders();
-        for( Map.Entry<String,String[]> entry : responseHeaders.entrySet() ) {
+        }
+        jsonRet.add( "timing", jsonTiming );
+        return jsonRet;
+    }
+    
+    @Override
+    public void writeJson(
+            RecordingJsonWriter w )
+        throws
+            IOException
+    {
+        w.beginObject();
+        w.name( "type" ).value( "HttpRequestResponse" );
+
+        writeRequestJson( w, theRequest );
+        writeResponseJson( w, theResponse );
+
+        w.name( "timing" ).beginObject();
+        for( int i=0 ; i<TIMING_NAMES.length ; ++i ) {
+            long time = getTiming( i );
+            if( time != 0 ) {
+                w.name( TIMING_NAMES[i] ).value( time );
+            }
+        }
+        w.endObject();
+
+        w.endObject();
+    }
+
+    @Override
+    public void writeBinary(
+            BinaryRecordingWriter w )
+        throws
+            IOException
+    {
+        w.beginStep( BinaryRecording.TYPE_HTTP_REQUEST_RESPONSE );
+        w.writeRequest( theRequest );
+        w.writeResponse( theResponse );
+        for( int i=0 ; i<TIMING_NAMES.length ; ++i ) {
+            w.writeLong( getTiming( i ));
+        }
+    }
+
+    /**
+     * Obtain one of the points in time recorded for this exchange, in the
+     * sequence of TIMING_NAMES. All are in System.nanoTime() format, so they
+     * can only be compared with each other, and with other Steps recorded
+     * by the same run of Proxycord.
+     * 
+     * @param index the index into TIMING_NAMES
+     * @return the time, or 0 if not known
+     */
+    public long getTiming(
+            int index )
+    {
+        switch( index ) {
+            case 0:
+                return theRequest.getFirstByteTime();
+            case 1:
+                return theRequest.getCompleteTime();
+            case 2:
+                return theRequest.getUpstreamConnectedTime();
+            case 3:
+                return theResponse.getFirstByteTime();
+            case 4:
+                return theResponse.getCompleteTime();
+            default:
+                throw new IllegalArgumentException( "Unknown timing index: " + index );
+        }
+    }
+
+    /**
+     * Obtain the time from the first byte of the request until the last byte
+     * of the response.
+     * 
+     * @return the duration, in nanoseconds, or -1 if not known
+     */
+    public long getTotalDuration()
+    {
+        return duration( theRequest.getFirstByteTime(), theResponse.getCompleteTime() );
+    }
+
+    /**
+     * Obtain the time the remote host took from the last byte of the request
+     * until the first byte of the response. The rest of the total duration
+     * is spent by the client, the network and Proxycord.
+     * 
+     * @return the duration, in nanoseconds, or -1 if not known
+     */
+    public long getRemoteDuration()
+    {
+        return duration( theRequest.getCompleteTime(), theResponse.getFirstByteTime() );
+    }
+
+    /**
+     * Factored out helper to calculate a duration between two points in time.
+     * 
+     * @param from the start, in System.nanoTime() format, or 0 if not known
+     * @param to the end, in System.nanoTime() format, or 0 if not known
+     * @return the duration, in nanoseconds, or -1 if not known
+     */
+    protected static long duration(
+            long from,
+            long to )
+    {
+        if( from == 0 || to == 0 ) {
+            return -1;
+        }
+        return to - from;
+    }
+
+    /**
+     * Factored out helper to convert a request to JSON.
+     *
+     * @param request the request
+     * @return the JSON Object representing the request
+     */
+    protected static JsonObject requestAsJson(
+            HttpRequest request )
+    {
+        JsonObject ret = new JsonObject();
+        ret.add( "verb",    new JsonPrimitive( request.getVerb() ));
+        ret.add( "path",    new JsonPrimitive( request.getPath() ));
+        ret.add( "version", new JsonPrimitive( request.getVersion() ));
+        addMessageToJson( ret, request );
+        return ret;
+    }
+
+    /**
+     * Factored out helper to convert a response to JSON.
+     *
+     * @param response the response
+     * @return the JSON Object representing the response
+     */
+    protected static JsonObject responseAsJson(
+            HttpResponse response )
+    {
+        JsonObject ret = new JsonObject();
+        ret.add( "status",  new JsonPrimitive( response.getStatus() ));
+        ret.add( "version", new JsonPrimitive( response.getVersion() ));
+        addMessageToJson( ret, response );
+        return ret;
+    }
+
+    /**
+     * Factored out helper to add what HttpRequest and HttpResponse have in
+     * common to their JSON.
+     *
+     * @param obj the JSON Object to add to
+     * @param message the HttpMessage
+     */
+    protected static void addMessageToJson(
+            JsonObject  obj,
+            HttpMessage message )
+    {
+        JsonObject jsonHeaders = new JsonObject();
+        Map<String,String[]> headers = message.getHeaders();
+        for( Map.Entry<String,String[]> entry : headers.entrySet() ) {
             JsonArray jsonValues = new JsonArray();
             for( String value : entry.getValue() ) {
                 jsonValues.add( value );
             }
-            jsonResponseHeaders.add( entry.getKey(), jsonValues );
+            jsonHeaders.add( entry.getKey(), jsonValues );
         }
-        jsonResponse.add( "headers", jsonResponseHeaders );
+        obj.add( "headers", jsonHeaders );
 
-        byte [] responseContent = theResponse.getContent();
-        if( responseContent != null ) {
-            addContentToJson( jsonResponse, responseContent, responseHeaders.get( HttpMessage.HTTP_CONTENT_TYPE_HEADER ) );
+        HttpBody content = message.getBody();
+        if( content != null ) {
+            addContentToJson( obj, content, message.getTextCharset() );
         }
+    }
 
-        JsonObject jsonRet = new JsonObject();
-        jsonRet.add( "type",     new JsonPrimitive( "HttpRequestResponse" ));
-        jsonRet.add( "request",  jsonRequest );
-        jsonRet.add( "response", jsonResponse );
-        return jsonRet;
+    /**
+     * Factored out helper to stream a request as JSON.
+     *
+     * @param w the writer to write to
+     * @param request the request
+     * @throws IOException an I/O problem occurred
+     */
+    protected static void writeRequestJson(
+            RecordingJsonWriter w,
+            HttpRequest         request )
+        throws
+            IOException
+    {
+        w.name( "request" ).beginObject();
+        w.name( "verb" ).value( request.getVerb() );
+        w.name( "path" ).value( request.getPath() );
+        w.name( "version" ).value( request.getVersion() );
+        writeMessageJson( w, request );
+        w.endObject();
     }
-    
+
+    /**
+     * Factored out helper to stream a response as JSON.
+     *
+     * @param w the writer to write to
+     * @param response the response
+     * @throws IOException an I/O problem occurred
+     */
+    protected static void writeResponseJson(
+            RecordingJsonWriter w,
+            HttpResponse        response )
+        throws
+            IOException
+    {
+        w.name( "response" ).beginObject();
+        w.name( "status" ).value( response.getStatus() );
+        w.name( "version" ).value( response.getVersion() );
+        writeMessageJson( w, response );
+        w.endObject();
+    }
+
+    /**
+     * Factored out helper to stream what HttpRequest and HttpResponse have
+     * in common as JSON.
+     *
+     * @param w the writer to write to
+     * @param message the HttpMessage
+     * @throws IOException an I/O problem occurred
+     */
+    protected static void writeMessageJson(
+            RecordingJsonWriter w,
+            HttpMessage         message )
+        throws
+            IOException
+    {
+        Map<String,String[]> headers = message.getHeaders();
+        writeHeaders( w, headers );
+
+        HttpBody content = message.getBody();
+        if( content != null ) {
+            writeContent( w, content, message.getTextCharset() );
+        }
+    }
+
+    /**
+     * Factored out helper to restore a request from JSON.
+     *
+     * @param json the JSON Object representing the request
+     * @param bodies the bodies read so far from the recording, by hash, or null if not deduplicated
+     * @return the request
+     */
+    protected static HttpRequest requestFromJson(
+            JsonObject         json,
+            Map<Long,HttpBody> bodies )
+    {
+        HttpRequest ret = new HttpRequest();
+        ret.theVerb = json.get( "verb" ).getAsString();
+        ret.thePath = json.get( "path" ).getAsString();
+        readMessageFromJson( ret, json, bodies );
+        return ret;
+    }
+
+    /**
+     * Factored out helper to restore a response from JSON.
+     *
+     * @param json the JSON Object representing the response
+     * @param bodies the bodies read so far from the recording, by hash, or null if not deduplicated
+     * @return the response
+     */
+    protected static HttpResponse responseFromJson(
+            JsonObject         json,
+            Map<Long,HttpBody> bodies )
+    {
+        HttpResponse ret = new HttpResponse();
+        ret.theStatus = json.get( "status" ).getAsInt();
+        readMessageFromJson( ret, json, bodies );
+        return ret;
+    }
+
+    /**
+     * Factored out helper to restore what HttpRequest and HttpResponse have
+     * in common from JSON.
+     *
+     * @param message the HttpMessage to restore
+     * @param json the JSON Object representing the HttpMessage
+     * @param bodies the bodies read so far from the recording, by hash, or null if not deduplicated
+     */
+    protected static void readMessageFromJson(
+            HttpMessage        message,
+            JsonObject         json,
+            Map<Long,HttpBody> bodies )
+    {
+        message.theVersion = json.get( "version" ).getAsString();
+
+        JsonObject jsonHeaders = json.getAsJsonObject( "headers" );
+        if( jsonHeaders != null ) {
+            for( Map.Entry<String,JsonElement> entry : jsonHeaders.entrySet() ) {
+                for( JsonElement jsonValue : entry.getValue().getAsJsonArray() ) {
+                    message.theHeaders.add( entry.getKey(), jsonValue.getAsString() );
+                }
+            }
+        }
+
+        JsonElement jsonContent = json.get( "rawcontentbase64" );
+        JsonElement jsonHash    = json.get( "contenthash" );
+        if( jsonContent != null ) {
+            message.theContent = HttpBody.create( Base64.getDecoder().decode( jsonContent.getAsString() ));
+            if( jsonHash != null && bodies != null ) {
+                // later occurrences of the same body will only refer to this one
+                bodies.putIfAbsent( Long.parseUnsignedLong( jsonHash.getAsString(), 16 ), message.theContent );
+            }
+
+        } else if( jsonHash != null ) {
+            HttpBody content = bodies != null ? bodies.get( Long.parseUnsignedLong( jsonHash.getAsString(), 16 )) : null;
+            if( content == null ) {
+                throw new JsonParseException( "Content with hash " + jsonHash.getAsString() + " has not been seen before" );
+            }
+            message.theContent = content;
+        }
+    }
+
+    /**
+     * Factored out helper to restore a point in time from JSON.
+     *
+     * @param jsonTiming the JSON Object holding the points in time
+     * @param name name of the point in time
+     * @return the time, or 0 if not known
+     */
+    protected static long timingFromJson(
+            JsonObject jsonTiming,
+            String     name )
+    {
+        JsonElement ret = jsonTiming.get( name );
+        return ret != null ? ret.getAsLong() : 0L;
+    }
+
     /**
      * Factored out helper to insert content into the JSON.
      * 
      * @param obj the JSON Object to add the content to
-     * @param data the content
-     * @param contentType the value(s) of the HTTP Content-Type header
+     * @param body the content
+     * @param charset the Charset to decode the content as text with, or null if not text
      */
-    protected void addContentToJson(
+    protected static void addContentToJson(
             JsonObject obj,
-            byte []    data,
-            String []  contentType )
-    {
-        obj.add( "rawcontentlength", new JsonPrimitive( data.length ));
-        obj.add( "rawcontentbase64", new JsonPrimitive( Base64.getEncoder().encodeToString( data ) ));
-
-        if( contentType != null && contentType.length > 0 ) {
-            String [] split = contentType[0].split( ";", 2 );
-            if( split.length == 2 ) {
-                String mime  = split[0];
-                if( TEXT_MIME_TYPES.contains( mime )) {
-                    Matcher m = CHARSET_PATTERN.matcher( split[1] );
-                    if( m.find() ) {
-                        String charsetName = m.group( 1 );
-                        
-                        Charset charset = Charset.forName( charsetName );
-                        
-                        String dataAsString = new String( data, charset );
-                        
-                        obj.add( "contentastext", new JsonPrimitive( dataAsString ));
-                    }
-                }
+            HttpBody   body,
+            Charset    charset )
+    {
+        obj.add( "rawcontentlength", new JsonPrimitive( body.length() ));
+        if( body.isSpilled() ) {
+            // too large to hold as a String; writeContent streams it instead
+            obj.add( "contenthash", new JsonPrimitive( body.getHashAsString() ));
+            return;
+        }
+        obj.add( "rawcontentbase64", new JsonPrimitive( body.getBase64() ));
+
+        if( charset != null ) {
+            obj.add( "contentastext", new JsonPrimitive( body.getText( charset )));
+        }
+    }
+
+    /**
+     * Factored out helper to stream headers as JSON.
+     * 
+     * @param w the writer to write to
+     * @param headers the headers
+     * @throws IOException an I/O problem occurred
+     */
+    protected static void writeHeaders(
+            RecordingJsonWriter  w,
+            Map<String,String[]> headers )
+        throws
+            IOException
+    {
+        w.name( "headers" ).beginObject();
+        for( Map.Entry<String,String[]> entry : headers.entrySet() ) {
+            w.name( entry.getKey() ).beginArray();
+            for( String value : entry.getValue() ) {
+                w.value( value );
+            }
+            w.endArray();
+        }
+        w.endObject();
+    }
+
+    /**
+     * Factored out helper to stream content as JSON.
+     * 
+     * @param w the writer to write to
+     * @param body the content
+     * @param charset the Charset to decode the content as text with, or null if not text
+     * @throws IOException an I/O problem occurred
+     */
+    protected static void writeContent(
+            RecordingJsonWriter w,
+            HttpBody            body,
+            Charset             charset )
+        throws
+            IOException
+    {
+        w.name( "rawcontentlength" ).value( body.length() );
+        if( w.refersToSpilledBody( body )) {
+            w.name( "contenthash" ).value( body.getHashAsString() );
+            return;
+        }
+        if( w.isDeduplicatingBodies() ) {
+            w.name( "contenthash" ).value( body.getHashAsString() );
+            if( w.wasWrittenBefore( body )) {
+                return;
             }
         }
+        w.name( "rawcontentbase64" );
+        w.base64Value( body );
+
+        // a spilled body is too large to also hold as a String; it is in rawcontentbase64 anyway
+        if( charset != null && !body.isSpilled() ) {
+            w.name( "contentastext" ).value( body.getText( charset ));
+        }
+    }
+
+    @Override
+    public long getMemorySize()
+    {
+        return BASE_MEMORY_SIZE + estimateMemorySize( theRequest ) + estimateMemorySize( theResponse );
+    }
+
+    /**
+     * Factored out helper to estimate the heap memory occupied by an HttpMessage.
+     * 
+     * @param message the HttpMessage
+     * @return the number of bytes
+     */
+    protected static long estimateMemorySize(
+            HttpMessage message )
+    {
+        long ret = BASE_MEMORY_SIZE + message.theHeaders.getMemorySize();
+        HttpBody content = message.getBody();
+        if( content != null ) {
+            ret += content.getHeapSize();
+        }
+        return ret;
     }
 
     /**
@@ -131,16 +580,24 @@ public class HttpRequestResponseStep
     @Override
     public String toString()
     {
-        byte [] responseContent = theResponse.getContent();
+        String ret =   theRequest.getVerb()
+                     + " "
+                     + theRequest.getPath()
+                     + " => status "
+                     + theResponse.getStatus()
+                     + ", "
+                     + theResponse.getContentLength()
+                     + " bytes";
 
-        return    theRequest.getVerb()
-                + " "
-                + theRequest.getPath()
-                + " => status "
-                + theResponse.getStatus()
-                + ", "
-                + ( responseContent != null ? responseContent.length : "0" )
-                + " bytes";
+        long total  = getTotalDuration();
+        long remote = getRemoteDuration();
+        if( total >= 0 ) {
+            ret += String.format( ", %.3f ms", total / 1e6 );
+            if( remote >= 0 ) {
+                ret += String.format( " (remote %.3f ms)", remote / 1e6 );
+            }
+        }
+        return ret;
     }
 
     /**
@@ -154,27 +611,13 @@ public class HttpRequestResponseStep
     protected HttpResponse theResponse;
 
     /**
-     * Set of known text mime types which can be inlined into JSON without
-     * encoding.
-     */
-    protected static final Set<String> TEXT_MIME_TYPES = new HashSet<>();
-    static {
-        TEXT_MIME_TYPES.add( "text/css" );
-        TEXT_MIME_TYPES.add( "text/html" );
-        TEXT_MIME_TYPES.add( "text/csv" );
-        TEXT_MIME_TYPES.add( "text/plain" );
-
-        TEXT_MIME_TYPES.add( "application/javascript" );
-        TEXT_MIME_TYPES.add( "application/json" );
-        TEXT_MIME_TYPES.add( "application/x-www-form-urlencoded" );
-        TEXT_MIME_TYPES.add( "application/xml" );
-        TEXT_MIME_TYPES.add( "application/sql" );
-        TEXT_MIME_TYPES.add( "application/graphql" );
-        TEXT_MIME_TYPES.add( "application/ld+json" );
-    }
-    
-    /**
-     * Regex matching the charset parameter to a mime type
+     * Names of the points in time recorded for an exchange, as used in the JSON.
      */
-    protected static final Pattern CHARSET_PATTERN = Pattern.compile( "charset=(\\S+)");
+    public static final String [] TIMING_NAMES = {
+        "requestfirstbyte",
+        "requestcomplete",
+        "upstreamconnected",
+        "responsefirstbyte",
+        "responsecomplete"
+    };
 }
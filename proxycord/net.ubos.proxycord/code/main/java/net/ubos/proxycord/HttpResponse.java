@@ -6,8 +6,6 @@ package net.ubos.proxycord;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * An HTTP response.
@@ -48,15 +46,37 @@ public class HttpResponse
     
     @Override
     protected boolean parseFirstLine(
-            String firstLine )
+            byte [] data,
+            int     offset,
+            int     length )
     {
-        Matcher firstLineMatcher = FIRST_LINE_PATTERN.matcher( firstLine );
-        if( !firstLineMatcher.matches() ) {
+        // HTTP/version SP status [SP reason], where the reason phrase may be anything, or absent
+        int end = offset + length;
+        if( !isHttpPrefix( data, offset, end )) {
+            return false;
+        }
+        int versionStart = offset + HTTP_PREFIX.length;
+        int versionEnd   = versionStart;
+        while( versionEnd < end && data[versionEnd] != ' ' ) {
+            ++versionEnd;
+        }
+        String version = parseVersion( data, versionStart, versionEnd );
+        if( version == null || end - versionEnd < 4 ) {
             return false;
         }
-        theVersion = firstLineMatcher.group( 1 );
-        theStatus  = Integer.parseInt( firstLineMatcher.group( 2 ));
-        
+        int status = 0;
+        for( int i=versionEnd+1 ; i<versionEnd+4 ; ++i ) {
+            if( data[i] < '0' || data[i] > '9' ) {
+                return false;
+            }
+            status = 10 * status + ( data[i] - '0' );
+        }
+        if( versionEnd + 4 < end && data[ versionEnd+4 ] != ' ' ) {
+            return false;
+        }
+        theVersion = version;
+        theStatus  = status;
+
         return true;
     }
 
@@ -70,14 +90,24 @@ public class HttpResponse
         return theStatus;
     }
 
+    /**
+     * Responses with status 1xx, 204 and 304 never have a body.
+     * 
+     * @return true if it has no body
+     */
+    @Override
+    public boolean isBodiless()
+    {
+        return theStatus < 200 || theStatus == 204 || theStatus == 304;
+    }
+
     /**
      * The HTTP status.
      */
     protected int theStatus;
 
     /**
-     * Regex for the first line in the HTTP response.
+     * The HTTP status with which a connection is switched to another protocol.
      */
-    protected static final Pattern FIRST_LINE_PATTERN = Pattern.compile(
-            "^HTTP/([\\d\\.]+) (\\d+) ([a-zA-Z0-9 ]+)$" );
+    public static final int HTTP_SWITCHING_PROTOCOLS_STATUS = 101;
 }
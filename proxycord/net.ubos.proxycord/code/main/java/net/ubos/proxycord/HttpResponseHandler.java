@@ -4,9 +4,10 @@
 
 package net.ubos.proxycord;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,30 +36,42 @@ public class HttpResponseHandler
     @Override
     public void run()
     {
-        BufferedInputStream  clientInStream  = null;
-        BufferedOutputStream serverOutStream = null;
-        
-        byte [] buf = new byte[4096];
+        SocketChannel clientSideChannel = theRequestHandler.getClientSideChannel();
+        SocketChannel serverSideChannel = theRequestHandler.getServerSideChannel();
+
+        BufferPool pool = theRequestHandler.getBufferPool();
+        ByteBuffer buf  = pool.acquire();
         try {
-            clientInStream  = new BufferedInputStream(  theRequestHandler.getClientSideSocket().getInputStream() );
-            serverOutStream = new BufferedOutputStream( theRequestHandler.getServerSideSocket().getOutputStream() );
+            int read = -1;
+            while( true ) {
+                buf  = pool.next( buf, read );
+                read = clientSideChannel.read( buf );
+                if( read <= 0 ) {
+                    break;
+                }
+                buf.flip();
 
-            int read;
-            while( ( read = clientInStream.read( buf )) > 0 ) {
                 if( LOG.isLoggable( Level.INFO )) {
                     LOG.info( String.format( "Received (%s) %d bytes", theRequestHandler.getName(), read ));
                 }
 
-                theRequestHandler.logResponseData( buf, read );
+                theRequestHandler.logResponseData( buf );
 
-                serverOutStream.write( buf, 0, read );
-                serverOutStream.flush();
+                HttpRequestHandler.writeFully( serverSideChannel, buf );
+                theRequestHandler.getMetrics().add( Metrics.Counter.CLIENT_SENT_BYTES, read );
                 
                 if( LOG.isLoggable( Level.INFO )) {
                     LOG.info( String.format( "Sent (%s) %d bytes", theRequestHandler.getName(), read ));
                 }
             }
+
+            // the remote host has closed its side, so the client must learn that a
+            // response whose body extends until the connection is closed is complete
+            serverSideChannel.shutdownOutput();
         
+        } catch( ClosedChannelException ex ) {
+            // cleanup time
+            
         } catch( SocketException ex ) {
             // cleanup time
             
@@ -66,30 +79,11 @@ public class HttpResponseHandler
             ex.printStackTrace();
 
         } finally {
-
-            try {
-                if( serverOutStream != null ) {
-                    serverOutStream.flush();
-                }
-            } catch( Exception ex ) {
-                ex.printStackTrace();
-            }
+            pool.release( buf );
+            theRequestHandler.logResponseEnd();
         }
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public void finalize()
-        throws
-            Throwable
-    {
-        LOG.log( Level.INFO, "Finalizing {0} ({1})", new Object[]{ this, theRequestHandler.getName() } );
-
-        super.finalize();
-    }
-
     /**
      * The HttpRequestHandler to which this HttpResponseHandler belongs.
      */
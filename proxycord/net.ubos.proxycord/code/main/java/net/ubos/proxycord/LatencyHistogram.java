@@ -0,0 +1,201 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects durations into log-linear buckets, so percentiles can be
+ * determined with a bounded relative error (about 3%) and bounded memory,
+ * regardless of how many durations have been recorded. Recording never
+ * takes a lock, so it can be done on the forwarding and capture Threads.
+ */
+public class LatencyHistogram
+{
+    /**
+     * Constructor.
+     */
+    public LatencyHistogram()
+    {
+        theBuckets = new AtomicLongArray( bucketIndex( Long.MAX_VALUE ) + 1 );
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration, in nanoseconds; negative durations are ignored
+     */
+    public void record(
+            long nanos )
+    {
+        if( nanos < 0 ) {
+            return;
+        }
+        theBuckets.incrementAndGet( bucketIndex( nanos ));
+        theCount.increment();
+        theSum.add( nanos );
+        theMax.accumulateAndGet( nanos, Math::max );
+    }
+
+    /**
+     * Add all values recorded by another LatencyHistogram to this one.
+     *
+     * @param other the other LatencyHistogram
+     */
+    public void add(
+            LatencyHistogram other )
+    {
+        for( int i=0 ; i<theBuckets.length() ; ++i ) {
+            long n = other.theBuckets.get( i );
+            if( n > 0 ) {
+                theBuckets.addAndGet( i, n );
+            }
+        }
+        theCount.add( other.getCount() );
+        theSum.add( other.getSum() );
+        theMax.accumulateAndGet( other.getMax(), Math::max );
+    }
+
+    /**
+     * Obtain the number of recorded durations.
+     *
+     * @return the number
+     */
+    public long getCount()
+    {
+        return theCount.sum();
+    }
+
+    /**
+     * Obtain the sum of the recorded durations.
+     *
+     * @return the sum, in nanoseconds
+     */
+    public long getSum()
+    {
+        return theSum.sum();
+    }
+
+    /**
+     * Obtain the longest recorded duration.
+     *
+     * @return the duration, in nanoseconds
+     */
+    public long getMax()
+    {
+        return theMax.get();
+    }
+
+    /**
+     * Determine the duration below which a given fraction of the recorded
+     * durations fall. While durations are being recorded concurrently, this
+     * is only approximately consistent.
+     *
+     * @param fraction the fraction, e.g. 0.99 for the 99th percentile
+     * @return the duration, in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getPercentile(
+            double fraction )
+    {
+        long [] counts = new long[ theBuckets.length() ];
+        long    total  = 0;
+        for( int i=0 ; i<counts.length ; ++i ) {
+            counts[i] = theBuckets.get( i );
+            total    += counts[i];
+        }
+        if( total == 0 ) {
+            return 0;
+        }
+        long target     = Math.max( 1, (long) Math.ceil( fraction * total ));
+        long cumulative = 0;
+        for( int i=0 ; i<counts.length ; ++i ) {
+            cumulative += counts[i];
+            if( cumulative >= target ) {
+                return Math.min( bucketUpperBound( i ), getMax() );
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Determine the bucket for a duration. Durations below SUB_BUCKETS have
+     * their own bucket; above, each power of two is split into HALF_SUB_BUCKETS
+     * buckets of equal width.
+     *
+     * @param value the duration, not negative
+     * @return the index of the bucket
+     */
+    protected static int bucketIndex(
+            long value )
+    {
+        if( value < SUB_BUCKETS ) {
+            return (int) value;
+        }
+        int msb   = 63 - Long.numberOfLeadingZeros( value );
+        int shift = msb - SUB_BUCKET_BITS + 1;
+        int top   = (int) ( value >>> shift ); // between HALF_SUB_BUCKETS and SUB_BUCKETS-1
+
+        return SUB_BUCKETS + ( shift-1 ) * HALF_SUB_BUCKETS + ( top - HALF_SUB_BUCKETS );
+    }
+
+    /**
+     * Determine the largest duration that falls into a bucket.
+     *
+     * @param index the index of the bucket
+     * @return the duration
+     */
+    protected static long bucketUpperBound(
+            int index )
+    {
+        if( index < SUB_BUCKETS ) {
+            return index;
+        }
+        int  k     = index - SUB_BUCKETS;
+        int  shift = k / HALF_SUB_BUCKETS + 1;
+        long top   = k % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+
+        if( shift + SUB_BUCKET_BITS >= 63 ) {
+            return Long.MAX_VALUE;
+        }
+        return (( top + 1 ) << shift ) - 1;
+    }
+
+    /**
+     * Number of durations recorded per bucket.
+     */
+    protected final AtomicLongArray theBuckets;
+
+    /**
+     * Number of recorded durations.
+     */
+    protected final LongAdder theCount = new LongAdder();
+
+    /**
+     * Sum of the recorded durations.
+     */
+    protected final LongAdder theSum = new LongAdder();
+
+    /**
+     * Longest recorded duration.
+     */
+    protected final AtomicLong theMax = new AtomicLong();
+
+    /**
+     * Number of bits determining the bucket within a power of two.
+     */
+    protected static final int SUB_BUCKET_BITS = 6;
+
+    /**
+     * Number of buckets for the smallest durations.
+     */
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of buckets per power of two above that.
+     */
+    protected static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+}
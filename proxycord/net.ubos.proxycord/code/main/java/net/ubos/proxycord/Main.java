@@ -9,6 +9,7 @@ import com.beust.jcommander.ParameterException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
@@ -40,11 +41,92 @@ public class Main
                 }
             }
         }
-                
+
+        if( args.recover != null ) {
+            try {
+                StepJournal.convert( new File( args.recover ), args.out );
+                System.exit( 0 );
+
+            } catch( IOException ex ) {
+                LOG.severe( ex.getMessage() );
+                System.exit( 1 );
+            }
+        }
+
+        if( args.convert != null ) {
+            try {
+                Proxycord app = Proxycord.create();
+                app.setOutputFormat( args.outFormat );
+                app.setDeduplicateSavedBodies( !args.keepDuplicateBodies );
+                app.setSavedBodyCompression( args.savedBodyCodec, args.bodyCodecLevel );
+
+                app.convert( new File( args.convert ), args.out );
+                System.exit( 0 );
+
+            } catch( IOException ex ) {
+                LOG.severe( ex.getMessage() );
+                System.exit( 1 );
+            }
+        }
+
+        if( args.replay != null ) {
+            try {
+                Replayer replayer = Replayer.create(
+                        RecordingReader.readAll( new File( args.replay )),
+                        args.remoteHost,
+                        args.remotePort );
+                replayer.setVirtualUsers( args.replayUsers );
+                replayer.setConcurrency( args.replayConcurrency );
+                replayer.setPacing( args.replayPacing, args.replayThinkTime );
+
+                replayer.run();
+                replayer.writeReport( new PrintWriter( System.out ));
+                System.exit( 0 );
+
+            } catch( IOException | InterruptedException ex ) {
+                LOG.severe( ex.getMessage() );
+                System.exit( 1 );
+            }
+        }
+
         Proxycord app = Proxycord.create();
+        app.setEngine( args.engine );
+        app.setNioEventLoops( args.nioThreads );
+        app.setCaptureOverflowPolicy( args.captureOverflow );
+        app.setCaptureQueueCapacity( args.captureQueue );
+        app.setMaxRecordedContent( args.maxRecordedBody );
+        app.setDeduplicateSavedBodies( !args.keepDuplicateBodies );
+        app.setOutputFormat( args.outFormat );
+        app.setSavedBodyCompression( args.savedBodyCodec, args.bodyCodecLevel );
+        app.setRecordedBodyCompression( args.recordedBodyCodec, args.bodyCodecLevel );
+        app.setBodySpill( args.bodySpillThreshold, args.maxSpilledBody, args.bodySpillDirectory != null ? new File( args.bodySpillDirectory ) : null );
+        app.setUpstreamPooling( args.upstreamPool, args.upstreamMaxIdle, args.upstreamIdleTimeout );
+        app.setMetricsPort( args.metricsPort );
 
         int status = 1;
         try {
+            if( args.playback != null ) {
+                try( RecordingReader reader = RecordingReader.create( new File( args.playback ))) {
+                    app.setPlaybackIndex( PlaybackIndex.create(
+                            reader,
+                            args.playbackPolicy,
+                            args.playbackMatchHeaders,
+                            !args.playbackIgnoreBody ));
+                }
+            }
+            if( args.journal != null ) {
+                app.setJournal( StepJournal.create( new File( args.journal )));
+            }
+            if(    args.maxStepsInMemory < Integer.MAX_VALUE
+                || args.maxBytesInMemory < Long.MAX_VALUE
+                || args.spillFile != null )
+            {
+                app.setStepSpiller( StepSpiller.create(
+                        args.spillFile != null ? new File( args.spillFile ) : null,
+                        args.maxStepsInMemory,
+                        args.maxBytesInMemory ));
+            }
+
             status = app.run(
                     args.localHost,
                     args.localPort,
@@ -52,7 +134,7 @@ public class Main
                     args.remotePort );
 
             if( args.out != null ) {
-                app.writeJsonOutput( args.out );
+                app.writeOutput( args.out );
             }
 
         } catch( Throwable t ) {
@@ -87,7 +169,24 @@ public class Main
             commander.usage();
             System.exit( 0 );
         }
-        if( args.remoteHost == null ) {
+        if( args.bodyCodecLevel < BodyCodec.MIN_LEVEL || args.bodyCodecLevel > BodyCodec.MAX_LEVEL ) {
+            System.err.println( "--body-codec-level must be from " + BodyCodec.MIN_LEVEL + " to " + BodyCodec.MAX_LEVEL );
+            commander.usage();
+            System.exit( 0 );
+        }
+        if( args.recover != null ) {
+            if( args.out == null ) {
+                System.err.println( "--recover requires --out" );
+                commander.usage();
+                System.exit( 0 );
+            }
+        } else if( args.convert != null ) {
+            if( args.out == null ) {
+                System.err.println( "--convert requires --out" );
+                commander.usage();
+                System.exit( 0 );
+            }
+        } else if( args.remoteHost == null && args.playback == null ) {
             commander.usage();
             System.exit( 0 );
         }
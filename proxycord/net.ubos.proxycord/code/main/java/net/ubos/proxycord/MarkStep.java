@@ -7,6 +7,8 @@ package net.ubos.proxycord;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Marks and possibly names a spot in the recording.
@@ -37,6 +39,42 @@ public class MarkStep
         return new MarkStep( name );
     }
 
+    /**
+     * Factory method to re-create a MarkStep from the JSON it was saved as.
+     *
+     * @param json the JSON, as produced by asJson() or writeJson()
+     * @return the created instance
+     */
+    public static MarkStep fromJson(
+            JsonObject json )
+    {
+        return new MarkStep( json.get( "name" ).getAsString() );
+    }
+
+    /**
+     * Factory method to re-create a MarkStep from its record in a binary recording.
+     *
+     * @param recording the binary recording
+     * @param in the record, as written by writeBinary()
+     * @return the created instance
+     */
+    public static MarkStep fromBinary(
+            BinaryRecording recording,
+            ByteBuffer      in )
+    {
+        return new MarkStep( recording.readString( in ));
+    }
+
+    /**
+     * Obtain the name of the mark.
+     *
+     * @return the name
+     */
+    public String getName()
+    {
+        return theName;
+    }
+
     /**
      * Private constructor, use factory method.
      * 
@@ -57,6 +95,28 @@ public class MarkStep
         return jsonRet;
     }
 
+    @Override
+    public void writeJson(
+            RecordingJsonWriter w )
+        throws
+            IOException
+    {
+        w.beginObject();
+        w.name( "type" ).value( "Mark" );
+        w.name( "name" ).value( theName );
+        w.endObject();
+    }
+
+    @Override
+    public void writeBinary(
+            BinaryRecordingWriter w )
+        throws
+            IOException
+    {
+        w.beginStep( BinaryRecording.TYPE_MARK );
+        w.writeString( theName );
+    }
+
     /**
      * Convert to String, for output on the console.
      * 
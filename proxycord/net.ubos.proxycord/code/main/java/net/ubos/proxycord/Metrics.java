@@ -0,0 +1,354 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms describing what Proxycord is
+ * doing. All of them can be updated from any Thread without taking a lock.
+ */
+public class Metrics
+{
+    /**
+     * Factory method.
+     *
+     * @return the created instance
+     */
+    public static Metrics create()
+    {
+        return new Metrics();
+    }
+
+    /**
+     * Private constructor, use factory method.
+     */
+    protected Metrics()
+    {
+        for( Counter counter : Counter.values() ) {
+            theCounters.put( counter, new LongAdder() );
+        }
+        for( Latency latency : Latency.values() ) {
+            theLatencies.put( latency, new LatencyHistogram() );
+        }
+    }
+
+    /**
+     * Add to a counter or gauge.
+     *
+     * @param counter the counter or gauge
+     * @param delta the amount to add; may be negative for gauges
+     */
+    public void add(
+            Counter counter,
+            long    delta )
+    {
+        theCounters.get( counter ).add( delta );
+    }
+
+    /**
+     * Increment a counter or gauge by one.
+     *
+     * @param counter the counter or gauge
+     */
+    public void increment(
+            Counter counter )
+    {
+        theCounters.get( counter ).increment();
+    }
+
+    /**
+     * Decrement a gauge by one.
+     *
+     * @param counter the gauge
+     */
+    public void decrement(
+            Counter counter )
+    {
+        theCounters.get( counter ).decrement();
+    }
+
+    /**
+     * Obtain the current value of a counter or gauge.
+     *
+     * @param counter the counter or gauge
+     * @return the value
+     */
+    public long get(
+            Counter counter )
+    {
+        return theCounters.get( counter ).sum();
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param latency the kind of duration
+     * @param nanos the duration, in nanoseconds; negative durations are ignored
+     */
+    public void record(
+            Latency latency,
+            long    nanos )
+    {
+        theLatencies.get( latency ).record( nanos );
+    }
+
+    /**
+     * Obtain the histogram for a kind of duration.
+     *
+     * @param latency the kind of duration
+     * @return the histogram
+     */
+    public LatencyHistogram getHistogram(
+            Latency latency )
+    {
+        return theLatencies.get( latency );
+    }
+
+    /**
+     * Write all metrics in a format suitable for humans.
+     *
+     * @param w the writer to write to
+     */
+    public void writeText(
+            PrintWriter w )
+    {
+        for( Counter counter : Counter.values() ) {
+            w.println( String.format( "%-28s %d", counter.getLabel(), get( counter )));
+        }
+        for( Latency latency : Latency.values() ) {
+            LatencyHistogram h = getHistogram( latency );
+            long             n = h.getCount();
+
+            w.print( String.format( "%-28s n=%d", latency.getLabel(), n ));
+            if( n > 0 ) {
+                w.print( String.format( " mean=%.3fms", h.getSum() / 1e6 / n ));
+                for( double q : QUANTILES ) {
+                    w.print( String.format( " p%s=%.3fms", quantileLabel( q ), h.getPercentile( q ) / 1e6 ));
+                }
+                w.print( String.format( " max=%.3fms", h.getMax() / 1e6 ));
+            }
+            w.println();
+        }
+        w.flush();
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format.
+     *
+     * @param w the writer to write to
+     */
+    public void writePrometheus(
+            PrintWriter w )
+    {
+        for( Counter counter : Counter.values() ) {
+            w.println( "# HELP " + counter.getName() + " " + counter.getHelp() );
+            w.println( "# TYPE " + counter.getName() + " " + ( counter.isGauge() ? "gauge" : "counter" ));
+            w.println( counter.getName() + " " + get( counter ));
+        }
+        for( Latency latency : Latency.values() ) {
+            LatencyHistogram h = getHistogram( latency );
+
+            w.println( "# HELP " + latency.getName() + " " + latency.getHelp() );
+            w.println( "# TYPE " + latency.getName() + " summary" );
+            for( double q : QUANTILES ) {
+                w.println( latency.getName() + "{quantile=\"" + q + "\"} " + ( h.getPercentile( q ) / 1e9 ));
+            }
+            w.println( latency.getName() + "_sum " + ( h.getSum() / 1e9 ));
+            w.println( latency.getName() + "_count " + h.getCount() );
+        }
+        w.flush();
+    }
+
+    /**
+     * Helper to turn a quantile into a percentile label, e.g. 0.999 into 99.9.
+     *
+     * @param q the quantile
+     * @return the label
+     */
+    protected static String quantileLabel(
+            double q )
+    {
+        String ret = String.valueOf( q * 100 );
+        if( ret.endsWith( ".0" )) {
+            ret = ret.substring( 0, ret.length()-2 );
+        }
+        return ret;
+    }
+
+    /**
+     * The counters and gauges.
+     */
+    protected final Map<Counter,LongAdder> theCounters = new EnumMap<>( Counter.class );
+
+    /**
+     * The latency histograms.
+     */
+    protected final Map<Latency,LatencyHistogram> theLatencies = new EnumMap<>( Latency.class );
+
+    /**
+     * The quantiles reported for each latency histogram.
+     */
+    protected static final double [] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /**
+     * The known counters and gauges.
+     */
+    public static enum Counter
+    {
+        CLIENT_RECEIVED_BYTES( "proxycord_client_received_bytes_total", false, "Bytes received from clients" ),
+        REMOTE_SENT_BYTES(     "proxycord_remote_sent_bytes_total",     false, "Bytes sent to the remote host" ),
+        REMOTE_RECEIVED_BYTES( "proxycord_remote_received_bytes_total", false, "Bytes received from the remote host" ),
+        CLIENT_SENT_BYTES(     "proxycord_client_sent_bytes_total",     false, "Bytes sent to clients" ),
+        ACCEPTED_CONNECTIONS(  "proxycord_connections_accepted_total",  false, "Client connections accepted" ),
+        ACTIVE_CONNECTIONS(    "proxycord_connections_active",          true,  "Client connections currently open" ),
+        QUEUED_WORKER_TASKS(   "proxycord_worker_tasks_queued",         true,  "Tasks waiting for a worker thread" ),
+        STEPS_RECORDED(        "proxycord_steps_recorded_total",        false, "Steps recorded" ),
+        INCOMPLETE_EXCHANGES(  "proxycord_exchanges_incomplete_total",  false, "Exchanges recorded without a request or a complete response" ),
+        DEDUPLICATED_BYTES(    "proxycord_deduplicated_bytes_total",    false, "Bytes of recorded bodies not kept again because they had been recorded before" ),
+        COMPRESSION_SAVINGS(   "proxycord_compression_savings_total",   false, "Bytes of memory saved by compressing recorded bodies" ),
+        PLAYBACK_HITS(         "proxycord_playback_hits_total",         false, "Requests answered from the recording in playback" ),
+        PLAYBACK_MISSES(       "proxycord_playback_misses_total",       false, "Requests not found in the recording in playback" );
+
+        /**
+         * Constructor.
+         *
+         * @param name the name in the Prometheus format
+         * @param isGauge true if this is a gauge, false if a counter
+         * @param help the help text
+         */
+        Counter(
+                String  name,
+                boolean isGauge,
+                String  help )
+        {
+            theName    = name;
+            theIsGauge = isGauge;
+            theHelp    = help;
+        }
+
+        /**
+         * Obtain the name in the Prometheus format.
+         *
+         * @return the name
+         */
+        public String getName()
+        {
+            return theName;
+        }
+
+        /**
+         * Obtain a short label for humans.
+         *
+         * @return the label
+         */
+        public String getLabel()
+        {
+            return name().toLowerCase().replace( '_', '-' );
+        }
+
+        /**
+         * Determine whether this is a gauge, which can go down as well as up.
+         *
+         * @return true if a gauge
+         */
+        public boolean isGauge()
+        {
+            return theIsGauge;
+        }
+
+        /**
+         * Obtain the help text.
+         *
+         * @return the help text
+         */
+        public String getHelp()
+        {
+            return theHelp;
+        }
+
+        /**
+         * The name in the Prometheus format.
+         */
+        protected final String theName;
+
+        /**
+         * True if this is a gauge.
+         */
+        protected final boolean theIsGauge;
+
+        /**
+         * The help text.
+         */
+        protected final String theHelp;
+    }
+
+    /**
+     * The known kinds of durations.
+     */
+    public static enum Latency
+    {
+        EXCHANGE( "proxycord_exchange_seconds", "Time from the first byte of a request to the last byte of its response" ),
+        REMOTE(   "proxycord_remote_seconds",   "Time from the last byte of a request to the first byte of its response" ),
+        PARSE(    "proxycord_parse_seconds",    "Time spent parsing one piece of captured traffic" );
+
+        /**
+         * Constructor.
+         *
+         * @param name the name in the Prometheus format
+         * @param help the help text
+         */
+        Latency(
+                String name,
+                String help )
+        {
+            theName = name;
+            theHelp = help;
+        }
+
+        /**
+         * Obtain the name in the Prometheus format.
+         *
+         * @return the name
+         */
+        public String getName()
+        {
+            return theName;
+        }
+
+        /**
+         * Obtain a short label for humans.
+         *
+         * @return the label
+         */
+        public String getLabel()
+        {
+            return name().toLowerCase() + "-latency";
+        }
+
+        /**
+         * Obtain the help text.
+         *
+         * @return the help text
+         */
+        public String getHelp()
+        {
+            return theHelp;
+        }
+
+        /**
+         * The name in the Prometheus format.
+         */
+        protected final String theName;
+
+        /**
+         * The help text.
+         */
+        protected final String theHelp;
+    }
+}
@@ -0,0 +1,134 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the Metrics over HTTP in the Prometheus text format, so they can
+ * be scraped while Proxycord is running.
+ */
+public class MetricsServer
+{
+    private final static Logger LOG = Logger.getLogger( MetricsServer.class.getName() );
+
+    /**
+     * Factory method. The server only listens on the loopback interface.
+     *
+     * @param metrics the Metrics to serve
+     * @param port the local port to open
+     * @return the created instance
+     * @throws IOException the port could not be opened
+     */
+    public static MetricsServer create(
+            Metrics metrics,
+            int     port )
+        throws
+            IOException
+    {
+        HttpServer server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), 0 );
+
+        return new MetricsServer( metrics, server );
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param metrics the Metrics to serve
+     * @param server the underlying HttpServer
+     */
+    protected MetricsServer(
+            Metrics    metrics,
+            HttpServer server )
+    {
+        theMetrics = metrics;
+        theServer  = server;
+
+        theServer.createContext( METRICS_PATH, this::handle );
+    }
+
+    /**
+     * Start serving.
+     */
+    public void start()
+    {
+        theServer.start();
+
+        LOG.log( Level.INFO, "Serving metrics at http://{0}:{1,number,#}{2}", new Object[] {
+                theServer.getAddress().getHostString(),
+                theServer.getAddress().getPort(),
+                METRICS_PATH } );
+    }
+
+    /**
+     * Handle an incoming HTTP request.
+     *
+     * @param exchange the exchange
+     * @throws IOException an I/O problem occurred
+     */
+    protected void handle(
+            HttpExchange exchange )
+        throws
+            IOException
+    {
+        try {
+            if( !"GET".equals( exchange.getRequestMethod() )) {
+                exchange.sendResponseHeaders( 405, -1 );
+                return;
+            }
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            theMetrics.writePrometheus( new PrintWriter( new OutputStreamWriter( buf, StandardCharsets.UTF_8 )));
+
+            exchange.getResponseHeaders().set( HttpMessage.HTTP_CONTENT_TYPE_HEADER, PROMETHEUS_CONTENT_TYPE );
+            exchange.sendResponseHeaders( 200, buf.size() );
+            try( OutputStream out = exchange.getResponseBody() ) {
+                buf.writeTo( out );
+            }
+
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Stop serving.
+     */
+    public void stop()
+    {
+        theServer.stop( 0 );
+    }
+
+    /**
+     * The Metrics to serve.
+     */
+    protected Metrics theMetrics;
+
+    /**
+     * The underlying HttpServer.
+     */
+    protected HttpServer theServer;
+
+    /**
+     * The path at which the Metrics are served.
+     */
+    public static final String METRICS_PATH = "/metrics";
+
+    /**
+     * The content type of the Prometheus text format.
+     */
+    protected static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+}
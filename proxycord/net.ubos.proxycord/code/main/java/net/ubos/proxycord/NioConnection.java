@@ -0,0 +1,445 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One proxied connection in the NIO engine: the server-side channel from the
+ * client, the client-side channel to the remote host, and a buffer for each
+ * direction. The buffers are direct ByteBuffers from the BufferPool, whose
+ * size follows the amount of data each read brings in. All methods other
+ * than the constructor are invoked on the Thread of the NioEventLoop the
+ * connection has been registered with.
+ */
+public class NioConnection
+{
+    private final static Logger LOG = Logger.getLogger( NioConnection.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param name name of this connection, for logging
+     * @param serverSideChannel the accepted channel from the client
+     * @param remoteAddress address of the remote host
+     * @param recorder records the traffic
+     * @param metrics where to count what we are doing
+     * @param bufferPool where to obtain buffers from
+     */
+    public NioConnection(
+            String               name,
+            SocketChannel        serverSideChannel,
+            InetSocketAddress    remoteAddress,
+            HttpExchangeRecorder recorder,
+            Metrics              metrics,
+            BufferPool           bufferPool )
+    {
+        theName              = name;
+        theServerSideChannel = serverSideChannel;
+        theRemoteAddress     = remoteAddress;
+        theRecorder          = recorder;
+        theMetrics           = metrics;
+        theBufferPool        = bufferPool;
+
+        theRequestBuffer  = emptyBuffer( bufferPool );
+        theResponseBuffer = emptyBuffer( bufferPool );
+    }
+
+    /**
+     * Register this connection with a Selector, and start connecting
+     * to the remote host.
+     *
+     * @param selector the Selector
+     * @param loop the NioEventLoop that services the Selector
+     */
+    public void register(
+            Selector     selector,
+            NioEventLoop loop )
+    {
+        // while the recorder is behind, we stop reading; it tells us when it has caught up
+        theRecorder.setCaptureSpaceListener( () -> loop.resume( this ));
+
+        try {
+            theServerSideChannel.configureBlocking( false );
+            theServerSideChannel.socket().setTcpNoDelay( true );
+            theServerSideKey = theServerSideChannel.register( selector, 0, this );
+
+            theClientSideChannel = SocketChannel.open();
+            theClientSideChannel.configureBlocking( false );
+            theClientSideChannel.socket().setTcpNoDelay( true );
+            theClientSideKey = theClientSideChannel.register( selector, 0, this );
+
+            theIsConnected = theClientSideChannel.connect( theRemoteAddress );
+            if( theIsConnected ) {
+                theRecorder.logUpstreamConnected();
+            }
+
+            updateInterests();
+
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Handle a SelectionKey that the Selector has found to be ready.
+     *
+     * @param key the SelectionKey
+     */
+    public void handle(
+            SelectionKey key )
+    {
+        try {
+            if( key == theClientSideKey && key.isValid() && key.isConnectable() ) {
+                theIsConnected = theClientSideChannel.finishConnect();
+                if( theIsConnected ) {
+                    theRecorder.logUpstreamConnected();
+                }
+            }
+            if( key.isValid() && key.isReadable() ) {
+                if( key == theServerSideKey ) {
+                    readRequestData();
+                } else {
+                    readResponseData();
+                }
+            }
+            if( key.isValid() && key.isWritable() ) {
+                if( key == theServerSideKey ) {
+                    writeResponseData();
+                } else {
+                    writeRequestData();
+                }
+            }
+            if( !theIsClosed ) {
+                updateInterests();
+            }
+
+        } catch( ClosedChannelException ex ) {
+            close();
+
+        } catch( IOException ex ) {
+            LOG.log( Level.INFO, "Closing (" + theName + ")", ex );
+            close();
+        }
+    }
+
+    /**
+     * The recorder has caught up, so we may be able to read again.
+     */
+    public void resume()
+    {
+        if( theIsClosed ) {
+            return;
+        }
+        try {
+            updateInterests();
+
+        } catch( ClosedChannelException ex ) {
+            close();
+
+        } catch( IOException ex ) {
+            LOG.log( Level.INFO, "Closing (" + theName + ")", ex );
+            close();
+        }
+    }
+
+    /**
+     * Read from the client, and pass on to the remote host.
+     *
+     * @throws IOException an I/O problem occurred
+     */
+    protected void readRequestData()
+        throws
+            IOException
+    {
+        theRequestBuffer = theBufferPool.next( theRequestBuffer, theLastRequestRead );
+        int read = theServerSideChannel.read( theRequestBuffer );
+        theRequestBuffer.flip();
+        theLastRequestRead = read;
+
+        if( read < 0 ) {
+            theRequestDone = true;
+
+        } else if( read > 0 ) {
+            if( LOG.isLoggable( Level.INFO )) {
+                LOG.info( String.format( "Received (%s) %d bytes", theName, read ));
+            }
+            theRecorder.logRequestData( theRequestBuffer );
+
+            if( theIsConnected ) {
+                writeRequestData();
+            }
+        }
+    }
+
+    /**
+     * Read from the remote host, and pass on to the client.
+     *
+     * @throws IOException an I/O problem occurred
+     */
+    protected void readResponseData()
+        throws
+            IOException
+    {
+        theResponseBuffer = theBufferPool.next( theResponseBuffer, theLastResponseRead );
+        int read = theClientSideChannel.read( theResponseBuffer );
+        theResponseBuffer.flip();
+        theLastResponseRead = read;
+
+        if( read < 0 ) {
+            theResponseDone = true;
+            theRecorder.logResponseEnd();
+
+        } else if( read > 0 ) {
+            if( LOG.isLoggable( Level.INFO )) {
+                LOG.info( String.format( "Received (%s) %d bytes", theName, read ));
+            }
+            theRecorder.logResponseData( theResponseBuffer );
+
+            writeResponseData();
+        }
+    }
+
+    /**
+     * Write as much of the buffered request data to the remote host as it
+     * will take without blocking.
+     *
+     * @throws IOException an I/O problem occurred
+     */
+    protected void writeRequestData()
+        throws
+            IOException
+    {
+        int written = theClientSideChannel.write( theRequestBuffer );
+        theMetrics.add( Metrics.Counter.REMOTE_SENT_BYTES, written );
+
+        if( LOG.isLoggable( Level.INFO )) {
+            LOG.info( String.format( "Sent (%s) %d bytes", theName, written ));
+        }
+    }
+
+    /**
+     * Write as much of the buffered response data to the client as it
+     * will take without blocking.
+     *
+     * @throws IOException an I/O problem occurred
+     */
+    protected void writeResponseData()
+        throws
+            IOException
+    {
+        int written = theServerSideChannel.write( theResponseBuffer );
+        theMetrics.add( Metrics.Counter.CLIENT_SENT_BYTES, written );
+
+        if( LOG.isLoggable( Level.INFO )) {
+            LOG.info( String.format( "Sent (%s) %d bytes", theName, written ));
+        }
+    }
+
+    /**
+     * Determine what we are waiting for next on both channels. We only read
+     * from one side when everything read earlier has been written to the
+     * other side, which bounds the memory needed per connection, and when
+     * the recorder can take what we read without making us wait. Once one
+     * side has closed and its data has been passed on, we close the output
+     * of the other side; once both have, we are done.
+     *
+     * @throws IOException an I/O problem occurred
+     */
+    protected void updateInterests()
+        throws
+            IOException
+    {
+        if( !theIsConnected ) {
+            theServerSideKey.interestOps( 0 );
+            theClientSideKey.interestOps( SelectionKey.OP_CONNECT );
+            return;
+        }
+
+        boolean requestPending  = theRequestBuffer.hasRemaining();
+        boolean responsePending = theResponseBuffer.hasRemaining();
+
+        if( theRequestDone && !requestPending && !theClientSideOutputShutdown ) {
+            theClientSideChannel.shutdownOutput();
+            theClientSideOutputShutdown = true;
+        }
+        if( theResponseDone && !responsePending ) {
+            // when the remote host is done, we are done
+            close();
+            return;
+        }
+
+        int serverSideOps = 0;
+        if( !theRequestDone && !requestPending && theRecorder.canLogRequestData() ) {
+            serverSideOps |= SelectionKey.OP_READ;
+        }
+        if( responsePending ) {
+            serverSideOps |= SelectionKey.OP_WRITE;
+        }
+
+        int clientSideOps = 0;
+        if( !responsePending && theRecorder.canLogResponseData() ) {
+            clientSideOps |= SelectionKey.OP_READ;
+        }
+        if( requestPending ) {
+            clientSideOps |= SelectionKey.OP_WRITE;
+        }
+
+        theServerSideKey.interestOps( serverSideOps );
+        theClientSideKey.interestOps( clientSideOps );
+    }
+
+    /**
+     * Close both channels, and return the buffers to the BufferPool.
+     * This may be invoked more than once.
+     */
+    public void close()
+    {
+        if( theIsClosed ) {
+            return;
+        }
+        theIsClosed = true;
+        theMetrics.decrement( Metrics.Counter.ACTIVE_CONNECTIONS );
+        if( !theResponseDone ) {
+            theRecorder.logResponseEnd();
+        }
+
+        LOG.log( Level.INFO, "Closing connection ({0})", theName );
+
+        try {
+            theServerSideChannel.close();
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+        }
+        try {
+            if( theClientSideChannel != null ) {
+                theClientSideChannel.close();
+            }
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+        }
+
+        // whoever gets the buffers next may write into them, so we must not touch them any more
+        theBufferPool.release( theRequestBuffer );
+        theBufferPool.release( theResponseBuffer );
+        theRequestBuffer  = null;
+        theResponseBuffer = null;
+    }
+
+    /**
+     * Helper to obtain a buffer in the state "nothing left to write".
+     *
+     * @param bufferPool where to obtain the buffer from
+     * @return the buffer
+     */
+    protected static ByteBuffer emptyBuffer(
+            BufferPool bufferPool )
+    {
+        ByteBuffer ret = bufferPool.acquire();
+        ret.flip();
+        return ret;
+    }
+
+    /**
+     * Name of this connection, for logging.
+     */
+    protected String theName;
+
+    /**
+     * The server-side channel that was spawned due to an incoming request.
+     */
+    protected SocketChannel theServerSideChannel;
+
+    /**
+     * The client-side channel that connects to the remote website we are proxying.
+     */
+    protected SocketChannel theClientSideChannel;
+
+    /**
+     * The address of the remote host.
+     */
+    protected InetSocketAddress theRemoteAddress;
+
+    /**
+     * Records the traffic on this connection.
+     */
+    protected HttpExchangeRecorder theRecorder;
+
+    /**
+     * Where to count what we are doing.
+     */
+    protected Metrics theMetrics;
+
+    /**
+     * Where to obtain buffers from, and return them to.
+     */
+    protected BufferPool theBufferPool;
+
+    /**
+     * Registration of the server-side channel.
+     */
+    protected SelectionKey theServerSideKey;
+
+    /**
+     * Registration of the client-side channel.
+     */
+    protected SelectionKey theClientSideKey;
+
+    /**
+     * Request data read from the client but not yet written to the remote host.
+     */
+    protected ByteBuffer theRequestBuffer;
+
+    /**
+     * Response data read from the remote host but not yet written to the client.
+     */
+    protected ByteBuffer theResponseBuffer;
+
+    /**
+     * The number of bytes obtained by the most recent read from the client,
+     * which determines the size of the buffer for the next one.
+     */
+    protected int theLastRequestRead = -1;
+
+    /**
+     * The number of bytes obtained by the most recent read from the remote
+     * host, which determines the size of the buffer for the next one.
+     */
+    protected int theLastResponseRead = -1;
+
+    /**
+     * True once the connection to the remote host has been established.
+     */
+    protected boolean theIsConnected;
+
+    /**
+     * True once the client has closed its side.
+     */
+    protected boolean theRequestDone;
+
+    /**
+     * True once the remote host has closed its side.
+     */
+    protected boolean theResponseDone;
+
+    /**
+     * True once we have passed on to the remote host that the client has closed its side.
+     */
+    protected boolean theClientSideOutputShutdown;
+
+    /**
+     * True once this connection has been closed.
+     */
+    protected boolean theIsClosed;
+}
@@ -0,0 +1,178 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * Handles incoming HTTP connection requests to the opened ServerSocketChannel
+ * and hands them to a fixed number of NioEventLoops, which move the bytes
+ * in both directions without blocking.
+ */
+public class NioConnectionHandler
+    implements
+        ConnectionHandler
+{
+    private final static Logger LOG = Logger.getLogger( NioConnectionHandler.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param app the application
+     * @param localHost local IP address to bind to
+     * @param localPort local port to open
+     * @param remoteHost remote host to connect to
+     * @param remotePort remote port to connect to
+     * @param nEventLoops the number of event loops to run
+     * @throws IOException the local port could not be opened, or the remote host could not be resolved
+     */
+    protected NioConnectionHandler(
+            Proxycord app,
+            String    localHost,
+            int       localPort,
+            String    remoteHost,
+            int       remotePort,
+            int       nEventLoops )
+        throws
+            IOException
+    {
+        theApp       = app;
+        theLocalHost = localHost;
+        theLocalPort = localPort;
+
+        // resolved once here, so the accept loop never waits for DNS
+        theRemoteAddress = new InetSocketAddress( InetAddress.getByName( remoteHost ), remotePort );
+
+        theServerChannel = ServerSocketChannel.open();
+        theServerChannel.setOption( StandardSocketOptions.SO_REUSEADDR, true );
+
+        if( theLocalHost != null ) {
+            theServerChannel.bind( new InetSocketAddress( InetAddress.getByName( theLocalHost ), theLocalPort ));
+        } else {
+            theServerChannel.bind( new InetSocketAddress( theLocalPort ));
+        }
+
+        theEventLoops = new NioEventLoop[ Math.max( 1, nEventLoops ) ];
+        for( int i=0 ; i<theEventLoops.length ; ++i ) {
+            theEventLoops[i] = new NioEventLoop( "nio-" + i );
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        Thread [] loopThreads = new Thread[ theEventLoops.length ];
+        for( int i=0 ; i<theEventLoops.length ; ++i ) {
+            loopThreads[i] = new Thread( theEventLoops[i], theEventLoops[i].getName() );
+            loopThreads[i].start();
+        }
+
+        int count = 0;
+        while( theIsActive ) {
+            try {
+                SocketChannel serverSideChannel = theServerChannel.accept();
+
+                if( theIsActive ) {
+                    LOG.info( "Accepting incoming connection request" );
+                    theApp.getMetrics().increment( Metrics.Counter.ACCEPTED_CONNECTIONS );
+                    theApp.getMetrics().increment( Metrics.Counter.ACTIVE_CONNECTIONS );
+
+                    String name = String.valueOf( count );
+
+                    NioConnection connection = new NioConnection(
+                            name,
+                            serverSideChannel,
+                            theRemoteAddress,
+                            new HttpExchangeRecorder( name, theApp ),
+                            theApp.getMetrics(),
+                            theApp.getBufferPool() );
+
+                    theEventLoops[ count % theEventLoops.length ].addConnection( connection );
+                    ++count;
+
+                } else {
+                    serverSideChannel.close();
+                }
+
+            } catch( AsynchronousCloseException ex ) {
+                // we are shutting down
+                break;
+            } catch( IOException ex ) {
+                ex.printStackTrace();
+                break;
+            }
+        }
+
+        try {
+            theServerChannel.close();
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+        }
+
+        for( NioEventLoop loop : theEventLoops ) {
+            loop.setInactive();
+        }
+        for( Thread loopThread : loopThreads ) {
+            try {
+                loopThread.join();
+            } catch( InterruptedException ex ) {
+                // we are shutting down anyway
+            }
+        }
+    }
+
+    @Override
+    public void setInactive()
+    {
+        theIsActive = false;
+        try {
+            theServerChannel.close();
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * The application.
+     */
+    protected Proxycord theApp;
+
+    /**
+     * Continue processing while this flag is true.
+     */
+    protected volatile boolean theIsActive = true;
+
+    /**
+     * The locally opened ServerSocketChannel
+     */
+    protected ServerSocketChannel theServerChannel;
+
+    /**
+     * The event loops that the accepted connections are distributed over.
+     */
+    protected NioEventLoop [] theEventLoops;
+
+    /**
+     * Local IP address to bind to.
+     */
+    protected String theLocalHost;
+
+    /**
+     * Local port to open.
+     */
+    protected int theLocalPort;
+
+    /**
+     * Remote address to connect to, resolved once.
+     */
+    protected InetSocketAddress theRemoteAddress;
+}
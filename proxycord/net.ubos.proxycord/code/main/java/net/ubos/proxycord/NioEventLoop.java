@@ -0,0 +1,154 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One Selector, and the Thread that services it. All I/O of the
+ * NioConnections registered with it happens on this Thread.
+ */
+public class NioEventLoop
+    implements
+        Runnable
+{
+    private final static Logger LOG = Logger.getLogger( NioEventLoop.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param name name of this event loop, for logging
+     * @throws IOException the Selector could not be opened
+     */
+    public NioEventLoop(
+            String name )
+        throws
+            IOException
+    {
+        theName     = name;
+        theSelector = Selector.open();
+    }
+
+    /**
+     * Obtain name, for logging.
+     *
+     * @return the name
+     */
+    public String getName()
+    {
+        return theName;
+    }
+
+    /**
+     * Hand a new connection to this event loop. May be invoked from any Thread.
+     *
+     * @param connection the connection
+     */
+    public void addConnection(
+            NioConnection connection )
+    {
+        theNewConnections.add( connection );
+        theSelector.wakeup();
+    }
+
+    /**
+     * Have a connection reconsider what it is waiting for, because something
+     * has changed outside of this event loop. May be invoked from any Thread.
+     *
+     * @param connection the connection
+     */
+    public void resume(
+            NioConnection connection )
+    {
+        theResumedConnections.add( connection );
+        theSelector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        while( theIsActive ) {
+            try {
+                theSelector.select();
+
+            } catch( IOException ex ) {
+                ex.printStackTrace();
+                break;
+            }
+
+            NioConnection newConnection;
+            while( ( newConnection = theNewConnections.poll()) != null ) {
+                newConnection.register( theSelector, this );
+            }
+            NioConnection resumedConnection;
+            while( ( resumedConnection = theResumedConnections.poll()) != null ) {
+                resumedConnection.resume();
+            }
+
+            Iterator<SelectionKey> iter = theSelector.selectedKeys().iterator();
+            while( iter.hasNext() ) {
+                SelectionKey key = iter.next();
+                iter.remove();
+
+                ((NioConnection) key.attachment()).handle( key );
+            }
+        }
+
+        for( SelectionKey key : theSelector.keys() ) {
+            ((NioConnection) key.attachment()).close();
+        }
+        NioConnection newConnection;
+        while( ( newConnection = theNewConnections.poll()) != null ) {
+            newConnection.close();
+        }
+        try {
+            theSelector.close();
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+        }
+        LOG.log( Level.INFO, "Event loop {0} done", theName );
+    }
+
+    /**
+     * Finish processing.
+     */
+    public void setInactive()
+    {
+        theIsActive = false;
+        theSelector.wakeup();
+    }
+
+    /**
+     * Name of this event loop, for logging.
+     */
+    protected String theName;
+
+    /**
+     * The Selector serviced by this event loop.
+     */
+    protected Selector theSelector;
+
+    /**
+     * Connections handed to us by another Thread that still need to be registered.
+     */
+    protected Queue<NioConnection> theNewConnections = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Connections that need to reconsider what they are waiting for.
+     */
+    protected Queue<NioConnection> theResumedConnections = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Continue processing while this flag is true.
+     */
+    protected volatile boolean theIsActive = true;
+}
@@ -0,0 +1,406 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the recorded response to a request in constant time, so a
+ * recording with many exchanges can be served in playback. Requests are
+ * matched by verb, path including query, the values of selected headers,
+ * and optionally a hash of the body.
+ */
+public class PlaybackIndex
+{
+    private final static Logger LOG = Logger.getLogger( PlaybackIndex.class.getName() );
+
+    /**
+     * Factory method.
+     *
+     * @param reader reads the recording
+     * @param policy which response to serve if the same request was recorded more than once
+     * @param matchHeaders names of the request headers whose values must match
+     * @param matchBody if true, request bodies must match
+     * @return the created instance
+     * @throws IOException the recording could not be read
+     */
+    public static PlaybackIndex create(
+            RecordingReader reader,
+            PlaybackPolicy  policy,
+            List<String>    matchHeaders,
+            boolean         matchBody )
+        throws
+            IOException
+    {
+        PlaybackIndex ret = new PlaybackIndex( policy, matchHeaders.toArray( new String[ matchHeaders.size() ] ), matchBody );
+
+        // collect first, so each Entry gets an array of exactly the right size
+        Map<Key,List<HttpResponse>> collected = new HashMap<>();
+
+        Step current;
+        while( ( current = reader.next()) != null ) {
+            if( current instanceof HttpRequestResponseStep ) {
+                HttpRequestResponseStep exchange = (HttpRequestResponseStep) current;
+
+                collected.computeIfAbsent( ret.keyFor( exchange.getRequest() ), k -> new ArrayList<>( 1 )).add( exchange.getResponse() );
+                ++ret.theExchangeCount;
+            }
+        }
+        for( Map.Entry<Key,List<HttpResponse>> entry : collected.entrySet() ) {
+            List<HttpResponse> responses = entry.getValue();
+            ret.theEntries.put( entry.getKey(), new Entry( responses.toArray( new HttpResponse[ responses.size() ] )));
+        }
+
+        LOG.log( Level.INFO, "Indexed {0} exchanges under {1} keys", new Object[] { ret.theExchangeCount, ret.theEntries.size() } );
+        return ret;
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param policy which response to serve if the same request was recorded more than once
+     * @param matchHeaders names of the request headers whose values must match
+     * @param matchBody if true, request bodies must match
+     */
+    protected PlaybackIndex(
+            PlaybackPolicy policy,
+            String []      matchHeaders,
+            boolean        matchBody )
+    {
+        thePolicy       = policy;
+        theMatchHeaders = matchHeaders;
+        theMatchBody    = matchBody;
+    }
+
+    /**
+     * Find the recorded response to serve for a request.
+     *
+     * @param request the incoming request
+     * @return the recorded response, or null if the request was not recorded
+     */
+    public HttpResponse find(
+            HttpRequest request )
+    {
+        Entry found = theEntries.get( keyFor( request ));
+        if( found == null ) {
+            return null;
+        }
+        switch( thePolicy ) {
+            case SEQUENTIAL:
+                return found.next();
+
+            default:
+                return found.last();
+        }
+    }
+
+    /**
+     * Obtain the number of recorded exchanges in the index.
+     *
+     * @return the number
+     */
+    public int getExchangeCount()
+    {
+        return theExchangeCount;
+    }
+
+    /**
+     * Determine the key under which a request is indexed.
+     *
+     * @param request the request
+     * @return the key
+     */
+    protected Key keyFor(
+            HttpRequest request )
+    {
+        String [] headerValues = new String[ theMatchHeaders.length ];
+        for( int i=0 ; i<theMatchHeaders.length ; ++i ) {
+            headerValues[i] = request.getFirstHeaderValue( theMatchHeaders[i] );
+        }
+        long bodyHash = theMatchBody ? hash( request.getContent() ) : 0L;
+
+        return new Key( request.getVerb(), request.getPath(), headerValues, bodyHash );
+    }
+
+    /**
+     * Convert a recorded response into the bytes to send to the client.
+     * The body is sent with a Content-Length, as it was de-chunked when
+     * it was recorded, so this is always an HTTP/1.1 response, and the
+     * connection is kept alive.
+     *
+     * @param response the recorded response
+     * @param isHead if true, the response is to a HEAD request
+     * @return the bytes
+     */
+    public static byte [] serialize(
+            HttpResponse response,
+            boolean      isHead )
+    {
+        byte [] content = response.getContent();
+
+        StringBuilder head = new StringBuilder();
+        head.append( "HTTP/1.1 " ).append( response.getStatus() ).append( ' ' );
+        head.append( reasonPhrase( response.getStatus() )).append( "\r\n" );
+
+        for( Map.Entry<String,String[]> entry : response.getHeaders().entrySet() ) {
+            String name = entry.getKey();
+            if(    HttpMessage.HTTP_TRANSFER_ENCODING_HEADER.equalsIgnoreCase( name )
+                || HttpMessage.HTTP_CONNECTION_HEADER.equalsIgnoreCase( name )
+                || ( !isHead && HttpMessage.HTTP_CONTENT_LENGTH_HEADER.equalsIgnoreCase( name )))
+            {
+                continue;
+            }
+            for( String value : entry.getValue() ) {
+                head.append( name ).append( ": " ).append( value ).append( "\r\n" );
+            }
+        }
+        if( !isHead && !response.isBodiless() ) {
+            head.append( HttpMessage.HTTP_CONTENT_LENGTH_HEADER ).append( ": " ).append( content != null ? content.length : 0 ).append( "\r\n" );
+        }
+        head.append( "\r\n" );
+
+        byte [] headBytes = head.toString().getBytes( StandardCharsets.ISO_8859_1 );
+        if( isHead || content == null || content.length == 0 ) {
+            return headBytes;
+        }
+        byte [] ret = Arrays.copyOf( headBytes, headBytes.length + content.length );
+        System.arraycopy( content, 0, ret, headBytes.length, content.length );
+        return ret;
+    }
+
+    /**
+     * The reason phrase is not recorded, so we send the standard one.
+     *
+     * @param status the HTTP status
+     * @return the reason phrase
+     */
+    protected static String reasonPhrase(
+            int status )
+    {
+        switch( status ) {
+            case 100: return "Continue";
+            case 101: return "Switching Protocols";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 303: return "See Other";
+            case 304: return "Not Modified";
+            case 307: return "Temporary Redirect";
+            case 308: return "Permanent Redirect";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 410: return "Gone";
+            case 422: return "Unprocessable Entity";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default:  return "Status";
+        }
+    }
+
+    /**
+     * Hash a request body. 64 bits of FNV-1a are plenty to tell apart the
+     * bodies in one recording.
+     *
+     * @param data the body, or null
+     * @return the hash, 0 if there is no body
+     */
+    protected static long hash(
+            byte [] data )
+    {
+        if( data == null || data.length == 0 ) {
+            return 0L;
+        }
+        long ret = FNV_OFFSET_BASIS;
+        for( byte b : data ) {
+            ret ^= ( b & 0xff );
+            ret *= FNV_PRIME;
+        }
+        return ret;
+    }
+
+    /**
+     * Which response to serve if the same request was recorded more than once.
+     */
+    protected final PlaybackPolicy thePolicy;
+
+    /**
+     * Names of the request headers whose values must match.
+     */
+    protected final String [] theMatchHeaders;
+
+    /**
+     * If true, request bodies must match.
+     */
+    protected final boolean theMatchBody;
+
+    /**
+     * The recorded responses, by request.
+     */
+    protected final Map<Key,Entry> theEntries = new HashMap<>();
+
+    /**
+     * Number of recorded exchanges in the index.
+     */
+    protected int theExchangeCount;
+
+    /**
+     * FNV-1a 64 bit offset basis.
+     */
+    protected static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    /**
+     * FNV-1a 64 bit prime.
+     */
+    protected static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * What a request is matched by.
+     */
+    protected static class Key
+    {
+        /**
+         * Constructor.
+         *
+         * @param verb the HTTP verb
+         * @param path the path, including query
+         * @param headerValues values of the headers to match, null if absent
+         * @param bodyHash hash of the body, or 0
+         */
+        public Key(
+                String    verb,
+                String    path,
+                String [] headerValues,
+                long      bodyHash )
+        {
+            theVerb         = verb;
+            thePath         = path;
+            theHeaderValues = headerValues;
+            theBodyHash     = bodyHash;
+
+            int h = verb.hashCode();
+            h = 31 * h + path.hashCode();
+            h = 31 * h + Arrays.hashCode( headerValues );
+            h = 31 * h + Long.hashCode( bodyHash );
+            theHashCode = h;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return theHashCode;
+        }
+
+        @Override
+        public boolean equals(
+                Object other )
+        {
+            if( !( other instanceof Key )) {
+                return false;
+            }
+            Key realOther = (Key) other;
+            return    theHashCode == realOther.theHashCode
+                   && theBodyHash == realOther.theBodyHash
+                   && thePath.equals( realOther.thePath )
+                   && theVerb.equals( realOther.theVerb )
+                   && Arrays.equals( theHeaderValues, realOther.theHeaderValues );
+        }
+
+        /**
+         * The HTTP verb.
+         */
+        protected final String theVerb;
+
+        /**
+         * The path, including query.
+         */
+        protected final String thePath;
+
+        /**
+         * Values of the headers to match, null if absent.
+         */
+        protected final String [] theHeaderValues;
+
+        /**
+         * Hash of the body, or 0.
+         */
+        protected final long theBodyHash;
+
+        /**
+         * Calculated once, as every lookup needs it.
+         */
+        protected final int theHashCode;
+    }
+
+    /**
+     * The recorded responses to one request, in the sequence they were recorded.
+     */
+    protected static class Entry
+    {
+        /**
+         * Constructor.
+         *
+         * @param responses the recorded responses
+         */
+        public Entry(
+                HttpResponse [] responses )
+        {
+            theResponses = responses;
+        }
+
+        /**
+         * Obtain the next response in sequence, or the last one if all have been served.
+         *
+         * @return the response
+         */
+        public HttpResponse next()
+        {
+            if( theResponses.length == 1 ) {
+                return theResponses[0];
+            }
+            int index = theNext.getAndUpdate( i -> i < theResponses.length - 1 ? i+1 : i );
+            return theResponses[ index ];
+        }
+
+        /**
+         * Obtain the response recorded last.
+         *
+         * @return the response
+         */
+        public HttpResponse last()
+        {
+            return theResponses[ theResponses.length - 1 ];
+        }
+
+        /**
+         * The recorded responses.
+         */
+        protected final HttpResponse [] theResponses;
+
+        /**
+         * Index of the response to serve next if the policy is SEQUENTIAL.
+         */
+        protected final AtomicInteger theNext = new AtomicInteger();
+    }
+}
@@ -0,0 +1,23 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+/**
+ * Which recorded response to serve in playback when the same request was
+ * recorded more than once.
+ */
+public enum PlaybackPolicy
+{
+    /**
+     * Serve the recorded responses in the sequence they were recorded, and
+     * keep serving the last one once all have been served.
+     */
+    SEQUENTIAL,
+
+    /**
+     * Always serve the response recorded last.
+     */
+    LAST_WINS;
+}
@@ -0,0 +1,165 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles a connection from the client in playback: instead of forwarding
+ * requests to the remote host, it answers each with the recorded response
+ * found in the PlaybackIndex, or with 404 if there is none.
+ */
+public class PlaybackRequestHandler
+    implements
+        Runnable
+{
+    private final static Logger LOG = Logger.getLogger( PlaybackRequestHandler.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param name name of this object, for logging
+     * @param app the application
+     * @param serverSideSocket the server-side socket
+     * @param index the recorded responses
+     */
+    public PlaybackRequestHandler(
+            String        name,
+            Proxycord     app,
+            Socket        serverSideSocket,
+            PlaybackIndex index )
+    {
+        theName             = name;
+        theServerSideSocket = serverSideSocket;
+        theIndex            = index;
+        theMetrics          = app.getMetrics();
+
+        theRequestParser = HttpMessageParser.createRequestParser( name );
+    }
+
+    @Override
+    public void run()
+    {
+        byte [] buf = new byte[ BUFFER_SIZE ];
+        int     pos = 0;
+        int     end = 0;
+        try {
+            InputStream  serverInStream  = theServerSideSocket.getInputStream();
+            OutputStream serverOutStream = theServerSideSocket.getOutputStream();
+
+            while( true ) {
+                if( pos == end ) {
+                    pos = 0;
+                    end = serverInStream.read( buf );
+                    if( end <= 0 ) {
+                        break;
+                    }
+                    theMetrics.add( Metrics.Counter.CLIENT_RECEIVED_BYTES, end );
+                }
+
+                pos += theRequestParser.parse( buf, pos, end-pos );
+                if( theRequestParser.hasError() ) {
+                    break;
+                }
+                HttpRequest request = theRequestParser.takeMessage();
+                if( request == null ) {
+                    continue;
+                }
+
+                byte [] response = respond( request );
+                serverOutStream.write( response );
+                serverOutStream.flush();
+                theMetrics.add( Metrics.Counter.CLIENT_SENT_BYTES, response.length );
+
+                if( request.isClosing() ) {
+                    break;
+                }
+            }
+
+        } catch( Throwable ex ) {
+            LOG.log( Level.INFO, "Closing (" + theName + ")", ex );
+
+        } finally {
+            try {
+                if( !theServerSideSocket.isClosed() ) {
+                    theServerSideSocket.close();
+                }
+            } catch( Exception ex ) {
+                ex.printStackTrace();
+            }
+            theMetrics.decrement( Metrics.Counter.ACTIVE_CONNECTIONS );
+        }
+    }
+
+    /**
+     * Determine what to send in response to a request.
+     *
+     * @param request the request
+     * @return the bytes to send
+     */
+    protected byte [] respond(
+            HttpRequest request )
+    {
+        boolean      isHead   = HttpRequest.HTTP_HEAD_VERB.equals( request.getVerb() );
+        HttpResponse recorded = theIndex.find( request );
+
+        if( recorded != null ) {
+            theMetrics.increment( Metrics.Counter.PLAYBACK_HITS );
+            return PlaybackIndex.serialize( recorded, isHead );
+        }
+
+        theMetrics.increment( Metrics.Counter.PLAYBACK_MISSES );
+        LOG.log( Level.WARNING, "Not in recording ({0}): {1} {2}", new Object[] { theName, request.getVerb(), request.getPath() } );
+
+        byte [] body = ( "Not in recording: " + request.getVerb() + " " + request.getPath() + "\n" ).getBytes( StandardCharsets.UTF_8 );
+        String  head =   "HTTP/1.1 404 Not Found\r\n"
+                       + HttpMessage.HTTP_CONTENT_TYPE_HEADER + ": text/plain; charset=utf-8\r\n"
+                       + HttpMessage.HTTP_CONTENT_LENGTH_HEADER + ": " + body.length + "\r\n"
+                       + "\r\n";
+        byte [] headBytes = head.getBytes( StandardCharsets.US_ASCII );
+        if( isHead ) {
+            return headBytes;
+        }
+        byte [] ret = new byte[ headBytes.length + body.length ];
+        System.arraycopy( headBytes, 0, ret, 0,                headBytes.length );
+        System.arraycopy( body,      0, ret, headBytes.length, body.length );
+        return ret;
+    }
+
+    /**
+     * Name of this object, for logging.
+     */
+    protected String theName;
+
+    /**
+     * The server-side socket.
+     */
+    protected Socket theServerSideSocket;
+
+    /**
+     * The recorded responses.
+     */
+    protected PlaybackIndex theIndex;
+
+    /**
+     * Collects metrics.
+     */
+    protected Metrics theMetrics;
+
+    /**
+     * Finds the requests in the incoming data.
+     */
+    protected HttpMessageParser<HttpRequest> theRequestParser;
+
+    /**
+     * Size of the receive buffer.
+     */
+    protected static final int BUFFER_SIZE = 4096;
+}
@@ -0,0 +1,494 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles a connection from the client one HTTP exchange at a time. For each
+ * request, it borrows a connection to the remote host from the
+ * UpstreamConnectionPool, forwards the request, forwards the response, and
+ * returns the upstream connection to the pool if it can be reused. Unlike
+ * HttpRequestHandler, this needs only one Thread per connection.
+ */
+public class PooledHttpRequestHandler
+    implements
+        Runnable
+{
+    private final static Logger LOG = Logger.getLogger( PooledHttpRequestHandler.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param name name of this object, for logging
+     * @param app the application
+     * @param serverSideSocket the server-side socket
+     * @param pool the pool of connections to the remote host
+     */
+    public PooledHttpRequestHandler(
+            String                 name,
+            Proxycord              app,
+            Socket                 serverSideSocket,
+            UpstreamConnectionPool pool )
+    {
+        theName             = name;
+        theApp              = app;
+        theServerSideSocket = serverSideSocket;
+        thePool             = pool;
+        theMetrics          = app.getMetrics();
+        theRecorder         = new HttpExchangeRecorder( name, app );
+
+        theRequestFramer  = HttpMessageParser.createRequestParser( name );
+        theResponseFramer = HttpMessageParser.createResponseParser( name );
+        theRequestFramer.setRetainContent( false );
+        theResponseFramer.setRetainContent( false );
+
+        LOG.log( Level.INFO, "Created {0} ({1})", new Object [] { this, theName } );
+    }
+
+    @Override
+    public void run()
+    {
+        SocketChannel upstream = null;
+
+        byte [] buf = new byte[ BUFFER_SIZE ];
+        int     pos = 0;
+        int     end = 0;
+        try {
+            InputStream  serverInStream  = theServerSideSocket.getInputStream();
+            OutputStream serverOutStream = theServerSideSocket.getOutputStream();
+            OutputStream clientOutStream = null;
+
+            while( true ) {
+                if( pos == end ) {
+                    pos = 0;
+                    end = serverInStream.read( buf );
+                    if( end <= 0 ) {
+                        break;
+                    }
+                    if( LOG.isLoggable( Level.INFO )) {
+                        LOG.info( String.format( "Received (%s) %d bytes", theName, end ));
+                    }
+                }
+                if( upstream == null ) {
+                    upstream        = thePool.acquire();
+                    clientOutStream = upstream.socket().getOutputStream();
+                    theResponsePos  = 0;
+                    theResponseEnd  = 0;
+                    theRecorder.logUpstreamConnected();
+                }
+
+                int consumed = theRequestFramer.parse( buf, pos, end-pos );
+                if( theRequestFramer.hasError() ) {
+                    break; // we cannot tell where the request ends, so we cannot proxy it
+                }
+                theRecorder.logRequestData( buf, pos, consumed );
+                clientOutStream.write( buf, pos, consumed );
+                theMetrics.add( Metrics.Counter.REMOTE_SENT_BYTES, consumed );
+                pos += consumed;
+
+                HttpRequest request = theRequestFramer.takeMessage();
+                if( request != null ) {
+                    clientOutStream.flush();
+
+                    ResponseOutcome outcome = forwardResponse( request, upstream, serverOutStream, false );
+                    if( outcome == ResponseOutcome.SWITCH ) {
+                        tunnel( upstream, serverInStream, serverOutStream, buf, pos, end );
+                        break;
+                    }
+                    if( outcome == ResponseOutcome.REUSE ) {
+                        thePool.release( upstream );
+                    } else {
+                        upstream.close();
+                    }
+                    upstream = null;
+
+                    if( outcome == ResponseOutcome.CLOSE ) {
+                        break;
+                    }
+
+                } else if( pos == end ) {
+                    HttpRequest inProgress = theRequestFramer.getMessageInProgress();
+                    if( inProgress != null && inProgress != theContinuedRequest && expectsContinue( inProgress )) {
+                        // the client will not send the body until the remote host says 100 Continue
+                        clientOutStream.flush();
+                        theContinuedRequest = inProgress;
+
+                        ResponseOutcome outcome = forwardResponse( inProgress, upstream, serverOutStream, true );
+                        if( outcome != ResponseOutcome.CONTINUE ) {
+                            // answered without the body, so we cannot tell what the client sends next
+                            break;
+                        }
+                    }
+                }
+            }
+
+        } catch( Throwable ex ) {
+            LOG.log( Level.INFO, "Closing (" + theName + ")", ex );
+
+        } finally {
+            try {
+                if( upstream != null ) {
+                    upstream.close(); // in the middle of an exchange, cannot be reused
+                    theRecorder.logResponseEnd();
+                }
+            } catch( Exception ex ) {
+                ex.printStackTrace();
+            }
+            try {
+                if( !theServerSideSocket.isClosed() ) {
+                    theServerSideSocket.close();
+                }
+            } catch( Exception ex ) {
+                ex.printStackTrace();
+            }
+            theMetrics.decrement( Metrics.Counter.ACTIVE_CONNECTIONS );
+        }
+    }
+
+    /**
+     * Forward the response to a request from the remote host to the client.
+     *
+     * @param request the request
+     * @param upstream the connection to the remote host
+     * @param serverOutStream the stream to the client
+     * @param untilContinue if true, return after a 100 Continue interim response,
+     *        or when the remote host does not respond for a while, as it may not send one
+     * @return what to do with the connections afterwards
+     * @throws IOException an I/O problem occurred
+     */
+    protected ResponseOutcome forwardResponse(
+            HttpRequest   request,
+            SocketChannel upstream,
+            OutputStream  serverOutStream,
+            boolean       untilContinue )
+        throws
+            IOException
+    {
+        InputStream clientInStream = upstream.socket().getInputStream();
+
+        while( true ) {
+            if( theResponsePos == theResponseEnd ) {
+                theResponsePos = 0;
+                theResponseEnd = untilContinue ? readAwaitingContinue( upstream ) : clientInStream.read( theResponseBuffer );
+                if( theResponseEnd == 0 ) {
+                    return ResponseOutcome.CONTINUE; // no response so far, so let the client send the body
+                }
+                if( theResponseEnd < 0 ) {
+                    // completes a response whose body extends until the connection is closed
+                    theResponseEnd = 0;
+                    theResponseFramer.endOfStream();
+                    theResponseFramer.takeMessage();
+                    theRecorder.logResponseEnd();
+                    serverOutStream.flush();
+                    return ResponseOutcome.CLOSE;
+                }
+                if( LOG.isLoggable( Level.INFO )) {
+                    LOG.info( String.format( "Received (%s) %d bytes", theName, theResponseEnd ));
+                }
+            }
+            if( theResponseFramer.isAtMessageStart() ) {
+                theResponseFramer.setNextMessageInResponseTo( request );
+            }
+
+            int consumed = theResponseFramer.parse( theResponseBuffer, theResponsePos, theResponseEnd - theResponsePos );
+            if( theResponseFramer.hasError() ) {
+                // we cannot tell where the response ends, so we pass on everything until the end
+                forwardResponseData( serverOutStream, theResponseEnd - theResponsePos );
+                pumpUntilClosed( clientInStream, serverOutStream );
+                return ResponseOutcome.CLOSE;
+            }
+            forwardResponseData( serverOutStream, consumed );
+
+            HttpResponse response = theResponseFramer.takeMessage();
+            if( response == null ) {
+                continue;
+            }
+            if( theResponseFramer.isOpaque() ) {
+                // switched protocols, or established a tunnel
+                forwardResponseData( serverOutStream, theResponseEnd - theResponsePos );
+                serverOutStream.flush();
+                return ResponseOutcome.SWITCH;
+            }
+            if( response.getStatus() < 200 ) {
+                // interim response, the real one is still to come
+                if( untilContinue && response.getStatus() == HTTP_CONTINUE_STATUS ) {
+                    serverOutStream.flush();
+                    return ResponseOutcome.CONTINUE;
+                }
+                continue;
+            }
+            serverOutStream.flush();
+
+            if( theResponsePos < theResponseEnd ) {
+                return ResponseOutcome.DISCARD; // remote host sent more than it should have
+            }
+            if( response.isClosing() ) {
+                return ResponseOutcome.DISCARD;
+            }
+            return ResponseOutcome.REUSE;
+        }
+    }
+
+    /**
+     * Read from the remote host while the client waits for 100 Continue.
+     * Not all servers send it, so give up waiting after a while, as
+     * clients do.
+     *
+     * @param upstream the connection to the remote host
+     * @return the number of bytes read into theResponseBuffer, 0 if nothing
+     *         has been received in time, or -1 if the connection has been closed
+     * @throws IOException an I/O problem occurred
+     */
+    protected int readAwaitingContinue(
+            SocketChannel upstream )
+        throws
+            IOException
+    {
+        Socket upstreamSocket = upstream.socket();
+        upstreamSocket.setSoTimeout( CONTINUE_TIMEOUT );
+        try {
+            while( true ) {
+                try {
+                    return upstreamSocket.getInputStream().read( theResponseBuffer );
+
+                } catch( SocketTimeoutException ex ) {
+                    if( theResponseFramer.isAtMessageStart() ) {
+                        return 0;
+                    }
+                    // in the middle of a response; it will complete
+                }
+            }
+        } finally {
+            upstreamSocket.setSoTimeout( 0 );
+        }
+    }
+
+    /**
+     * Pass on response data from theResponseBuffer to the client.
+     *
+     * @param serverOutStream the stream to the client
+     * @param count the number of bytes, starting at theResponsePos
+     * @throws IOException an I/O problem occurred
+     */
+    protected void forwardResponseData(
+            OutputStream serverOutStream,
+            int          count )
+        throws
+            IOException
+    {
+        theRecorder.logResponseData( theResponseBuffer, theResponsePos, count );
+        serverOutStream.write( theResponseBuffer, theResponsePos, count );
+        theMetrics.add( Metrics.Counter.CLIENT_SENT_BYTES, count );
+        theResponsePos += count;
+    }
+
+    /**
+     * After the connection has been switched to another protocol, pass on
+     * everything in both directions until both sides have closed it.
+     *
+     * @param upstream the connection to the remote host
+     * @param serverInStream the stream from the client
+     * @param serverOutStream the stream to the client
+     * @param buf buffer with data from the client that has not been passed on yet
+     * @param pos position of the first byte in buf not passed on yet
+     * @param end position after the last byte in buf
+     * @throws IOException an I/O problem occurred
+     * @throws InterruptedException interrupted while waiting for the remote host to close
+     */
+    protected void tunnel(
+            SocketChannel upstream,
+            InputStream   serverInStream,
+            OutputStream  serverOutStream,
+            byte []       buf,
+            int           pos,
+            int           end )
+        throws
+            IOException,
+            InterruptedException
+    {
+        InputStream    clientInStream  = upstream.socket().getInputStream();
+        OutputStream   clientOutStream = upstream.socket().getOutputStream();
+        CountDownLatch remoteDone      = new CountDownLatch( 1 );
+
+        theApp.submitTask( () -> {
+            try {
+                pumpUntilClosed( clientInStream, serverOutStream );
+                theRecorder.logResponseEnd();
+                theServerSideSocket.shutdownOutput();
+
+            } catch( IOException ex ) {
+                LOG.log( Level.FINE, "Tunnel closed (" + theName + ")", ex );
+
+            } finally {
+                remoteDone.countDown();
+            }
+        } );
+
+        int read = end - pos;
+        do {
+            theRecorder.logRequestData( buf, pos, read );
+            clientOutStream.write( buf, pos, read );
+            clientOutStream.flush();
+            theMetrics.add( Metrics.Counter.REMOTE_SENT_BYTES, read );
+            pos = 0;
+        } while( ( read = serverInStream.read( buf )) > 0 );
+
+        upstream.socket().shutdownOutput();
+        remoteDone.await();
+    }
+
+    /**
+     * Pass on everything from the remote host until it closes the connection.
+     *
+     * @param clientInStream the stream from the remote host
+     * @param serverOutStream the stream to the client
+     * @throws IOException an I/O problem occurred
+     */
+    protected void pumpUntilClosed(
+            InputStream  clientInStream,
+            OutputStream serverOutStream )
+        throws
+            IOException
+    {
+        byte [] buf = new byte[ BUFFER_SIZE ];
+        int     read;
+        while( ( read = clientInStream.read( buf )) > 0 ) {
+            theRecorder.logResponseData( buf, 0, read );
+            serverOutStream.write( buf, 0, read );
+            theMetrics.add( Metrics.Counter.CLIENT_SENT_BYTES, read );
+        }
+        serverOutStream.flush();
+    }
+
+    /**
+     * Determine whether the client waits for 100 Continue before it sends
+     * the body of a request.
+     *
+     * @param request the request
+     * @return true if it waits
+     */
+    protected static boolean expectsContinue(
+            HttpRequest request )
+    {
+        return    !"1.0".equals( request.getVersion() )
+               && HttpMessage.HTTP_EXPECT_100_CONTINUE.equalsIgnoreCase( request.getFirstHeaderValue( HttpMessage.HTTP_EXPECT_HEADER ));
+    }
+
+    /**
+     * Name of this object, for logging.
+     */
+    protected String theName;
+
+    /**
+     * The application.
+     */
+    protected Proxycord theApp;
+
+    /**
+     * The server-side socket that was spawned due to an incoming request.
+     */
+    protected Socket theServerSideSocket;
+
+    /**
+     * The pool of connections to the remote host.
+     */
+    protected UpstreamConnectionPool thePool;
+
+    /**
+     * Records the traffic on this connection.
+     */
+    protected HttpExchangeRecorder theRecorder;
+
+    /**
+     * Where to count what we are doing.
+     */
+    protected Metrics theMetrics;
+
+    /**
+     * Finds the end of each request, without keeping its content.
+     */
+    protected HttpMessageParser<HttpRequest> theRequestFramer;
+
+    /**
+     * Finds the end of each response, without keeping its content.
+     */
+    protected HttpMessageParser<HttpResponse> theResponseFramer;
+
+    /**
+     * Buffer for data received from the remote host.
+     */
+    protected final byte [] theResponseBuffer = new byte[ BUFFER_SIZE ];
+
+    /**
+     * Position of the first byte in theResponseBuffer not passed on yet.
+     */
+    protected int theResponsePos;
+
+    /**
+     * Position after the last byte received in theResponseBuffer.
+     */
+    protected int theResponseEnd;
+
+    /**
+     * The request with Expect: 100-continue for which we have already forwarded the interim response.
+     */
+    protected HttpRequest theContinuedRequest;
+
+    /**
+     * Size of the forwarding buffers.
+     */
+    protected static final int BUFFER_SIZE = 4096;
+
+    /**
+     * The HTTP status with which the remote host asks for the body of a request.
+     */
+    protected static final int HTTP_CONTINUE_STATUS = 100;
+
+    /**
+     * Milliseconds to wait for 100 Continue before letting the client send the body anyway.
+     */
+    protected static final int CONTINUE_TIMEOUT = 1000;
+
+    /**
+     * What to do with the connections after a response has been forwarded.
+     */
+    protected static enum ResponseOutcome
+    {
+        /**
+         * Return the upstream connection to the pool.
+         */
+        REUSE,
+
+        /**
+         * Close the upstream connection, but keep serving the client.
+         */
+        DISCARD,
+
+        /**
+         * Close both connections.
+         */
+        CLOSE,
+
+        /**
+         * The remote host has asked for the body of the request.
+         */
+        CONTINUE,
+
+        /**
+         * The connections have been switched to another protocol, or
+         * turned into a tunnel: pass on everything until they are closed.
+         */
+        SWITCH;
+    }
+}
@@ -4,23 +4,25 @@
 
 package net.ubos.proxycord;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.util.ArrayList;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Represents the application.
  */
 public class Proxycord
 {
+    private final static Logger LOG = Logger.getLogger( Proxycord.class.getName() );
+
     /**
      * Factory method.
      *
@@ -38,6 +40,281 @@ public class Proxycord
     {
     }
 
+    /**
+     * Select the engine that moves bytes between client and remote host.
+     * Must be invoked prior to run().
+     * 
+     * @param engine the Engine
+     */
+    public void setEngine(
+            Engine engine )
+    {
+        theEngine = engine;
+    }
+
+    /**
+     * Set the number of event loops used by the NIO engine.
+     * Must be invoked prior to run().
+     * 
+     * @param n the number of event loops
+     */
+    public void setNioEventLoops(
+            int n )
+    {
+        theNioEventLoops = n;
+    }
+
+    /**
+     * Set what to do when traffic arrives faster than it can be recorded.
+     * Must be invoked prior to run().
+     * 
+     * @param policy the policy
+     */
+    public void setCaptureOverflowPolicy(
+            CaptureOverflowPolicy policy )
+    {
+        theCaptureOverflowPolicy = policy;
+    }
+
+    /**
+     * Set how many bytes may be waiting to be recorded, per connection and
+     * direction. Must be invoked prior to run().
+     * 
+     * @param capacity the capacity, in bytes
+     */
+    public void setCaptureQueueCapacity(
+            long capacity )
+    {
+        theCaptureQueueCapacity = capacity;
+    }
+
+    /**
+     * Set the maximum number of bytes of each request or response body to
+     * record. Longer bodies are forwarded completely, but only recorded up
+     * to this length. Must be invoked prior to run().
+     * 
+     * @param maxRecordedContent the maximum number of bytes
+     */
+    public void setMaxRecordedContent(
+            int maxRecordedContent )
+    {
+        theMaxRecordedContent = maxRecordedContent;
+    }
+
+    /**
+     * Obtain the maximum number of bytes of each request or response body to record.
+     * 
+     * @return the maximum number of bytes
+     */
+    public int getMaxRecordedContent()
+    {
+        return theMaxRecordedContent;
+    }
+
+    /**
+     * Spill request and response bodies larger than a threshold to
+     * temporary files while they are being recorded, and read them through
+     * memory-mapped views of those files, instead of holding them on the
+     * heap. Spilled bodies are not limited by setMaxRecordedContent(), but
+     * by a limit of their own. Must be invoked prior to run().
+     * 
+     * @param threshold the threshold, in bytes, or 0 to never spill
+     * @param maxSpilled the maximum number of bytes of each spilled body to record, or 0 for no limit
+     * @param directory the directory for the spill files, or null for the default temporary directory
+     */
+    public void setBodySpill(
+            int  threshold,
+            long maxSpilled,
+            File directory )
+    {
+        theBodySpillThreshold = threshold;
+        theMaxSpilledContent  = maxSpilled;
+        theBodySpillDirectory = directory;
+    }
+
+    /**
+     * Obtain the size above which bodies are spilled to temporary files.
+     * 
+     * @return the threshold, in bytes, or 0 if never
+     */
+    public int getBodySpillThreshold()
+    {
+        return theBodySpillThreshold;
+    }
+
+    /**
+     * Obtain the maximum number of bytes of each spilled body to record.
+     * 
+     * @return the maximum number of bytes, or 0 if no limit
+     */
+    public long getMaxSpilledContent()
+    {
+        return theMaxSpilledContent;
+    }
+
+    /**
+     * Obtain the directory for temporary files with spilled bodies.
+     * 
+     * @return the directory, or null for the default temporary directory
+     */
+    public File getBodySpillDirectory()
+    {
+        return theBodySpillDirectory;
+    }
+
+    /**
+     * Determine whether saved recordings contain each distinct body only
+     * once. If so, later occurrences of a body refer to the first one by
+     * the hash of its content.
+     * 
+     * @param deduplicate if true, save each distinct body only once
+     */
+    public void setDeduplicateSavedBodies(
+            boolean deduplicate )
+    {
+        theDeduplicateSavedBodies = deduplicate;
+    }
+
+    /**
+     * Set the format in which writeOutput() saves recordings.
+     * 
+     * @param format the format
+     */
+    public void setOutputFormat(
+            RecordingFormat format )
+    {
+        theOutputFormat = format;
+    }
+
+    /**
+     * Compress recorded bodies in memory, in the background.
+     * 
+     * @param codec the codec, NONE to not compress
+     * @param level the compression level, from BodyCodec.MIN_LEVEL (none) to BodyCodec.MAX_LEVEL (smallest)
+     */
+    public void setRecordedBodyCompression(
+            BodyCodec codec,
+            int       level )
+    {
+        if( theBodyCompressor != null ) {
+            theBodyCompressor.end();
+        }
+        theBodyCompressor = codec != BodyCodec.NONE ? BodyCompressor.create( codec, level, theMetrics ) : null;
+    }
+
+    /**
+     * Compress bodies in saved recordings, where the format allows it.
+     * 
+     * @param codec the codec, NONE to not compress
+     * @param level the compression level, from BodyCodec.MIN_LEVEL (none) to BodyCodec.MAX_LEVEL (smallest)
+     */
+    public void setSavedBodyCompression(
+            BodyCodec codec,
+            int       level )
+    {
+        theSavedBodyCodec      = codec;
+        theSavedBodyCodecLevel = level;
+    }
+
+    /**
+     * Write each Step to this journal as soon as it has been logged.
+     * 
+     * @param journal the StepJournal, or null
+     */
+    public void setJournal(
+            StepJournal journal )
+    {
+        theJournal = journal;
+    }
+
+    /**
+     * Keep the recorded Steps within a memory budget by evicting the oldest
+     * ones to a spill file.
+     * 
+     * @param spiller the StepSpiller, or null to keep all Steps in memory
+     */
+    public void setStepSpiller(
+            StepSpiller spiller )
+    {
+        theStepSpiller = spiller;
+    }
+
+    /**
+     * Reuse keep-alive connections to the remote host across client connections.
+     *
+     * @param pooling if true, pool connections to the remote host
+     * @param maxIdle the maximum number of idle connections to keep
+     * @param idleTimeout the time, in milliseconds, after which an idle connection is not reused any more
+     */
+    public void setUpstreamPooling(
+            boolean pooling,
+            int     maxIdle,
+            long    idleTimeout )
+    {
+        theUpstreamPooling     = pooling;
+        theUpstreamMaxIdle     = maxIdle;
+        theUpstreamIdleTimeout = idleTimeout;
+    }
+
+    /**
+     * Instead of forwarding requests to the remote host, answer them from
+     * a recording. Playback always uses blocking I/O, on virtual Threads
+     * if the engine is VIRTUAL, and on pooled platform Threads otherwise.
+     * Must be invoked prior to run() or start().
+     *
+     * @param index the recorded responses, or null to forward requests
+     */
+    public void setPlaybackIndex(
+            PlaybackIndex index )
+    {
+        thePlaybackIndex = index;
+    }
+
+    /**
+     * Obtain the recorded responses served in playback.
+     *
+     * @return the PlaybackIndex, or null if forwarding requests
+     */
+    public PlaybackIndex getPlaybackIndex()
+    {
+        return thePlaybackIndex;
+    }
+
+    /**
+     * Serve the Metrics over HTTP in the Prometheus text format.
+     * Must be invoked prior to run().
+     * 
+     * @param port the local port to serve them on, or 0 to not serve them
+     */
+    public void setMetricsPort(
+            int port )
+    {
+        theMetricsPort = port;
+    }
+
+    /**
+     * Determine whether traffic is recorded. If not, Proxycord only proxies,
+     * which is useful to measure what recording costs.
+     * Must be invoked prior to run() or start().
+     * 
+     * @param recording if true, record traffic
+     */
+    public void setRecording(
+            boolean recording )
+    {
+        theIsRecording = recording;
+    }
+
+    /**
+     * Determine whether traffic is recorded.
+     * 
+     * @return true if recording
+     */
+    public boolean isRecording()
+    {
+        return theIsRecording;
+    }
+
     /**
      * Main functionality without exception handling and cleanup
      * 
@@ -58,38 +335,172 @@ public class Proxycord
             IOException,
             InterruptedException
     {
-        theHandler = new HttpConnectionHandler(
-                this,
-                localHost,
-                localPort,
-                remoteHost,
-                remotePort );
+        start( localHost, localPort, remoteHost, remotePort );
 
-        theConnectionAcceptThread = new Thread( theHandler );
-        theConnectionAcceptThread.start();
-
-        System.out.println(
-                "Proxying to http://"
-                + remoteHost
-                + ":"
-                + remotePort
-                + "/. You can now connect to http://"
-                + ( "0.0.0.0".equals( localHost ) ? "localhost" : localHost )
-                + ":"
-                + localPort
-                + "/" );
+        String local = "http://" + ( "0.0.0.0".equals( localHost ) ? "localhost" : localHost ) + ":" + localPort + "/";
+        if( thePlaybackIndex != null ) {
+            System.out.println(
+                    "Playing back "
+                    + thePlaybackIndex.getExchangeCount()
+                    + " recorded exchanges. You can now connect to "
+                    + local );
+        } else {
+            System.out.println(
+                    "Proxying to http://"
+                    + remoteHost
+                    + ":"
+                    + remotePort
+                    + "/. You can now connect to "
+                    + local );
+        }
 
         CommandInterpreter interpreter = CommandInterpreter.create( this );
         interpreter.run();
 
+        stop();
+
+        return 0;
+    }
+
+    /**
+     * Start proxying in the background, without reading commands from
+     * the console. This is for embedding Proxycord, e.g. in benchmarks.
+     * 
+     * @param localHost local IP address to bind to
+     * @param localPort local port to open
+     * @param remoteHost remote host to connect to
+     * @param remotePort remote port to connect to
+     * @throws IOException an I/O problem occurred
+     */
+    public void start(
+            String    localHost,
+            int       localPort,
+            String    remoteHost,
+            int       remotePort )
+        throws
+            IOException
+    {
+        theCapturePipeline = CapturePipeline.create( theCaptureOverflowPolicy, theCaptureQueueCapacity );
+
+        if( theEngine == Engine.VIRTUAL ) {
+            theWorkerThreads = Executors.newVirtualThreadPerTaskExecutor();
+        } else {
+            theWorkerThreads = Executors.newFixedThreadPool( N_WORKER_THREADS );
+        }
+
+        if( theUpstreamPooling && thePlaybackIndex == null ) {
+            if( theEngine == Engine.NIO ) {
+                LOG.warning( "The NIO engine does not pool upstream connections, ignoring" );
+            } else {
+                theUpstreamPool = UpstreamConnectionPool.create( remoteHost, remotePort, theUpstreamMaxIdle, theUpstreamIdleTimeout );
+            }
+        }
+
+        if( theMetricsPort > 0 ) {
+            theMetricsServer = MetricsServer.create( theMetrics, theMetricsPort );
+            theMetricsServer.start();
+        }
+
+        switch( thePlaybackIndex != null ? Engine.THREADS : theEngine ) {
+            case NIO:
+                theHandler = new NioConnectionHandler(
+                        this,
+                        localHost,
+                        localPort,
+                        remoteHost,
+                        remotePort,
+                        theNioEventLoops );
+                break;
+
+            default:
+                theHandler = new HttpConnectionHandler(
+                        this,
+                        localHost,
+                        localPort,
+                        remoteHost,
+                        remotePort );
+                break;
+        }
+
+        theConnectionAcceptThread = new Thread( theHandler );
+        theConnectionAcceptThread.start();
+    }
+
+    /**
+     * Stop accepting new connections. Use end() to clean up everything else.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    public void stop()
+        throws
+            InterruptedException
+    {
         theHandler.setInactive();
         theConnectionAcceptThread.interrupt();
 
         theConnectionAcceptThread.join();
-        
-        return 0;
     }
     
+    /**
+     * Obtain the pipeline through which captured traffic is recorded.
+     * 
+     * @return the CapturePipeline
+     */
+    public CapturePipeline getCapturePipeline()
+    {
+        return theCapturePipeline;
+    }
+
+    /**
+     * Obtain the Metrics describing what we are doing.
+     * 
+     * @return the Metrics
+     */
+    public Metrics getMetrics()
+    {
+        return theMetrics;
+    }
+
+    /**
+     * Obtain the pool of buffers for moving bytes between channels.
+     * 
+     * @return the BufferPool
+     */
+    public BufferPool getBufferPool()
+    {
+        return theBufferPool;
+    }
+
+    /**
+     * Obtain the store that keeps each distinct recorded body only once.
+     * 
+     * @return the BodyStore
+     */
+    public BodyStore getBodyStore()
+    {
+        return theBodyStore;
+    }
+
+    /**
+     * Obtain the compressor of recorded bodies.
+     * 
+     * @return the BodyCompressor, or null if recorded bodies are not compressed
+     */
+    public BodyCompressor getBodyCompressor()
+    {
+        return theBodyCompressor;
+    }
+
+    /**
+     * Obtain the pool of connections to the remote host.
+     * 
+     * @return the UpstreamConnectionPool, or null if not pooling
+     */
+    public UpstreamConnectionPool getUpstreamPool()
+    {
+        return theUpstreamPool;
+    }
+
     /**
      * Obtain the steps recorded so far.
      * 
@@ -109,18 +520,62 @@ public class Proxycord
     public Step [] getSteps(
             int n )
     {
-        if( n >= theSteps.size() ) {
-            return theSteps.toArray( new Step[ theSteps.size() ] );
-        } else {
-            Step [] ret = new Step[ n ];
-            System.arraycopy( theSteps.toArray(), theSteps.size()-n, ret, 0, n );
-            
-            return ret;
+        return theSteps.snapshot().getMostRecent( n );
+    }
+
+    /**
+     * Obtain a consistent view of the steps recorded so far, which does not
+     * change while recording continues.
+     * 
+     * @return the Snapshot
+     */
+    public StepLog.Snapshot getStepSnapshot()
+    {
+        return theSteps.snapshot();
+    }
+
+    /**
+     * Find recorded Steps that match a query, one page at a time, without
+     * looking at the others.
+     *
+     * @param query the query
+     * @param start the lowest position in the StepLog to consider
+     * @param max the maximum number of positions to return
+     * @return the positions of the matching Steps in the StepLog, in sequence
+     */
+    public int [] findSteps(
+            StepQuery query,
+            int       start,
+            int       max )
+    {
+        return theStepIndex.find( query, start, max );
+    }
+
+    /**
+     * Output the recorded steps, in the format set with setOutputFormat().
+     * 
+     * @param out the name of the output file
+     * @throws IOException if an i/o problem occurred
+     */
+    public void writeOutput(
+            String out )
+        throws
+            IOException
+    {
+        switch( theOutputFormat ) {
+            case BINARY:
+                writeBinaryOutput( out );
+                break;
+
+            default:
+                writeJsonOutput( out );
+                break;
         }
     }
 
     /**
-     * Output the recorded steps.
+     * Output the recorded steps as JSON. The JSON is streamed to the file
+     * one Step at a time.
      * 
      * @param out the name of the output file
      * @throws IOException if an i/o problem occurred
@@ -130,21 +585,113 @@ public class Proxycord
         throws
             IOException
     {
-        try( PrintStream outStream = new PrintStream( new FileOutputStream( out ), false, "UTF-8" )) {
-            Gson       gson      = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
-            JsonObject jsonRet   = new JsonObject();
-            JsonArray  jsonSteps = new JsonArray();
-            jsonRet.add( "steps", jsonSteps );
-            
-            for( Step s : theSteps ) {
-                jsonSteps.add( s.asJson() );
+        awaitCaptureIdle();
+        writeJson( theSteps.snapshot(), out );
+    }
+
+    /**
+     * Output the recorded steps as a binary recording.
+     * 
+     * @param out the name of the output file
+     * @throws IOException if an i/o problem occurred
+     */
+    public void writeBinaryOutput(
+            String out )
+        throws
+            IOException
+    {
+        awaitCaptureIdle();
+        writeBinary( theSteps.snapshot(), out );
+    }
+
+    /**
+     * Convert a saved recording, JSON or binary, into the format set with
+     * setOutputFormat(). The Steps are read into memory first, like for
+     * --replay.
+     * 
+     * @param in the saved recording
+     * @param out the name of the output file
+     * @throws IOException if an i/o problem occurred
+     */
+    public void convert(
+            File   in,
+            String out )
+        throws
+            IOException
+    {
+        List<Step> steps = RecordingReader.readAll( in );
+        switch( theOutputFormat ) {
+            case BINARY:
+                writeBinary( steps, out );
+                break;
+
+            default:
+                writeJson( steps, out );
+                break;
+        }
+    }
+
+    /**
+     * Wait until what has been forwarded has also been recorded, so it is
+     * included when saving.
+     */
+    protected void awaitCaptureIdle()
+    {
+        if( theCapturePipeline != null ) {
+            theCapturePipeline.awaitIdle( CAPTURE_SYNC_TIMEOUT );
+        }
+    }
+
+    /**
+     * Factored out helper to write Steps as JSON.
+     * 
+     * @param steps the Steps
+     * @param out the name of the output file
+     * @throws IOException if an i/o problem occurred
+     */
+    protected void writeJson(
+            Iterable<Step> steps,
+            String         out )
+        throws
+            IOException
+    {
+        try( RecordingJsonWriter w = new RecordingJsonWriter(
+                new BufferedWriter( new OutputStreamWriter( new FileOutputStream( out ), StandardCharsets.UTF_8 ))))
+        {
+            w.setIndent( "  " );
+            w.setHtmlSafe( false );
+            w.setDeduplicateBodies( theDeduplicateSavedBodies );
+
+            w.beginObject();
+            w.name( "steps" ).beginArray();
+            for( Step s : steps ) {
+                s.writeJson( w );
+            }
+            w.endArray();
+            w.endObject();
+        }
+    }
+
+    /**
+     * Factored out helper to write Steps as a binary recording.
+     * 
+     * @param steps the Steps
+     * @param out the name of the output file
+     * @throws IOException if an i/o problem occurred
+     */
+    protected void writeBinary(
+            Iterable<Step> steps,
+            String         out )
+        throws
+            IOException
+    {
+        try( BinaryRecordingWriter w = BinaryRecordingWriter.create( new File( out ))) {
+            w.setDeduplicateBodies( theDeduplicateSavedBodies );
+            w.setBodyCompression( theSavedBodyCodec, theSavedBodyCodecLevel );
+
+            for( Step s : steps ) {
+                w.write( s );
             }
-            
-            String jsonString = gson.toJson( jsonRet );
-            
-            outStream.print( jsonString );
-            
-            outStream.flush();
         }
     }
 
@@ -156,7 +703,28 @@ public class Proxycord
         if( theHandler != null ) {
             theHandler.setInactive(); // do again in case an exception occurred earlier
         }
-        theWorkerThreads.shutdownNow();
+        if( theWorkerThreads != null ) {
+            theWorkerThreads.shutdownNow();
+        }
+        if( theUpstreamPool != null ) {
+            theUpstreamPool.close();
+        }
+        if( theMetricsServer != null ) {
+            theMetricsServer.stop();
+        }
+        if( theCapturePipeline != null ) {
+            theCapturePipeline.end();
+        }
+        if( theJournal != null ) {
+            theJournal.close();
+        }
+        if( theStepSpiller != null ) {
+            theStepSpiller.close();
+        }
+        if( theBodyCompressor != null ) {
+            theBodyCompressor.end();
+        }
+        BodySpillFile.discardAll();
     }
 
     /**
@@ -167,7 +735,11 @@ public class Proxycord
     public void submitTask(
             Runnable r )
     {
-        theWorkerThreads.submit( r );
+        theMetrics.increment( Metrics.Counter.QUEUED_WORKER_TASKS );
+        theWorkerThreads.submit( () -> {
+            theMetrics.decrement( Metrics.Counter.QUEUED_WORKER_TASKS );
+            r.run();
+        } );
     }
 
     /**
@@ -178,7 +750,22 @@ public class Proxycord
     public void logStep(
             Step step )
     {
-        theSteps.add( step );
+        synchronized( theStepWriteLock ) { // keeps the journal in the same sequence
+            theSteps.append( step );
+            theStepIndex.append( step );
+            theMetrics.increment( Metrics.Counter.STEPS_RECORDED );
+
+            if( theStepSpiller != null ) {
+                theStepSpiller.stepAppended( theSteps, step );
+            }
+            if( theJournal != null ) {
+                try {
+                    theJournal.append( step );
+                } catch( IOException ex ) {
+                    LOG.log( Level.SEVERE, "Cannot write to journal", ex );
+                }
+            }
+        }
     }
 
     /**
@@ -189,8 +776,21 @@ public class Proxycord
     public void dropMostRecentSteps(
             int n )
     {
-        for( int i = theSteps.size()-1 ; n > 0 && i >= 0 ; --i, --n ) {
-            theSteps.remove( i );
+        synchronized( theStepWriteLock ) {
+            if( theStepSpiller != null ) {
+                Step [] toDrop = theSteps.snapshot().getMostRecent( n );
+                theStepSpiller.stepsDropped( toDrop, theSteps.size() - toDrop.length );
+            }
+            int dropped = theSteps.dropMostRecent( n );
+            theStepIndex.truncate( theSteps.size() );
+
+            if( theJournal != null && dropped > 0 ) {
+                try {
+                    theJournal.appendDrop( dropped );
+                } catch( IOException ex ) {
+                    LOG.log( Level.SEVERE, "Cannot write to journal", ex );
+                }
+            }
         }
     }
 
@@ -200,17 +800,178 @@ public class Proxycord
     protected Thread theConnectionAcceptThread;
     
     /**
-     * Handles an incoming connection.
+     * Handles incoming connections.
      */
-    protected HttpConnectionHandler theHandler;
+    protected ConnectionHandler theHandler;
+
+    /**
+     * The engine to use.
+     */
+    protected Engine theEngine = Engine.THREADS;
+
+    /**
+     * The number of event loops, if the NIO engine is used.
+     */
+    protected int theNioEventLoops = Runtime.getRuntime().availableProcessors();
     
     /**
      * The Steps recorded so far.
      */
-    protected List<Step> theSteps = new ArrayList<>();
+    protected final StepLog theSteps = StepLog.create();
+
+    /**
+     * Secondary indexes over theSteps.
+     */
+    protected final StepIndex theStepIndex = StepIndex.create();
+
+    /**
+     * Serializes changes to the recorded Steps. Readers do not need it.
+     */
+    protected final Object theStepWriteLock = new Object();
+
+    /**
+     * If not null, Steps are also written here as soon as they have been logged.
+     */
+    protected StepJournal theJournal;
+
+    /**
+     * If not null, keeps the recorded Steps within a memory budget.
+     */
+    protected StepSpiller theStepSpiller;
+
+    /**
+     * What to do when traffic arrives faster than it can be recorded.
+     */
+    protected CaptureOverflowPolicy theCaptureOverflowPolicy = CaptureOverflowPolicy.DROP;
+
+    /**
+     * How many bytes may be waiting to be recorded, per connection and direction.
+     */
+    protected long theCaptureQueueCapacity = DEFAULT_CAPTURE_QUEUE_CAPACITY;
+
+    /**
+     * Maximum number of bytes of each request or response body to record.
+     */
+    protected int theMaxRecordedContent = HttpMessageParser.DEFAULT_MAX_CONTENT;
+
+    /**
+     * If true, saved recordings contain each distinct body only once.
+     */
+    protected boolean theDeduplicateSavedBodies = true;
+
+    /**
+     * The format in which writeOutput() saves recordings.
+     */
+    protected RecordingFormat theOutputFormat = RecordingFormat.JSON;
+
+    /**
+     * The codec for bodies in saved recordings, where the format allows it.
+     */
+    protected BodyCodec theSavedBodyCodec = BodyCodec.NONE;
+
+    /**
+     * The compression level for bodies in saved recordings.
+     */
+    protected int theSavedBodyCodecLevel = BodyCodec.DEFAULT_LEVEL;
+
+    /**
+     * Compresses recorded bodies in the background, or null.
+     */
+    protected BodyCompressor theBodyCompressor;
+
+    /**
+     * Bodies larger than this many bytes are spilled to temporary files, or 0 if never.
+     */
+    protected int theBodySpillThreshold;
+
+    /**
+     * Maximum number of bytes of each spilled body to record, or 0 if no limit.
+     */
+    protected long theMaxSpilledContent;
+
+    /**
+     * Directory for temporary files with spilled bodies, or null for the default.
+     */
+    protected File theBodySpillDirectory;
+
+    /**
+     * Parses captured traffic into Steps, off the forwarding Threads.
+     */
+    protected CapturePipeline theCapturePipeline;
+
+    /**
+     * If false, only proxy, do not record.
+     */
+    protected boolean theIsRecording = true;
+
+    /**
+     * Counters, gauges and latency histograms describing what we are doing.
+     */
+    protected final Metrics theMetrics = Metrics.create();
+
+    /**
+     * Keeps each distinct recorded body in memory only once.
+     */
+    protected final BodyStore theBodyStore = BodyStore.create( theMetrics );
+
+    /**
+     * The direct ByteBuffers used to move bytes between channels.
+     */
+    protected final BufferPool theBufferPool = BufferPool.create( BufferPool.DEFAULT_MAX_POOLED );
+
+    /**
+     * The local port on which to serve the Metrics, or 0 if not.
+     */
+    protected int theMetricsPort;
+
+    /**
+     * Serves the Metrics, if a port has been given.
+     */
+    protected MetricsServer theMetricsServer;
+
+    /**
+     * If true, pool connections to the remote host.
+     */
+    protected boolean theUpstreamPooling;
+
+    /**
+     * The maximum number of idle connections to the remote host to keep.
+     */
+    protected int theUpstreamMaxIdle = UpstreamConnectionPool.DEFAULT_MAX_IDLE;
+
+    /**
+     * The time, in milliseconds, after which an idle connection to the remote host is not reused any more.
+     */
+    protected long theUpstreamIdleTimeout = UpstreamConnectionPool.DEFAULT_IDLE_TIMEOUT;
+
+    /**
+     * The pool of connections to the remote host, if pooling.
+     */
+    protected UpstreamConnectionPool theUpstreamPool;
+
+    /**
+     * The recorded responses to serve in playback, or null if forwarding requests.
+     */
+    protected PlaybackIndex thePlaybackIndex;
+
+    /**
+     * Worker threads. Depending on the engine, these are pooled platform
+     * Threads or a new virtual Thread per task.
+     */
+    protected ExecutorService theWorkerThreads;
+
+    /**
+     * Number of platform worker threads, if the engine does not use virtual Threads.
+     */
+    public static final int N_WORKER_THREADS = 20;
+
+    /**
+     * Default for how many bytes may be waiting to be recorded, per connection and direction.
+     */
+    public static final long DEFAULT_CAPTURE_QUEUE_CAPACITY = 4L * 1024 * 1024;
 
     /**
-     * Worker threads.
+     * How long to wait for the CapturePipeline to catch up before saving, in milliseconds.
      */
-    protected final ExecutorService theWorkerThreads = Executors.newFixedThreadPool( 20 );
+    protected static final long CAPTURE_SYNC_TIMEOUT = 10000L;
 }
@@ -0,0 +1,23 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+/**
+ * The available formats for saving a recording.
+ */
+public enum RecordingFormat
+{
+    /**
+     * JSON, with bodies in Base64, and text bodies also as text.
+     */
+    JSON,
+
+    /**
+     * A binary file with a table of contents, raw and optionally compressed
+     * bodies, which can be read with memory mapping and without reading the
+     * Steps before the one that is needed.
+     */
+    BINARY;
+}
@@ -0,0 +1,236 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A JsonWriter that can also stream large binary values as Base64, without
+ * ever holding the encoded value in memory.
+ */
+public class RecordingJsonWriter
+    extends
+        JsonWriter
+{
+    /**
+     * Constructor.
+     *
+     * @param out the Writer to write to
+     */
+    public RecordingJsonWriter(
+            Writer out )
+    {
+        super( out );
+
+        theOut = out;
+    }
+
+    /**
+     * Encode data as Base64, and write it as a string value.
+     *
+     * @param data the data buffer
+     * @param offset the offset of the first byte to encode
+     * @param count the number of bytes to encode
+     * @return this instance, for chaining
+     * @throws IOException an I/O problem occurred
+     */
+    public RecordingJsonWriter base64Value(
+            byte [] data,
+            int     offset,
+            int     count )
+        throws
+            IOException
+    {
+        // Base64 never needs escaping, so we let our superclass emit the
+        // separators and the opening quote, and write the rest directly
+        jsonValue( "\"" );
+
+        try( OutputStream encoder = Base64.getEncoder().wrap( new AsciiOutputStream( theOut ))) {
+            encoder.write( data, offset, count );
+        }
+        theOut.write( '"' );
+
+        return this;
+    }
+
+    /**
+     * Encode an HttpBody as Base64, and write it as a string value. A body
+     * held on the heap is written from its cached encoding; a body that has
+     * been spilled to a file is encoded a piece at a time.
+     *
+     * @param body the body
+     * @return this instance, for chaining
+     * @throws IOException an I/O problem occurred
+     */
+    public RecordingJsonWriter base64Value(
+            HttpBody body )
+        throws
+            IOException
+    {
+        jsonValue( "\"" );
+
+        if( body.isSpilled() ) {
+            try( OutputStream encoder = Base64.getEncoder().wrap( new AsciiOutputStream( theOut ))) {
+                body.writeTo( encoder );
+            }
+        } else {
+            theOut.write( body.getBase64() );
+        }
+        theOut.write( '"' );
+
+        return this;
+    }
+
+    /**
+     * Determine whether bodies are to be written only once. If so, each
+     * body is written in full only the first time; later occurrences of a
+     * body with the same content only refer to it by its hash.
+     *
+     * @param deduplicate if true, write each body only once
+     */
+    public void setDeduplicateBodies(
+            boolean deduplicate )
+    {
+        theWrittenBodies = deduplicate ? new HashMap<>() : null;
+    }
+
+    /**
+     * Determine whether bodies are written only once.
+     *
+     * @return true if so
+     */
+    public boolean isDeduplicatingBodies()
+    {
+        return theWrittenBodies != null;
+    }
+
+    /**
+     * Determine whether a body with the same content has been written
+     * before. If not, remember that this one is being written now.
+     *
+     * @param body the body
+     * @return true if it has been written before
+     */
+    public boolean wasWrittenBefore(
+            HttpBody body )
+    {
+        HttpBody written = theWrittenBodies.putIfAbsent( body.getHash(), body );
+        return written != null && written.contentEquals( body );
+    }
+
+    /**
+     * Determine whether bodies that have been spilled to files are to be
+     * left out, and only referred to by their hash. The caller then has to
+     * keep them, and supply them again when the JSON is read back.
+     *
+     * @param references collects the bodies referred to, by hash, or null to write them in full
+     */
+    public void setSpilledBodyReferences(
+            Map<Long,HttpBody> references )
+    {
+        theSpilledBodyReferences = references;
+    }
+
+    /**
+     * Determine whether a body is to be referred to by its hash only,
+     * because it has been spilled. If so, remember it as referred to.
+     *
+     * @param body the body
+     * @return true if it is only to be referred to
+     */
+    public boolean refersToSpilledBody(
+            HttpBody body )
+    {
+        if( theSpilledBodyReferences == null || !body.isSpilled() ) {
+            return false;
+        }
+        theSpilledBodyReferences.putIfAbsent( body.getHash(), body );
+        return true;
+    }
+
+    /**
+     * The bodies written so far, by hash, if bodies are written only once.
+     */
+    protected Map<Long,HttpBody> theWrittenBodies;
+
+    /**
+     * The spilled bodies referred to so far, by hash, if they are left out.
+     */
+    protected Map<Long,HttpBody> theSpilledBodyReferences;
+
+    /**
+     * The underlying Writer.
+     */
+    protected Writer theOut;
+
+    /**
+     * Passes ASCII bytes on to a Writer as chars. Does not close the Writer.
+     */
+    protected static class AsciiOutputStream
+        extends
+            OutputStream
+    {
+        /**
+         * Constructor.
+         *
+         * @param out the Writer to write to
+         */
+        public AsciiOutputStream(
+                Writer out )
+        {
+            theOut = out;
+        }
+
+        @Override
+        public void write(
+                int b )
+            throws
+                IOException
+        {
+            theOut.write( b );
+        }
+
+        @Override
+        public void write(
+                byte [] data,
+                int     offset,
+                int     count )
+            throws
+                IOException
+        {
+            while( count > 0 ) {
+                int n = Math.min( count, theChars.length );
+                for( int i=0 ; i<n ; ++i ) {
+                    theChars[i] = (char) data[offset+i];
+                }
+                theOut.write( theChars, 0, n );
+                offset += n;
+                count  -= n;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            // do not close theOut
+        }
+
+        /**
+         * The Writer to write to.
+         */
+        protected Writer theOut;
+
+        /**
+         * Reused to convert bytes into chars.
+         */
+        protected final char [] theChars = new char[ 1024 ];
+    }
+}
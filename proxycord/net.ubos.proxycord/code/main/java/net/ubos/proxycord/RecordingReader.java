@@ -0,0 +1,237 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads back the Steps of a recording, as written by
+ * Proxycord.writeJsonOutput() or StepJournal.convert(), or of a binary
+ * recording, as written by Proxycord.writeBinaryOutput(). The Steps are
+ * streamed one at a time, so a recording does not need to fit into memory
+ * twice, once as JSON and once as Steps.
+ */
+public class RecordingReader
+    implements
+        Closeable
+{
+    private final static Logger LOG = Logger.getLogger( RecordingReader.class.getName() );
+
+    /**
+     * Factory method.
+     *
+     * @param file the recording
+     * @return the created instance
+     * @throws IOException the file could not be opened, or is not a recording
+     */
+    public static RecordingReader create(
+            File file )
+        throws
+            IOException
+    {
+        if( BinaryRecording.isBinaryRecording( file )) {
+            return new RecordingReader( BinaryRecording.open( file ));
+        }
+
+        JsonReader in = new JsonReader( new BufferedReader( new InputStreamReader( new FileInputStream( file ), StandardCharsets.UTF_8 )));
+        try {
+            in.beginObject();
+            while( in.hasNext() ) {
+                if( "steps".equals( in.nextName() )) {
+                    in.beginArray();
+                    return new RecordingReader( in );
+                }
+                in.skipValue();
+            }
+            throw new IOException( "Not a recording, no steps found: " + file.getPath() );
+
+        } catch( IOException | RuntimeException ex ) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Convenience method to read all Steps of a recording.
+     *
+     * @param file the recording
+     * @return the Steps, in sequence
+     * @throws IOException an I/O problem occurred
+     */
+    public static List<Step> readAll(
+            File file )
+        throws
+            IOException
+    {
+        List<Step> ret = new ArrayList<>();
+        try( RecordingReader r = create( file )) {
+            Step current;
+            while( ( current = r.next()) != null ) {
+                ret.add( current );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Re-create a Step from its JSON.
+     *
+     * @param json the JSON, as produced by Step.asJson() or Step.writeJson()
+     * @param bodies the bodies read so far from the recording, by hash, or null if not deduplicated
+     * @return the Step, or null if it is of an unknown type
+     * @throws JsonParseException the JSON is not a valid Step
+     */
+    public static Step stepFromJson(
+            JsonObject         json,
+            Map<Long,HttpBody> bodies )
+    {
+        JsonElement type = json.get( "type" );
+        if( type == null ) {
+            return null;
+        }
+        switch( type.getAsString() ) {
+            case "HttpRequestResponse":
+                return HttpRequestResponseStep.fromJson( json, bodies );
+
+            case "HttpIncompleteExchange":
+                return HttpIncompleteExchangeStep.fromJson( json, bodies );
+
+            case "Mark":
+                return MarkStep.fromJson( json );
+
+            default:
+                LOG.log( Level.WARNING, "Skipping Step of unknown type {0}", type.getAsString() );
+                return null;
+        }
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param in the JsonReader, positioned inside the steps array
+     */
+    protected RecordingReader(
+            JsonReader in )
+    {
+        theIn     = in;
+        theBinary = null;
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param binary the binary recording
+     */
+    protected RecordingReader(
+            BinaryRecording binary )
+    {
+        theIn     = null;
+        theBinary = binary;
+    }
+
+    /**
+     * Read the next Step. Steps of unknown types are skipped.
+     *
+     * @return the Step, or null if there are no more
+     * @throws IOException an I/O problem occurred, or the recording is corrupted
+     */
+    public Step next()
+        throws
+            IOException
+    {
+        if( theBinary != null ) {
+            while( theIndex < theBinary.size() ) {
+                Step ret = theBinary.getStep( theIndex++ );
+                if( ret != null ) {
+                    return ret;
+                }
+                LOG.log( Level.WARNING, "Skipping Step of unknown type {0}", theBinary.getType( theIndex-1 ));
+            }
+            return null;
+        }
+
+        while( theIn.hasNext() ) {
+            JsonObject json;
+            try {
+                JsonElement element = theParser.parse( theIn );
+                if( !element.isJsonObject() ) {
+                    continue;
+                }
+                json = element.getAsJsonObject();
+
+            } catch( JsonParseException ex ) {
+                throw new IOException( "Corrupted recording at Step " + theIndex, ex );
+            }
+            ++theIndex;
+
+            try {
+                Step ret = stepFromJson( json, theBodies );
+                if( ret != null ) {
+                    return ret;
+                }
+            } catch( JsonParseException ex ) {
+                throw new IOException( "Corrupted recording at Step " + ( theIndex-1 ), ex );
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close()
+        throws
+            IOException
+    {
+        if( theBinary != null ) {
+            theBinary.close();
+        } else {
+            theIn.close();
+        }
+    }
+
+    /**
+     * The JsonReader, positioned inside the steps array, or null if reading
+     * a binary recording.
+     */
+    protected final JsonReader theIn;
+
+    /**
+     * The binary recording, or null if reading JSON.
+     */
+    protected final BinaryRecording theBinary;
+
+    /**
+     * Parses one Step at a time.
+     */
+    protected final JsonParser theParser = new JsonParser();
+
+    /**
+     * The bodies read so far, by hash. A recording with deduplicated bodies
+     * contains each body only the first time it occurs; later occurrences
+     * refer to it by its hash.
+     */
+    protected final Map<Long,HttpBody> theBodies = new HashMap<>();
+
+    /**
+     * Number of Steps read so far, for error reporting.
+     */
+    protected int theIndex;
+}
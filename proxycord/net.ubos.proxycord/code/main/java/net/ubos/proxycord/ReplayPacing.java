@@ -0,0 +1,30 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+/**
+ * How a virtual user spaces out the requests it replays.
+ */
+public enum ReplayPacing
+{
+    /**
+     * Send the next request as soon as the response to the previous one
+     * has arrived.
+     */
+    NONE,
+
+    /**
+     * Send each request at the same point in time, relative to the start
+     * of the virtual user, as it was sent during the recording, or as soon
+     * as the previous response has arrived, whichever is later.
+     */
+    RECORDED,
+
+    /**
+     * Wait a fixed think time after each response before sending the next
+     * request.
+     */
+    FIXED;
+}
@@ -0,0 +1,440 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Uses a recording as a load generator: a number of virtual users each
+ * replay the recorded exchanges against the remote host, and the Replayer
+ * collects throughput and latency per path.
+ */
+public class Replayer
+{
+    private final static Logger LOG = Logger.getLogger( Replayer.class.getName() );
+
+    /**
+     * Factory method.
+     *
+     * @param steps the recorded Steps; only HttpRequestResponseSteps are replayed
+     * @param host the remote host to send the requests to
+     * @param port the remote port to send the requests to
+     * @return the created instance
+     */
+    public static Replayer create(
+            List<Step> steps,
+            String     host,
+            int        port )
+    {
+        List<HttpRequestResponseStep> exchanges = new ArrayList<>();
+        for( Step step : steps ) {
+            if( step instanceof HttpRequestResponseStep ) {
+                exchanges.add( (HttpRequestResponseStep) step );
+            }
+        }
+        return new Replayer( exchanges, host, port );
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param exchanges the recorded exchanges
+     * @param host the remote host to send the requests to
+     * @param port the remote port to send the requests to
+     */
+    protected Replayer(
+            List<HttpRequestResponseStep> exchanges,
+            String                        host,
+            int                           port )
+    {
+        theExchanges = exchanges;
+        theHost      = host;
+        thePort      = port;
+
+        // Everything virtual users share is determined once, up front
+        theRecordedTokens  = new ArrayList<>( exchanges.size() );
+        theRecordedOffsets = new long[ exchanges.size() ];
+
+        Set<String> serverCookieNames = new HashSet<>();
+        long        first             = exchanges.isEmpty() ? 0 : exchanges.get( 0 ).getRequest().getFirstByteTime();
+
+        for( int i=0 ; i<exchanges.size() ; ++i ) {
+            HttpRequestResponseStep exchange = exchanges.get( i );
+
+            theRecordedTokens.add( TokenCorrelator.extractTokens( exchange.getResponse() ));
+
+            long firstByte = exchange.getRequest().getFirstByteTime();
+            theRecordedOffsets[i] = ( first != 0 && firstByte != 0 ) ? Math.max( 0, firstByte - first ) : 0;
+
+            String [] setCookies = exchange.getResponse().getHeaders().get( HttpMessage.HTTP_SET_COOKIE_HEADER );
+            if( setCookies != null ) {
+                for( String setCookie : setCookies ) {
+                    String [] nameValue = CookieJar.parseSetCookie( setCookie );
+                    if( nameValue != null ) {
+                        serverCookieNames.add( nameValue[0] );
+                    }
+                }
+            }
+        }
+        theServerCookieNames = Collections.unmodifiableSet( serverCookieNames );
+    }
+
+    /**
+     * Set the number of virtual users. Each replays the entire recording once.
+     *
+     * @param virtualUsers the number of virtual users
+     */
+    public void setVirtualUsers(
+            int virtualUsers )
+    {
+        theVirtualUsers = virtualUsers;
+    }
+
+    /**
+     * Set how many virtual users may be active at the same time.
+     *
+     * @param concurrency the maximum number of active virtual users
+     */
+    public void setConcurrency(
+            int concurrency )
+    {
+        theConcurrency = concurrency;
+    }
+
+    /**
+     * Set how virtual users space out their requests.
+     *
+     * @param pacing the pacing
+     * @param thinkTime the time to wait after each response, in milliseconds, if pacing is FIXED
+     */
+    public void setPacing(
+            ReplayPacing pacing,
+            long         thinkTime )
+    {
+        thePacing    = pacing;
+        theThinkTime = thinkTime;
+    }
+
+    /**
+     * Run all virtual users to completion.
+     *
+     * @throws InterruptedException the replay was interrupted
+     */
+    public void run()
+        throws
+            InterruptedException
+    {
+        LOG.log( Level.INFO, "Replaying {0} exchanges with {1} virtual users, {2} at a time",
+                new Object[] { theExchanges.size(), theVirtualUsers, theConcurrency } );
+
+        ExecutorService users = Executors.newFixedThreadPool( Math.max( 1, Math.min( theConcurrency, theVirtualUsers )));
+
+        long start = System.nanoTime();
+        try {
+            for( int i=0 ; i<theVirtualUsers ; ++i ) {
+                users.submit( new VirtualUser( "user-" + i, this ));
+            }
+            users.shutdown();
+            users.awaitTermination( Long.MAX_VALUE, TimeUnit.DAYS );
+
+        } finally {
+            users.shutdownNow();
+            theElapsed = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Write the results of the replay: throughput and latency per path, and in total.
+     *
+     * @param w the writer to write to
+     */
+    public void writeReport(
+            PrintWriter w )
+    {
+        double seconds = Math.max( theElapsed, 1L ) / 1e9;
+
+        w.println( String.format( "%d virtual users, %d exchanges each, %.3f s", theVirtualUsers, theExchanges.size(), seconds ));
+        w.println( String.format(
+                "%-40s %8s %10s %10s %10s %10s %10s %8s %8s",
+                "path", "requests", "requests/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "errors", "mismatch" ));
+
+        PathStats total = new PathStats();
+        for( Map.Entry<String,PathStats> entry : new TreeMap<>( theStats ).entrySet() ) {
+            writeReportLine( w, entry.getKey(), entry.getValue(), seconds );
+            total.add( entry.getValue() );
+        }
+        writeReportLine( w, "total", total, seconds );
+        w.flush();
+    }
+
+    /**
+     * Factored out helper to write one line of the report.
+     *
+     * @param w the writer to write to
+     * @param label the label of the line
+     * @param stats the results to write
+     * @param seconds the duration of the replay
+     */
+    protected void writeReportLine(
+            PrintWriter w,
+            String      label,
+            PathStats   stats,
+            double      seconds )
+    {
+        LatencyHistogram latency = stats.theLatency;
+
+        w.println( String.format(
+                "%-40s %8d %10.1f %10.3f %10.3f %10.3f %10.3f %8d %8d",
+                label.length() > 40 ? label.substring( 0, 37 ) + "..." : label,
+                latency.getCount(),
+                latency.getCount() / seconds,
+                latency.getPercentile( 0.5 ) / 1e6,
+                latency.getPercentile( 0.9 ) / 1e6,
+                latency.getPercentile( 0.99 ) / 1e6,
+                latency.getMax() / 1e6,
+                stats.theErrors.sum(),
+                stats.theStatusMismatches.sum() ));
+    }
+
+    /**
+     * Obtain the recorded exchanges to replay.
+     *
+     * @return the exchanges, in sequence
+     */
+    public List<HttpRequestResponseStep> getExchanges()
+    {
+        return theExchanges;
+    }
+
+    /**
+     * Obtain the token-like values in the recorded response of an exchange.
+     *
+     * @param index the index of the exchange
+     * @return the values, as returned by TokenCorrelator.extractTokens
+     */
+    public Map<String,String> getRecordedTokens(
+            int index )
+    {
+        return theRecordedTokens.get( index );
+    }
+
+    /**
+     * Obtain when an exchange started during the recording, relative to the first one.
+     *
+     * @param index the index of the exchange
+     * @return the offset, in nanoseconds, or 0 if not known
+     */
+    public long getRecordedOffset(
+            int index )
+    {
+        return theRecordedOffsets[ index ];
+    }
+
+    /**
+     * Obtain the names of the cookies the remote host set during the recording.
+     *
+     * @return the names
+     */
+    public Set<String> getServerCookieNames()
+    {
+        return theServerCookieNames;
+    }
+
+    /**
+     * Obtain the remote host.
+     *
+     * @return the host
+     */
+    public String getHost()
+    {
+        return theHost;
+    }
+
+    /**
+     * Obtain the remote port.
+     *
+     * @return the port
+     */
+    public int getPort()
+    {
+        return thePort;
+    }
+
+    /**
+     * Obtain the pacing.
+     *
+     * @return the pacing
+     */
+    public ReplayPacing getPacing()
+    {
+        return thePacing;
+    }
+
+    /**
+     * Obtain the think time if pacing is FIXED.
+     *
+     * @return the think time, in milliseconds
+     */
+    public long getThinkTime()
+    {
+        return theThinkTime;
+    }
+
+    /**
+     * Record that an exchange has been replayed.
+     *
+     * @param request the recorded request
+     * @param latency time from sending the request until the response was complete, in nanoseconds
+     * @param statusMismatch if true, the status of the response differed from the recorded one
+     */
+    public void recordExchange(
+            HttpRequest request,
+            long        latency,
+            boolean     statusMismatch )
+    {
+        PathStats stats = statsFor( request );
+        stats.theLatency.record( latency );
+        if( statusMismatch ) {
+            stats.theStatusMismatches.increment();
+        }
+    }
+
+    /**
+     * Record that an exchange could not be replayed.
+     *
+     * @param request the recorded request
+     */
+    public void recordError(
+            HttpRequest request )
+    {
+        statsFor( request ).theErrors.increment();
+    }
+
+    /**
+     * Find the results for the path of a request. The query string is not
+     * part of the path, so that the same page with different parameters is
+     * reported together.
+     *
+     * @param request the request
+     * @return the results
+     */
+    protected PathStats statsFor(
+            HttpRequest request )
+    {
+        String path  = request.getPath();
+        int    query = path.indexOf( '?' );
+        String key   = request.getVerb() + " " + ( query >= 0 ? path.substring( 0, query ) : path );
+
+        return theStats.computeIfAbsent( key, k -> new PathStats() );
+    }
+
+    /**
+     * The recorded exchanges to replay.
+     */
+    protected final List<HttpRequestResponseStep> theExchanges;
+
+    /**
+     * The token-like values in the recorded responses, in the sequence of theExchanges.
+     */
+    protected final List<Map<String,String>> theRecordedTokens;
+
+    /**
+     * When each exchange started during the recording, relative to the first one, in nanoseconds.
+     */
+    protected final long [] theRecordedOffsets;
+
+    /**
+     * Names of the cookies the remote host set during the recording.
+     */
+    protected final Set<String> theServerCookieNames;
+
+    /**
+     * The remote host to send the requests to.
+     */
+    protected final String theHost;
+
+    /**
+     * The remote port to send the requests to.
+     */
+    protected final int thePort;
+
+    /**
+     * The number of virtual users.
+     */
+    protected int theVirtualUsers = 1;
+
+    /**
+     * The maximum number of virtual users active at the same time.
+     */
+    protected int theConcurrency = 1;
+
+    /**
+     * How virtual users space out their requests.
+     */
+    protected ReplayPacing thePacing = ReplayPacing.NONE;
+
+    /**
+     * Time to wait after each response if thePacing is FIXED, in milliseconds.
+     */
+    protected long theThinkTime;
+
+    /**
+     * The results, keyed by verb and path.
+     */
+    protected final Map<String,PathStats> theStats = new ConcurrentHashMap<>();
+
+    /**
+     * How long the replay took, in nanoseconds.
+     */
+    protected long theElapsed;
+
+    /**
+     * The results for one path.
+     */
+    protected static class PathStats
+    {
+        /**
+         * Add the results for another path to these.
+         *
+         * @param other the other results
+         */
+        public void add(
+                PathStats other )
+        {
+            theLatency.add( other.theLatency );
+            theErrors.add( other.theErrors.sum() );
+            theStatusMismatches.add( other.theStatusMismatches.sum() );
+        }
+
+        /**
+         * Time from sending a request until its response was complete.
+         */
+        public final LatencyHistogram theLatency = new LatencyHistogram();
+
+        /**
+         * Number of requests that did not receive a response.
+         */
+        public final LongAdder theErrors = new LongAdder();
+
+        /**
+         * Number of responses whose status differed from the recorded one.
+         */
+        public final LongAdder theStatusMismatches = new LongAdder();
+    }
+}
@@ -0,0 +1,156 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stands in for a Step that has been evicted from memory into a spill file.
+ * It only keeps what is needed to list it, and the bodies that had been
+ * spilled to files of their own already, which take up no heap; everything
+ * else is read back from the spill file when needed.
+ */
+public class SpilledStep
+    extends
+        Step
+{
+    /**
+     * Constructor.
+     *
+     * @param spiller the StepSpiller that wrote the Step
+     * @param offset the position of the Step in the spill file
+     * @param length the number of bytes of the Step in the spill file
+     * @param spilledBodies the bodies the Step in the spill file only refers to, by hash
+     * @param original the Step that was spilled
+     */
+    public SpilledStep(
+            StepSpiller        spiller,
+            long               offset,
+            int                length,
+            Map<Long,HttpBody> spilledBodies,
+            Step               original )
+    {
+        super( original.getTimeCreated() );
+
+        theSpiller       = spiller;
+        theOffset        = offset;
+        theLength        = length;
+        theSpilledBodies = spilledBodies;
+        theSummary       = original.toString();
+    }
+
+    @Override
+    public JsonElement asJson()
+    {
+        try {
+            // spilled bodies are referred to by hash there, as asJson() does
+            return theSpiller.read( theOffset, theLength );
+
+        } catch( IOException ex ) {
+            throw new UncheckedIOException( ex );
+        }
+    }
+
+    @Override
+    public void writeJson(
+            RecordingJsonWriter w )
+        throws
+            IOException
+    {
+        if( theSpilledBodies.isEmpty() && !w.isDeduplicatingBodies() ) {
+            GSON.toJson( theSpiller.read( theOffset, theLength ), w );
+        } else {
+            // streams the spilled bodies, and lets the writer refer to bodies it has written before
+            readOriginal().writeJson( w );
+        }
+    }
+
+    @Override
+    public void writeBinary(
+            BinaryRecordingWriter w )
+        throws
+            IOException
+    {
+        readOriginal().writeBinary( w );
+    }
+
+    /**
+     * Read back the Step that was spilled, with the bodies it refers to.
+     *
+     * @return the Step
+     * @throws IOException the Step could not be read back
+     */
+    protected Step readOriginal()
+        throws
+            IOException
+    {
+        Step ret;
+        try {
+            // a copy, as reading may add to it
+            ret = RecordingReader.stepFromJson( theSpiller.read( theOffset, theLength ).getAsJsonObject(), new HashMap<>( theSpilledBodies ));
+
+        } catch( JsonParseException | IllegalStateException ex ) {
+            throw new IOException( "Cannot read back spilled Step", ex );
+        }
+        if( ret == null ) {
+            throw new IOException( "Spilled Step of unknown type" );
+        }
+        return ret;
+    }
+
+    @Override
+    public long getMemorySize()
+    {
+        return BASE_MEMORY_SIZE + 2 * theSummary.length();
+    }
+
+    /**
+     * Convert to String, for output on the console.
+     *
+     * @return as String
+     */
+    @Override
+    public String toString()
+    {
+        return theSummary;
+    }
+
+    /**
+     * The StepSpiller that wrote the Step.
+     */
+    protected final StepSpiller theSpiller;
+
+    /**
+     * The position of the Step in the spill file.
+     */
+    protected final long theOffset;
+
+    /**
+     * The number of bytes of the Step in the spill file.
+     */
+    protected final int theLength;
+
+    /**
+     * The bodies the Step in the spill file only refers to, by hash.
+     */
+    protected final Map<Long,HttpBody> theSpilledBodies;
+
+    /**
+     * What the Step printed on the console.
+     */
+    protected final String theSummary;
+
+    /**
+     * Writes the JSON read back from the spill file.
+     */
+    protected static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+}
@@ -0,0 +1,120 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for exactly one producer Thread and exactly
+ * one consumer Thread at a time.
+ *
+ * @param <T> the type of element
+ */
+public class SpscRingBuffer<T>
+{
+    /**
+     * Constructor.
+     *
+     * @param capacity the minimum number of elements the queue can hold; rounded up to a power of 2
+     */
+    public SpscRingBuffer(
+            int capacity )
+    {
+        int actual = Integer.highestOneBit( Math.max( 2, capacity - 1 )) << 1;
+
+        theItems = new AtomicReferenceArray<>( actual );
+        theMask  = actual - 1;
+    }
+
+    /**
+     * Add an element, if there is space. Only to be invoked by the producer.
+     *
+     * @param item the element
+     * @return true if the element was added, false if the queue was full
+     */
+    public boolean offer(
+            T item )
+    {
+        long tail = theTail.get();
+        if( tail - theHead.get() > theMask ) {
+            return false;
+        }
+        theItems.lazySet( (int) tail & theMask, item );
+        theTail.lazySet( tail + 1 ); // publishes the element
+        return true;
+    }
+
+    /**
+     * Remove the oldest element, if any. Only to be invoked by the consumer.
+     *
+     * @return the element, or null if the queue was empty
+     */
+    public T poll()
+    {
+        long head = theHead.get();
+        if( head >= theTail.get() ) {
+            return null;
+        }
+        int index = (int) head & theMask;
+        T   ret   = theItems.get( index );
+
+        theItems.lazySet( index, null );
+        theHead.lazySet( head + 1 ); // frees the slot for the producer
+        return ret;
+    }
+
+    /**
+     * Determine whether the queue is currently empty.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty()
+    {
+        return theHead.get() >= theTail.get();
+    }
+
+    /**
+     * Determine how many more elements can currently be added. Only to be
+     * invoked by the producer; the result may grow, but not shrink, until
+     * the producer adds an element.
+     *
+     * @return the number of elements
+     */
+    public int remainingCapacity()
+    {
+        return (int) ( theMask + 1 - ( theTail.get() - theHead.get() ));
+    }
+
+    /**
+     * Obtain the maximum number of elements the queue can hold.
+     *
+     * @return the capacity
+     */
+    public int getCapacity()
+    {
+        return theMask + 1;
+    }
+
+    /**
+     * The elements.
+     */
+    protected final AtomicReferenceArray<T> theItems;
+
+    /**
+     * Capacity minus one, used to map positions to indexes.
+     */
+    protected final int theMask;
+
+    /**
+     * Position of the next element to be polled. Only written by the consumer.
+     */
+    protected final AtomicLong theHead = new AtomicLong();
+
+    /**
+     * Position of the next element to be offered. Only written by the producer.
+     */
+    protected final AtomicLong theTail = new AtomicLong();
+}
@@ -5,6 +5,7 @@
 package net.ubos.proxycord;
 
 import com.google.gson.JsonElement;
+import java.io.IOException;
 
 /**
  * A recorded step.
@@ -12,12 +13,57 @@ import com.google.gson.JsonElement;
 public abstract class Step
 {
     /**
-     * Convert to JSON.
+     * Constructor for a Step created now.
+     */
+    protected Step()
+    {
+        this( System.currentTimeMillis() );
+    }
+
+    /**
+     * Constructor for a Step created at a given time.
+     * 
+     * @param timeCreated the time, in System.currentTimeMillis() format
+     */
+    protected Step(
+            long timeCreated )
+    {
+        theTimeCreated = timeCreated;
+    }
+
+    /**
+     * Convert to JSON. Bodies spilled to files are too large to hold in
+     * memory as JSON, so they are only referred to by their contenthash;
+     * use writeJson() to include them.
      * 
      * @return JSON object
      */
     public abstract JsonElement asJson();
 
+    /**
+     * Write as JSON. This produces the same JSON as asJson(), but streams
+     * it, instead of creating it in memory first.
+     * 
+     * @param w the writer to write to
+     * @throws IOException an I/O problem occurred
+     */
+    public abstract void writeJson(
+            RecordingJsonWriter w )
+        throws
+            IOException;
+
+    /**
+     * Write in the binary format. This must declare the type of the Step
+     * first, and write everything that its fromBinary() counterpart reads.
+     *
+     * @param w the writer to write to
+     * @throws IOException an I/O problem occurred
+     */
+    public abstract void writeBinary(
+            BinaryRecordingWriter w )
+        throws
+            IOException;
+
     /**
      * Obtain the time this step was created.
      * 
@@ -28,8 +74,23 @@ public abstract class Step
         return theTimeCreated;
     }
 
+    /**
+     * Estimate how much heap memory this Step occupies.
+     * 
+     * @return the number of bytes
+     */
+    public long getMemorySize()
+    {
+        return BASE_MEMORY_SIZE;
+    }
+
     /**
      * Creation time of the step.
      */
-    protected final long theTimeCreated = System.currentTimeMillis();
+    protected final long theTimeCreated;
+
+    /**
+     * Rough estimate of the heap memory occupied by a Step without content.
+     */
+    protected static final long BASE_MEMORY_SIZE = 64;
 }
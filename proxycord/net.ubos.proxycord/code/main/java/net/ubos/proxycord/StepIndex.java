@@ -0,0 +1,490 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Secondary indexes over the recorded Steps, so they can be found by path
+ * prefix, status, content type and time without looking at every Step.
+ * Steps are identified by their position in the StepLog. The index is
+ * updated as Steps are logged and dropped; it keeps what it needs about
+ * each Step itself, so it remains valid when a Step has been spilled.
+ */
+public class StepIndex
+{
+    /**
+     * Factory method.
+     *
+     * @return the created instance
+     */
+    public static StepIndex create()
+    {
+        return new StepIndex();
+    }
+
+    /**
+     * Private constructor, use factory method.
+     */
+    protected StepIndex()
+    {}
+
+    /**
+     * A Step has been appended to the StepLog.
+     *
+     * @param step the Step
+     */
+    public synchronized void append(
+            Step step )
+    {
+        int position = theSize;
+        if( position == theTimes.length ) {
+            int newLength = Math.max( INITIAL_CAPACITY, position * 2 );
+            theTimes       = Arrays.copyOf( theTimes,       newLength );
+            theStatuses    = Arrays.copyOf( theStatuses,    newLength );
+            thePathColumn  = Arrays.copyOf( thePathColumn,  newLength );
+            theTypeColumn  = Arrays.copyOf( theTypeColumn,  newLength );
+        }
+
+        // Steps are created on different threads, so their times may be
+        // slightly out of sequence. Keep them sorted for binary search.
+        long time = step.getTimeCreated();
+        if( position > 0 && time < theTimes[ position-1 ] ) {
+            time = theTimes[ position-1 ];
+        }
+        theTimes[ position ] = time;
+
+        if( step instanceof HttpRequestResponseStep ) {
+            HttpRequestResponseStep exchange = (HttpRequestResponseStep) step;
+
+            int status = exchange.getResponse().getStatus();
+            theStatuses[ position ] = status;
+            theStatusPostings.computeIfAbsent( status, k -> new Posting( null )).add( position );
+
+            String path  = exchange.getRequest().getPath();
+            int    query = path.indexOf( '?' );
+            if( query >= 0 ) {
+                path = path.substring( 0, query );
+            }
+            Posting pathPosting = thePathPostings.computeIfAbsent( path, k -> new Posting( k ));
+            pathPosting.add( position );
+            thePathColumn[ position ] = pathPosting;
+
+            String type = contentTypeOf( exchange.getResponse() );
+            if( type != null ) {
+                Posting typePosting = theTypePostings.computeIfAbsent( type, k -> new Posting( k ));
+                typePosting.add( position );
+                theTypeColumn[ position ] = typePosting;
+            }
+        }
+        theSize = position + 1;
+    }
+
+    /**
+     * The most recent Steps have been dropped from the StepLog.
+     *
+     * @param newSize the number of Steps remaining
+     */
+    public synchronized void truncate(
+            int newSize )
+    {
+        for( int position = newSize ; position < theSize ; ++position ) {
+            // only the Postings of the dropped Steps can contain dropped positions
+            if( theStatuses[ position ] != 0 ) {
+                theStatusPostings.get( theStatuses[ position ] ).truncate( newSize );
+            }
+            if( thePathColumn[ position ] != null ) {
+                thePathColumn[ position ].truncate( newSize );
+            }
+            if( theTypeColumn[ position ] != null ) {
+                theTypeColumn[ position ].truncate( newSize );
+            }
+            theStatuses[ position ]   = 0;
+            thePathColumn[ position ] = null;
+            theTypeColumn[ position ] = null;
+        }
+        theSize = Math.min( theSize, newSize );
+    }
+
+    /**
+     * Find the positions of the Steps that match a query, in sequence,
+     * one page at a time.
+     *
+     * @param query the query
+     * @param start the lowest position to consider
+     * @param max the maximum number of positions to return
+     * @return the positions
+     */
+    public synchronized int [] find(
+            StepQuery query,
+            int       start,
+            int       max )
+    {
+        int from = Math.max( start, lowerBound( query.getFromTime() ));
+        int to   = query.getToTime() == Long.MAX_VALUE ? theSize : lowerBound( query.getToTime() + 1 );
+
+        Posting typePosting = null;
+        if( query.getContentType() != null ) {
+            typePosting = theTypePostings.get( query.getContentType() );
+            if( typePosting == null ) {
+                return new int[0];
+            }
+        }
+
+        // Walk the smallest of the applicable Postings, and check the other
+        // criteria against what we know about each position
+        Collection<Posting> walk     = null;
+        int                 walkSize = to - from;
+
+        if( typePosting != null && typePosting.size() < walkSize ) {
+            walk     = Collections.singletonList( typePosting );
+            walkSize = typePosting.size();
+        }
+        if( query.getMinStatus() != 0 ) {
+            Collection<Posting> statusPostings = theStatusPostings.subMap( query.getMinStatus(), true, query.getMaxStatus(), true ).values();
+            int                 statusSize     = totalSize( statusPostings );
+            if( statusSize < walkSize ) {
+                walk     = statusPostings;
+                walkSize = statusSize;
+            }
+        }
+        String prefix = query.getPathPrefix();
+        if( prefix != null ) {
+            Collection<Posting> pathPostings = thePathPostings.subMap( prefix, true, prefix + Character.MAX_VALUE, false ).values();
+            int                 pathSize     = totalSize( pathPostings );
+            if( pathSize < walkSize ) {
+                walk = pathPostings;
+            }
+        }
+
+        int [] ret   = new int[ max ];
+        int    count = 0;
+
+        if( walk == null ) {
+            for( int position = from ; position < to && count < max ; ++position ) {
+                if( matches( position, query, typePosting )) {
+                    ret[ count++ ] = position;
+                }
+            }
+
+        } else {
+            // merge the Postings, which are sorted already
+            PriorityQueue<PostingCursor> cursors = new PriorityQueue<>();
+            for( Posting current : walk ) {
+                PostingCursor cursor = new PostingCursor( current, current.indexOf( from ));
+                if( cursor.hasCurrent() ) {
+                    cursors.add( cursor );
+                }
+            }
+            while( count < max && !cursors.isEmpty() ) {
+                PostingCursor cursor   = cursors.poll();
+                int           position = cursor.current();
+                if( position >= to ) {
+                    break;
+                }
+                if( matches( position, query, typePosting )) {
+                    ret[ count++ ] = position;
+                }
+                cursor.advance();
+                if( cursor.hasCurrent() ) {
+                    cursors.add( cursor );
+                }
+            }
+        }
+        return count == max ? ret : Arrays.copyOf( ret, count );
+    }
+
+    /**
+     * Determine whether the Step at a position matches a query.
+     *
+     * @param position the position
+     * @param query the query
+     * @param typePosting the Posting of the queried content type, if any
+     * @return true if it matches
+     */
+    protected boolean matches(
+            int       position,
+            StepQuery query,
+            Posting   typePosting )
+    {
+        if( query.getMinStatus() != 0 ) {
+            int status = theStatuses[ position ];
+            if( status < query.getMinStatus() || status > query.getMaxStatus() ) {
+                return false;
+            }
+        }
+        if( typePosting != null && theTypeColumn[ position ] != typePosting ) {
+            return false;
+        }
+        if( query.getPathPrefix() != null ) {
+            Posting pathPosting = thePathColumn[ position ];
+            if( pathPosting == null || !pathPosting.theKey.startsWith( query.getPathPrefix() )) {
+                return false;
+            }
+        }
+        long time = theTimes[ position ];
+        return time >= query.getFromTime() && time <= query.getToTime();
+    }
+
+    /**
+     * Find the lowest position whose time is at least the given time.
+     *
+     * @param time the time, in System.currentTimeMillis() format
+     * @return the position, or the number of Steps if there is none
+     */
+    protected int lowerBound(
+            long time )
+    {
+        int low  = 0;
+        int high = theSize;
+        while( low < high ) {
+            int middle = ( low + high ) >>> 1;
+            if( theTimes[ middle ] < time ) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Obtain the content type of a response, without parameters.
+     *
+     * @param response the response
+     * @return the content type, or null if none
+     */
+    protected static String contentTypeOf(
+            HttpResponse response )
+    {
+        String value = response.getFirstHeaderValue( HttpMessage.HTTP_CONTENT_TYPE_HEADER );
+        if( value == null ) {
+            return null;
+        }
+        int semicolon = value.indexOf( ';' );
+        if( semicolon >= 0 ) {
+            value = value.substring( 0, semicolon );
+        }
+        value = value.trim().toLowerCase();
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Add up the sizes of some Postings.
+     *
+     * @param postings the Postings
+     * @return the total number of positions
+     */
+    protected static int totalSize(
+            Collection<Posting> postings )
+    {
+        long ret = 0;
+        for( Posting current : postings ) {
+            ret += current.size();
+        }
+        return (int) Math.min( ret, Integer.MAX_VALUE );
+    }
+
+    /**
+     * Number of indexed Steps.
+     */
+    protected int theSize;
+
+    /**
+     * By position: the time the Step was created, never decreasing.
+     */
+    protected long [] theTimes = new long[0];
+
+    /**
+     * By position: the response status, or 0 if not an HttpRequestResponseStep.
+     */
+    protected int [] theStatuses = new int[0];
+
+    /**
+     * By position: the Posting of the path, or null.
+     */
+    protected Posting [] thePathColumn = new Posting[0];
+
+    /**
+     * By position: the Posting of the content type, or null.
+     */
+    protected Posting [] theTypeColumn = new Posting[0];
+
+    /**
+     * The positions, by status.
+     */
+    protected final TreeMap<Integer,Posting> theStatusPostings = new TreeMap<>();
+
+    /**
+     * The positions, by path without query. Sorted, so all paths with a
+     * prefix are adjacent.
+     */
+    protected final TreeMap<String,Posting> thePathPostings = new TreeMap<>();
+
+    /**
+     * The positions, by content type.
+     */
+    protected final Map<String,Posting> theTypePostings = new HashMap<>();
+
+    /**
+     * Number of positions allocated when the first Step is appended.
+     */
+    protected static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The positions of the Steps that have a certain value, in sequence.
+     */
+    protected static class Posting
+    {
+        /**
+         * Constructor.
+         *
+         * @param key the value, if needed for matching
+         */
+        public Posting(
+                String key )
+        {
+            theKey = key;
+        }
+
+        /**
+         * Add a position, higher than all positions added so far.
+         *
+         * @param position the position
+         */
+        public void add(
+                int position )
+        {
+            if( theSize == thePositions.length ) {
+                thePositions = Arrays.copyOf( thePositions, Math.max( 4, theSize * 2 ));
+            }
+            thePositions[ theSize++ ] = position;
+        }
+
+        /**
+         * Remove all positions at or above a limit.
+         *
+         * @param limit the limit
+         */
+        public void truncate(
+                int limit )
+        {
+            while( theSize > 0 && thePositions[ theSize-1 ] >= limit ) {
+                --theSize;
+            }
+        }
+
+        /**
+         * Find the index of the lowest position at or above a position.
+         *
+         * @param position the position
+         * @return the index, or size() if there is none
+         */
+        public int indexOf(
+                int position )
+        {
+            int found = Arrays.binarySearch( thePositions, 0, theSize, position );
+            return found >= 0 ? found : -found - 1;
+        }
+
+        /**
+         * Obtain the number of positions.
+         *
+         * @return the number
+         */
+        public int size()
+        {
+            return theSize;
+        }
+
+        /**
+         * The value, if needed for matching.
+         */
+        public final String theKey;
+
+        /**
+         * The positions; only the first theSize are used.
+         */
+        protected int [] thePositions = new int[0];
+
+        /**
+         * Number of positions used.
+         */
+        protected int theSize;
+    }
+
+    /**
+     * Walks through a Posting while merging several.
+     */
+    protected static class PostingCursor
+        implements
+            Comparable<PostingCursor>
+    {
+        /**
+         * Constructor.
+         *
+         * @param posting the Posting to walk through
+         * @param index where to start
+         */
+        public PostingCursor(
+                Posting posting,
+                int     index )
+        {
+            thePosting = posting;
+            theIndex   = index;
+        }
+
+        /**
+         * Determine whether there is a current position.
+         *
+         * @return true if there is
+         */
+        public boolean hasCurrent()
+        {
+            return theIndex < thePosting.theSize;
+        }
+
+        /**
+         * Obtain the current position.
+         *
+         * @return the position
+         */
+        public int current()
+        {
+            return thePosting.thePositions[ theIndex ];
+        }
+
+        /**
+         * Move to the next position.
+         */
+        public void advance()
+        {
+            ++theIndex;
+        }
+
+        @Override
+        public int compareTo(
+                PostingCursor other )
+        {
+            return Integer.compare( current(), other.current() );
+        }
+
+        /**
+         * The Posting to walk through.
+         */
+        protected final Posting thePosting;
+
+        /**
+         * Index of the current position in the Posting.
+         */
+        protected int theIndex;
+    }
+}
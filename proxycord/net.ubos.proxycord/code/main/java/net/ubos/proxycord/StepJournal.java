@@ -0,0 +1,297 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only file of recorded Steps, one JSON object per line, written
+ * as soon as each Step has been logged. If Proxycord dies, the journal
+ * still contains everything up to the last complete line, and can be
+ * converted into the regular output format.
+ */
+public class StepJournal
+{
+    private final static Logger LOG = Logger.getLogger( StepJournal.class.getName() );
+
+    /**
+     * Factory method. If the file exists already, new Steps are appended
+     * to the ones already in it. If its last line was cut off, because
+     * Proxycord died while writing it, that line is removed first, so the
+     * next Step starts on a line of its own.
+     *
+     * @param file the journal file
+     * @return the created instance
+     * @throws IOException the file could not be opened
+     */
+    public static StepJournal create(
+            File file )
+        throws
+            IOException
+    {
+        if( file.exists() ) {
+            truncateIncompleteLine( file );
+        }
+        Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file, true ), StandardCharsets.UTF_8 ));
+        return new StepJournal( out );
+    }
+
+    /**
+     * Remove whatever follows the last newline in a file.
+     *
+     * @param file the file
+     * @throws IOException an I/O problem occurred
+     */
+    protected static void truncateIncompleteLine(
+            File file )
+        throws
+            IOException
+    {
+        try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE )) {
+            long       end = channel.size();
+            long       pos = end;
+            ByteBuffer buf = ByteBuffer.allocate( (int) Math.min( end, TRUNCATE_BUFFER_SIZE ));
+
+            while( pos > 0 ) {
+                int n = (int) Math.min( pos, buf.capacity() );
+                buf.clear().limit( n );
+                while( buf.hasRemaining() ) {
+                    if( channel.read( buf, pos - n + buf.position() ) < 0 ) {
+                        throw new IOException( "Journal file shrank while reading: " + file.getPath() );
+                    }
+                }
+                int i = n - 1;
+                while( i >= 0 && buf.get( i ) != '\n' ) {
+                    --i;
+                }
+                if( i >= 0 ) {
+                    pos = pos - n + i + 1;
+                    break;
+                }
+                pos -= n;
+            }
+            if( pos < end ) {
+                LOG.log( Level.WARNING, "Removing incomplete last line of journal {0}: {1} bytes", new Object[] { file.getPath(), end - pos } );
+                channel.truncate( pos );
+            }
+        }
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param out the Writer to write to
+     */
+    protected StepJournal(
+            Writer out )
+    {
+        theOut = out;
+    }
+
+    /**
+     * Append a Step to the journal.
+     *
+     * @param step the Step
+     * @throws IOException an I/O problem occurred
+     */
+    public synchronized void append(
+            Step step )
+        throws
+            IOException
+    {
+        RecordingJsonWriter w = new RecordingJsonWriter( theOut );
+        w.setHtmlSafe( false );
+        step.writeJson( w ); // without indentation, this is a single line
+
+        endRecord();
+    }
+
+    /**
+     * Record that the n most recent Steps have been dropped.
+     *
+     * @param n the number of Steps
+     * @throws IOException an I/O problem occurred
+     */
+    public synchronized void appendDrop(
+            int n )
+        throws
+            IOException
+    {
+        RecordingJsonWriter w = new RecordingJsonWriter( theOut );
+        w.beginObject();
+        w.name( "type" ).value( DROP_TYPE );
+        w.name( "count" ).value( n );
+        w.endObject();
+
+        endRecord();
+    }
+
+    /**
+     * Finish a record, and hand it to the operating system, which will
+     * write it to disk even if we die right after.
+     *
+     * @throws IOException an I/O problem occurred
+     */
+    protected void endRecord()
+        throws
+            IOException
+    {
+        theOut.write( '\n' );
+        theOut.flush();
+    }
+
+    /**
+     * Close the journal.
+     */
+    public synchronized void close()
+    {
+        try {
+            theOut.close();
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Convert a journal into the regular output format. Dropped Steps are
+     * left out, and so is an incomplete last line.
+     *
+     * @param journal the journal file
+     * @param out the name of the output file
+     * @throws IOException an I/O problem occurred
+     */
+    public static void convert(
+            File   journal,
+            String out )
+        throws
+            IOException
+    {
+        // First pass: determine which lines hold Steps that have not been dropped.
+        // This only keeps line numbers in memory.
+        int [] stepLines = new int[ 1024 ];
+        int    nSteps    = 0;
+
+        try( BufferedReader r = openJournal( journal )) {
+            String line;
+            for( int lineNumber = 0 ; ( line = r.readLine()) != null ; ++lineNumber ) {
+                JsonObject record = parseRecord( line, lineNumber );
+                if( record == null ) {
+                    continue;
+                }
+                if( DROP_TYPE.equals( record.get( "type" ).getAsString() )) {
+                    nSteps = Math.max( 0, nSteps - record.get( "count" ).getAsInt() );
+
+                } else {
+                    if( nSteps == stepLines.length ) {
+                        stepLines = Arrays.copyOf( stepLines, stepLines.length * 2 );
+                    }
+                    stepLines[ nSteps++ ] = lineNumber;
+                }
+            }
+        }
+
+        // Second pass: write those Steps
+        Gson       gson   = new GsonBuilder().disableHtmlEscaping().create();
+        JsonParser parser = new JsonParser();
+        try(    BufferedReader      r = openJournal( journal );
+                RecordingJsonWriter w = new RecordingJsonWriter(
+                        new BufferedWriter( new OutputStreamWriter( new FileOutputStream( out ), StandardCharsets.UTF_8 ))))
+        {
+            w.setIndent( "  " );
+            w.setHtmlSafe( false );
+
+            w.beginObject();
+            w.name( "steps" ).beginArray();
+
+            String line;
+            int    current = 0;
+            for( int lineNumber = 0 ; current < nSteps && ( line = r.readLine()) != null ; ++lineNumber ) {
+                if( lineNumber == stepLines[current] ) {
+                    gson.toJson( parser.parse( line ), w );
+                    ++current;
+                }
+            }
+            w.endArray();
+            w.endObject();
+        }
+    }
+
+    /**
+     * Helper to open a journal for reading.
+     *
+     * @param journal the journal file
+     * @return the reader
+     * @throws IOException the file could not be opened
+     */
+    protected static BufferedReader openJournal(
+            File journal )
+        throws
+            IOException
+    {
+        return new BufferedReader( new InputStreamReader( new FileInputStream( journal ), StandardCharsets.UTF_8 ));
+    }
+
+    /**
+     * Helper to parse one line of a journal.
+     *
+     * @param line the line
+     * @param lineNumber the number of the line, for error reporting
+     * @return the parsed record, or null if the line was not a valid record
+     */
+    protected static JsonObject parseRecord(
+            String line,
+            int    lineNumber )
+    {
+        if( line.isEmpty() ) {
+            return null;
+        }
+        try {
+            JsonElement ret = new JsonParser().parse( line );
+            if( ret.isJsonObject() && ret.getAsJsonObject().has( "type" )) {
+                return ret.getAsJsonObject();
+            }
+        } catch( JsonParseException ex ) {
+            // fall through
+        }
+        LOG.log( Level.WARNING, "Skipping invalid journal record at line {0}", lineNumber+1 );
+        return null;
+    }
+
+    /**
+     * The Writer to write to.
+     */
+    protected Writer theOut;
+
+    /**
+     * Type of the record that indicates that Steps have been dropped.
+     */
+    public static final String DROP_TYPE = "Drop";
+
+    /**
+     * Size of the buffer used to look for the last newline in an existing journal.
+     */
+    protected static final int TRUNCATE_BUFFER_SIZE = 8192;
+}
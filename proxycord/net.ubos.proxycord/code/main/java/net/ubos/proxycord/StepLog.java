@@ -0,0 +1,263 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The recorded Steps. Optimized for appending from many Threads while others
+ * read: the Steps are kept in fixed-size segments, and each change publishes
+ * a new, immutable Snapshot. Readers never lock, and a Snapshot does not
+ * change, no matter what is appended or dropped after it has been obtained.
+ * Writers serialize on a short lock.
+ */
+public class StepLog
+{
+    /**
+     * Factory method.
+     *
+     * @return the created instance
+     */
+    public static StepLog create()
+    {
+        return new StepLog();
+    }
+
+    /**
+     * Private constructor, use factory method.
+     */
+    protected StepLog()
+    {
+        theSnapshot = new Snapshot( new Step[0][], 0 );
+    }
+
+    /**
+     * Append a Step.
+     *
+     * @param step the Step
+     */
+    public synchronized void append(
+            Step step )
+    {
+        Snapshot  current  = theSnapshot;
+        Step [][] segments = current.theSegments;
+        int       segment  = current.theSize >>> SEGMENT_SHIFT;
+
+        if( segment == segments.length ) {
+            segments = Arrays.copyOf( segments, Math.max( 4, segments.length * 2 ));
+        }
+        if( segments[segment] == null ) {
+            // no existing Snapshot can see this slot
+            segments[segment] = new Step[ SEGMENT_SIZE ];
+        }
+        // no existing Snapshot can see this slot either
+        segments[segment][ current.theSize & SEGMENT_MASK ] = step;
+
+        theSnapshot = new Snapshot( segments, current.theSize + 1 );
+    }
+
+    /**
+     * Drop the n most recent Steps.
+     *
+     * @param n the number of Steps to drop
+     * @return the number of Steps actually dropped
+     */
+    public synchronized int dropMostRecent(
+            int n )
+    {
+        Snapshot current = theSnapshot;
+        int      newSize = Math.max( 0, current.theSize - n );
+
+        if( newSize == current.theSize ) {
+            return 0;
+        }
+
+        // Existing Snapshots still see the dropped Steps in the current segments,
+        // so subsequent appends must not overwrite them: copy-on-write.
+        Step [][] segments = Arrays.copyOf( current.theSegments, current.theSegments.length );
+        int       segment  = newSize >>> SEGMENT_SHIFT;
+        int       offset   = newSize & SEGMENT_MASK;
+
+        if( offset > 0 ) {
+            segments[segment] = Arrays.copyOf( segments[segment], SEGMENT_SIZE );
+            Arrays.fill( segments[segment], offset, SEGMENT_SIZE, null );
+            ++segment;
+        }
+        Arrays.fill( segments, segment, segments.length, null );
+
+        theSnapshot = new Snapshot( segments, newSize );
+
+        return current.theSize - newSize;
+    }
+
+    /**
+     * Replace a Step with an equivalent one, such as a version of it that
+     * has been moved out of memory. Snapshots that are in use may see
+     * either version.
+     *
+     * @param index the index of the Step
+     * @param expected the Step expected at this index
+     * @param replacement the replacement
+     * @return true if replaced, false if the expected Step was not found at this index
+     */
+    public synchronized boolean replace(
+            int  index,
+            Step expected,
+            Step replacement )
+    {
+        Snapshot current = theSnapshot;
+        if( index < 0 || index >= current.theSize ) {
+            return false;
+        }
+        Step [] segment = current.theSegments[ index >>> SEGMENT_SHIFT ];
+        if( segment[ index & SEGMENT_MASK ] != expected ) {
+            return false;
+        }
+        segment[ index & SEGMENT_MASK ] = replacement;
+        return true;
+    }
+
+    /**
+     * Obtain a consistent view of the Steps logged so far. This never blocks.
+     *
+     * @return the Snapshot
+     */
+    public Snapshot snapshot()
+    {
+        return theSnapshot;
+    }
+
+    /**
+     * Obtain the number of Steps logged so far.
+     *
+     * @return the number of Steps
+     */
+    public int size()
+    {
+        return theSnapshot.theSize;
+    }
+
+    /**
+     * The current Snapshot.
+     */
+    protected volatile Snapshot theSnapshot;
+
+    /**
+     * Log2 of the number of Steps in a segment.
+     */
+    protected static final int SEGMENT_SHIFT = 10;
+
+    /**
+     * Number of Steps in a segment.
+     */
+    protected static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+    /**
+     * Maps an index to the offset within its segment.
+     */
+    protected static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /**
+     * An immutable view of the StepLog at some point in time.
+     */
+    public static class Snapshot
+        implements
+            Iterable<Step>
+    {
+        /**
+         * Constructor.
+         *
+         * @param segments the segments
+         * @param size the number of Steps
+         */
+        protected Snapshot(
+                Step [][] segments,
+                int       size )
+        {
+            theSegments = segments;
+            theSize     = size;
+        }
+
+        /**
+         * Obtain the number of Steps.
+         *
+         * @return the number of Steps
+         */
+        public int size()
+        {
+            return theSize;
+        }
+
+        /**
+         * Obtain a Step.
+         *
+         * @param index the index of the Step, with 0 being the oldest
+         * @return the Step
+         */
+        public Step get(
+                int index )
+        {
+            if( index < 0 || index >= theSize ) {
+                throw new IndexOutOfBoundsException( "Index " + index + ", size " + theSize );
+            }
+            return theSegments[ index >>> SEGMENT_SHIFT ][ index & SEGMENT_MASK ];
+        }
+
+        /**
+         * Obtain the most recent Steps, but no more than n.
+         *
+         * @param n maximum number of Steps to return
+         * @return the Steps, oldest first
+         */
+        public Step [] getMostRecent(
+                int n )
+        {
+            int    count = Math.min( Math.max( n, 0 ), theSize );
+            Step[] ret   = new Step[ count ];
+            for( int i=0 ; i<count ; ++i ) {
+                ret[i] = get( theSize - count + i );
+            }
+            return ret;
+        }
+
+        @Override
+        public Iterator<Step> iterator()
+        {
+            return new Iterator<Step>() {
+                @Override
+                public boolean hasNext()
+                {
+                    return theIndex < theSize;
+                }
+
+                @Override
+                public Step next()
+                {
+                    if( theIndex >= theSize ) {
+                        throw new NoSuchElementException();
+                    }
+                    return get( theIndex++ );
+                }
+
+                /**
+                 * Index of the next Step.
+                 */
+                protected int theIndex = 0;
+            };
+        }
+
+        /**
+         * The segments holding the Steps.
+         */
+        protected final Step [][] theSegments;
+
+        /**
+         * The number of Steps.
+         */
+        protected final int theSize;
+    }
+}
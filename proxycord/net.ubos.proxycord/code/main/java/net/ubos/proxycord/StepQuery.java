@@ -0,0 +1,235 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Criteria to find recorded HttpRequestResponseSteps by, as entered with
+ * the find command. All given criteria must match.
+ */
+public class StepQuery
+{
+    /**
+     * Factory method, parsing criteria of the form name=value.
+     *
+     * @param args the criteria
+     * @param offset index of the first criterion in args
+     * @return the created instance
+     * @throws IllegalArgumentException a criterion could not be parsed
+     */
+    public static StepQuery parse(
+            String [] args,
+            int       offset )
+    {
+        StepQuery ret = new StepQuery();
+
+        for( int i=offset ; i<args.length ; ++i ) {
+            int equals = args[i].indexOf( '=' );
+            if( equals <= 0 ) {
+                throw new IllegalArgumentException( "Not of the form name=value: " + args[i] );
+            }
+            String name  = args[i].substring( 0, equals );
+            String value = args[i].substring( equals+1 );
+
+            switch( name ) {
+                case "path":
+                    ret.thePathPrefix = value;
+                    break;
+
+                case "status":
+                    if( value.length() == 3 && value.endsWith( "xx" )) {
+                        ret.theMinStatus = parseInt( name, value.substring( 0, 1 )) * 100;
+                        ret.theMaxStatus = ret.theMinStatus + 99;
+                    } else {
+                        ret.theMinStatus = parseInt( name, value );
+                        ret.theMaxStatus = ret.theMinStatus;
+                    }
+                    break;
+
+                case "type":
+                    ret.theContentType = value.toLowerCase();
+                    break;
+
+                case "from":
+                    ret.theFromTime = parseTime( value );
+                    break;
+
+                case "to":
+                    ret.theToTime = parseTime( value );
+                    break;
+
+                default:
+                    throw new IllegalArgumentException( "Unknown criterion: " + name );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Private constructor, use factory method.
+     */
+    protected StepQuery()
+    {}
+
+    /**
+     * Obtain the prefix the path must start with.
+     *
+     * @return the prefix, or null if any
+     */
+    public String getPathPrefix()
+    {
+        return thePathPrefix;
+    }
+
+    /**
+     * Obtain the lowest status that matches.
+     *
+     * @return the status, or 0 if any
+     */
+    public int getMinStatus()
+    {
+        return theMinStatus;
+    }
+
+    /**
+     * Obtain the highest status that matches.
+     *
+     * @return the status, or 0 if any
+     */
+    public int getMaxStatus()
+    {
+        return theMaxStatus;
+    }
+
+    /**
+     * Obtain the content type the response must have, without parameters.
+     *
+     * @return the content type, or null if any
+     */
+    public String getContentType()
+    {
+        return theContentType;
+    }
+
+    /**
+     * Obtain the earliest time a matching Step may have been recorded.
+     *
+     * @return the time, in System.currentTimeMillis() format
+     */
+    public long getFromTime()
+    {
+        return theFromTime;
+    }
+
+    /**
+     * Obtain the latest time a matching Step may have been recorded.
+     *
+     * @return the time, in System.currentTimeMillis() format
+     */
+    public long getToTime()
+    {
+        return theToTime;
+    }
+
+    /**
+     * Factored out helper to parse an integer criterion.
+     *
+     * @param name name of the criterion
+     * @param value the value
+     * @return the parsed value
+     * @throws IllegalArgumentException the value is not an integer
+     */
+    protected static int parseInt(
+            String name,
+            String value )
+    {
+        try {
+            return Integer.parseInt( value );
+        } catch( NumberFormatException ex ) {
+            throw new IllegalArgumentException( "Not a number for " + name + ": " + value );
+        }
+    }
+
+    /**
+     * Factored out helper to parse a point in time. This may be a full time
+     * stamp, as printed by list, or a time of day today.
+     *
+     * @param value the value
+     * @return the time, in System.currentTimeMillis() format
+     * @throws IllegalArgumentException the value cannot be parsed
+     */
+    protected static long parseTime(
+            String value )
+    {
+        for( String format : TIME_FORMATS ) {
+            try {
+                SimpleDateFormat parser = new SimpleDateFormat( format );
+                parser.setLenient( false );
+                Date parsed = parser.parse( value );
+
+                if( format.startsWith( "HH" )) {
+                    Calendar today = Calendar.getInstance();
+                    Calendar time  = Calendar.getInstance();
+                    time.setTime( parsed );
+                    today.set( Calendar.HOUR_OF_DAY, time.get( Calendar.HOUR_OF_DAY ));
+                    today.set( Calendar.MINUTE,      time.get( Calendar.MINUTE ));
+                    today.set( Calendar.SECOND,      time.get( Calendar.SECOND ));
+                    today.set( Calendar.MILLISECOND, 0 );
+                    return today.getTimeInMillis();
+                }
+                return parsed.getTime();
+
+            } catch( ParseException ex ) {
+                // try the next one
+            }
+        }
+        throw new IllegalArgumentException( "Cannot parse time: " + value );
+    }
+
+    /**
+     * The prefix the path must start with, or null.
+     */
+    protected String thePathPrefix;
+
+    /**
+     * The lowest status that matches, or 0.
+     */
+    protected int theMinStatus;
+
+    /**
+     * The highest status that matches, or 0.
+     */
+    protected int theMaxStatus;
+
+    /**
+     * The content type the response must have, or null.
+     */
+    protected String theContentType;
+
+    /**
+     * The earliest time a matching Step may have been recorded.
+     */
+    protected long theFromTime = Long.MIN_VALUE;
+
+    /**
+     * The latest time a matching Step may have been recorded.
+     */
+    protected long theToTime = Long.MAX_VALUE;
+
+    /**
+     * The formats accepted for points in time, longest first.
+     */
+    protected static final String [] TIME_FORMATS = {
+        "yyyy/MM/dd-HH:mm:ss.SSS",
+        "yyyy/MM/dd-HH:mm:ss",
+        "yyyy/MM/dd-HH:mm",
+        "HH:mm:ss",
+        "HH:mm"
+    };
+}
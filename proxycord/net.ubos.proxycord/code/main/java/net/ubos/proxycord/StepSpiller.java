@@ -0,0 +1,287 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the recorded Steps within a memory budget. When the budget is
+ * exceeded, the oldest Steps are written to a spill file and replaced in
+ * the StepLog by SpilledSteps, which read them back when needed.
+ */
+public class StepSpiller
+{
+    private final static Logger LOG = Logger.getLogger( StepSpiller.class.getName() );
+
+    /**
+     * Factory method.
+     *
+     * @param file the spill file, or null to use a temporary file
+     * @param maxSteps the maximum number of Steps to keep in memory
+     * @param maxBytes the maximum number of bytes the Steps in memory may occupy
+     * @return the created instance
+     * @throws IOException the spill file could not be created
+     */
+    public static StepSpiller create(
+            File file,
+            int  maxSteps,
+            long maxBytes )
+        throws
+            IOException
+    {
+        if( file == null ) {
+            file = File.createTempFile( "proxycord-", ".spill" );
+            file.deleteOnExit();
+        }
+        FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE );
+
+        return new StepSpiller( channel, maxSteps, maxBytes );
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param channel the spill file
+     * @param maxSteps the maximum number of Steps to keep in memory
+     * @param maxBytes the maximum number of bytes the Steps in memory may occupy
+     */
+    protected StepSpiller(
+            FileChannel channel,
+            int         maxSteps,
+            long        maxBytes )
+    {
+        theChannel  = channel;
+        theMaxSteps = maxSteps;
+        theMaxBytes = maxBytes;
+    }
+
+    /**
+     * A Step has been appended to the StepLog. Evict older Steps if needed.
+     *
+     * @param log the StepLog
+     * @param step the Step that was appended
+     */
+    public synchronized void stepAppended(
+            StepLog log,
+            Step    step )
+    {
+        ++theStepsInMemory;
+        charge( step );
+
+        StepLog.Snapshot snapshot = log.snapshot();
+        while(    ( theStepsInMemory > theMaxSteps || theBytesInMemory > theMaxBytes )
+               && theEvictionCursor < snapshot.size() )
+        {
+            Step candidate = snapshot.get( theEvictionCursor );
+            if( !( candidate instanceof SpilledStep )) {
+                try {
+                    SpilledStep spilled = spill( candidate );
+
+                    if( log.replace( theEvictionCursor, candidate, spilled )) {
+                        --theStepsInMemory;
+                        discharge( candidate );
+                        charge( spilled );
+                    }
+
+                } catch( IOException ex ) {
+                    LOG.log( Level.SEVERE, "Cannot write to spill file, keeping Steps in memory", ex );
+                    return;
+                }
+            }
+            ++theEvictionCursor;
+        }
+    }
+
+    /**
+     * The most recent Steps have been dropped from the StepLog.
+     *
+     * @param dropped the dropped Steps
+     * @param newSize the size of the StepLog after the drop
+     */
+    public synchronized void stepsDropped(
+            Step [] dropped,
+            int     newSize )
+    {
+        for( Step step : dropped ) {
+            if( !( step instanceof SpilledStep )) {
+                --theStepsInMemory;
+            }
+            discharge( step );
+        }
+        theEvictionCursor = Math.min( theEvictionCursor, newSize );
+    }
+
+    /**
+     * Add a Step's memory size to the bytes in memory, and remember the
+     * amount. The size may shrink later, e.g. when its bodies are compressed
+     * in the background, so it must not be asked again when taking it off.
+     *
+     * @param step the Step
+     */
+    protected void charge(
+            Step step )
+    {
+        long size = step.getMemorySize();
+
+        theCharged.put( step, size );
+        theBytesInMemory += size;
+    }
+
+    /**
+     * Take off what a Step was charged when it was added.
+     *
+     * @param step the Step
+     */
+    protected void discharge(
+            Step step )
+    {
+        Long size = theCharged.remove( step );
+        if( size != null ) {
+            theBytesInMemory -= size;
+        }
+    }
+
+    /**
+     * Write a Step to the end of the spill file. It is streamed there, so
+     * it never needs to be held in memory as a whole. Bodies that have been
+     * spilled to files of their own already are not copied; the SpilledStep
+     * keeps referring to them instead.
+     *
+     * @param step the Step
+     * @return the SpilledStep that stands in for it
+     * @throws IOException an I/O problem occurred
+     */
+    protected SpilledStep spill(
+            Step step )
+        throws
+            IOException
+    {
+        long               offset = theFileEnd;
+        Map<Long,HttpBody> bodies = new HashMap<>();
+
+        // reads are positional, so only writes use the channel's position
+        theChannel.position( offset );
+
+        // not closed, as that would close the channel
+        RecordingJsonWriter w = new RecordingJsonWriter( new OutputStreamWriter(
+                new BufferedOutputStream( Channels.newOutputStream( theChannel ), BUFFER_SIZE ),
+                StandardCharsets.UTF_8 ));
+        w.setHtmlSafe( false );
+        w.setSpilledBodyReferences( bodies );
+        step.writeJson( w );
+        w.flush();
+
+        theFileEnd = theChannel.position();
+
+        long length = theFileEnd - offset;
+        if( length > Integer.MAX_VALUE ) {
+            throw new IOException( "Step too large to spill: " + length + " bytes" );
+        }
+        return new SpilledStep( this, offset, (int) length, bodies, step );
+    }
+
+    /**
+     * Read a Step back from the spill file. May be invoked from any Thread.
+     *
+     * @param offset the position of the Step in the spill file
+     * @param length the number of bytes of the Step in the spill file
+     * @return the Step's JSON
+     * @throws IOException an I/O problem occurred
+     */
+    public JsonElement read(
+            long offset,
+            int  length )
+        throws
+            IOException
+    {
+        ByteBuffer data = ByteBuffer.allocate( length );
+        while( data.hasRemaining() ) {
+            int read = theChannel.read( data, offset + data.position() );
+            if( read < 0 ) {
+                throw new EOFException( "Spill file truncated" );
+            }
+        }
+        return new JsonParser().parse( new String( data.array(), StandardCharsets.UTF_8 ));
+    }
+
+    /**
+     * Close the spill file.
+     */
+    public void close()
+    {
+        try {
+            theChannel.close();
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * The spill file.
+     */
+    protected FileChannel theChannel;
+
+    /**
+     * The position at which the next Step will be written.
+     */
+    protected long theFileEnd;
+
+    /**
+     * The maximum number of Steps to keep in memory.
+     */
+    protected int theMaxSteps;
+
+    /**
+     * The maximum number of bytes the Steps in memory may occupy.
+     */
+    protected long theMaxBytes;
+
+    /**
+     * The number of Steps currently in memory.
+     */
+    protected int theStepsInMemory;
+
+    /**
+     * The estimated number of bytes currently occupied by Steps, including
+     * what SpilledSteps keep in memory.
+     */
+    protected long theBytesInMemory;
+
+    /**
+     * The number of bytes each Step in the StepLog was charged when it was added.
+     */
+    protected final Map<Step,Long> theCharged = new IdentityHashMap<>();
+
+    /**
+     * Index of the oldest Step in the StepLog that may not have been evicted yet.
+     */
+    protected int theEvictionCursor;
+
+    /**
+     * Size of the buffer used to write Steps to the spill file.
+     */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+}
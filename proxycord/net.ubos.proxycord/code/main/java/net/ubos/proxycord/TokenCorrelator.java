@@ -0,0 +1,205 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Carries CSRF tokens and similar per-session values forward during a
+ * replay. For each replayed exchange, the token-like values in the recorded
+ * response are paired up with those in the live response; from then on,
+ * wherever a recorded request contains a recorded value, the live value is
+ * sent instead. This covers hidden form fields, meta tags and JSON
+ * properties whose names look like tokens, and response headers and
+ * cookies such as X-CSRF-Token and XSRF-TOKEN that are echoed back in a
+ * request header.
+ */
+public class TokenCorrelator
+{
+    /**
+     * Find the token-like values in a response.
+     *
+     * @param response the response
+     * @return the values, keyed by where they were found
+     */
+    public static Map<String,String> extractTokens(
+            HttpResponse response )
+    {
+        Map<String,String> ret = new LinkedHashMap<>();
+
+        for( Map.Entry<String,String[]> entry : response.getHeaders().entrySet() ) {
+            String name = entry.getKey();
+            if( HttpMessage.HTTP_SET_COOKIE_HEADER.equalsIgnoreCase( name )) {
+                for( String setCookie : entry.getValue() ) {
+                    String [] nameValue = CookieJar.parseSetCookie( setCookie );
+                    if( nameValue != null && TOKEN_NAME_PATTERN.matcher( nameValue[0] ).find() ) {
+                        ret.put( "cookie:" + nameValue[0], nameValue[1] );
+                    }
+                }
+            } else if( TOKEN_NAME_PATTERN.matcher( name ).find() && entry.getValue().length > 0 ) {
+                ret.put( "header:" + name.toLowerCase(), entry.getValue()[0] );
+            }
+        }
+
+        byte [] content     = response.getContent();
+        String  contentType = response.getFirstHeaderValue( HttpMessage.HTTP_CONTENT_TYPE_HEADER );
+        if( content == null || content.length == 0 || contentType == null ) {
+            return ret;
+        }
+        // token values are ASCII, so there is no need to find the right charset
+        if( contentType.contains( "html" )) {
+            String  text = new String( content, StandardCharsets.ISO_8859_1 );
+            Matcher tags = TAG_PATTERN.matcher( text );
+            while( tags.find() ) {
+                Map<String,String> attributes = parseAttributes( tags.group( 2 ));
+                String             name       = attributes.get( "name" );
+                String             value      = attributes.get( "input".equalsIgnoreCase( tags.group( 1 )) ? "value" : "content" );
+
+                if( name != null && value != null && TOKEN_NAME_PATTERN.matcher( name ).find() ) {
+                    ret.put( tags.group( 1 ).toLowerCase() + ":" + name, value );
+                }
+            }
+
+        } else if( contentType.contains( "json" )) {
+            String  text       = new String( content, StandardCharsets.ISO_8859_1 );
+            Matcher properties = JSON_PROPERTY_PATTERN.matcher( text );
+            while( properties.find() ) {
+                if( TOKEN_NAME_PATTERN.matcher( properties.group( 1 )).find() ) {
+                    ret.put( "json:" + properties.group( 1 ), properties.group( 2 ));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Pair up the token-like values of a recorded response with those of
+     * the corresponding live response.
+     *
+     * @param recordedTokens the values found in the recorded response, as
+     *        returned by extractTokens
+     * @param live the live response
+     */
+    public void learn(
+            Map<String,String> recordedTokens,
+            HttpResponse       live )
+    {
+        if( recordedTokens.isEmpty() ) {
+            return;
+        }
+        Map<String,String> liveTokens = extractTokens( live );
+        for( Map.Entry<String,String> entry : recordedTokens.entrySet() ) {
+            String recordedValue = entry.getValue();
+            String liveValue     = liveTokens.get( entry.getKey() );
+
+            if( liveValue != null && recordedValue.length() >= MIN_TOKEN_LENGTH ) {
+                theSubstitutions.put( recordedValue, liveValue );
+            }
+        }
+    }
+
+    /**
+     * Replace the recorded values in a String, such as a path or a header
+     * value, with the live ones.
+     *
+     * @param s the String
+     * @return the String with replacements
+     */
+    public String rewrite(
+            String s )
+    {
+        if( s == null || theSubstitutions.isEmpty() ) {
+            return s;
+        }
+        for( Map.Entry<String,String> entry : theSubstitutions.entrySet() ) {
+            String recorded = entry.getKey();
+            if( s.contains( recorded )) {
+                s = s.replace( recorded, entry.getValue() );
+            }
+            String encoded = URLEncoder.encode( recorded, StandardCharsets.UTF_8 );
+            if( !encoded.equals( recorded ) && s.contains( encoded )) {
+                s = s.replace( encoded, URLEncoder.encode( entry.getValue(), StandardCharsets.UTF_8 ));
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Replace the recorded values in a request body with the live ones.
+     *
+     * @param content the body
+     * @return the body with replacements; the same array if nothing was replaced
+     */
+    public byte [] rewrite(
+            byte [] content )
+    {
+        if( content == null || theSubstitutions.isEmpty() ) {
+            return content;
+        }
+        // ISO-8859-1 maps each byte to one char and back, so binary content survives
+        String before = new String( content, StandardCharsets.ISO_8859_1 );
+        String after  = rewrite( before );
+
+        return after.equals( before ) ? content : after.getBytes( StandardCharsets.ISO_8859_1 );
+    }
+
+    /**
+     * Factored out helper to parse the attributes of an HTML tag.
+     *
+     * @param s the part of the tag after its name
+     * @return the attributes, with lower-case names
+     */
+    protected static Map<String,String> parseAttributes(
+            String s )
+    {
+        Map<String,String> ret = new HashMap<>();
+        Matcher            m   = ATTRIBUTE_PATTERN.matcher( s );
+        while( m.find() ) {
+            String value = m.group( 2 ) != null ? m.group( 2 ) : m.group( 3 ) != null ? m.group( 3 ) : m.group( 4 );
+            ret.put( m.group( 1 ).toLowerCase(), value );
+        }
+        return ret;
+    }
+
+    /**
+     * Recorded values, mapped to the live values to send instead.
+     */
+    protected final Map<String,String> theSubstitutions = new HashMap<>();
+
+    /**
+     * Shorter values are too likely to occur by accident to be replaced.
+     */
+    protected static final int MIN_TOKEN_LENGTH = 8;
+
+    /**
+     * Names of fields, headers and cookies that hold tokens.
+     */
+    protected static final Pattern TOKEN_NAME_PATTERN = Pattern.compile(
+            "(?i)csrf|xsrf|authenticity|token|nonce" );
+
+    /**
+     * HTML tags that may carry a token.
+     */
+    protected static final Pattern TAG_PATTERN = Pattern.compile(
+            "(?i)<(input|meta)\\b([^>]*)>" );
+
+    /**
+     * One attribute in an HTML tag.
+     */
+    protected static final Pattern ATTRIBUTE_PATTERN = Pattern.compile(
+            "([a-zA-Z_:-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))" );
+
+    /**
+     * A JSON property with a string value.
+     */
+    protected static final Pattern JSON_PROPERTY_PATTERN = Pattern.compile(
+            "\"([a-zA-Z_-]+)\"\\s*:\\s*\"([^\"\\\\]+)\"" );
+}
@@ -0,0 +1,231 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps idle keep-alive connections to the remote host, so they can be
+ * reused by subsequent requests instead of opening a new connection for
+ * each. The remote host's name is only resolved once.
+ */
+public class UpstreamConnectionPool
+{
+    private final static Logger LOG = Logger.getLogger( UpstreamConnectionPool.class.getName() );
+
+    /**
+     * Factory method.
+     *
+     * @param remoteHost remote host to connect to
+     * @param remotePort remote port to connect to
+     * @param maxIdle the maximum number of idle connections to keep
+     * @param idleTimeout the time, in milliseconds, after which an idle connection is not reused any more
+     * @return the created instance
+     * @throws IOException the remote host could not be resolved
+     */
+    public static UpstreamConnectionPool create(
+            String remoteHost,
+            int    remotePort,
+            int    maxIdle,
+            long   idleTimeout )
+        throws
+            IOException
+    {
+        InetSocketAddress address = new InetSocketAddress( InetAddress.getByName( remoteHost ), remotePort );
+
+        return new UpstreamConnectionPool( address, maxIdle, idleTimeout );
+    }
+
+    /**
+     * Private constructor, use factory method.
+     *
+     * @param address the resolved address of the remote host
+     * @param maxIdle the maximum number of idle connections to keep
+     * @param idleTimeout the time, in milliseconds, after which an idle connection is not reused any more
+     */
+    protected UpstreamConnectionPool(
+            InetSocketAddress address,
+            int               maxIdle,
+            long              idleTimeout )
+    {
+        theAddress     = address;
+        theMaxIdle     = maxIdle;
+        theIdleTimeout = idleTimeout;
+    }
+
+    /**
+     * Obtain a connection to the remote host, reusing an idle one if possible.
+     *
+     * @return the connection, in blocking mode
+     * @throws IOException a new connection could not be opened
+     */
+    public SocketChannel acquire()
+        throws
+            IOException
+    {
+        IdleConnection idle;
+        while( ( idle = theIdle.pollFirst()) != null ) {
+            theIdleCount.decrementAndGet();
+
+            if(    System.currentTimeMillis() - idle.theIdleSince < theIdleTimeout
+                && isStillOpen( idle.theChannel ))
+            {
+                LOG.log( Level.INFO, "Reusing upstream connection {0}", idle.theChannel );
+                return idle.theChannel;
+            }
+            closeQuietly( idle.theChannel );
+        }
+
+        SocketChannel ret = SocketChannel.open( theAddress );
+        ret.socket().setTcpNoDelay( true );
+
+        LOG.log( Level.INFO, "Opened upstream connection {0}", ret );
+        return ret;
+    }
+
+    /**
+     * Return a connection that is at the boundary between two HTTP messages,
+     * so it can be reused.
+     *
+     * @param channel the connection
+     */
+    public void release(
+            SocketChannel channel )
+    {
+        if( theIdleCount.incrementAndGet() > theMaxIdle ) {
+            theIdleCount.decrementAndGet();
+            closeQuietly( channel );
+            return;
+        }
+        // most recently used first: those are the least likely to have been closed by the remote host
+        theIdle.offerFirst( new IdleConnection( channel, System.currentTimeMillis() ));
+    }
+
+    /**
+     * Close all idle connections.
+     */
+    public void close()
+    {
+        IdleConnection idle;
+        while( ( idle = theIdle.pollFirst()) != null ) {
+            theIdleCount.decrementAndGet();
+            closeQuietly( idle.theChannel );
+        }
+    }
+
+    /**
+     * Determine, without blocking, whether the remote host has closed an
+     * idle connection. An idle connection must not have anything to read,
+     * so if it has, we do not reuse it either.
+     *
+     * @param channel the connection
+     * @return true if the connection can be reused
+     */
+    protected boolean isStillOpen(
+            SocketChannel channel )
+    {
+        try {
+            channel.configureBlocking( false );
+            int read = channel.read( ByteBuffer.allocate( 1 ));
+            channel.configureBlocking( true );
+
+            return read == 0;
+
+        } catch( IOException ex ) {
+            return false;
+        }
+    }
+
+    /**
+     * Helper to close a connection, ignoring errors.
+     *
+     * @param channel the connection
+     */
+    protected static void closeQuietly(
+            SocketChannel channel )
+    {
+        try {
+            channel.close();
+        } catch( IOException ex ) {
+            // ignore
+        }
+    }
+
+    /**
+     * The resolved address of the remote host.
+     */
+    protected InetSocketAddress theAddress;
+
+    /**
+     * The maximum number of idle connections to keep.
+     */
+    protected int theMaxIdle;
+
+    /**
+     * The time, in milliseconds, after which an idle connection is not reused any more.
+     */
+    protected long theIdleTimeout;
+
+    /**
+     * The idle connections, most recently used first.
+     */
+    protected final Deque<IdleConnection> theIdle = new ConcurrentLinkedDeque<>();
+
+    /**
+     * The number of idle connections, as counting theIdle is not O(1).
+     */
+    protected final AtomicInteger theIdleCount = new AtomicInteger();
+
+    /**
+     * Default for the maximum number of idle connections to keep.
+     */
+    public static final int DEFAULT_MAX_IDLE = 32;
+
+    /**
+     * Default for the time, in milliseconds, after which an idle connection is
+     * not reused any more. This is below the keep-alive timeout of common web
+     * servers (Apache: 5 seconds).
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 4000L;
+
+    /**
+     * An idle connection in the pool.
+     */
+    protected static class IdleConnection
+    {
+        /**
+         * Constructor.
+         *
+         * @param channel the connection
+         * @param idleSince the time since when the connection has been idle
+         */
+        public IdleConnection(
+                SocketChannel channel,
+                long          idleSince )
+        {
+            theChannel   = channel;
+            theIdleSince = idleSince;
+        }
+
+        /**
+         * The connection.
+         */
+        protected final SocketChannel theChannel;
+
+        /**
+         * The time since when the connection has been idle.
+         */
+        protected final long theIdleSince;
+    }
+}
@@ -0,0 +1,334 @@
+//
+// Copyright (C) 2018 and later, Johannes Ernst. All rights reserved. License: see package.
+//
+
+package net.ubos.proxycord;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays all recorded exchanges once, in sequence, over its own keep-alive
+ * connection, with its own cookies and tokens, as one more user of the
+ * web application would.
+ */
+public class VirtualUser
+    implements
+        Runnable
+{
+    private final static Logger LOG = Logger.getLogger( VirtualUser.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param name name of the virtual user, for logging
+     * @param replayer the Replayer this virtual user belongs to
+     */
+    public VirtualUser(
+            String   name,
+            Replayer replayer )
+    {
+        theName     = name;
+        theReplayer = replayer;
+        theCookies  = new CookieJar( replayer.getServerCookieNames() );
+    }
+
+    @Override
+    public void run()
+    {
+        List<HttpRequestResponseStep> exchanges = theReplayer.getExchanges();
+
+        long start = System.nanoTime();
+        try {
+            for( int i=0 ; i<exchanges.size() ; ++i ) {
+                if( i > 0 ) {
+                    pace( i, start );
+                }
+                HttpRequestResponseStep recorded = exchanges.get( i );
+                HttpRequest             request  = recorded.getRequest();
+                byte []                 data     = serialize( request );
+                boolean                 isHead   = HttpRequest.HTTP_HEAD_VERB.equals( request.getVerb() );
+
+                long         sent = System.nanoTime();
+                HttpResponse live = exchange( data, isHead, request.isIdempotent() );
+
+                if( live == null ) {
+                    theReplayer.recordError( request );
+                    continue;
+                }
+                theReplayer.recordExchange( request, System.nanoTime() - sent, live.getStatus() != recorded.getResponse().getStatus() );
+
+                theCookies.update( live );
+                theTokens.learn( theReplayer.getRecordedTokens( i ), live );
+            }
+
+        } catch( InterruptedException ex ) {
+            // we are done
+
+        } finally {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Wait before sending the next request, as the pacing requires.
+     *
+     * @param index the index of the exchange to be replayed next
+     * @param start when this virtual user started, in System.nanoTime() format
+     * @throws InterruptedException the replay was stopped
+     */
+    protected void pace(
+            int  index,
+            long start )
+        throws
+            InterruptedException
+    {
+        switch( theReplayer.getPacing() ) {
+            case RECORDED:
+                long offset = theReplayer.getRecordedOffset( index );
+                long wait   = start + offset - System.nanoTime();
+                if( wait > 0 ) {
+                    TimeUnit.NANOSECONDS.sleep( wait );
+                }
+                break;
+
+            case FIXED:
+                Thread.sleep( theReplayer.getThinkTime() );
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Convert a recorded request into the bytes to send, with this virtual
+     * user's cookies and tokens.
+     *
+     * @param request the recorded request
+     * @return the bytes
+     */
+    protected byte [] serialize(
+            HttpRequest request )
+    {
+        byte [] content = theTokens.rewrite( request.getContent() );
+
+        StringBuilder head = new StringBuilder();
+        head.append( request.getVerb() ).append( ' ' );
+        head.append( theTokens.rewrite( request.getPath() ));
+        head.append( " HTTP/" ).append( request.getVersion() ).append( "\r\n" );
+
+        String recordedCookie = null;
+        for( Map.Entry<String,String[]> entry : request.getHeaders().entrySet() ) {
+            String name = entry.getKey();
+            if( HttpMessage.HTTP_COOKIE_HEADER.equalsIgnoreCase( name )) {
+                recordedCookie = String.join( "; ", entry.getValue() );
+                continue;
+            }
+            if(    HttpMessage.HTTP_CONTENT_LENGTH_HEADER.equalsIgnoreCase( name )
+                || HttpMessage.HTTP_TRANSFER_ENCODING_HEADER.equalsIgnoreCase( name ))
+            {
+                continue; // the recorded body has been de-chunked, and may have changed length
+            }
+            for( String value : entry.getValue() ) {
+                head.append( name ).append( ": " ).append( theTokens.rewrite( value )).append( "\r\n" );
+            }
+        }
+        String cookie = theCookies.cookieHeader( recordedCookie );
+        if( cookie != null ) {
+            head.append( HttpMessage.HTTP_COOKIE_HEADER ).append( ": " ).append( cookie ).append( "\r\n" );
+        }
+        if( content != null && ( content.length > 0 || request.getFirstHeaderValue( HttpMessage.HTTP_CONTENT_LENGTH_HEADER ) != null )) {
+            head.append( HttpMessage.HTTP_CONTENT_LENGTH_HEADER ).append( ": " ).append( content.length ).append( "\r\n" );
+        }
+        head.append( "\r\n" );
+
+        byte [] headBytes = head.toString().getBytes( StandardCharsets.ISO_8859_1 );
+        if( content == null || content.length == 0 ) {
+            return headBytes;
+        }
+        byte [] ret = new byte[ headBytes.length + content.length ];
+        System.arraycopy( headBytes, 0, ret, 0,                headBytes.length );
+        System.arraycopy( content,   0, ret, headBytes.length, content.length );
+        return ret;
+    }
+
+    /**
+     * Send a request and receive its response. If a kept-alive connection
+     * turns out to have been closed by the remote host in the meantime,
+     * try once more on a new connection. That is only done if the remote
+     * host cannot have acted on the request, because it could not be sent
+     * or nothing came back, and only for idempotent requests: a remote host
+     * may also close the connection after it has processed the request.
+     *
+     * @param request the bytes of the request
+     * @param isHead if true, the request is a HEAD request
+     * @param isIdempotent if true, the request may be sent again
+     * @return the response, or null if none could be obtained
+     */
+    protected HttpResponse exchange(
+            byte [] request,
+            boolean isHead,
+            boolean isIdempotent )
+    {
+        for( int attempt = 0 ; attempt < 2 ; ++attempt ) {
+            boolean reused  = theSocket != null;
+            boolean written = false;
+
+            theIsResponseStarted = theBufferStart < theBufferEnd;
+            try {
+                if( theSocket == null ) {
+                    theSocket = new Socket( theReplayer.getHost(), theReplayer.getPort() );
+                    theSocket.setTcpNoDelay( true );
+                    theParser = HttpMessageParser.createResponseParser( theName );
+                }
+                OutputStream out = theSocket.getOutputStream();
+                out.write( request );
+                out.flush();
+                written = true;
+
+                HttpResponse ret = receive( isHead );
+                if( ret != null ) {
+                    return ret;
+                }
+
+            } catch( IOException ex ) {
+                LOG.log( Level.FINE, "Exchange failed (" + theName + ")", ex );
+            }
+            closeConnection();
+            if( !reused || !isIdempotent || ( written && theIsResponseStarted )) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Receive a response.
+     *
+     * @param isHead if true, the response is to a HEAD request
+     * @return the response, or null if the connection was closed before it was complete
+     * @throws IOException an I/O problem occurred
+     */
+    protected HttpResponse receive(
+            boolean isHead )
+        throws
+            IOException
+    {
+        InputStream in = theSocket.getInputStream();
+
+        HttpResponse ret;
+        do { // skip 1xx interim responses
+            if( isHead ) {
+                theParser.setNextMessageHasNoBody();
+            }
+            ret = null;
+            while( ret == null ) {
+                if( theBufferStart == theBufferEnd ) {
+                    int read = in.read( theBuffer );
+                    if( read <= 0 ) {
+                        // completes a response whose body extends until the connection is closed
+                        theParser.endOfStream();
+                        ret = theParser.takeMessage();
+                        closeConnection();
+                        return ret != null && ret.getStatus() >= 200 ? ret : null;
+                    }
+                    theBufferStart       = 0;
+                    theBufferEnd         = read;
+                    theIsResponseStarted = true;
+                }
+                theBufferStart += theParser.parse( theBuffer, theBufferStart, theBufferEnd - theBufferStart );
+                if( theParser.hasError() ) {
+                    return null;
+                }
+                ret = theParser.takeMessage();
+            }
+        } while( ret.getStatus() < 200 );
+
+        if( ret.isClosing() ) {
+            closeConnection();
+        }
+        return ret;
+    }
+
+    /**
+     * Close the connection to the remote host, if any.
+     */
+    protected void closeConnection()
+    {
+        if( theSocket != null ) {
+            try {
+                theSocket.close();
+            } catch( IOException ex ) {
+                // ignore
+            }
+            theSocket      = null;
+            theParser      = null;
+            theBufferStart = 0;
+            theBufferEnd   = 0;
+        }
+    }
+
+    /**
+     * Name of the virtual user, for logging.
+     */
+    protected final String theName;
+
+    /**
+     * The Replayer this virtual user belongs to.
+     */
+    protected final Replayer theReplayer;
+
+    /**
+     * The cookies of this virtual user.
+     */
+    protected final CookieJar theCookies;
+
+    /**
+     * The tokens of this virtual user.
+     */
+    protected final TokenCorrelator theTokens = new TokenCorrelator();
+
+    /**
+     * The current connection to the remote host, if any.
+     */
+    protected Socket theSocket;
+
+    /**
+     * Parses the responses on the current connection.
+     */
+    protected HttpMessageParser<HttpResponse> theParser;
+
+    /**
+     * Receive buffer.
+     */
+    protected final byte [] theBuffer = new byte[ BUFFER_SIZE ];
+
+    /**
+     * Position of the first byte in theBuffer that has not been parsed yet.
+     */
+    protected int theBufferStart;
+
+    /**
+     * Position after the last byte in theBuffer that has been received.
+     */
+    protected int theBufferEnd;
+
+    /**
+     * True once any of the response to the current request has been received.
+     */
+    protected boolean theIsResponseStarted;
+
+    /**
+     * Size of the receive buffer.
+     */
+    protected static final int BUFFER_SIZE = 16384;
+}